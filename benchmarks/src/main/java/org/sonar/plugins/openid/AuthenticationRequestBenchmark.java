@@ -0,0 +1,67 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openjdk.jmh.annotations.*;
+import org.sonar.api.config.Settings;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the redirection to the provider built from the precompiled template of attributes with the
+ * redirection built from a new {@link org.openid4java.message.AuthRequest} completed by AX and SREG extensions.
+ * Run with <code>-prof gc</code> to compare allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticationRequestBenchmark {
+
+  private OpenIdClient client;
+
+  @Setup
+  public void setUp() throws Exception {
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000");
+    ConsumerManager manager = new ConsumerManager();
+    // stateless mode, the provider is never requested
+    manager.setMaxAssocAttempts(0);
+    client = new OpenIdClient(settings)
+      .setConsumerManager(manager)
+      .setDiscoveryInfo(new DiscoveryInformation(new URL("http://localhost/openid")));
+    client.initReturnToUrl();
+  }
+
+  @Benchmark
+  public String template() {
+    return client.createAuthenticationUrl();
+  }
+
+  @Benchmark
+  public String rebuiltExtensions() {
+    return client.createAuthenticationRequest().getDestinationUrl(true);
+  }
+}
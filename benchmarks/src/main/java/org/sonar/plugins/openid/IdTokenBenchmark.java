@@ -0,0 +1,98 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local verification of OpenID Connect ID tokens signed with RS256 and ES256, with the keys already downloaded and
+ * parsed, as when they are refreshed in background. The threaded benchmarks check that verifications do not contend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdTokenBenchmark {
+
+  private static final String ISSUER = "http://localhost/oidc";
+  private static final String JWKS_URI = ISSUER + "/jwks";
+  private static final String NONCE = "n0nc3";
+
+  private IdTokenVerifier verifier;
+  private String rsaToken;
+  private String ecToken;
+
+  @Setup
+  public void setUp() throws Exception {
+    KeyPairGenerator rsaGenerator = KeyPairGenerator.getInstance("RSA");
+    rsaGenerator.initialize(2048);
+    KeyPair rsa = rsaGenerator.generateKeyPair();
+    KeyPairGenerator ecGenerator = KeyPairGenerator.getInstance("EC");
+    ecGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair ec = ecGenerator.generateKeyPair();
+
+    final PublicKey rsaKey = JsonWebKeys.parse(EmbeddedOidcProvider.keySet("rsa", rsa.getPublic())).get("rsa");
+    final PublicKey ecKey = JsonWebKeys.parse(EmbeddedOidcProvider.keySet("ec", ec.getPublic())).get("ec");
+    JsonWebKeys keys = new JsonWebKeys(null, 3600L, new OpenIdMetrics()) {
+      @Override
+      PublicKey get(String jwksUri, String kid) {
+        return "rsa".equals(kid) ? rsaKey : ecKey;
+      }
+    };
+    verifier = new IdTokenVerifier("sonar", 60L, keys);
+
+    long now = System.currentTimeMillis() / 1000L;
+    String claims = "{\"iss\":\"" + ISSUER + "\",\"sub\":\"john\",\"aud\":\"sonar\",\"iat\":" + now + ",\"exp\":" + (now + 3600L) + ","
+      + "\"nonce\":\"" + NONCE + "\",\"name\":\"John Doe\",\"email\":\"john@example.com\"}";
+    rsaToken = EmbeddedOidcProvider.sign("{\"alg\":\"RS256\",\"kid\":\"rsa\"}", claims, rsa.getPrivate(), "SHA256withRSA");
+    ecToken = EmbeddedOidcProvider.sign("{\"alg\":\"ES256\",\"kid\":\"ec\"}", claims, ec.getPrivate(), "SHA256withECDSA");
+  }
+
+  @Benchmark
+  public Map<String, Object> rs256() {
+    return verifier.verify(rsaToken, ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Map<String, Object> rs256Concurrent() {
+    return verifier.verify(rsaToken, ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Benchmark
+  public Map<String, Object> es256() {
+    return verifier.verify(ecToken, ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Map<String, Object> es256Concurrent() {
+    return verifier.verify(ecToken, ISSUER, JWKS_URI, NONCE);
+  }
+}
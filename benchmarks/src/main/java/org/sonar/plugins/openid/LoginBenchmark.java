@@ -0,0 +1,139 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.NonceVerifier;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.ParameterList;
+import org.openjdk.jmh.annotations.*;
+import org.sonar.api.config.Settings;
+import org.sonar.api.security.UserDetails;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of a login against {@link StubOpenIdProvider}: the redirection to the provider, then the verification of
+ * the signed assertion sent back to /openid/validate, by openid4java or by {@link FastVerificationConsumerManager}. The provider runs in-process, so network is excluded.
+ * Throughput and sample time (p99) are measured. Run with <code>-prof gc</code> to get allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginBenchmark {
+
+  private static final String CLAIMED_ID = "http://localhost/openid/id/john";
+
+  private OpenIdClient client;
+  private OpenIdClient fastClient;
+  private OpenIdValidationFilter validationFilter;
+  private AuthSuccess response;
+  private Map responseParameters;
+  private String receivingUrl;
+  private HttpServletRequest httpRequest;
+
+  @Setup
+  public void setUp() {
+    StubOpenIdProvider provider = new StubOpenIdProvider();
+    ConsumerManager manager = newConsumerManager(new ConsumerManager());
+    ConsumerManager fastManager = newConsumerManager(new FastVerificationConsumerManager());
+    Association association = provider.associate(manager.getAssociations(), 3600);
+    fastManager.getAssociations().save(provider.getEndpoint(), association);
+
+    client = newClient(provider, manager);
+    fastClient = newClient(provider, fastManager);
+    validationFilter = new OpenIdValidationFilter(client);
+
+    response = provider.login(StubOpenIdProvider.parseRedirection(client.createAuthenticationUrl()), CLAIMED_ID, "John Smith", "john@example.com");
+    responseParameters = response.getParameterMap();
+    final String queryString = response.wwwFormEncoding();
+    receivingUrl = client.getReturnToUrl() + "?" + queryString;
+    httpRequest = (HttpServletRequest) Proxy.newProxyInstance(LoginBenchmark.class.getClassLoader(), new Class[] {HttpServletRequest.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          return "getQueryString".equals(method.getName()) ? queryString : null;
+        }
+      });
+  }
+
+  @Benchmark
+  public AuthRequest createAuthenticationRequest() {
+    return client.createAuthenticationRequest();
+  }
+
+  @Benchmark
+  public UserDetails verify() {
+    return client.verify(receivingUrl, new ParameterList(responseParameters));
+  }
+
+  @Benchmark
+  public UserDetails fastVerify() {
+    return fastClient.verify(receivingUrl, new ParameterList(responseParameters));
+  }
+
+  @Benchmark
+  public UserDetails toUser() {
+    return OpenIdClient.toUser(response);
+  }
+
+  @Benchmark
+  public String requestUrl() {
+    return validationFilter.requestUrl(httpRequest);
+  }
+
+  private static ConsumerManager newConsumerManager(ConsumerManager manager) {
+    manager.getRealmVerifier().setEnforceRpId(false);
+    manager.setMaxAssocAttempts(0);
+    // the same response is verified on each operation
+    manager.setNonceVerifier(new AcceptingNonceVerifier());
+    return manager;
+  }
+
+  private static OpenIdClient newClient(StubOpenIdProvider provider, ConsumerManager manager) {
+    OpenIdClient openIdClient = new OpenIdClient(new Settings().setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000"))
+      .setConsumerManager(manager)
+      .setDiscoveryInfo(provider.discover(CLAIMED_ID));
+    openIdClient.initReturnToUrl();
+    return openIdClient;
+  }
+
+  private static final class AcceptingNonceVerifier implements NonceVerifier {
+    public int seen(String opUrl, String nonce) {
+      return OK;
+    }
+
+    public int getMaxAge() {
+      return Integer.MAX_VALUE;
+    }
+
+    public void setMaxAge(int ageSeconds) {
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Negotiates the association with the provider in background, then renews it before it expires. The
+ * {@link ConsumerManager} used by login requests never associates, so association never happens during
+ * a user request. If no association is available, logins fall back to the stateless mode.
+ */
+class Associator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Associator.class);
+
+  static final long RETRY_DELAY_MILLIS = 60000L;
+  private static final long MIN_DELAY_MILLIS = 1000L;
+
+  private final ConsumerManager manager;
+  private final DiscoveryCache discovery;
+  private final long renewalMarginMillis;
+  private final OpenIdMetrics metrics;
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param manager the manager dedicated to association. It shares the association store with the manager of login requests.
+   */
+  Associator(ConsumerManager manager, DiscoveryCache discovery, int renewalMarginSeconds) {
+    this(manager, discovery, renewalMarginSeconds, new OpenIdMetrics());
+  }
+
+  Associator(ConsumerManager manager, DiscoveryCache discovery, int renewalMarginSeconds, OpenIdMetrics metrics) {
+    this.manager = manager;
+    this.metrics = metrics;
+    this.discovery = discovery;
+    this.renewalMarginMillis = renewalMarginSeconds * 1000L;
+    // an association that expires within the margin is renewed
+    manager.setPreExpiryAssocLockInterval(renewalMarginSeconds);
+  }
+
+  void start() {
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("openid-association-%d")
+      .setDaemon(true)
+      .build());
+    schedule(0L);
+  }
+
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  private void schedule(long delayMillis) {
+    ScheduledExecutorService e = executor;
+    if (e != null && !e.isShutdown()) {
+      e.schedule(new Runnable() {
+        public void run() {
+          schedule(associate());
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return the delay in milliseconds before the next renewal
+   */
+  @VisibleForTesting
+  long associate() {
+    try {
+      DiscoveryInformation info = discovery.get();
+      long start = System.nanoTime();
+      manager.associate(Collections.singletonList(info));
+      metrics.record(OpenIdMetrics.PHASE_ASSOCIATION, System.nanoTime() - start);
+      Association association = manager.getAssociations().load(info.getOPEndpoint().toString());
+      if (association == null || Association.FAILED_ASSOC_HANDLE.equals(association.getHandle())) {
+        metrics.providerError();
+        LOG.warn("Fail to associate with OpenID provider " + info.getOPEndpoint() + ", logins use the stateless mode");
+        return RETRY_DELAY_MILLIS;
+      }
+      long remainingMillis = association.getExpiry().getTime() - System.currentTimeMillis();
+      // an association shorter than the margin is renewed at half of its lifetime, instead of continuously
+      return Math.max(MIN_DELAY_MILLIS, remainingMillis - Math.min(renewalMarginMillis, remainingMillis / 2));
+    } catch (RuntimeException e) {
+      LOG.warn("Fail to associate with OpenID provider", e);
+      return RETRY_DELAY_MILLIS;
+    }
+  }
+}
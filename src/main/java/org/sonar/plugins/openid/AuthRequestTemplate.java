@@ -0,0 +1,112 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.MessageExtension;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ax.FetchRequest;
+import org.openid4java.message.sreg.SRegRequest;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+/**
+ * The AX and SREG attributes requested on each login, as read by the {@link UserMapping}. They never change, so they are URL-encoded once and
+ * appended to the destination URL of the requests that are not completed by an
+ * {@link org.sonar.plugins.openid.api.OpenIdExtension}.
+ */
+class AuthRequestTemplate {
+
+  static final String AX_ALIAS = "ax";
+  static final String SREG_ALIAS = "sreg";
+
+  private final UserMapping mapping;
+  private final String encodedAttributes;
+
+  AuthRequestTemplate() {
+    this(UserMapping.DEFAULT);
+  }
+
+  AuthRequestTemplate(UserMapping mapping) {
+    this.mapping = mapping;
+    try {
+      StringBuilder sb = new StringBuilder();
+      encode(sb, AX_ALIAS, newFetchRequest());
+      encode(sb, SREG_ALIAS, newSRegRequest());
+      encodedAttributes = sb.toString();
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to encode OpenID attributes", e);
+    }
+  }
+
+  String getEncodedAttributes() {
+    return encodedAttributes;
+  }
+
+  /**
+   * Destination URL of the request, including the requested attributes. The request must not contain AX nor SREG extension.
+   */
+  String destinationUrl(AuthRequest request) {
+    String url = request.getDestinationUrl(true);
+    return new StringBuilder(url.length() + encodedAttributes.length()).append(url).append(encodedAttributes).toString();
+  }
+
+  /**
+   * Adds new instances of the requested attributes, so that they can be completed by extensions.
+   */
+  void addAttributes(AuthRequest request) throws MessageException {
+    request.addExtension(newFetchRequest());
+    request.addExtension(newSRegRequest());
+  }
+
+  private FetchRequest newFetchRequest() throws MessageException {
+    FetchRequest fetch = FetchRequest.createFetchRequest();
+    for (Map.Entry<String, String> attribute : mapping.getAxAttributes().entrySet()) {
+      fetch.addAttribute(attribute.getKey(), attribute.getValue(), true);
+    }
+    if (mapping.getGroupsAttribute() != null) {
+      fetch.addAttribute(mapping.getGroupsAttribute(), mapping.getGroupsType(), true, UserMapping.UNLIMITED_COUNT);
+    }
+    return fetch;
+  }
+
+  private SRegRequest newSRegRequest() {
+    SRegRequest sreg = SRegRequest.createFetchRequest();
+    for (String attribute : mapping.getSregAttributes()) {
+      sreg.addAttribute(attribute, true);
+    }
+    return sreg;
+  }
+
+  private static void encode(StringBuilder sb, String alias, MessageExtension extension) throws UnsupportedEncodingException {
+    appendParameter(sb, "openid.ns." + alias, extension.getTypeUri());
+    for (Object o : extension.getParameters().getParameters()) {
+      Parameter parameter = (Parameter) o;
+      appendParameter(sb, "openid." + alias + "." + parameter.getKey(), parameter.getValue());
+    }
+  }
+
+  private static void appendParameter(StringBuilder sb, String key, String value) throws UnsupportedEncodingException {
+    sb.append('&').append(URLEncoder.encode(key, "UTF-8")).append('=').append(URLEncoder.encode(value, "UTF-8"));
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import org.openid4java.consumer.NonceVerifier;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Replacement of {@link org.openid4java.consumer.InMemoryNonceVerifier} that does not lock nor scan
+ * the whole storage on each call. Nonces are stored in a ring of buckets indexed by their timestamp. A bucket
+ * is dropped as a whole when its time slot expires. The number of stored nonces is bounded by the capacity, whatever
+ * their distribution among buckets: when it is reached, the expired buckets are dropped before rejecting the nonce.
+ * Nonces rejected because the storage is full are considered as already seen.
+ * Nonces are submitted only once the signature of the response is verified, see {@link FastVerificationConsumerManager}.
+ */
+class BucketedNonceVerifier implements NonceVerifier {
+
+  /**
+   * Number of buckets covering the max age. The ring also covers timestamps in the future
+   * (clock skew), up to max age.
+   */
+  static final int BUCKETS_PER_MAX_AGE = 8;
+
+  private static final int TIMESTAMP_LENGTH = "2005-05-15T17:11:51Z".length();
+
+  private final int capacity;
+  private volatile Ring ring;
+
+  private final AtomicLong rejectedAsSeen = new AtomicLong();
+  private final AtomicLong rejectedAsTooOld = new AtomicLong();
+  private final AtomicLong rejectedAsInvalid = new AtomicLong();
+  private final AtomicLong rejectedAsFull = new AtomicLong();
+
+  BucketedNonceVerifier(int maxAgeSeconds, int capacity) {
+    Preconditions.checkArgument(maxAgeSeconds > 0, "Max age of nonces must be positive");
+    Preconditions.checkArgument(capacity > 0, "Capacity of nonce verifier must be positive");
+    this.capacity = capacity;
+    this.ring = new Ring(maxAgeSeconds, capacity);
+  }
+
+  public int seen(String opUrl, String nonce) {
+    long timestamp = parseTimestamp(nonce);
+    if (timestamp < 0L) {
+      rejectedAsInvalid.incrementAndGet();
+      return INVALID_TIMESTAMP;
+    }
+    Ring r = ring;
+    long now = currentTimeMillis();
+    if (timestamp < now - r.maxAgeMillis) {
+      rejectedAsTooOld.incrementAndGet();
+      return TOO_OLD;
+    }
+    if (timestamp > now + r.maxAgeMillis) {
+      rejectedAsInvalid.incrementAndGet();
+      return INVALID_TIMESTAMP;
+    }
+    Bucket bucket = r.bucket(timestamp / r.bucketMillis);
+    if (bucket == null) {
+      rejectedAsTooOld.incrementAndGet();
+      return TOO_OLD;
+    }
+    if (!r.reserve(now)) {
+      rejectedAsFull.incrementAndGet();
+      return SEEN;
+    }
+    if (bucket.size.incrementAndGet() <= 0) {
+      // dropped meanwhile, its time slot expired
+      r.size.decrementAndGet();
+      rejectedAsTooOld.incrementAndGet();
+      return TOO_OLD;
+    }
+    if (bucket.nonces.putIfAbsent(nonce + ' ' + opUrl, Boolean.TRUE) != null) {
+      if (bucket.size.decrementAndGet() >= 0) {
+        r.size.decrementAndGet();
+      }
+      rejectedAsSeen.incrementAndGet();
+      return SEEN;
+    }
+    return OK;
+  }
+
+  public int getMaxAge() {
+    return (int) (ring.maxAgeMillis / 1000L);
+  }
+
+  /**
+   * Changing the max age drops all the stored nonces.
+   */
+  public void setMaxAge(int ageSeconds) {
+    Preconditions.checkArgument(ageSeconds > 0, "Max age of nonces must be positive");
+    ring = new Ring(ageSeconds, capacity);
+  }
+
+  /**
+   * Number of stored nonces, including the nonces of expired buckets that are not dropped yet.
+   */
+  int size() {
+    return ring.size.get();
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  long getRejectedAsSeen() {
+    return rejectedAsSeen.get();
+  }
+
+  long getRejectedAsTooOld() {
+    return rejectedAsTooOld.get();
+  }
+
+  long getRejectedAsInvalid() {
+    return rejectedAsInvalid.get();
+  }
+
+  long getRejectedAsFull() {
+    return rejectedAsFull.get();
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Parses the UTC timestamp that prefixes the nonce, for example 2005-05-15T17:11:51ZUNIQUE, without
+   * allocating a date format.
+   *
+   * @return milliseconds since epoch, or -1 if the timestamp is invalid
+   */
+  static long parseTimestamp(String nonce) {
+    if (nonce == null || nonce.length() < TIMESTAMP_LENGTH || nonce.charAt(4) != '-' || nonce.charAt(7) != '-'
+      || nonce.charAt(10) != 'T' || nonce.charAt(13) != ':' || nonce.charAt(16) != ':' || nonce.charAt(19) != 'Z') {
+      return -1L;
+    }
+    int year = digits(nonce, 0, 4);
+    int month = digits(nonce, 5, 2);
+    int day = digits(nonce, 8, 2);
+    int hour = digits(nonce, 11, 2);
+    int minute = digits(nonce, 14, 2);
+    int second = digits(nonce, 17, 2);
+    if (year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+      return -1L;
+    }
+    long seconds = daysFromEpoch(year, month, day) * 86400L + hour * 3600L + minute * 60L + second;
+    return seconds * 1000L;
+  }
+
+  private static int digits(String s, int offset, int length) {
+    int result = 0;
+    for (int i = offset; i < offset + length; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  /**
+   * Days since 1970-01-01 in the proleptic Gregorian calendar.
+   */
+  private static long daysFromEpoch(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468L;
+  }
+
+  private static final class Ring {
+    private final long maxAgeMillis;
+    private final long bucketMillis;
+    private final int capacity;
+    private final AtomicReferenceArray<Bucket> buckets;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private Ring(int maxAgeSeconds, int capacity) {
+      this.maxAgeMillis = maxAgeSeconds * 1000L;
+      this.bucketMillis = Math.max(1L, maxAgeMillis / BUCKETS_PER_MAX_AGE);
+      this.capacity = capacity;
+      // live timestamps are in [now - max age, now + max age]. Two more buckets so that live slots never collide.
+      int count = (int) (2L * maxAgeMillis / bucketMillis) + 2;
+      this.buckets = new AtomicReferenceArray<Bucket>(count);
+    }
+
+    /**
+     * @return the bucket of the time slot, or null if the time slot already expired
+     */
+    private Bucket bucket(long slot) {
+      int index = (int) (slot % buckets.length());
+      while (true) {
+        Bucket bucket = buckets.get(index);
+        if (bucket != null && bucket.slot == slot) {
+          return bucket;
+        }
+        if (bucket != null && bucket.slot > slot) {
+          return null;
+        }
+        // expired bucket is dropped
+        if (buckets.compareAndSet(index, bucket, new Bucket(slot)) && bucket != null) {
+          drop(bucket);
+        }
+      }
+    }
+
+    /**
+     * Reserves the storage of a nonce, dropping the expired buckets if the capacity is reached
+     */
+    private boolean reserve(long now) {
+      if (size.incrementAndGet() <= capacity) {
+        return true;
+      }
+      size.decrementAndGet();
+      long oldestSlot = (now - maxAgeMillis) / bucketMillis;
+      for (int i = 0; i < buckets.length(); i++) {
+        Bucket bucket = buckets.get(i);
+        if (bucket != null && bucket.slot < oldestSlot && buckets.compareAndSet(i, bucket, null)) {
+          drop(bucket);
+        }
+      }
+      if (size.incrementAndGet() <= capacity) {
+        return true;
+      }
+      size.decrementAndGet();
+      return false;
+    }
+
+    /**
+     * Closes the bucket, so that the nonces added concurrently are not counted twice
+     */
+    private void drop(Bucket bucket) {
+      size.addAndGet(-bucket.size.getAndSet(Bucket.DROPPED));
+    }
+  }
+
+  private static final class Bucket {
+    private static final int DROPPED = Integer.MIN_VALUE / 2;
+
+    private final long slot;
+    private final AtomicInteger size = new AtomicInteger();
+    private final ConcurrentMap<String, Boolean> nonces = new ConcurrentHashMap<String, Boolean>();
+
+    private Bucket(long slot) {
+      this.slot = slot;
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Last known discovery information of the OpenID provider. Discovery is executed in background at startup
+ * then periodically, so that neither the server startup nor the logins wait for the provider. When
+ * a refresh fails, the previous snapshot is kept. The last successful snapshot is stored on disk, in a file
+ * readable by the owner of the process only, and reloaded at startup. All the endpoints returned by the discovery
+ * are kept, by order of preference.
+ */
+class DiscoveryCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DiscoveryCache.class);
+
+  private static final String SNAPSHOT_ENDPOINT = "endpoint";
+  private static final String SNAPSHOT_COUNT = "count";
+  private static final String SNAPSHOT_OP_ENDPOINT = "opEndpoint";
+  private static final String SNAPSHOT_VERSION = "version";
+  private static final String SNAPSHOT_DELEGATE = "delegate";
+  private static final Set<String> VERSIONS = ImmutableSet.of(DiscoveryInformation.OPENID10, DiscoveryInformation.OPENID11,
+    DiscoveryInformation.OPENID2, DiscoveryInformation.OPENID2_OP);
+
+  private final String endpoint;
+  private final long refreshIntervalSeconds;
+  private final File snapshotFile;
+  private final OpenIdMetrics metrics;
+  private final Discovery discovery;
+  private final AtomicReference<List<DiscoveryInformation>> current = new AtomicReference<List<DiscoveryInformation>>();
+  private final Object refreshLock = new Object();
+  private ScheduledExecutorService executor;
+
+  DiscoveryCache(String endpoint, long refreshIntervalSeconds, File snapshotFile) {
+    this(endpoint, refreshIntervalSeconds, snapshotFile, new OpenIdMetrics());
+  }
+
+  DiscoveryCache(String endpoint, long refreshIntervalSeconds, File snapshotFile, OpenIdMetrics metrics) {
+    this(endpoint, refreshIntervalSeconds, snapshotFile, metrics, new Discovery());
+  }
+
+  DiscoveryCache(String endpoint, long refreshIntervalSeconds, File snapshotFile, OpenIdMetrics metrics, Discovery discovery) {
+    this.endpoint = endpoint;
+    this.refreshIntervalSeconds = refreshIntervalSeconds;
+    this.snapshotFile = snapshotFile;
+    this.metrics = metrics;
+    this.discovery = discovery;
+  }
+
+  String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Loads the snapshot stored on disk, then schedules the discovery in background. Does not block on network.
+   */
+  void start() {
+    Preconditions.checkState(!Strings.isNullOrEmpty(endpoint), "Property " + OpenIdClient.PROPERTY_OPENID_URL + " is missing");
+    current.compareAndSet(null, loadSnapshot());
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("openid-discovery-%d")
+      .setDaemon(true)
+      .build());
+    Runnable task = new Runnable() {
+      public void run() {
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          LOG.warn("Fail to refresh OpenID discovery of " + endpoint + ", keeping the last known information", e);
+        }
+      }
+    };
+    if (refreshIntervalSeconds > 0) {
+      executor.scheduleWithFixedDelay(task, 0L, refreshIntervalSeconds, TimeUnit.SECONDS);
+    } else {
+      executor.execute(task);
+    }
+  }
+
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * @return the preferred endpoint of the current snapshot
+   * @see #getAll()
+   */
+  DiscoveryInformation get() {
+    return getAll().get(0);
+  }
+
+  /**
+   * Returns the endpoints of the current snapshot, even if a refresh is in progress. The discovery is executed in the caller
+   * thread only if no information has ever been available.
+   *
+   * @return the endpoints by order of preference, never empty
+   */
+  List<DiscoveryInformation> getAll() {
+    List<DiscoveryInformation> infos = current.get();
+    if (infos == null) {
+      synchronized (refreshLock) {
+        infos = current.get();
+        if (infos == null) {
+          infos = refresh();
+        }
+      }
+    }
+    return infos;
+  }
+
+  @VisibleForTesting
+  void set(DiscoveryInformation info) {
+    current.set(Collections.singletonList(info));
+  }
+
+  @VisibleForTesting
+  void set(List<DiscoveryInformation> infos) {
+    Preconditions.checkArgument(!infos.isEmpty(), "At least one OpenID endpoint is required");
+    current.set(Collections.unmodifiableList(new ArrayList<DiscoveryInformation>(infos)));
+  }
+
+  List<DiscoveryInformation> refresh() {
+    synchronized (refreshLock) {
+      List<DiscoveryInformation> infos = discover();
+      current.set(infos);
+      saveSnapshot(infos);
+      return infos;
+    }
+  }
+
+  private List<DiscoveryInformation> discover() {
+    long start = System.nanoTime();
+    try {
+      List l = discovery.discover(endpoint);
+      if (l == null || l.isEmpty()) {
+        return Collections.singletonList(new DiscoveryInformation(new URL(endpoint)));
+      }
+      List<DiscoveryInformation> infos = new ArrayList<DiscoveryInformation>(l.size());
+      for (Object info : l) {
+        infos.add((DiscoveryInformation) info);
+      }
+      return Collections.unmodifiableList(infos);
+    } catch (Exception e) {
+      metrics.providerError();
+      throw new IllegalStateException("Fail to discover OpenID endpoint: " + endpoint, e);
+    } finally {
+      metrics.record(OpenIdMetrics.PHASE_DISCOVERY, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * The snapshot is a properties file that contains only the endpoints, versions and delegate identifiers. It is ignored if
+   * it can be modified by other users, as it selects the endpoint that authenticates the users.
+   */
+  @VisibleForTesting
+  List<DiscoveryInformation> loadSnapshot() {
+    if (snapshotFile == null || !snapshotFile.isFile()) {
+      return null;
+    }
+    InputStream input = null;
+    try {
+      if (!PrivateFiles.isNotWritableByOthers(snapshotFile) || !PrivateFiles.isNotWritableByOthers(snapshotFile.getAbsoluteFile().getParentFile())) {
+        LOG.warn("Ignore OpenID discovery information of " + snapshotFile.getAbsolutePath() + ", it can be modified by other users");
+        return null;
+      }
+      input = new BufferedInputStream(new FileInputStream(snapshotFile));
+      Properties snapshot = new Properties();
+      snapshot.load(input);
+      if (endpoint.equals(snapshot.getProperty(SNAPSHOT_ENDPOINT))) {
+        LOG.info("Load OpenID discovery information from " + snapshotFile.getAbsolutePath());
+        int count = Integer.parseInt(snapshot.getProperty(SNAPSHOT_COUNT, "0"));
+        List<DiscoveryInformation> infos = new ArrayList<DiscoveryInformation>();
+        for (int i = 0; i < count; i++) {
+          infos.add(parse(snapshot, i + "."));
+        }
+        return infos.isEmpty() ? null : Collections.unmodifiableList(infos);
+      }
+    } catch (Exception e) {
+      LOG.warn("Fail to load OpenID discovery information from " + snapshotFile.getAbsolutePath(), e);
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+    return null;
+  }
+
+  private static DiscoveryInformation parse(Properties snapshot, String prefix) throws DiscoveryException, MalformedURLException {
+    URL opEndpoint = new URL(snapshot.getProperty(prefix + SNAPSHOT_OP_ENDPOINT));
+    Preconditions.checkArgument("http".equals(opEndpoint.getProtocol()) || "https".equals(opEndpoint.getProtocol()), "Invalid OpenID endpoint: " + opEndpoint);
+    String version = snapshot.getProperty(prefix + SNAPSHOT_VERSION);
+    Preconditions.checkArgument(VERSIONS.contains(version), "Invalid OpenID version: " + version);
+    return new DiscoveryInformation(opEndpoint, null, snapshot.getProperty(prefix + SNAPSHOT_DELEGATE), version);
+  }
+
+  private void saveSnapshot(List<DiscoveryInformation> infos) {
+    if (snapshotFile == null) {
+      return;
+    }
+    File tmp = new File(snapshotFile.getAbsolutePath() + ".tmp");
+    OutputStream output = null;
+    try {
+      Properties snapshot = new Properties();
+      snapshot.setProperty(SNAPSHOT_ENDPOINT, endpoint);
+      snapshot.setProperty(SNAPSHOT_COUNT, String.valueOf(infos.size()));
+      for (int i = 0; i < infos.size(); i++) {
+        DiscoveryInformation info = infos.get(i);
+        snapshot.setProperty(i + "." + SNAPSHOT_OP_ENDPOINT, info.getOPEndpoint().toString());
+        snapshot.setProperty(i + "." + SNAPSHOT_VERSION, info.getVersion());
+        if (info.hasDelegateIdentifier()) {
+          snapshot.setProperty(i + "." + SNAPSHOT_DELEGATE, info.getDelegateIdentifier());
+        }
+      }
+      PrivateFiles.createDirectory(snapshotFile.getAbsoluteFile().getParentFile());
+      Files.deleteIfExists(tmp.toPath());
+      PrivateFiles.createFile(tmp);
+      output = new BufferedOutputStream(new FileOutputStream(tmp));
+      snapshot.store(output, "OpenID discovery information");
+      output.close();
+      output = null;
+      Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn("Fail to save OpenID discovery information to " + snapshotFile.getAbsolutePath(), e);
+    } finally {
+      Closeables.closeQuietly(output);
+    }
+  }
+}
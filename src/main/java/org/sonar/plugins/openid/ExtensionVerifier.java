@@ -0,0 +1,237 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.MessageExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.openid.api.OpenIdExtension;
+import org.sonar.plugins.openid.api.OpenIdResponseExtensions;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Calls {@link OpenIdExtension#doVerifyResponse(AuthSuccess, OpenIdResponseExtensions)} of all the extensions. The response is verified
+ * if all the extensions accept it. Extensions are called sequentially in the request thread, or concurrently on
+ * a bounded pool of threads. In the latter mode each extension has a time budget, and an extension that fails,
+ * exceeds its budget or finds no free thread is considered as accepting (fail-open) or rejecting (fail-closed)
+ * the response. As soon as an extension rejects the response, the other ones are cancelled.
+ * <p>The message extensions of the response are parsed by the request thread before the extensions are submitted.
+ * openid4java caches them in an unsynchronized map of the message, so extensions calling
+ * {@link AuthSuccess#getExtension(String)} concurrently must only read this cache.</p>
+ */
+class ExtensionVerifier {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExtensionVerifier.class);
+
+  private final List<OpenIdExtension> extensions;
+  private final String[] phases;
+  private final OpenIdMetrics metrics;
+  private final long timeoutMillis;
+  private final boolean failOpen;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Sequential mode
+   */
+  ExtensionVerifier(List<OpenIdExtension> extensions, OpenIdMetrics metrics) {
+    this(extensions, metrics, 0, 0L, false);
+  }
+
+  /**
+   * @param threads maximum number of extensions executed concurrently by all the requests. Extensions are executed
+   *                sequentially in the request thread if zero.
+   */
+  ExtensionVerifier(List<OpenIdExtension> extensions, OpenIdMetrics metrics, int threads, long timeoutMillis, boolean failOpen) {
+    Preconditions.checkArgument(threads >= 0, "Number of threads must be positive");
+    Preconditions.checkArgument(threads == 0 || timeoutMillis > 0, "Timeout of extensions must be positive");
+    this.extensions = extensions;
+    this.metrics = metrics;
+    this.timeoutMillis = timeoutMillis;
+    this.failOpen = failOpen;
+    this.phases = new String[extensions.size()];
+    for (int i = 0; i < phases.length; i++) {
+      phases[i] = OpenIdMetrics.PHASE_EXTENSION_PREFIX + extensions.get(i).getClass().getName();
+    }
+    if (threads > 0 && extensions.size() > 0) {
+      // when all threads are busy, the extension is rejected instead of blocking the request thread
+      executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("openid-extension-%d").setDaemon(true).build(),
+        new ThreadPoolExecutor.AbortPolicy());
+      executor.allowCoreThreadTimeOut(true);
+    } else {
+      executor = null;
+    }
+  }
+
+  boolean isParallel() {
+    return executor != null;
+  }
+
+  boolean verify(AuthSuccess response) {
+    return verify(new OpenIdResponseExtensions(response));
+  }
+
+  /**
+   * @param extensions the parsed extensions of the response, shared by all the OpenID extensions
+   */
+  boolean verify(OpenIdResponseExtensions extensions) {
+    return executor == null ? verifySequentially(extensions) : verifyConcurrently(extensions);
+  }
+
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private boolean verifySequentially(OpenIdResponseExtensions response) {
+    boolean ok = true;
+    for (int i = 0; i < phases.length; i++) {
+      ok &= call(i, response);
+    }
+    return ok;
+  }
+
+  /**
+   * Each extension has its own deadline, counted from its submission. An extension that can not be submitted
+   * because all the threads are busy is handled as if it had timed out.
+   */
+  private boolean verifyConcurrently(final OpenIdResponseExtensions response) {
+    parseAll(response);
+    CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+    Map<Future<Boolean>, Integer> pending = new HashMap<Future<Boolean>, Integer>();
+    long[] deadlines = new long[phases.length];
+    try {
+      for (int i = 0; i < phases.length; i++) {
+        final int index = i;
+        deadlines[i] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+          pending.put(completion.submit(new Callable<Boolean>() {
+            public Boolean call() {
+              return ExtensionVerifier.this.call(index, response);
+            }
+          }), index);
+        } catch (RejectedExecutionException e) {
+          LOG.warn("No thread available for OpenID extension " + extensions.get(i).getClass().getName() + ", " + policy());
+          if (!failOpen) {
+            return false;
+          }
+        }
+      }
+      while (!pending.isEmpty()) {
+        Future<Boolean> future = completion.poll(nextDeadline(pending, deadlines) - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (future == null) {
+          if (!expire(pending, deadlines)) {
+            return false;
+          }
+        } else if (pending.remove(future) != null && !result(future)) {
+          return false;
+        }
+      }
+      return true;
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+
+    } finally {
+      for (Future<Boolean> future : pending.keySet()) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Fills the cache of extensions of the message, so that the pool threads do not write it
+   */
+  private static void parseAll(OpenIdResponseExtensions response) {
+    for (Object typeUri : response.getResponse().getExtensions()) {
+      if (Message.hasExtensionFactory((String) typeUri)) {
+        try {
+          response.get(MessageExtension.class, (String) typeUri);
+        } catch (RuntimeException e) {
+          // not cached by openid4java, the extensions reading this namespace will fail the same way
+          LOG.debug("Fail to parse OpenID extension " + typeUri, e);
+        }
+      }
+    }
+  }
+
+  private static long nextDeadline(Map<Future<Boolean>, Integer> pending, long[] deadlines) {
+    long next = Long.MAX_VALUE;
+    for (Integer index : pending.values()) {
+      next = Math.min(next, deadlines[index]);
+    }
+    return next;
+  }
+
+  /**
+   * Cancels the extensions that exceeded their deadline
+   *
+   * @return false if the response is rejected
+   */
+  private boolean expire(Map<Future<Boolean>, Integer> pending, long[] deadlines) {
+    long now = System.nanoTime();
+    for (Iterator<Map.Entry<Future<Boolean>, Integer>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Future<Boolean>, Integer> entry = it.next();
+      if (deadlines[entry.getValue()] - now <= 0L) {
+        LOG.warn("OpenID extension " + extensions.get(entry.getValue()).getClass().getName() + " did not verify the response within "
+          + timeoutMillis + "ms, " + policy());
+        entry.getKey().cancel(true);
+        it.remove();
+        if (!failOpen) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean result(Future<Boolean> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      LOG.warn("Fail to verify OpenID response by extension, " + policy(), e.getCause());
+      return failOpen;
+    }
+  }
+
+  private String policy() {
+    return failOpen ? "response is accepted (fail-open)" : "response is rejected (fail-closed)";
+  }
+
+  private boolean call(int index, OpenIdResponseExtensions response) {
+    long start = System.nanoTime();
+    try {
+      return extensions.get(index).doVerifyResponse(response.getResponse(), response);
+    } finally {
+      metrics.record(phases[index], System.nanoTime() - start);
+    }
+  }
+}
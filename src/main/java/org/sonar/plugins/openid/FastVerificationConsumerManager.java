@@ -0,0 +1,177 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.VerificationResult;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.ParameterList;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.util.HttpFetcherFactory;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Verifies the OpenID 2.0 assertions signed with a known HMAC-SHA1 or HMAC-SHA256 association with a
+ * {@link SignatureVerifier}. The return-to URL, the discovered information and the nonce are still verified by
+ * openid4java. Other responses (stateless mode, invalidated handles, unknown or expired associations) are
+ * verified by openid4java only.
+ * <p>In both cases the nonce is recorded only once the signature is verified, whereas openid4java verifies it
+ * before the signature. Forged responses can not fill the store of nonces. The local verification of signatures
+ * can be disabled, the order of the verifications is kept.</p>
+ */
+class FastVerificationConsumerManager extends ConsumerManager {
+
+  private final SignatureVerifier signatures = new SignatureVerifier();
+  private final boolean localSignatures;
+  private final Method verifyDiscovered = findMethod("verifyDiscovered", AuthSuccess.class, DiscoveryInformation.class);
+  private final Method verifySignature = findMethod("verifySignature", AuthSuccess.class, DiscoveryInformation.class, VerificationResult.class);
+
+  FastVerificationConsumerManager() {
+    super();
+    this.localSignatures = true;
+  }
+
+  /**
+   * @param localSignatures whether signatures of associated responses are verified by {@link SignatureVerifier}
+   */
+  FastVerificationConsumerManager(RealmVerifierFactory realmFactory, Discovery discovery, HttpFetcherFactory httpFetcherFactory,
+    boolean localSignatures) {
+    super(realmFactory, discovery, httpFetcherFactory);
+    this.localSignatures = localSignatures;
+  }
+
+  @Override
+  public VerificationResult verify(String receivingUrl, ParameterList response, DiscoveryInformation discovered)
+    throws MessageException, DiscoveryException, AssociationException {
+    if (verifyDiscovered == null || verifySignature == null || !"id_res".equals(response.getParameterValue("openid.mode"))
+      || response.hasParameter("openid.user_setup_url")) {
+      return super.verify(receivingUrl, response, discovered);
+    }
+    Association association = fastPathAssociation(response, discovered);
+    VerificationResult result = new VerificationResult();
+    AuthSuccess authResp = AuthSuccess.createAuthSuccess(response);
+    result.setAuthResponse(authResp);
+    // same checks and messages than ConsumerManager#verify(), except that the signature is verified before
+    // the nonce, so forged responses do not consume nonces
+    if (association != null && !signatures.verify(association, response)) {
+      result.setStatusMsg("Local signature verification failed");
+      return result;
+    }
+    if (!verifyReturnTo(receivingUrl, authResp)) {
+      result.setStatusMsg("Return_To URL verification failed.");
+      return result;
+    }
+    DiscoveryInformation verified = verifyDiscovered(authResp, discovered);
+    if (verified == null || !verified.hasClaimedIdentifier()) {
+      result.setStatusMsg("Discovered information verification failed.");
+      return result;
+    }
+    if (association == null) {
+      // stateless mode, unknown association or local verification disabled: openid4java verifies the signature,
+      // possibly by requesting the provider
+      result = verifySignature(authResp, verified, result);
+      if (result.getVerifiedId() == null) {
+        return result;
+      }
+    }
+    if (!verifyNonce(authResp, verified)) {
+      result.setVerifiedId(null);
+      result.setStatusMsg("Nonce verification failed.");
+      return result;
+    }
+    if (association != null) {
+      result.setVerifiedId(getDiscovery().parseIdentifier(authResp.getClaimed()));
+    }
+    return result;
+  }
+
+  /**
+   * @return the association that signed the response, or null if the response must be verified by openid4java
+   */
+  @VisibleForTesting
+  Association fastPathAssociation(ParameterList response, DiscoveryInformation discovered) {
+    if (!localSignatures || verifyDiscovered == null || discovered == null || !discovered.isVersion2()
+      || !"id_res".equals(response.getParameterValue("openid.mode"))
+      || !Message.OPENID2_NS.equals(response.getParameterValue("openid.ns"))
+      || response.hasParameter("openid.invalidate_handle")) {
+      return null;
+    }
+    String handle = response.getParameterValue("openid.assoc_handle");
+    String opEndpoint = discovered.getOPEndpoint().toString();
+    if (handle == null || !opEndpoint.equals(response.getParameterValue("openid.op_endpoint"))) {
+      return null;
+    }
+    Association association = getAssociations().load(opEndpoint, handle);
+    return association != null && !association.hasExpired() && SignatureVerifier.supports(association) ? association : null;
+  }
+
+  private DiscoveryInformation verifyDiscovered(AuthSuccess authResp, DiscoveryInformation discovered) throws DiscoveryException {
+    try {
+      return (DiscoveryInformation) verifyDiscovered.invoke(this, authResp, discovered);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Fail to verify the discovered information of OpenID response", e);
+    } catch (InvocationTargetException e) {
+      Throwables.propagateIfPossible(e.getCause(), DiscoveryException.class);
+      throw new IllegalStateException("Fail to verify the discovered information of OpenID response", e.getCause());
+    }
+  }
+
+  private VerificationResult verifySignature(AuthSuccess authResp, DiscoveryInformation discovered, VerificationResult result)
+    throws AssociationException, MessageException, DiscoveryException {
+    try {
+      return (VerificationResult) verifySignature.invoke(this, authResp, discovered, result);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Fail to verify the signature of OpenID response", e);
+    } catch (InvocationTargetException e) {
+      Throwables.propagateIfPossible(e.getCause(), AssociationException.class, MessageException.class);
+      Throwables.propagateIfPossible(e.getCause(), DiscoveryException.class);
+      throw new IllegalStateException("Fail to verify the signature of OpenID response", e.getCause());
+    }
+  }
+
+  /**
+   * The verifications of discovered information and of signatures are not exposed by openid4java 0.9.6
+   *
+   * @return null if the method does not exist in the version of openid4java, then all the responses are verified by openid4java
+   */
+  private static Method findMethod(String name, Class<?>... parameterTypes) {
+    try {
+      Method method = ConsumerManager.class.getDeclaredMethod(name, parameterTypes);
+      method.setAccessible(true);
+      return method;
+    } catch (Exception e) {
+      LoggerFactory.getLogger(FastVerificationConsumerManager.class).warn("Verification of OpenID responses is delegated to openid4java, "
+        + "the method " + name + " is not supported by this version", e);
+      return null;
+    }
+  }
+}
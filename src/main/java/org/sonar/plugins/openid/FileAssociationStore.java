@@ -0,0 +1,131 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openid4java.association.Association;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Associations stored in a directory shared by the server nodes, for example on a network file system.
+ * Each association is a small properties file. The directory must be readable only by the server, as the
+ * files contain the MAC keys: it is created with the permissions rwx------, the files with rw-------, and the
+ * server does not start if an existing directory can be accessed by other users.
+ */
+class FileAssociationStore extends SharedAssociationStore {
+
+  static final String PROPERTY_DIRECTORY = "sonar.openid.associationStore.directory";
+
+  private static final String SUFFIX = ".properties";
+
+  private final File dir;
+
+  FileAssociationStore(File dir) {
+    try {
+      PrivateFiles.createDirectory(dir);
+      Preconditions.checkArgument(PrivateFiles.isNotAccessibleByOthers(dir),
+        "The directory of OpenID associations must be accessible only by the user of the server: " + dir.getAbsolutePath());
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Fail to create the directory of OpenID associations: " + dir.getAbsolutePath(), e);
+    }
+    this.dir = dir;
+  }
+
+  File getDir() {
+    return dir;
+  }
+
+  @Override
+  void write(String opUrl, Association association) throws IOException {
+    Properties props = new Properties();
+    props.setProperty("opUrl", opUrl);
+    props.setProperty("handle", association.getHandle());
+    props.setProperty("type", association.getType());
+    props.setProperty("key", encodeKey(association));
+    props.setProperty("expiry", String.valueOf(association.getExpiry().getTime()));
+
+    File file = file(opUrl, association.getHandle());
+    File tmp = new File(dir, file.getName() + ".tmp");
+    Files.deleteIfExists(tmp.toPath());
+    PrivateFiles.createFile(tmp);
+    OutputStream output = new FileOutputStream(tmp);
+    try {
+      props.store(output, null);
+    } finally {
+      Closeables.closeQuietly(output);
+    }
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      throw new IOException("Fail to rename " + tmp + " to " + file);
+    }
+  }
+
+  @Override
+  Association read(String opUrl, String handle) throws Exception {
+    File file = file(opUrl, handle);
+    return file.isFile() ? read(file) : null;
+  }
+
+  @Override
+  Association readLatest(String opUrl) throws Exception {
+    final String prefix = DigestUtils.shaHex(opUrl) + "-";
+    File[] files = dir.listFiles(new FilenameFilter() {
+      public boolean accept(File d, String name) {
+        return name.startsWith(prefix) && name.endsWith(SUFFIX);
+      }
+    });
+    Association latest = null;
+    if (files != null) {
+      for (File file : files) {
+        Association association = read(file);
+        if (association.hasExpired()) {
+          file.delete();
+        } else if (latest == null || latest.getExpiry().before(association.getExpiry())) {
+          latest = association;
+        }
+      }
+    }
+    return latest;
+  }
+
+  @Override
+  void delete(String opUrl, String handle) {
+    file(opUrl, handle).delete();
+  }
+
+  private static Association read(File file) throws Exception {
+    Properties props = new Properties();
+    InputStream input = new FileInputStream(file);
+    try {
+      props.load(input);
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+    return decode(props.getProperty("type"), props.getProperty("handle"), props.getProperty("key"), Long.parseLong(props.getProperty("expiry")));
+  }
+
+  private File file(String opUrl, String handle) {
+    return new File(dir, DigestUtils.shaHex(opUrl) + "-" + DigestUtils.shaHex(handle) + SUFFIX);
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Provider;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.util.AbstractHttpFetcher;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP transport shared by all the calls to the provider: discovery, association and verification. Connections
+ * are pooled and kept alive, so that the TCP and TLS handshakes are not executed on each call. Discovery
+ * documents are cached by URL. When an entry expires, it is revalidated with its ETag or Last-Modified date,
+ * so that an unchanged document is not downloaded again.
+ */
+class HttpTransport {
+
+  static final String PROPERTY_ENABLED = "sonar.openid.http.pooled";
+  static final String PROPERTY_MAX_CONNECTIONS = "sonar.openid.http.maxConnections";
+  static final String PROPERTY_MAX_CONNECTIONS_PER_ROUTE = "sonar.openid.http.maxConnectionsPerRoute";
+  static final String PROPERTY_CONNECT_TIMEOUT_MILLIS = "sonar.openid.http.connectTimeoutMillis";
+  static final String PROPERTY_READ_TIMEOUT_MILLIS = "sonar.openid.http.readTimeoutMillis";
+  static final String PROPERTY_CACHE_SIZE = "sonar.openid.http.cacheSize";
+
+  static final int DEFAULT_MAX_CONNECTIONS = 20;
+  static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+  static final int DEFAULT_CACHE_SIZE = 1000;
+
+  private static final String DEFAULT_CHARSET = "UTF-8";
+
+  private final ThreadSafeClientConnManager connections;
+  private final DefaultHttpClient client;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final Map<String, CachedResponse> cache;
+
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong cacheRevalidations = new AtomicLong();
+
+  /**
+   * @param connectTimeoutMillis replaces the timeouts requested by openid4java if positive
+   * @param readTimeoutMillis replaces the timeouts requested by openid4java if positive
+   */
+  HttpTransport(int maxConnections, int maxConnectionsPerRoute, int connectTimeoutMillis, int readTimeoutMillis, final int cacheSize) {
+    Preconditions.checkArgument(maxConnections > 0, "Max number of HTTP connections must be positive");
+    Preconditions.checkArgument(maxConnectionsPerRoute > 0, "Max number of HTTP connections per route must be positive");
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+
+    HttpParams params = new BasicHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+    this.connections = new ThreadSafeClientConnManager(params, schemes);
+    this.client = new DefaultHttpClient(connections, params);
+    // calls are not related to a user session, cookies are not kept
+    this.client.setCookieStore(null);
+
+    this.cache = Collections.synchronizedMap(new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+        return size() > cacheSize;
+      }
+    });
+  }
+
+  /**
+   * Each component of openid4java gets its own fetcher, with its own default options, on top of the shared pool.
+   */
+  HttpFetcherFactory fetcherFactory() {
+    return new HttpFetcherFactory(new Provider<HttpFetcher>() {
+      public HttpFetcher get() {
+        return new Fetcher();
+      }
+    });
+  }
+
+  Discovery newDiscovery() {
+    HttpFetcherFactory fetchers = fetcherFactory();
+    return new Discovery(new HtmlResolver(fetchers), new YadisResolver(fetchers), Discovery.getXriResolver());
+  }
+
+  void stop() {
+    cache.clear();
+    connections.shutdown();
+  }
+
+  /**
+   * Closes the connections that are idle for more than the given duration.
+   */
+  void closeIdleConnections(long idleMillis) {
+    connections.closeExpiredConnections();
+    connections.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+  }
+
+  int getConnectionsInPool() {
+    return connections.getConnectionsInPool();
+  }
+
+  long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  long getCacheRevalidations() {
+    return cacheRevalidations.get();
+  }
+
+  private HttpResponse get(String url, HttpRequestOptions options) throws IOException {
+    if (!options.isUseCache()) {
+      return execute(new HttpGet(url), options);
+    }
+    String key = cacheKey(url, options);
+    CachedResponse cached = cache.get(key);
+    if (cached != null && cached.isFresh(options.getCacheTTLSeconds())) {
+      cacheHits.incrementAndGet();
+      return cached;
+    }
+    HttpGet get = new HttpGet(url);
+    if (cached != null) {
+      if (cached.etag != null) {
+        get.setHeader("If-None-Match", cached.etag);
+      }
+      if (cached.lastModified != null) {
+        get.setHeader("If-Modified-Since", cached.lastModified);
+      }
+    }
+    BufferedResponse response = execute(get, options);
+    if (cached != null && response.getStatusCode() == 304) {
+      cacheRevalidations.incrementAndGet();
+      CachedResponse revalidated = cached.revalidated();
+      cache.put(key, revalidated);
+      return revalidated;
+    }
+    if (response.getStatusCode() == 200 && !response.isBodySizeExceeded() && isCacheable(response, options)) {
+      cache.put(key, new CachedResponse(response, System.currentTimeMillis()));
+    } else {
+      cache.remove(key);
+    }
+    return response;
+  }
+
+  private static boolean isCacheable(BufferedResponse response, HttpRequestOptions options) {
+    return options.getCacheTTLSeconds() > 0L || response.getResponseHeader("ETag") != null || response.getResponseHeader("Last-Modified") != null;
+  }
+
+  /**
+   * Responses depend on the requested content type, for example Yadis asks for XRDS.
+   */
+  private static String cacheKey(String url, HttpRequestOptions options) {
+    Object accept = options.getRequestHeaders().get("Accept");
+    return accept == null ? url : (url + '\n' + accept);
+  }
+
+  private BufferedResponse execute(HttpUriRequest request, HttpRequestOptions options) throws IOException {
+    HttpParams params = request.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis > 0 ? connectTimeoutMillis : options.getConnTimeout());
+    HttpConnectionParams.setSoTimeout(params, readTimeoutMillis > 0 ? readTimeoutMillis : options.getSocketTimeout());
+    params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, options.getMaxRedirects() > 0);
+    params.setIntParameter(ClientPNames.MAX_REDIRECTS, options.getMaxRedirects());
+    params.setBooleanParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, options.getAllowCircularRedirects());
+    for (Object o : options.getRequestHeaders().entrySet()) {
+      Map.Entry header = (Map.Entry) o;
+      request.setHeader((String) header.getKey(), (String) header.getValue());
+    }
+
+    HttpContext context = new BasicHttpContext();
+    org.apache.http.HttpResponse response = client.execute(request, context);
+    HttpEntity entity = response.getEntity();
+    try {
+      String body = null;
+      boolean sizeExceeded = false;
+      if (entity != null) {
+        byte[] bytes = read(entity.getContent(), options.getMaxBodySize());
+        sizeExceeded = bytes.length > options.getMaxBodySize();
+        String charset = EntityUtils.getContentCharSet(entity);
+        body = new String(bytes, 0, Math.min(bytes.length, options.getMaxBodySize()), charset == null ? DEFAULT_CHARSET : charset);
+        if (sizeExceeded) {
+          // the remaining of the body is not read, so the connection can not be reused
+          request.abort();
+        }
+      }
+      return new BufferedResponse(response.getStatusLine().getStatusCode(), finalUri(request, context), response.getAllHeaders(), body, sizeExceeded);
+    } catch (IOException e) {
+      request.abort();
+      throw e;
+    } catch (RuntimeException e) {
+      request.abort();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads at most one byte more than the max size, so that an oversized body is detected without being fully read.
+   * The stream is fully consumed otherwise, which releases the connection to the pool.
+   */
+  private static byte[] read(InputStream input, int maxSize) throws IOException {
+    if (input == null) {
+      return new byte[0];
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int limit = maxSize + 1;
+    int read;
+    while (output.size() < limit && (read = input.read(buffer, 0, Math.min(buffer.length, limit - output.size()))) != -1) {
+      output.write(buffer, 0, read);
+    }
+    if (output.size() < limit) {
+      input.close();
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * URI of the last request, after redirects
+   */
+  private static String finalUri(HttpUriRequest request, HttpContext context) {
+    Object lastRequest = context.getAttribute(ExecutionContext.HTTP_REQUEST);
+    HttpHost host = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+    if (!(lastRequest instanceof HttpUriRequest) || host == null) {
+      return request.getURI().toString();
+    }
+    URI uri = ((HttpUriRequest) lastRequest).getURI();
+    return uri.isAbsolute() ? uri.toString() : (host.toURI() + uri);
+  }
+
+  private class Fetcher extends AbstractHttpFetcher {
+    @Override
+    public HttpResponse get(String url, HttpRequestOptions options) throws IOException {
+      return HttpTransport.this.get(url, options);
+    }
+
+    @Override
+    public HttpResponse head(String url, HttpRequestOptions options) throws IOException {
+      return execute(new HttpHead(url), options);
+    }
+
+    @Override
+    public HttpResponse post(String url, Map<String, String> parameters, HttpRequestOptions options) throws IOException {
+      List<NameValuePair> pairs = new ArrayList<NameValuePair>(parameters.size());
+      for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+        pairs.add(new BasicNameValuePair(parameter.getKey(), parameter.getValue()));
+      }
+      HttpPost post = new HttpPost(url);
+      post.setEntity(new UrlEncodedFormEntity(pairs, DEFAULT_CHARSET));
+      return execute(post, options);
+    }
+  }
+
+  static class BufferedResponse implements HttpResponse {
+    private final int statusCode;
+    private final String finalUri;
+    private final Header[] headers;
+    private final String body;
+    private final boolean bodySizeExceeded;
+
+    BufferedResponse(int statusCode, String finalUri, Header[] headers, String body, boolean bodySizeExceeded) {
+      this.statusCode = statusCode;
+      this.finalUri = finalUri;
+      this.headers = headers;
+      this.body = body;
+      this.bodySizeExceeded = bodySizeExceeded;
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public String getFinalUri() {
+      return finalUri;
+    }
+
+    public Header getResponseHeader(String name) {
+      for (Header header : headers) {
+        if (header.getName().equalsIgnoreCase(name)) {
+          return header;
+        }
+      }
+      return null;
+    }
+
+    public Header[] getResponseHeaders(String name) {
+      List<Header> result = new ArrayList<Header>();
+      for (Header header : headers) {
+        if (header.getName().equalsIgnoreCase(name)) {
+          result.add(header);
+        }
+      }
+      return result.toArray(new Header[result.size()]);
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    public boolean isBodySizeExceeded() {
+      return bodySizeExceeded;
+    }
+  }
+
+  private static final class CachedResponse extends BufferedResponse {
+    private final long validatedAt;
+    private final String etag;
+    private final String lastModified;
+
+    private CachedResponse(BufferedResponse response, long validatedAt) {
+      super(response.statusCode, response.finalUri, response.headers, response.body, false);
+      this.validatedAt = validatedAt;
+      Header etagHeader = response.getResponseHeader("ETag");
+      this.etag = etagHeader == null ? null : etagHeader.getValue();
+      Header lastModifiedHeader = response.getResponseHeader("Last-Modified");
+      this.lastModified = lastModifiedHeader == null ? null : lastModifiedHeader.getValue();
+    }
+
+    private CachedResponse revalidated() {
+      return new CachedResponse(this, System.currentTimeMillis());
+    }
+
+    private boolean isFresh(long ttlSeconds) {
+      return ttlSeconds > 0L && System.currentTimeMillis() - validatedAt < ttlSeconds * 1000L;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.codec.binary.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies the ID tokens returned by the token endpoint of the OpenID Connect issuer. The signature is checked
+ * locally with the keys published by the issuer, so that a login does not need an introspection call.
+ * Only the RSA and ECDSA signatures are accepted: unsigned tokens and tokens signed with the client secret are rejected.
+ * Each thread reuses its instances of {@link Signature}.
+ */
+class IdTokenVerifier {
+
+  private static final Map<String, String> ALGORITHMS = ImmutableMap.<String, String>builder()
+    .put("RS256", "SHA256withRSA")
+    .put("RS384", "SHA384withRSA")
+    .put("RS512", "SHA512withRSA")
+    .put("ES256", "SHA256withECDSA")
+    .put("ES384", "SHA384withECDSA")
+    .put("ES512", "SHA512withECDSA")
+    .build();
+
+  private static final ThreadLocal<Map<String, Signature>> SIGNATURES = new ThreadLocal<Map<String, Signature>>() {
+    @Override
+    protected Map<String, Signature> initialValue() {
+      return new HashMap<String, Signature>();
+    }
+  };
+
+  private final String clientId;
+  private final long clockSkewMillis;
+  private final JsonWebKeys keys;
+
+  IdTokenVerifier(String clientId, long clockSkewSeconds, JsonWebKeys keys) {
+    this.clientId = clientId;
+    this.clockSkewMillis = clockSkewSeconds * 1000L;
+    this.keys = keys;
+  }
+
+  /**
+   * @param nonce the nonce sent in the authentication request
+   * @return the claims of the token
+   * @throws IllegalArgumentException if the token is invalid
+   */
+  Map<String, Object> verify(String idToken, String issuer, String jwksUri, String nonce) {
+    if (idToken == null) {
+      throw new IllegalArgumentException("ID token is missing");
+    }
+    String[] parts = idToken.split("\\.", -1);
+    if (parts.length != 3) {
+      throw new IllegalArgumentException("ID token is not a signed JWT");
+    }
+    Map<String, Object> header = Json.parseObject(decode(parts[0]));
+    String alg = Json.getString(header, "alg");
+    String algorithm = ALGORITHMS.get(alg);
+    if (algorithm == null) {
+      throw new IllegalArgumentException("Unsupported signature algorithm of ID token: " + alg);
+    }
+    String kid = Json.getString(header, "kid");
+    PublicKey key = keys.get(jwksUri, kid);
+    if (key == null) {
+      throw new IllegalArgumentException("Unknown signing key of ID token: " + kid);
+    }
+    if (!isSignatureValid(alg, algorithm, key, parts)) {
+      throw new IllegalArgumentException("Invalid signature of ID token");
+    }
+
+    Map<String, Object> claims = Json.parseObject(decode(parts[1]));
+    if (!issuer.equals(Json.getString(claims, "iss"))) {
+      throw new IllegalArgumentException("Invalid issuer of ID token: " + claims.get("iss"));
+    }
+    verifyAudience(claims);
+    long now = currentTimeMillis();
+    Long expiresAt = Json.getLong(claims, "exp");
+    if (expiresAt == null || expiresAt * 1000L + clockSkewMillis < now) {
+      throw new IllegalArgumentException("ID token has expired");
+    }
+    Long issuedAt = Json.getLong(claims, "iat");
+    if (issuedAt != null && issuedAt * 1000L - clockSkewMillis > now) {
+      throw new IllegalArgumentException("ID token is issued in the future");
+    }
+    if (!nonce.equals(Json.getString(claims, "nonce"))) {
+      throw new IllegalArgumentException("Invalid nonce of ID token");
+    }
+    String subject = Json.getString(claims, "sub");
+    if (subject == null || subject.length() == 0) {
+      throw new IllegalArgumentException("Subject of ID token is missing");
+    }
+    return claims;
+  }
+
+  private void verifyAudience(Map<String, Object> claims) {
+    Object audience = claims.get("aud");
+    if (audience instanceof List) {
+      List audiences = (List) audience;
+      // the authorized party is mandatory when the token is issued for several clients
+      if (!audiences.contains(clientId) || (audiences.size() > 1 && !clientId.equals(Json.getString(claims, "azp")))) {
+        throw new IllegalArgumentException("ID token is not issued for client " + clientId);
+      }
+    } else if (!clientId.equals(audience)) {
+      throw new IllegalArgumentException("ID token is not issued for client " + clientId);
+    }
+  }
+
+  private static boolean isSignatureValid(String alg, String algorithm, PublicKey key, String[] parts) {
+    try {
+      Map<String, Signature> signatures = SIGNATURES.get();
+      Signature signature = signatures.get(algorithm);
+      if (signature == null) {
+        signature = Signature.getInstance(algorithm);
+        signatures.put(algorithm, signature);
+      }
+      // also resets the instance if the previous verification failed
+      signature.initVerify(key);
+      signature.update(parts[0].getBytes(Charsets.US_ASCII));
+      signature.update((byte) '.');
+      signature.update(parts[1].getBytes(Charsets.US_ASCII));
+      byte[] bytes = Base64.decodeBase64(parts[2]);
+      return signature.verify(alg.startsWith("ES") ? toDer(bytes) : bytes);
+    } catch (GeneralSecurityException e) {
+      return false;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * ECDSA signatures of JWS are the concatenation of the integers R and S, java.security expects a DER sequence
+   */
+  @VisibleForTesting
+  static byte[] toDer(byte[] jwsSignature) {
+    if (jwsSignature.length == 0 || jwsSignature.length % 2 != 0) {
+      throw new IllegalArgumentException("Invalid length of ECDSA signature: " + jwsSignature.length);
+    }
+    int half = jwsSignature.length / 2;
+    byte[] r = derInteger(jwsSignature, 0, half);
+    byte[] s = derInteger(jwsSignature, half, half);
+    int contentLength = r.length + s.length;
+    byte[] lengthBytes = contentLength < 128 ? new byte[] {(byte) contentLength} : new byte[] {(byte) 0x81, (byte) contentLength};
+    byte[] der = new byte[1 + lengthBytes.length + contentLength];
+    der[0] = 0x30;
+    System.arraycopy(lengthBytes, 0, der, 1, lengthBytes.length);
+    System.arraycopy(r, 0, der, 1 + lengthBytes.length, r.length);
+    System.arraycopy(s, 0, der, 1 + lengthBytes.length + r.length, s.length);
+    return der;
+  }
+
+  /**
+   * Minimal encoding of a positive integer: leading zeros are removed, a zero is added if the high bit is set
+   */
+  private static byte[] derInteger(byte[] bytes, int offset, int length) {
+    int start = offset;
+    int end = offset + length;
+    while (start < end - 1 && bytes[start] == 0) {
+      start++;
+    }
+    boolean padding = (bytes[start] & 0x80) != 0;
+    int valueLength = end - start + (padding ? 1 : 0);
+    byte[] result = new byte[2 + valueLength];
+    result[0] = 0x02;
+    result[1] = (byte) valueLength;
+    System.arraycopy(bytes, start, result, padding ? 3 : 2, end - start);
+    return result;
+  }
+
+  private static String decode(String base64Url) {
+    return new String(Base64.decodeBase64(base64Url), Charsets.UTF_8);
+  }
+
+  @VisibleForTesting
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
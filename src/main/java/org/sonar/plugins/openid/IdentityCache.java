@@ -0,0 +1,111 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import org.sonar.api.security.UserDetails;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Users of the identifiers verified recently. When an identity is verified again within the time-to-live, the
+ * assertion of the provider is still checked but the extensions and the parsing of attributes are skipped. The
+ * least recently used identities are evicted when the max size is reached.
+ */
+class IdentityCache {
+
+  static final String PROPERTY_TTL_SECONDS = "sonar.openid.identityCache.ttlSeconds";
+  static final String PROPERTY_MAX_SIZE = "sonar.openid.identityCache.maxSize";
+  static final int DEFAULT_MAX_SIZE = 10000;
+
+  private final long ttlMillis;
+  private final Map<String, Entry> entries;
+
+  IdentityCache(long ttlSeconds, final int maxSize) {
+    Preconditions.checkArgument(ttlSeconds > 0, "Time-to-live of verified identities must be positive");
+    Preconditions.checkArgument(maxSize > 0, "Max number of verified identities must be positive");
+    this.ttlMillis = ttlSeconds * 1000L;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return a copy of the cached user, or null if the identity is unknown or expired
+   */
+  UserDetails get(String identifier) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(identifier);
+      if (entry != null && currentTimeMillis() - entry.verifiedAt >= ttlMillis) {
+        entries.remove(identifier);
+        entry = null;
+      }
+    }
+    return entry == null ? null : copy(entry.user);
+  }
+
+  void put(String identifier, UserDetails user) {
+    Entry entry = new Entry(copy(user), currentTimeMillis());
+    synchronized (entries) {
+      entries.put(identifier, entry);
+    }
+  }
+
+  void invalidate(String identifier) {
+    synchronized (entries) {
+      entries.remove(identifier);
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Users are mutable, so callers never share the cached instance
+   */
+  private static UserDetails copy(UserDetails user) {
+    UserDetails copy = new UserDetails();
+    copy.setName(user.getName());
+    copy.setEmail(user.getEmail());
+    return copy;
+  }
+
+  private static final class Entry {
+    private final UserDetails user;
+    private final long verifiedAt;
+
+    private Entry(UserDetails user, long verifiedAt) {
+      this.user = user;
+      this.verifiedAt = verifiedAt;
+    }
+  }
+}
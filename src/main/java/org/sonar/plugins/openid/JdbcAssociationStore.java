@@ -0,0 +1,161 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import org.openid4java.association.Association;
+
+import java.sql.*;
+
+/**
+ * Associations stored in a database shared by the server nodes. The table is created if it does not exist.
+ * The column mac_key contains the MAC keys in clear, so the table must be readable only by the database user
+ * of the server, like the directory of {@link FileAssociationStore}.
+ */
+class JdbcAssociationStore extends SharedAssociationStore {
+
+  static final String PROPERTY_URL = "sonar.openid.associationStore.jdbc.url";
+  static final String PROPERTY_DRIVER = "sonar.openid.associationStore.jdbc.driverClassName";
+  static final String PROPERTY_USER = "sonar.openid.associationStore.jdbc.username";
+  static final String PROPERTY_PASSWORD = "sonar.openid.associationStore.jdbc.password";
+
+  static final String TABLE = "openid_associations";
+
+  private final String url;
+  private final String user;
+  private final String password;
+
+  JdbcAssociationStore(String url, String driverClassName, String user, String password) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(url), "Property " + PROPERTY_URL + " is missing");
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    try {
+      if (!Strings.isNullOrEmpty(driverClassName)) {
+        Class.forName(driverClassName);
+      }
+      createTableIfMissing();
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to initialize the database of OpenID associations: " + url, e);
+    }
+  }
+
+  private void createTableIfMissing() throws SQLException {
+    Connection connection = connect();
+    try {
+      DatabaseMetaData metadata = connection.getMetaData();
+      if (!tableExists(metadata, TABLE) && !tableExists(metadata, TABLE.toUpperCase())) {
+        Statement statement = connection.createStatement();
+        try {
+          statement.executeUpdate("CREATE TABLE " + TABLE + " (op_url VARCHAR(255) NOT NULL, handle VARCHAR(255) NOT NULL, "
+            + "assoc_type VARCHAR(32) NOT NULL, mac_key VARCHAR(255) NOT NULL, expiry BIGINT NOT NULL, PRIMARY KEY (op_url, handle))");
+        } finally {
+          statement.close();
+        }
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  private static boolean tableExists(DatabaseMetaData metadata, String table) throws SQLException {
+    ResultSet rs = metadata.getTables(null, null, table, null);
+    try {
+      return rs.next();
+    } finally {
+      rs.close();
+    }
+  }
+
+  @Override
+  void write(String opUrl, Association association) throws SQLException {
+    Connection connection = connect();
+    try {
+      PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE + " (op_url, handle, assoc_type, mac_key, expiry) VALUES (?, ?, ?, ?, ?)");
+      try {
+        statement.setString(1, opUrl);
+        statement.setString(2, association.getHandle());
+        statement.setString(3, association.getType());
+        statement.setString(4, encodeKey(association));
+        statement.setLong(5, association.getExpiry().getTime());
+        statement.executeUpdate();
+      } finally {
+        statement.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Override
+  Association read(String opUrl, String handle) throws Exception {
+    return select("SELECT handle, assoc_type, mac_key, expiry FROM " + TABLE + " WHERE op_url=? AND handle=?", opUrl, handle);
+  }
+
+  @Override
+  Association readLatest(String opUrl) throws Exception {
+    return select("SELECT handle, assoc_type, mac_key, expiry FROM " + TABLE + " WHERE op_url=? AND expiry>? ORDER BY expiry DESC", opUrl, System.currentTimeMillis());
+  }
+
+  @Override
+  void delete(String opUrl, String handle) throws SQLException {
+    Connection connection = connect();
+    try {
+      PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE (op_url=? AND handle=?) OR expiry<?");
+      try {
+        statement.setString(1, opUrl);
+        statement.setString(2, handle);
+        statement.setLong(3, System.currentTimeMillis());
+        statement.executeUpdate();
+      } finally {
+        statement.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  private Association select(String sql, String opUrl, Object param) throws Exception {
+    Connection connection = connect();
+    try {
+      PreparedStatement statement = connection.prepareStatement(sql);
+      try {
+        statement.setMaxRows(1);
+        statement.setString(1, opUrl);
+        statement.setObject(2, param);
+        ResultSet rs = statement.executeQuery();
+        try {
+          return rs.next() ? decode(rs.getString(2), rs.getString(1), rs.getString(3), rs.getLong(4)) : null;
+        } finally {
+          rs.close();
+        }
+      } finally {
+        statement.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  private Connection connect() throws SQLException {
+    return DriverManager.getConnection(url, user, password);
+  }
+}
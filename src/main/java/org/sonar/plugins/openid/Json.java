@@ -0,0 +1,298 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal reader of the JSON documents of OpenID Connect: configuration of the issuer, key sets, token responses
+ * and claims of the ID tokens. Objects are read as maps, arrays as lists, integers as longs and decimals as doubles.
+ */
+final class Json {
+
+  private static final int MAX_DEPTH = 32;
+
+  private final String json;
+  private int pos = 0;
+  private int depth = 0;
+
+  private Json(String json) {
+    this.json = json;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the document is not valid JSON
+   */
+  static Object parse(String json) {
+    if (json == null) {
+      throw new IllegalArgumentException("JSON document is missing");
+    }
+    Json reader = new Json(json);
+    reader.skipWhitespaces();
+    Object value = reader.readValue();
+    reader.skipWhitespaces();
+    if (reader.pos < json.length()) {
+      throw reader.error("Unexpected character");
+    }
+    return value;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the document is not a valid JSON object
+   */
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> parseObject(String json) {
+    Object value = parse(json);
+    if (!(value instanceof Map)) {
+      throw new IllegalArgumentException("JSON document is not an object");
+    }
+    return (Map<String, Object>) value;
+  }
+
+  /**
+   * @return the value if it is a string, else null
+   */
+  static String getString(Map<String, Object> object, String key) {
+    Object value = object.get(key);
+    return value instanceof String ? (String) value : null;
+  }
+
+  /**
+   * @return the value if it is a number, else null
+   */
+  static Long getLong(Map<String, Object> object, String key) {
+    Object value = object.get(key);
+    return value instanceof Number ? ((Number) value).longValue() : null;
+  }
+
+  private Object readValue() {
+    if (pos >= json.length()) {
+      throw error("Unexpected end of document");
+    }
+    char c = json.charAt(pos);
+    switch (c) {
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString();
+      case 't':
+        return readLiteral("true", Boolean.TRUE);
+      case 'f':
+        return readLiteral("false", Boolean.FALSE);
+      case 'n':
+        return readLiteral("null", null);
+      default:
+        return readNumber();
+    }
+  }
+
+  private Map<String, Object> readObject() {
+    enter();
+    Map<String, Object> object = new LinkedHashMap<String, Object>();
+    pos++;
+    skipWhitespaces();
+    if (consume('}')) {
+      depth--;
+      return object;
+    }
+    do {
+      skipWhitespaces();
+      if (pos >= json.length() || json.charAt(pos) != '"') {
+        throw error("Name of member is expected");
+      }
+      String name = readString();
+      skipWhitespaces();
+      if (!consume(':')) {
+        throw error("Character : is expected");
+      }
+      skipWhitespaces();
+      if (object.containsKey(name)) {
+        throw error("Duplicated member " + name);
+      }
+      object.put(name, readValue());
+      skipWhitespaces();
+    } while (consume(','));
+    if (!consume('}')) {
+      throw error("Character } is expected");
+    }
+    depth--;
+    return object;
+  }
+
+  private List<Object> readArray() {
+    enter();
+    List<Object> array = new ArrayList<Object>();
+    pos++;
+    skipWhitespaces();
+    if (consume(']')) {
+      depth--;
+      return array;
+    }
+    do {
+      skipWhitespaces();
+      array.add(readValue());
+      skipWhitespaces();
+    } while (consume(','));
+    if (!consume(']')) {
+      throw error("Character ] is expected");
+    }
+    depth--;
+    return array;
+  }
+
+  private String readString() {
+    pos++;
+    int start = pos;
+    // fast path for the strings without escaped characters
+    while (pos < json.length()) {
+      char c = json.charAt(pos);
+      if (c == '"') {
+        return json.substring(start, pos++);
+      }
+      if (c == '\\') {
+        break;
+      }
+      if (c < 0x20) {
+        throw error("Control character in string");
+      }
+      pos++;
+    }
+    StringBuilder sb = new StringBuilder(json.substring(start, pos));
+    while (pos < json.length()) {
+      char c = json.charAt(pos++);
+      if (c == '"') {
+        return sb.toString();
+      }
+      if (c < 0x20) {
+        throw error("Control character in string");
+      }
+      if (c == '\\') {
+        sb.append(readEscaped());
+      } else {
+        sb.append(c);
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  private char readEscaped() {
+    if (pos >= json.length()) {
+      throw error("Unterminated string");
+    }
+    char c = json.charAt(pos++);
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        return c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        if (pos + 4 > json.length()) {
+          throw error("Invalid unicode escape");
+        }
+        try {
+          char unicode = (char) Integer.parseInt(json.substring(pos, pos + 4), 16);
+          pos += 4;
+          return unicode;
+        } catch (NumberFormatException e) {
+          throw error("Invalid unicode escape");
+        }
+      default:
+        throw error("Invalid escape character " + c);
+    }
+  }
+
+  private Object readLiteral(String literal, Object value) {
+    if (!json.startsWith(literal, pos)) {
+      throw error("Unexpected character");
+    }
+    pos += literal.length();
+    return value;
+  }
+
+  private Number readNumber() {
+    int start = pos;
+    boolean decimal = false;
+    while (pos < json.length()) {
+      char c = json.charAt(pos);
+      if (c == '.' || c == 'e' || c == 'E') {
+        decimal = true;
+      } else if (!(c >= '0' && c <= '9') && c != '-' && c != '+') {
+        break;
+      }
+      pos++;
+    }
+    if (start == pos) {
+      throw error("Unexpected character");
+    }
+    String number = json.substring(start, pos);
+    try {
+      if (!decimal && number.length() < 19) {
+        return Long.parseLong(number);
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw error("Invalid number " + number);
+    }
+  }
+
+  private void enter() {
+    depth++;
+    if (depth > MAX_DEPTH) {
+      throw error("Document is nested more than " + MAX_DEPTH + " levels");
+    }
+  }
+
+  private boolean consume(char c) {
+    if (pos < json.length() && json.charAt(pos) == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private void skipWhitespaces() {
+    while (pos < json.length()) {
+      char c = json.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException("Invalid JSON document at position " + pos + ": " + message);
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.codec.binary.Base64;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Signing keys published by the OpenID Connect issuer at its jwks_uri. Keys are downloaded once, then refreshed
+ * when they are older than the refresh delay, or when a token is signed by an unknown key, which happens when the
+ * issuer rotates its keys. Downloads triggered by unknown keys are throttled, so that forged tokens can not make
+ * the server call the issuer on each login. Keys are parsed once, when downloaded.
+ */
+class JsonWebKeys {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JsonWebKeys.class);
+
+  static final long MIN_REFRESH_INTERVAL_MILLIS = 30000L;
+
+  /**
+   * Key of the map when the issuer does not declare the key ids
+   */
+  private static final String NO_KID = "";
+
+  /**
+   * Curves of the EC keys, by name in JWK and in java.security
+   */
+  private static final Map<String, String> CURVES = ImmutableMap.of(
+    "P-256", "secp256r1",
+    "P-384", "secp384r1",
+    "P-521", "secp521r1");
+
+  private final HttpFetcher fetcher;
+  private final long refreshMillis;
+  private final OpenIdMetrics metrics;
+
+  private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+  private volatile String keysUri;
+  private volatile long loadedAt;
+  private long attemptedAt;
+
+  JsonWebKeys(HttpFetcher fetcher, long refreshSeconds, OpenIdMetrics metrics) {
+    this.fetcher = fetcher;
+    this.refreshMillis = refreshSeconds * 1000L;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param kid id of the key declared in the header of the token, null if missing
+   * @return null if the key is unknown
+   * @throws IllegalStateException if the keys have never been downloaded and the issuer is not reachable
+   */
+  PublicKey get(String jwksUri, String kid) {
+    if (!jwksUri.equals(keysUri) || (refreshMillis > 0L && currentTimeMillis() - loadedAt > refreshMillis)) {
+      refresh(jwksUri);
+    }
+    PublicKey key = find(keys, kid);
+    if (key == null && refresh(jwksUri)) {
+      key = find(keys, kid);
+    }
+    return key;
+  }
+
+  /**
+   * @return true if the keys have been downloaded, false if the last attempt is too recent or if the download failed
+   * @throws IllegalStateException if the keys have never been downloaded and the issuer is not reachable
+   */
+  synchronized boolean refresh(String jwksUri) {
+    long now = currentTimeMillis();
+    if (jwksUri.equals(keysUri) && now - attemptedAt < MIN_REFRESH_INTERVAL_MILLIS) {
+      return false;
+    }
+    attemptedAt = now;
+    long start = System.nanoTime();
+    try {
+      HttpResponse response = fetcher.get(jwksUri);
+      if (response.getStatusCode() != 200) {
+        throw new IllegalStateException("Status " + response.getStatusCode());
+      }
+      keys = parse(response.getBody());
+      keysUri = jwksUri;
+      loadedAt = now;
+      return true;
+    } catch (Exception e) {
+      if (!jwksUri.equals(keysUri)) {
+        throw new IllegalStateException("Fail to download the keys of OpenID Connect issuer: " + jwksUri, e);
+      }
+      // the previous keys are still used
+      metrics.providerError();
+      LOG.warn("Fail to refresh the keys of OpenID Connect issuer: " + jwksUri, e);
+      return false;
+    } finally {
+      metrics.record(OpenIdMetrics.PHASE_KEYS, System.nanoTime() - start);
+    }
+  }
+
+  private static PublicKey find(Map<String, PublicKey> keys, String kid) {
+    if (kid == null) {
+      return keys.size() == 1 ? keys.values().iterator().next() : null;
+    }
+    return keys.get(kid);
+  }
+
+  /**
+   * RSA and EC signing keys of the set. Other keys are ignored.
+   */
+  @VisibleForTesting
+  @SuppressWarnings("unchecked")
+  static Map<String, PublicKey> parse(String json) throws Exception {
+    Object set = Json.parseObject(json).get("keys");
+    if (!(set instanceof List)) {
+      throw new IllegalArgumentException("Member keys is missing");
+    }
+    Map<String, PublicKey> result = new HashMap<String, PublicKey>();
+    for (Object o : (List<Object>) set) {
+      if (!(o instanceof Map)) {
+        continue;
+      }
+      Map<String, Object> key = (Map<String, Object>) o;
+      String use = Json.getString(key, "use");
+      PublicKey publicKey = null;
+      if (use == null || "sig".equals(use)) {
+        String type = Json.getString(key, "kty");
+        if ("RSA".equals(type)) {
+          publicKey = rsaKey(key);
+        } else if ("EC".equals(type)) {
+          publicKey = ecKey(key);
+        }
+      }
+      if (publicKey != null) {
+        String kid = Json.getString(key, "kid");
+        result.put(kid == null ? NO_KID : kid, publicKey);
+      }
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  private static PublicKey rsaKey(Map<String, Object> key) throws GeneralSecurityException {
+    String modulus = Json.getString(key, "n");
+    String exponent = Json.getString(key, "e");
+    if (modulus == null || exponent == null) {
+      return null;
+    }
+    return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(unsigned(modulus), unsigned(exponent)));
+  }
+
+  private static PublicKey ecKey(Map<String, Object> key) throws GeneralSecurityException {
+    String curve = CURVES.get(Json.getString(key, "crv"));
+    String x = Json.getString(key, "x");
+    String y = Json.getString(key, "y");
+    if (curve == null || x == null || y == null) {
+      return null;
+    }
+    AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+    parameters.init(new ECGenParameterSpec(curve));
+    ECParameterSpec spec = parameters.getParameterSpec(ECParameterSpec.class);
+    // coordinates are encoded on the size of the field, other lengths are invalid
+    int size = (spec.getCurve().getField().getFieldSize() + 7) / 8;
+    byte[] xBytes = Base64.decodeBase64(x);
+    byte[] yBytes = Base64.decodeBase64(y);
+    if (xBytes.length != size || yBytes.length != size) {
+      return null;
+    }
+    return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(new BigInteger(1, xBytes), new BigInteger(1, yBytes)), spec));
+  }
+
+  private static BigInteger unsigned(String base64Url) {
+    return new BigInteger(1, Base64.decodeBase64(base64Url));
+  }
+
+  @VisibleForTesting
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
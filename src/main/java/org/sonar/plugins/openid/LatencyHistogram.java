@@ -0,0 +1,83 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations. Bucket i counts the durations lower than 2^i microseconds, so percentiles
+ * are approximated by the upper bound of their bucket.
+ */
+class LatencyHistogram {
+
+  static final int BUCKETS = 40;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  void record(long nanos) {
+    long duration = Math.max(0L, nanos);
+    long micros = duration / 1000L;
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNanos.addAndGet(duration);
+    long max = maxNanos.get();
+    while (duration > max && !maxNanos.compareAndSet(max, duration)) {
+      max = maxNanos.get();
+    }
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  double getMeanMillis() {
+    long c = count.get();
+    return c == 0L ? 0.0 : totalNanos.get() / 1000000.0 / c;
+  }
+
+  double getMaxMillis() {
+    return maxNanos.get() / 1000000.0;
+  }
+
+  /**
+   * @param percentile for example 0.99
+   * @return upper bound of the bucket containing the percentile, in milliseconds
+   */
+  double getPercentileMillis(double percentile) {
+    long c = count.get();
+    if (c == 0L) {
+      return 0.0;
+    }
+    long rank = (long) Math.ceil(percentile * c);
+    long cumulated = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulated += buckets.get(i);
+      if (cumulated >= rank) {
+        return Math.min((1L << i) / 1000.0, getMaxMillis());
+      }
+    }
+    return getMaxMillis();
+  }
+}
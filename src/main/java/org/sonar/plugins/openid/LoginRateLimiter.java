@@ -0,0 +1,194 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Settings;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Admission control of the login endpoints, checked before any OpenID processing. Requests are limited per client
+ * address and for all the clients by token buckets. Buckets of clients are striped by hash of the address: the
+ * clients of a stripe share a bucket, so that memory is bounded whatever the number of clients. Buckets do not lock:
+ * each one is a single long, the theoretical arrival time of the next request, updated by compare-and-set.
+ */
+class LoginRateLimiter {
+
+  static final String PROPERTY_CLIENT_PER_SECOND = "sonar.openid.rateLimit.clientPerSecond";
+  static final String PROPERTY_CLIENT_BURST = "sonar.openid.rateLimit.clientBurst";
+  static final String PROPERTY_GLOBAL_PER_SECOND = "sonar.openid.rateLimit.globalPerSecond";
+  static final String PROPERTY_GLOBAL_BURST = "sonar.openid.rateLimit.globalBurst";
+  static final String PROPERTY_CLIENT_HEADER = "sonar.openid.rateLimit.clientHeader";
+
+  static final int DEFAULT_CLIENT_BURST = 20;
+  static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private static final int STRIPE_BITS = 12;
+
+  private final long clientIntervalNanos;
+  private final long clientToleranceNanos;
+  private final long globalIntervalNanos;
+  private final long globalToleranceNanos;
+  private final String clientHeader;
+  private final AtomicLongArray clients = new AtomicLongArray(1 << STRIPE_BITS);
+  private final AtomicLong global = new AtomicLong();
+  private final long origin = System.nanoTime();
+  private final OpenIdMetrics metrics;
+
+  /**
+   * @param clientPerSecond requests per second of a client, 0 if not limited
+   * @param globalPerSecond requests per second of all the clients, 0 if not limited
+   * @param clientHeader header of the client address set by the reverse proxy, for example X-Forwarded-For. The
+   * address of the connection is used if null.
+   */
+  LoginRateLimiter(int clientPerSecond, int clientBurst, int globalPerSecond, int globalBurst, String clientHeader, OpenIdMetrics metrics) {
+    Preconditions.checkArgument(clientPerSecond >= 0 && globalPerSecond >= 0, "Rate limits of OpenID logins must not be negative");
+    Preconditions.checkArgument(clientBurst > 0 && globalBurst > 0, "Bursts of OpenID logins must be positive");
+    this.clientIntervalNanos = intervalNanos(clientPerSecond);
+    this.clientToleranceNanos = clientIntervalNanos * (clientBurst - 1);
+    this.globalIntervalNanos = intervalNanos(globalPerSecond);
+    this.globalToleranceNanos = globalIntervalNanos * (globalBurst - 1);
+    this.clientHeader = clientHeader;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return null if no limit is set
+   */
+  static LoginRateLimiter create(Settings settings, OpenIdMetrics metrics) {
+    int clientPerSecond = settings.getInt(PROPERTY_CLIENT_PER_SECOND);
+    int globalPerSecond = settings.getInt(PROPERTY_GLOBAL_PER_SECOND);
+    if (clientPerSecond == 0 && globalPerSecond == 0) {
+      return null;
+    }
+    int clientBurst = settings.hasKey(PROPERTY_CLIENT_BURST) ? settings.getInt(PROPERTY_CLIENT_BURST) : DEFAULT_CLIENT_BURST;
+    // one second of requests by default
+    int globalBurst = settings.hasKey(PROPERTY_GLOBAL_BURST) ? settings.getInt(PROPERTY_GLOBAL_BURST) : Math.max(1, globalPerSecond);
+    return new LoginRateLimiter(clientPerSecond, clientBurst, globalPerSecond, globalBurst,
+      StringUtils.trimToNull(settings.getString(PROPERTY_CLIENT_HEADER)), metrics);
+  }
+
+  private static long intervalNanos(int perSecond) {
+    return perSecond == 0 ? 0L : TimeUnit.SECONDS.toNanos(1L) / perSecond;
+  }
+
+  /**
+   * @return null if the request is accepted
+   */
+  Rejection admit(HttpServletRequest request) {
+    long now = nanoTime() - origin;
+    if (clientIntervalNanos > 0L) {
+      long waitNanos = acquire(clients, stripe(clientAddress(request)), now, clientIntervalNanos, clientToleranceNanos);
+      if (waitNanos > 0L) {
+        metrics.requestThrottledByClientLimit();
+        return new Rejection(SC_TOO_MANY_REQUESTS, waitNanos);
+      }
+    }
+    if (globalIntervalNanos > 0L) {
+      long waitNanos = acquire(global, now, globalIntervalNanos, globalToleranceNanos);
+      if (waitNanos > 0L) {
+        metrics.requestThrottledByGlobalLimit();
+        return new Rejection(503, waitNanos);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The last address of the header is the one added by the reverse proxy, the previous ones are sent by the client.
+   */
+  @VisibleForTesting
+  String clientAddress(HttpServletRequest request) {
+    if (clientHeader != null) {
+      String header = request.getHeader(clientHeader);
+      if (!Strings.isNullOrEmpty(header)) {
+        return StringUtils.substringAfterLast("," + header, ",").trim();
+      }
+    }
+    return Strings.nullToEmpty(request.getRemoteAddr());
+  }
+
+  private static int stripe(String address) {
+    // spreads the bits of the hash before keeping the highest ones
+    return (address.hashCode() * 0x9E3779B9) >>> (32 - STRIPE_BITS);
+  }
+
+  /**
+   * @return 0 if a token is taken, else the nanoseconds before the next token
+   */
+  private static long acquire(AtomicLongArray buckets, int index, long now, long intervalNanos, long toleranceNanos) {
+    while (true) {
+      long next = buckets.get(index);
+      long start = Math.max(next, now);
+      if (start - now > toleranceNanos) {
+        return start - now - toleranceNanos;
+      }
+      if (buckets.compareAndSet(index, next, start + intervalNanos)) {
+        return 0L;
+      }
+    }
+  }
+
+  private static long acquire(AtomicLong bucket, long now, long intervalNanos, long toleranceNanos) {
+    while (true) {
+      long next = bucket.get();
+      long start = Math.max(next, now);
+      if (start - now > toleranceNanos) {
+        return start - now - toleranceNanos;
+      }
+      if (bucket.compareAndSet(next, start + intervalNanos)) {
+        return 0L;
+      }
+    }
+  }
+
+  @VisibleForTesting
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  static final class Rejection {
+    private final int status;
+    private final long retryAfterSeconds;
+
+    private Rejection(int status, long waitNanos) {
+      this.status = status;
+      this.retryAfterSeconds = Math.max(1L, (waitNanos + TimeUnit.SECONDS.toNanos(1L) - 1L) / TimeUnit.SECONDS.toNanos(1L));
+    }
+
+    /**
+     * 429 if the client sends too many requests, 503 if the server receives too many requests
+     */
+    int getStatus() {
+      return status;
+    }
+
+    long getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+}
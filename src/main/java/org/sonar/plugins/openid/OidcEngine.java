@@ -0,0 +1,505 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.openid4java.consumer.NonceVerifier;
+import org.openid4java.message.ParameterList;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+import org.openid4java.util.InternetDateFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Settings;
+import org.sonar.api.security.UserDetails;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OpenID Connect authorization code flow, used instead of OpenID 2.0 when the property sonar.openid.protocol is
+ * <code>oidc</code>. The login form of the issuer redirects the browser to /openid/validate with an authorization
+ * code, which is exchanged for an ID token at the token endpoint. The token is verified locally with the cached keys
+ * of the issuer.
+ * <p>When the property sonar.openid.oidc.responseType is <code>id_token</code>, the issuer posts the ID token to
+ * /openid/validate (response mode form_post) and the login does not call the issuer at all.</p>
+ * <p>No session is needed between the login form and the response: the state sent to the issuer contains the nonce
+ * and its expiry, signed with a key derived from the client secret, so that any server node can verify it. Nonces
+ * are timestamped like the nonces of OpenID 2.0, so that replayed ID tokens are detected by the same verifier.
+ * The state is bound to the browser that started the login by a short-lived HttpOnly cookie carrying a hash of the
+ * nonce, so that a response obtained by another user can not be injected in the browser (login CSRF).</p>
+ * <p>The keys of the issuer are downloaded in background, at startup then periodically, so that logins do not
+ * wait for the download.</p>
+ */
+class OidcEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(OidcEngine.class);
+
+  static final String PROPERTY_CLIENT_ID = "sonar.openid.oidc.clientId";
+  static final String PROPERTY_CLIENT_SECRET = "sonar.openid.oidc.clientSecret";
+  static final String PROPERTY_SCOPE = "sonar.openid.oidc.scope";
+  static final String PROPERTY_KEYS_REFRESH_SECONDS = "sonar.openid.oidc.keysRefreshSeconds";
+  static final String PROPERTY_CLOCK_SKEW_SECONDS = "sonar.openid.oidc.clockSkewSeconds";
+  static final String PROPERTY_RESPONSE_TYPE = "sonar.openid.oidc.responseType";
+
+  static final String RESPONSE_TYPE_CODE = "code";
+  static final String RESPONSE_TYPE_ID_TOKEN = "id_token";
+
+  static final String DEFAULT_SCOPE = "openid email profile";
+  static final long DEFAULT_KEYS_REFRESH_SECONDS = 3600L;
+  static final long DEFAULT_CLOCK_SKEW_SECONDS = 60L;
+  static final long STATE_MAX_AGE_MILLIS = 600000L;
+  static final String STATE_COOKIE = "openid_state";
+
+  /**
+   * Parameters of the response of the authorization endpoint
+   */
+  static final Set<String> RESPONSE_PARAMETERS = ImmutableSet.of("code", "id_token", "state", "error", "error_description");
+
+  private static final String CONFIGURATION_PATH = "/.well-known/openid-configuration";
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final String CHARSET = "UTF-8";
+  private static final InternetDateFormat NONCE_DATE_FORMAT = new InternetDateFormat();
+
+  private final String issuerUrl;
+  private final String clientId;
+  private final String clientSecret;
+  private final String scope;
+  private final String redirectUri;
+  private final boolean implicit;
+  private final long keysRefreshMillis;
+  private final NonceVerifier nonceVerifier;
+  private final long configurationRefreshMillis;
+  private final HttpFetcher fetcher;
+  private final OpenIdMetrics metrics;
+  private final JsonWebKeys keys;
+  private final IdTokenVerifier verifier;
+  private final SecretKeySpec stateKey;
+  private final SecureRandom random = new SecureRandom();
+
+  private volatile Configuration configuration;
+  private volatile long configurationCheckedAt;
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param redirectUri the URL /openid/validate of the server, registered at the issuer
+   * @param nonceVerifier detects the replayed ID tokens
+   */
+  OidcEngine(Settings settings, String redirectUri, long configurationRefreshSeconds, HttpFetcher fetcher, NonceVerifier nonceVerifier,
+    OpenIdMetrics metrics) {
+    this.issuerUrl = StringUtils.removeEnd(settings.getString(OpenIdClient.PROPERTY_OPENID_URL), "/");
+    this.clientId = settings.getString(PROPERTY_CLIENT_ID);
+    this.clientSecret = settings.getString(PROPERTY_CLIENT_SECRET);
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(issuerUrl), "Property " + OpenIdClient.PROPERTY_OPENID_URL + " is missing");
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(clientId), "Property " + PROPERTY_CLIENT_ID + " is missing");
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(clientSecret), "Property " + PROPERTY_CLIENT_SECRET + " is missing");
+    this.scope = StringUtils.defaultIfEmpty(settings.getString(PROPERTY_SCOPE), DEFAULT_SCOPE);
+    this.redirectUri = redirectUri;
+    String responseType = StringUtils.defaultIfEmpty(settings.getString(PROPERTY_RESPONSE_TYPE), RESPONSE_TYPE_CODE);
+    Preconditions.checkArgument(RESPONSE_TYPE_CODE.equals(responseType) || RESPONSE_TYPE_ID_TOKEN.equals(responseType),
+      "Unknown value of property " + PROPERTY_RESPONSE_TYPE + ": " + responseType + ". Supported values are code and id_token");
+    this.implicit = RESPONSE_TYPE_ID_TOKEN.equals(responseType);
+    this.nonceVerifier = nonceVerifier;
+    this.configurationRefreshMillis = configurationRefreshSeconds * 1000L;
+    this.fetcher = fetcher;
+    this.metrics = metrics;
+    long keysRefreshSeconds = settings.hasKey(PROPERTY_KEYS_REFRESH_SECONDS) ? settings.getLong(PROPERTY_KEYS_REFRESH_SECONDS) : DEFAULT_KEYS_REFRESH_SECONDS;
+    this.keysRefreshMillis = keysRefreshSeconds * 1000L;
+    this.keys = new JsonWebKeys(fetcher, keysRefreshSeconds, metrics);
+    this.verifier = new IdTokenVerifier(clientId,
+      settings.hasKey(PROPERTY_CLOCK_SKEW_SECONDS) ? settings.getLong(PROPERTY_CLOCK_SKEW_SECONDS) : DEFAULT_CLOCK_SKEW_SECONDS, keys);
+    try {
+      // the secret itself is not used as MAC key, so that the state does not leak information about it
+      this.stateKey = new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(("sonar-openid-state:" + clientSecret).getBytes(Charsets.UTF_8)), MAC_ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+  }
+
+  /**
+   * Downloads the configuration and the keys of the issuer in background. The keys are refreshed twice per refresh
+   * delay, so that they do not expire in the login path.
+   */
+  void start() {
+    if (keysRefreshMillis > 0L) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("openid-keys-%d")
+        .setDaemon(true)
+        .build());
+      executor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          refreshKeys();
+        }
+      }, 0L, Math.max(JsonWebKeys.MIN_REFRESH_INTERVAL_MILLIS, keysRefreshMillis / 2), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  @VisibleForTesting
+  void refreshKeys() {
+    try {
+      keys.refresh(configuration().jwksUri);
+    } catch (RuntimeException e) {
+      LOG.warn("Fail to download the keys of OpenID Connect issuer " + issuerUrl, e);
+    }
+  }
+
+  /**
+   * Key of the circuit breaker of the issuer
+   */
+  String getIssuerUrl() {
+    return issuerUrl;
+  }
+
+  /**
+   * URL of the login form of the issuer
+   */
+  String authenticationUrl(HttpServletResponse response) {
+    Preconditions.checkNotNull(response, "HTTP response is missing, the state must be bound to the browser");
+    Configuration config = configuration();
+    String nonce = newNonce();
+    String state = state(nonce, currentTimeMillis() + STATE_MAX_AGE_MILLIS);
+    response.addHeader("Set-Cookie", stateCookie(nonce));
+    return new StringBuilder(config.authorizationEndpoint)
+      .append(config.authorizationEndpoint.indexOf('?') < 0 ? '?' : '&')
+      .append(implicit ? "response_type=id_token&response_mode=form_post" : "response_type=code")
+      .append("&client_id=").append(encode(clientId))
+      .append("&redirect_uri=").append(encode(redirectUri))
+      .append("&scope=").append(encode(scope))
+      .append("&state=").append(encode(state))
+      .append("&nonce=").append(encode(nonce))
+      .toString();
+  }
+
+  /**
+   * @param request the request of the browser, that carries the cookie binding the state to the browser
+   * @return the claims of the verified ID token, or null if the response is refused, invalid or replayed
+   * @throws IllegalStateException if the issuer can not be reached
+   */
+  Map<String, Object> verify(ParameterList responseParameters, HttpServletRequest request) {
+    String error = responseParameters.getParameterValue("error");
+    if (error != null) {
+      LOG.warn("OpenID Connect authentication failed: " + error + " " + StringUtils.defaultString(responseParameters.getParameterValue("error_description")));
+      return null;
+    }
+    String nonce = nonceOfState(responseParameters.getParameterValue("state"));
+    if (nonce == null) {
+      LOG.warn("Invalid or expired state of OpenID Connect response");
+      return null;
+    }
+    String cookie = cookieValue(request, STATE_COOKIE);
+    if (cookie == null || !MessageDigest.isEqual(hash(nonce).getBytes(Charsets.US_ASCII), cookie.getBytes(Charsets.US_ASCII))) {
+      LOG.warn("State of OpenID Connect response does not match the browser that started the login");
+      return null;
+    }
+    Configuration config = configuration();
+    String idToken;
+    if (implicit) {
+      idToken = responseParameters.getParameterValue("id_token");
+    } else {
+      String code = responseParameters.getParameterValue("code");
+      if (Strings.isNullOrEmpty(code)) {
+        LOG.warn("Authorization code of OpenID Connect response is missing");
+        return null;
+      }
+      idToken = requestIdToken(config, code);
+      if (idToken == null) {
+        return null;
+      }
+    }
+    Map<String, Object> claims;
+    try {
+      claims = verifier.verify(idToken, config.issuer, config.jwksUri, nonce);
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Fail to verify OpenID Connect response: " + e.getMessage());
+      return null;
+    }
+    if (nonceVerifier.seen(issuerUrl, nonce) != NonceVerifier.OK) {
+      LOG.warn("OpenID Connect response is replayed or too old");
+      return null;
+    }
+    return claims;
+  }
+
+  /**
+   * Same attributes than the OpenID 2.0 responses: the full name is mandatory, the email is optional.
+   */
+  static UserDetails toUser(Map<String, Object> claims) {
+    String name = Json.getString(claims, "name");
+    if (Strings.isNullOrEmpty(name)) {
+      String first = Json.getString(claims, "given_name");
+      String last = Json.getString(claims, "family_name");
+      if (first != null && last != null) {
+        name = first + " " + last;
+      }
+    }
+    UserDetails user = null;
+    if (!Strings.isNullOrEmpty(name)) {
+      user = new UserDetails();
+      user.setName(name);
+      user.setEmail(Json.getString(claims, "email"));
+    }
+    return user;
+  }
+
+  /**
+   * @return null if the authorization code is refused by the issuer
+   */
+  private String requestIdToken(Configuration config, String code) {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("grant_type", "authorization_code");
+    parameters.put("code", code);
+    parameters.put("redirect_uri", redirectUri);
+    HttpRequestOptions options = HttpRequestOptions.getDefaultOptionsForOpCalls();
+    options.addRequestHeader("Accept", "application/json");
+    options.addRequestHeader("Authorization", "Basic " + new String(Base64.encodeBase64((encode(clientId) + ":" + encode(clientSecret)).getBytes(Charsets.UTF_8)), Charsets.US_ASCII));
+    long start = System.nanoTime();
+    HttpResponse response;
+    try {
+      response = fetcher.post(config.tokenEndpoint, parameters, options);
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to request the token endpoint of OpenID Connect issuer: " + config.tokenEndpoint, e);
+    } finally {
+      metrics.record(OpenIdMetrics.PHASE_TOKEN, System.nanoTime() - start);
+    }
+    int status = response.getStatusCode();
+    if (status >= 400 && status < 500) {
+      // for example the code is expired or already used
+      LOG.warn("Authorization code is refused by OpenID Connect issuer: " + status + " " + StringUtils.abbreviate(response.getBody(), 200));
+      return null;
+    }
+    if (status != 200) {
+      throw new IllegalStateException("Fail to request the token endpoint of OpenID Connect issuer: status " + status);
+    }
+    return Json.getString(Json.parseObject(response.getBody()), "id_token");
+  }
+
+  /**
+   * Configuration of the issuer, downloaded on first use and refreshed like the discovery of OpenID 2.0 providers.
+   * The previous configuration is kept if the issuer is not reachable.
+   */
+  @VisibleForTesting
+  Configuration configuration() {
+    Configuration config = configuration;
+    if (config == null || (configurationRefreshMillis > 0L && currentTimeMillis() - configurationCheckedAt > configurationRefreshMillis)) {
+      config = loadConfiguration();
+    }
+    return config;
+  }
+
+  private synchronized Configuration loadConfiguration() {
+    Configuration previous = configuration;
+    long now = currentTimeMillis();
+    if (previous != null && (configurationRefreshMillis <= 0L || now - configurationCheckedAt <= configurationRefreshMillis)) {
+      // loaded by another thread
+      return previous;
+    }
+    String url = issuerUrl + CONFIGURATION_PATH;
+    long start = System.nanoTime();
+    try {
+      HttpResponse response = fetcher.get(url);
+      if (response.getStatusCode() != 200) {
+        throw new IllegalStateException("Status " + response.getStatusCode());
+      }
+      Configuration loaded = Configuration.parse(response.getBody());
+      Preconditions.checkState(issuerUrl.equals(StringUtils.removeEnd(loaded.issuer, "/")),
+        "Issuer " + loaded.issuer + " does not match the property " + OpenIdClient.PROPERTY_OPENID_URL);
+      configuration = loaded;
+      return loaded;
+    } catch (Exception e) {
+      if (previous == null) {
+        throw new IllegalStateException("Fail to download the configuration of OpenID Connect issuer: " + url, e);
+      }
+      metrics.providerError();
+      LOG.warn("Fail to refresh the configuration of OpenID Connect issuer: " + url, e);
+      return previous;
+    } finally {
+      configurationCheckedAt = now;
+      metrics.record(OpenIdMetrics.PHASE_DISCOVERY, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Same format than the nonces of OpenID 2.0 responses: timestamp, then random characters
+   */
+  private String newNonce() {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    return NONCE_DATE_FORMAT.format(new Date(currentTimeMillis())) + Base64.encodeBase64URLSafeString(bytes);
+  }
+
+  @VisibleForTesting
+  String state(String nonce, long expiresAt) {
+    String value = nonce + "." + expiresAt;
+    return value + "." + mac(value);
+  }
+
+  /**
+   * @return the nonce of the request, or null if the state is not signed by this server or has expired
+   */
+  @VisibleForTesting
+  String nonceOfState(String state) {
+    if (state == null) {
+      return null;
+    }
+    int macSeparator = state.lastIndexOf('.');
+    int expirySeparator = macSeparator < 0 ? -1 : state.lastIndexOf('.', macSeparator - 1);
+    if (expirySeparator <= 0) {
+      return null;
+    }
+    String value = state.substring(0, macSeparator);
+    if (!MessageDigest.isEqual(mac(value).getBytes(Charsets.US_ASCII), state.substring(macSeparator + 1).getBytes(Charsets.US_ASCII))) {
+      return null;
+    }
+    long expiresAt;
+    try {
+      expiresAt = Long.parseLong(state.substring(expirySeparator + 1, macSeparator));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return expiresAt < currentTimeMillis() ? null : state.substring(0, expirySeparator);
+  }
+
+  /**
+   * The cookie is sent back on the redirection to /openid/validate. When the issuer posts the ID token (form_post),
+   * the cookie must be allowed on cross-site requests, which browsers accept only over HTTPS.
+   */
+  @VisibleForTesting
+  String stateCookie(String nonce) {
+    boolean secure = redirectUri.startsWith("https:");
+    StringBuilder cookie = new StringBuilder(STATE_COOKIE).append('=').append(hash(nonce))
+      .append("; Max-Age=").append(STATE_MAX_AGE_MILLIS / 1000L)
+      .append("; Path=").append(cookiePath())
+      .append("; HttpOnly");
+    if (secure) {
+      cookie.append("; Secure");
+      if (implicit) {
+        cookie.append("; SameSite=None");
+      }
+    }
+    return cookie.toString();
+  }
+
+  private String cookiePath() {
+    try {
+      return StringUtils.defaultIfEmpty(new URL(redirectUri).getPath(), "/");
+    } catch (MalformedURLException e) {
+      return "/";
+    }
+  }
+
+  private static String cookieValue(HttpServletRequest request, String name) {
+    Cookie[] cookies = request == null ? null : request.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (name.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String hash(String nonce) {
+    try {
+      return Base64.encodeBase64URLSafeString(MessageDigest.getInstance("SHA-256").digest(nonce.getBytes(Charsets.UTF_8)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Fail to hash the nonce of OpenID Connect request", e);
+    }
+  }
+
+  private String mac(String value) {
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(stateKey);
+      return Base64.encodeBase64URLSafeString(mac.doFinal(value.getBytes(Charsets.UTF_8)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Fail to sign the state of OpenID Connect request", e);
+    }
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(CHARSET + " is not supported", e);
+    }
+  }
+
+  @VisibleForTesting
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  static final class Configuration {
+    final String issuer;
+    final String authorizationEndpoint;
+    final String tokenEndpoint;
+    final String jwksUri;
+
+    private Configuration(String issuer, String authorizationEndpoint, String tokenEndpoint, String jwksUri) {
+      this.issuer = issuer;
+      this.authorizationEndpoint = authorizationEndpoint;
+      this.tokenEndpoint = tokenEndpoint;
+      this.jwksUri = jwksUri;
+    }
+
+    static Configuration parse(String json) {
+      Map<String, Object> document = Json.parseObject(json);
+      Configuration configuration = new Configuration(Json.getString(document, "issuer"), Json.getString(document, "authorization_endpoint"),
+        Json.getString(document, "token_endpoint"), Json.getString(document, "jwks_uri"));
+      if (configuration.issuer == null || configuration.authorizationEndpoint == null || configuration.tokenEndpoint == null || configuration.jwksUri == null) {
+        throw new IllegalArgumentException("Configuration of OpenID Connect issuer must declare issuer, authorization_endpoint, token_endpoint and jwks_uri");
+      }
+      return configuration;
+    }
+  }
+}
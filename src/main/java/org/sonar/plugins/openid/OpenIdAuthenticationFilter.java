@@ -19,16 +19,18 @@
  */
 package org.sonar.plugins.openid;
 
-import org.openid4java.message.AuthRequest;
 import org.sonar.api.web.ServletFilter;
 
 import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 /**
  * Requests to login form (/sessions/new) are redirected to the OpenID form
- * hosted on the identity provider, for example Google.
+ * hosted on the identity provider, for example Google. When several providers are
+ * declared, the provider is selected by {@link OpenIdClient#selectProvider(HttpServletRequest)}.
+ * Requests over the rate limits are rejected before the provider is selected.
  */
 public final class OpenIdAuthenticationFilter extends ServletFilter {
 
@@ -47,8 +49,20 @@ public final class OpenIdAuthenticationFilter extends ServletFilter {
   }
 
   public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
-    AuthRequest authRequest = openIdClient.createAuthenticationRequest();
-    ((HttpServletResponse) servletResponse).sendRedirect(authRequest.getDestinationUrl(true));
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+    if (!OpenIdValidationFilter.admit(openIdClient, request, response)) {
+      return;
+    }
+    OpenIdClient provider = openIdClient.selectProvider(request);
+    String url;
+    try {
+      url = provider.createAuthenticationUrl(response);
+    } catch (ProviderUnavailableException e) {
+      OpenIdValidationFilter.sendUnavailable(response, e);
+      return;
+    }
+    response.sendRedirect(url);
   }
 
   public void destroy() {
@@ -20,40 +20,100 @@
 package org.sonar.plugins.openid;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang.StringUtils;
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
 import org.openid4java.consumer.ConsumerManager;
 import org.openid4java.consumer.InMemoryConsumerAssociationStore;
-import org.openid4java.consumer.InMemoryNonceVerifier;
 import org.openid4java.consumer.VerificationResult;
 import org.openid4java.discovery.Discovery;
 import org.openid4java.discovery.DiscoveryInformation;
 import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.UrlIdentifier;
+import org.openid4java.discovery.yadis.YadisResolver;
 import org.openid4java.message.AuthRequest;
 import org.openid4java.message.AuthSuccess;
 import org.openid4java.message.ParameterList;
-import org.openid4java.message.ax.AxMessage;
-import org.openid4java.message.ax.FetchRequest;
-import org.openid4java.message.ax.FetchResponse;
-import org.openid4java.message.sreg.SRegMessage;
-import org.openid4java.message.sreg.SRegRequest;
-import org.openid4java.message.sreg.SRegResponse;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.ServerExtension;
+import org.sonar.api.platform.ServerFileSystem;
 import org.sonar.api.config.Settings;
 import org.sonar.api.security.UserDetails;
+import org.sonar.plugins.openid.api.OpenIdAssociationStore;
 import org.sonar.plugins.openid.api.OpenIdExtension;
-import org.sonar.plugins.openid.api.OpenIdUtils;
+import org.sonar.plugins.openid.api.OpenIdResponseExtensions;
 
-import java.net.URL;
-import java.util.Collections;
-import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class OpenIdClient implements ServerExtension {
 
+  private static final Logger LOG = LoggerFactory.getLogger(OpenIdClient.class);
+
   public static final String PROPERTY_SONAR_URL = "sonar.openid.sonarServerUrl";
   public static final String PROPERTY_OPENID_URL = "sonar.openid.providerUrl";
+  public static final String PROPERTY_DISCOVERY_REFRESH_SECONDS = "sonar.openid.discoveryRefreshSeconds";
+  public static final String PROPERTY_DISCOVERY_CACHE_FILE = "sonar.openid.discoveryCacheFile";
+  public static final String PROPERTY_NONCE_MAX_AGE_SECONDS = "sonar.openid.nonceMaxAgeSeconds";
+  public static final String PROPERTY_NONCE_CAPACITY = "sonar.openid.nonceCapacity";
+  public static final String PROPERTY_ASSOCIATION_STORE = "sonar.openid.associationStore";
+  public static final String PROPERTY_PRE_ASSOCIATE = "sonar.openid.preAssociate";
+  public static final String PROPERTY_ASSOCIATION_RENEWAL_MARGIN_SECONDS = "sonar.openid.associationRenewalMarginSeconds";
+  public static final String PROPERTY_METRICS_JMX = "sonar.openid.metrics.jmx";
+  public static final String PROPERTY_EXTENSIONS_THREADS = "sonar.openid.extensions.threads";
+  public static final String PROPERTY_EXTENSIONS_TIMEOUT_MILLIS = "sonar.openid.extensions.timeoutMillis";
+  public static final String PROPERTY_EXTENSIONS_FAIL_OPEN = "sonar.openid.extensions.failOpen";
+  public static final String PROPERTY_FAST_SIGNATURE_VERIFICATION = "sonar.openid.fastSignatureVerification";
+  public static final String PROPERTY_EXTENSION_CLASSES = "sonar.openid.extensions.classes";
+  public static final String PROPERTY_PROVIDERS = "sonar.openid.providers";
+  public static final String PROPERTY_PROTOCOL = "sonar.openid.protocol";
+  public static final String PROPERTY_LAZY_START = "sonar.openid.lazyStart";
+  public static final String PROPERTY_RESPONSE_PRECHECK = "sonar.openid.responsePrecheck";
+
+  static final String PROTOCOL_OPENID = "openid";
+  static final String PROTOCOL_OIDC = "oidc";
+
+  /**
+   * Host names of the provider, when declared in sonar.openid.providers.&lt;key&gt;.hosts
+   */
+  static final String PROPERTY_HOSTS = "sonar.openid.hosts";
+  static final String PROVIDER_PARAMETER = "openid_provider";
+  static final String VALIDATE_PATH = "/openid/validate";
+  private static final String PROPERTY_PREFIX = "sonar.openid.";
+
+  static final long DEFAULT_DISCOVERY_REFRESH_SECONDS = 3600L;
+  static final String DEFAULT_DISCOVERY_CACHE_FILE = "data/openid/discovery.properties";
+  static final int DEFAULT_NONCE_MAX_AGE_SECONDS = 5000;
+  static final int DEFAULT_NONCE_CAPACITY = 100000;
+  static final int DEFAULT_ASSOCIATION_RENEWAL_MARGIN_SECONDS = 300;
+  static final long DEFAULT_EXTENSIONS_TIMEOUT_MILLIS = 5000L;
+
+  /**
+   * Several properties changed in a row are applied by a single reload
+   */
+  static final long RELOAD_DELAY_MILLIS = 1000L;
+  /**
+   * Delay before the replaced configuration is stopped, so that the verifications in progress complete
+   */
+  static final long RETIREMENT_DELAY_MILLIS = 60000L;
 
   static final String AX_ATTR_EMAIL = "email";
   static final String SREG_ATTR_EMAIL = "email";
@@ -61,19 +121,101 @@ public class OpenIdClient implements ServerExtension {
   static final String AX_ATTR_FIRSTNAME = "firstName";
   static final String AX_ATTR_LASTNAME = "lastName";
 
+  private final String providerKey;
   private Settings settings;
   private ConsumerManager manager;
-  private DiscoveryInformation discoveryInfo;
+  private DiscoveryCache discovery;
+  private BucketedNonceVerifier nonceVerifier;
+  private Associator associator;
   private String returnToUrl;
   private List<OpenIdExtension> extensions;
+  private List<OpenIdExtension> installedExtensions;
+  private List<OpenIdAssociationStore> associationStores;
+  private UserMapping userMapping = UserMapping.DEFAULT;
+  private AuthRequestTemplate authRequestTemplate = new AuthRequestTemplate(userMapping);
+  private final OpenIdMetrics metrics;
+  private ExtensionVerifier extensionVerifier;
+  private HttpTransport transport;
+  private IdentityCache identityCache;
+  private ProviderHealth health;
+  private OidcEngine oidc;
+  private volatile boolean initializationPending;
+  private String providerLogoutUrl;
+  private int maxResponseParameters = ResponseParameters.MAX_PARAMETERS;
+  private final File homeDir;
+  private LoginRateLimiter rateLimiter;
+  private ResponsePrecheck precheck;
+  private final ConcurrentMap<String, BucketedNonceVerifier> nonceVerifiers;
+  private final UserGroups userGroups;
+  private volatile OpenIdClient current = this;
+  private final List<OpenIdClient> retiring = new CopyOnWriteArrayList<OpenIdClient>();
+  private final AtomicBoolean reloadScheduled = new AtomicBoolean();
+  private ScheduledExecutorService reloader;
+  private final Map<String, OpenIdClient> providersByKey = new HashMap<String, OpenIdClient>();
+  private final Map<String, OpenIdClient> providersByHost = new HashMap<String, OpenIdClient>();
 
   public OpenIdClient(Settings settings) {
     this(settings, Collections.<OpenIdExtension>emptyList());
   }
 
   public OpenIdClient(Settings settings, List<OpenIdExtension> extensions) {
+    this(settings, extensions, Collections.<OpenIdAssociationStore>emptyList());
+  }
+
+  public OpenIdClient(Settings settings, List<OpenIdExtension> extensions, List<OpenIdAssociationStore> associationStores) {
+    this(null, settings, extensions, associationStores, null);
+  }
+
+  /**
+   * @param fileSystem the default discovery snapshot is stored in the data directory of the server
+   */
+  public OpenIdClient(Settings settings, List<OpenIdExtension> extensions, List<OpenIdAssociationStore> associationStores, ServerFileSystem fileSystem) {
+    this(null, settings, extensions, associationStores, fileSystem.getHomeDir());
+  }
+
+  /**
+   * @param providerKey key of the provider declared in sonar.openid.providers, null for the default provider
+   * @param homeDir home directory of the server, null if unknown
+   */
+  OpenIdClient(String providerKey, Settings settings, List<OpenIdExtension> extensions, List<OpenIdAssociationStore> associationStores, File homeDir) {
+    this(providerKey, settings, extensions, associationStores, homeDir, new OpenIdMetrics(), new ConcurrentHashMap<String, BucketedNonceVerifier>(),
+      new UserGroups(UserGroups.DEFAULT_MAX_SIZE));
+  }
+
+  /**
+   * @param nonceVerifiers nonce verifiers by provider key, shared by the configurations that replace each other
+   * @param userGroups groups of the users, shared by all the providers and configurations
+   */
+  private OpenIdClient(String providerKey, Settings settings, List<OpenIdExtension> extensions, List<OpenIdAssociationStore> associationStores,
+    File homeDir, OpenIdMetrics metrics, ConcurrentMap<String, BucketedNonceVerifier> nonceVerifiers, UserGroups userGroups) {
+    this.providerKey = providerKey;
     this.settings = settings;
-    this.extensions = extensions;
+    this.homeDir = homeDir;
+    this.metrics = metrics;
+    this.nonceVerifiers = nonceVerifiers;
+    this.userGroups = userGroups;
+    this.installedExtensions = extensions;
+    this.extensions = selectExtensions(settings.getStringArray(PROPERTY_EXTENSION_CLASSES), extensions);
+    this.associationStores = associationStores;
+    this.extensionVerifier = new ExtensionVerifier(this.extensions, metrics);
+  }
+
+  /**
+   * @param classes simple or fully-qualified names of the extensions to keep. All the extensions are kept if empty.
+   */
+  @VisibleForTesting
+  static List<OpenIdExtension> selectExtensions(String[] classes, List<OpenIdExtension> extensions) {
+    if (classes.length == 0) {
+      return extensions;
+    }
+    Set<String> names = new HashSet<String>(Arrays.asList(classes));
+    List<OpenIdExtension> selected = new ArrayList<OpenIdExtension>();
+    for (OpenIdExtension extension : extensions) {
+      if (names.contains(extension.getClass().getName()) || names.contains(extension.getClass().getSimpleName())) {
+        selected.add(extension);
+      }
+    }
+    return selected;
   }
 
   @VisibleForTesting
@@ -87,15 +229,216 @@ public class OpenIdClient implements ServerExtension {
     return returnToUrl;
   }
 
+  @VisibleForTesting
+  OpenIdClient setDiscoveryInfo(DiscoveryInformation info) {
+    initDiscoveryCache().set(info);
+    return this;
+  }
+
+  @VisibleForTesting
+  OpenIdClient setDiscoveryInfo(List<DiscoveryInformation> endpoints) {
+    initDiscoveryCache().set(endpoints);
+    return this;
+  }
+
+  BucketedNonceVerifier getNonceVerifier() {
+    return nonceVerifier;
+  }
+
+  OpenIdMetrics getMetrics() {
+    return metrics;
+  }
+
   @VisibleForTesting
   public DiscoveryInformation getDiscoveryInfo() {
-    return discoveryInfo;
+    return initDiscoveryCache().get();
   }
 
+  /**
+   * When the property sonar.openid.lazyStart is true, only the configuration is validated. The association store,
+   * the consumer manager and the background tasks are initialized on the first login.
+   */
   public void start() {
-    initManager();
-    initDiscoveryInfo();
-    initReturnToUrl();
+    String protocol = StringUtils.defaultIfEmpty(settings.getString(PROPERTY_PROTOCOL), PROTOCOL_OPENID);
+    // the HTTP calls to the provider report their results to the circuit breakers
+    initHealth();
+    if (PROTOCOL_OIDC.equals(protocol)) {
+      initReturnToUrl();
+      initOidc();
+    } else {
+      Preconditions.checkState(PROTOCOL_OPENID.equals(protocol),
+        "Unknown value of property " + PROPERTY_PROTOCOL + ": " + protocol + ". Supported values are openid and oidc");
+      Preconditions.checkState(StringUtils.isNotBlank(settings.getString(PROPERTY_OPENID_URL)), "Property " + PROPERTY_OPENID_URL + " is missing");
+      initReturnToUrl();
+      initPrecheck();
+      initUserMapping();
+    }
+    providerLogoutUrl = settings.getString(OpenIdLogoutFilter.PROPERTY_PROVIDER_LOGOUT_URL);
+    rateLimiter = LoginRateLimiter.create(settings, metrics);
+    if (settings.getBoolean(PROPERTY_LAZY_START)) {
+      initializationPending = true;
+    } else {
+      initialize();
+    }
+    if (!settings.hasKey(PROPERTY_METRICS_JMX) || settings.getBoolean(PROPERTY_METRICS_JMX)) {
+      metrics.register();
+    }
+    if (providerKey == null) {
+      initProviders();
+    }
+  }
+
+  public void stop() {
+    synchronized (this) {
+      if (reloader != null) {
+        reloader.shutdownNow();
+        reloader = null;
+      }
+    }
+    OpenIdClient reloaded = current;
+    if (reloaded != this) {
+      reloaded.release();
+    }
+    for (OpenIdClient retired : retiring) {
+      if (retiring.remove(retired) && retired != this) {
+        retired.release();
+      }
+    }
+    if (providerKey == null) {
+      metrics.unregister();
+    }
+    release();
+  }
+
+  /**
+   * Stops the background tasks and the connections of this configuration
+   */
+  private void release() {
+    synchronized (this) {
+      initializationPending = false;
+    }
+    for (OpenIdClient provider : providersByKey.values()) {
+      provider.release();
+    }
+    extensionVerifier.stop();
+    if (associator != null) {
+      associator.stop();
+    }
+    if (oidc != null) {
+      oidc.stop();
+    }
+    if (discovery != null) {
+      discovery.stop();
+    }
+    if (transport != null) {
+      transport.stop();
+      transport = null;
+    }
+  }
+
+  /**
+   * Called when a property sonar.openid.* changes. The clients of the new configuration are built and started in
+   * background from a copy of the settings, then replace the current clients atomically. The replaced clients keep
+   * serving the requests in progress and are stopped after {@link #RETIREMENT_DELAY_MILLIS}. An invalid configuration
+   * is logged and the current one is kept.
+   */
+  void reload() {
+    if (reloadScheduled.compareAndSet(false, true)) {
+      reloader().schedule(new Runnable() {
+        public void run() {
+          reloadScheduled.set(false);
+          reloadNow();
+        }
+      }, RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void reloadNow() {
+    // the MBean of metrics stays registered by this client
+    Settings snapshot = new Settings(settings).setProperty(PROPERTY_METRICS_JMX, false);
+    OpenIdClient reloaded = new OpenIdClient(providerKey, snapshot, installedExtensions, associationStores, homeDir, metrics, nonceVerifiers, userGroups);
+    try {
+      reloaded.start();
+    } catch (RuntimeException e) {
+      reloaded.release();
+      LOG.error("Invalid OpenID configuration, the previous configuration is kept", e);
+      return;
+    }
+    final OpenIdClient previous = current;
+    current = reloaded;
+    retiring.add(previous);
+    reloader().schedule(new Runnable() {
+      public void run() {
+        if (retiring.remove(previous)) {
+          previous.release();
+        }
+      }
+    }, RETIREMENT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    LOG.info("OpenID configuration reloaded");
+  }
+
+  private synchronized ScheduledExecutorService reloader() {
+    if (reloader == null) {
+      reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("openid-reload-%d")
+        .setDaemon(true)
+        .build());
+    }
+    return reloader;
+  }
+
+  /**
+   * URL of the logout form of the provider, read from the current configuration
+   */
+  String getProviderLogoutUrl() {
+    return current.providerLogoutUrl;
+  }
+
+  /**
+   * Admission control of the login endpoints, shared by all the providers
+   *
+   * @return null if logins are not limited
+   */
+  LoginRateLimiter getRateLimiter() {
+    return current.rateLimiter;
+  }
+
+  /**
+   * Components that read the association store or start background tasks
+   */
+  private void initialize() {
+    if (oidc != null) {
+      oidc.start();
+    } else {
+      initManager();
+      initDiscoveryInfo();
+      initExtensionVerifier();
+      initIdentityCache();
+      if (associator != null) {
+        associator.start();
+      }
+    }
+  }
+
+  /**
+   * Completes the initialization deferred by the property sonar.openid.lazyStart. Concurrent first logins wait
+   * for a single initialization. If it fails, the next login tries again.
+   */
+  private void ensureInitialized() {
+    if (initializationPending) {
+      synchronized (this) {
+        if (initializationPending) {
+          try {
+            initialize();
+          } catch (RuntimeException e) {
+            throw new IllegalStateException("Fail to initialize OpenID client", e);
+          }
+          initializationPending = false;
+          LOG.info("OpenID client initialized on first login");
+        }
+      }
+    }
   }
 
   @VisibleForTesting
@@ -104,120 +447,615 @@ public class OpenIdClient implements ServerExtension {
     Preconditions.checkArgument(StringUtils.isNotBlank(sonarUrl), "Property sonar.openid.sonarServerUrl is missing");
     Preconditions.checkArgument(!sonarUrl.contains("?"), "Property sonar.openid.sonarServerUrl must not contain the character ?");
     Preconditions.checkArgument(!StringUtils.endsWith(sonarUrl, "/"), "Property sonar.openid.sonarServerUrl must not end with with slash /");
-    returnToUrl = sonarUrl + "/openid/validate";
+    returnToUrl = sonarUrl + VALIDATE_PATH;
+    if (providerKey != null) {
+      returnToUrl += "/" + providerKey;
+    }
+  }
+
+  @VisibleForTesting
+  void initPrecheck() {
+    // each group of the user is a parameter of the response
+    maxResponseParameters = ResponseParameters.MAX_PARAMETERS + UserMapping.maxGroups(settings);
+    if (!settings.hasKey(PROPERTY_RESPONSE_PRECHECK) || settings.getBoolean(PROPERTY_RESPONSE_PRECHECK)) {
+      precheck = new ResponsePrecheck(returnToUrl, nonceMaxAgeSeconds(), maxResponseParameters, metrics);
+    }
+  }
+
+  /**
+   * Maximum number of parameters of the responses sent to /openid/validate
+   */
+  int getMaxResponseParameters() {
+    return maxResponseParameters;
+  }
+
+  /**
+   * Mapping of the attributes to the user, compiled once. Attributes read by the mapping are requested on each login.
+   */
+  @VisibleForTesting
+  void initUserMapping() {
+    userMapping = UserMapping.create(settings);
+    authRequestTemplate = new AuthRequestTemplate(userMapping);
   }
 
+  /**
+   * Each provider declared in sonar.openid.providers gets its own client, configured by the properties
+   * sonar.openid.providers.&lt;key&gt;.* that override the properties sonar.openid.*. The metrics of all the
+   * providers are aggregated by the default one.
+   */
+  @VisibleForTesting
+  void initProviders() {
+    for (String key : settings.getStringArray(PROPERTY_PROVIDERS)) {
+      Preconditions.checkState(key.matches("[a-zA-Z0-9_-]+"), "Invalid key of OpenID provider: " + key);
+      Preconditions.checkState(!providersByKey.containsKey(key), "OpenID provider " + key + " is declared twice");
+      OpenIdClient provider = new OpenIdClient(key, providerSettings(key), installedExtensions, associationStores, homeDir, metrics, nonceVerifiers, userGroups);
+      provider.start();
+      providersByKey.put(key, provider);
+      for (String host : provider.settings.getStringArray(PROPERTY_HOSTS)) {
+        OpenIdClient previous = providersByHost.put(host.toLowerCase(Locale.ENGLISH), provider);
+        Preconditions.checkState(previous == null, "Host " + host + " is declared by several OpenID providers");
+      }
+    }
+  }
+
+  private Settings providerSettings(String key) {
+    Settings providerSettings = new Settings(settings);
+    String prefix = PROPERTY_PROVIDERS + "." + key + ".";
+    for (String property : settings.getKeysStartingWith(prefix)) {
+      providerSettings.setProperty(PROPERTY_PREFIX + property.substring(prefix.length()), settings.getString(property));
+    }
+    // files of the default provider are not shared, its MBean exports the metrics of all the providers
+    File discoveryCacheFile = discoveryCacheFile();
+    if (!settings.hasKey(prefix + "discoveryCacheFile") && discoveryCacheFile != null) {
+      providerSettings.setProperty(PROPERTY_DISCOVERY_CACHE_FILE, discoveryCacheFile.getAbsolutePath() + "." + key);
+    }
+    providerSettings.setProperty(PROPERTY_METRICS_JMX, false);
+    return providerSettings;
+  }
+
+  /**
+   * Provider of the login form, selected by the request parameter openid_provider, else by the host name of the request.
+   *
+   * @return this client if no other provider matches
+   */
+  OpenIdClient selectProvider(HttpServletRequest request) {
+    OpenIdClient reloaded = current;
+    if (reloaded != this) {
+      return reloaded.selectProvider(request);
+    }
+    if (providersByKey.isEmpty()) {
+      return this;
+    }
+    String key = request.getParameter(PROVIDER_PARAMETER);
+    OpenIdClient provider = key == null ? null : providersByKey.get(key);
+    if (provider == null) {
+      String host = request.getServerName();
+      provider = host == null ? null : providersByHost.get(host.toLowerCase(Locale.ENGLISH));
+    }
+    return provider == null ? this : provider;
+  }
+
+  /**
+   * Provider that sent the response to /openid/validate/&lt;key&gt;
+   *
+   * @return this client for /openid/validate, null if the key is unknown
+   */
+  OpenIdClient providerOfResponse(HttpServletRequest request) {
+    OpenIdClient reloaded = current;
+    if (reloaded != this) {
+      return reloaded.providerOfResponse(request);
+    }
+    String uri = request.getRequestURI();
+    int index = uri == null ? -1 : uri.indexOf(VALIDATE_PATH + "/");
+    if (index < 0) {
+      return this;
+    }
+    return providersByKey.get(uri.substring(index + VALIDATE_PATH.length() + 1));
+  }
+
+  /**
+   * OpenID Connect is used instead of OpenID 2.0. The configuration of the issuer is downloaded on first login,
+   * so that the server startup does not depend on the issuer.
+   */
+  @VisibleForTesting
+  void initOidc() {
+    if (!extensions.isEmpty()) {
+      LOG.warn("Extensions of OpenID 2.0 requests are not called by the protocol OpenID Connect");
+    }
+    long refreshSeconds = settings.hasKey(PROPERTY_DISCOVERY_REFRESH_SECONDS) ? settings.getLong(PROPERTY_DISCOVERY_REFRESH_SECONDS) : DEFAULT_DISCOVERY_REFRESH_SECONDS;
+    HttpTransport http = initTransport();
+    HttpFetcherFactory fetchers = http == null ? new HttpFetcherFactory() : http.fetcherFactory();
+    HttpFetcher fetcher = fetchers.createFetcher(HttpRequestOptions.getDefaultOptionsForOpCalls());
+    if (health != null) {
+      // configuration, keys and tokens are served by the issuer
+      final String issuer = StringUtils.removeEnd(settings.getString(PROPERTY_OPENID_URL), "/");
+      fetcher = health.monitor(fetcher, new Function<String, String>() {
+        public String apply(String url) {
+          return issuer;
+        }
+      });
+    }
+    oidc = new OidcEngine(settings, returnToUrl, refreshSeconds, fetcher, initNonceVerifier(), metrics);
+  }
+
+  /**
+   * @return true if the provider uses OpenID Connect instead of OpenID 2.0
+   */
+  boolean isOidc() {
+    return oidc != null;
+  }
+
+  /**
+   * Discovery is executed in background, so that the server startup does not depend on the provider.
+   */
   @VisibleForTesting
   void initDiscoveryInfo() {
-    String endpoint = settings.getString(PROPERTY_OPENID_URL);
-    Preconditions.checkState(!Strings.isNullOrEmpty(endpoint), "Property " + PROPERTY_OPENID_URL + " is missing");
-    try {
-      List l = new Discovery().discover(endpoint);
-      if (l == null || l.isEmpty()) {
-        discoveryInfo = new DiscoveryInformation(new URL(endpoint));
-      } else {
-        discoveryInfo = (DiscoveryInformation) l.get(0);
+    initDiscoveryCache().start();
+  }
+
+  /**
+   * Extensions are executed concurrently if the property sonar.openid.extensions.threads is set.
+   */
+  @VisibleForTesting
+  void initExtensionVerifier() {
+    int threads = settings.getInt(PROPERTY_EXTENSIONS_THREADS);
+    if (threads > 0) {
+      long timeout = settings.hasKey(PROPERTY_EXTENSIONS_TIMEOUT_MILLIS) ? settings.getLong(PROPERTY_EXTENSIONS_TIMEOUT_MILLIS) : DEFAULT_EXTENSIONS_TIMEOUT_MILLIS;
+      extensionVerifier = new ExtensionVerifier(extensions, metrics, threads, timeout, settings.getBoolean(PROPERTY_EXTENSIONS_FAIL_OPEN));
+    }
+  }
+
+  /**
+   * Verified identities are cached if the property sonar.openid.identityCache.ttlSeconds is set.
+   */
+  @VisibleForTesting
+  void initIdentityCache() {
+    long ttl = settings.getLong(IdentityCache.PROPERTY_TTL_SECONDS);
+    if (ttl > 0L) {
+      identityCache = new IdentityCache(ttl,
+        settings.hasKey(IdentityCache.PROPERTY_MAX_SIZE) ? settings.getInt(IdentityCache.PROPERTY_MAX_SIZE) : IdentityCache.DEFAULT_MAX_SIZE);
+    }
+  }
+
+  /**
+   * Calls to the provider are protected by circuit breakers, unless the property sonar.openid.circuitBreaker.failureThreshold is 0.
+   */
+  @VisibleForTesting
+  void initHealth() {
+    int threshold = settings.hasKey(ProviderHealth.PROPERTY_FAILURE_THRESHOLD) ?
+      settings.getInt(ProviderHealth.PROPERTY_FAILURE_THRESHOLD) : ProviderHealth.DEFAULT_FAILURE_THRESHOLD;
+    if (threshold > 0) {
+      health = new ProviderHealth(threshold,
+        settings.hasKey(ProviderHealth.PROPERTY_OPEN_SECONDS) ? settings.getLong(ProviderHealth.PROPERTY_OPEN_SECONDS) : ProviderHealth.DEFAULT_OPEN_SECONDS);
+    }
+  }
+
+  ProviderHealth getHealth() {
+    return health;
+  }
+
+  /**
+   * Endpoint of the login form: the first discovered endpoint which circuit is not open.
+   *
+   * @throws ProviderUnavailableException if the circuits of all the endpoints are open
+   */
+  private DiscoveryInformation selectEndpoint() {
+    List<DiscoveryInformation> endpoints = initDiscoveryCache().getAll();
+    if (health == null) {
+      return endpoints.get(0);
+    }
+    DiscoveryInformation endpoint = health.select(endpoints);
+    if (endpoint == null) {
+      throw unavailable(endpoints.get(0).getOPEndpoint().toString());
+    }
+    return endpoint;
+  }
+
+  private boolean isProviderEndpoint(String url) {
+    for (DiscoveryInformation endpoint : initDiscoveryCache().getAll()) {
+      if (url.equals(endpoint.getOPEndpoint().toString())) {
+        return true;
       }
+    }
+    return false;
+  }
+
+  /**
+   * A response signed with a known association is verified locally, without calling the provider. The other
+   * responses are verified by a call to the provider (stateless mode).
+   */
+  private boolean isVerifiedLocally(ParameterList responseParameters, String opEndpoint) {
+    String handle = responseParameters.getParameterValue("openid.assoc_handle");
+    if (handle == null || responseParameters.hasParameter("openid.invalidate_handle") || manager.getAssociations() == null) {
+      return false;
+    }
+    Association association = manager.getAssociations().load(opEndpoint, handle);
+    return association != null && !association.hasExpired();
+  }
+
+  /**
+   * @return the discovered endpoint that sent the response, else the preferred endpoint
+   */
+  private DiscoveryInformation endpointOfResponse(ParameterList responseParameters) {
+    List<DiscoveryInformation> endpoints = initDiscoveryCache().getAll();
+    String opEndpoint = responseParameters.getParameterValue("openid.op_endpoint");
+    if (opEndpoint != null) {
+      for (DiscoveryInformation endpoint : endpoints) {
+        if (opEndpoint.equals(endpoint.getOPEndpoint().toString())) {
+          return endpoint;
+        }
+      }
+    }
+    return endpoints.get(0);
+  }
+
+  private ProviderUnavailableException unavailable(String endpoint) {
+    metrics.providerUnavailable();
+    return new ProviderUnavailableException("OpenID provider is unavailable: " + endpoint, health.getOpenSeconds());
+  }
+
+  boolean isIdentityCacheEnabled() {
+    return identityCache != null;
+  }
+
+  /**
+   * Next login of the identity will be fully verified, for example after logout.
+   */
+  void invalidateIdentity(String claimedId) {
+    OpenIdClient reloaded = current;
+    if (reloaded != this) {
+      reloaded.invalidateIdentity(claimedId);
+      return;
+    }
+    if (identityCache != null && !Strings.isNullOrEmpty(claimedId)) {
+      identityCache.invalidate(normalizeIdentifier(claimedId));
+    }
+    for (OpenIdClient provider : providersByKey.values()) {
+      provider.invalidateIdentity(claimedId);
+    }
+  }
+
+  /**
+   * Same normalization than openid4java when verifying the claimed identifier of a response
+   */
+  private static String normalizeIdentifier(String claimedId) {
+    try {
+      return new UrlIdentifier(claimedId).getIdentifier();
     } catch (Exception e) {
-      throw new IllegalStateException("Fail to discover OpenID endpoint: " + endpoint, e);
+      return claimedId;
+    }
+  }
+
+  /**
+   * @return null if the discovery information is not stored on disk
+   */
+  @VisibleForTesting
+  File discoveryCacheFile() {
+    String cacheFile = settings.getString(PROPERTY_DISCOVERY_CACHE_FILE);
+    if (Strings.isNullOrEmpty(cacheFile)) {
+      return homeDir == null ? null : new File(homeDir, DEFAULT_DISCOVERY_CACHE_FILE);
+    }
+    return new File(cacheFile);
+  }
+
+  private DiscoveryCache initDiscoveryCache() {
+    if (discovery == null) {
+      long refreshSeconds = DEFAULT_DISCOVERY_REFRESH_SECONDS;
+      if (settings.hasKey(PROPERTY_DISCOVERY_REFRESH_SECONDS)) {
+        refreshSeconds = settings.getLong(PROPERTY_DISCOVERY_REFRESH_SECONDS);
+      }
+      File snapshotFile = discoveryCacheFile();
+      HttpTransport http = initTransport();
+      discovery = new DiscoveryCache(settings.getString(PROPERTY_OPENID_URL), refreshSeconds, snapshotFile, metrics,
+        http == null ? new Discovery() : http.newDiscovery());
+    }
+    return discovery;
+  }
+
+  /**
+   * Calls to the provider share a pool of persistent connections, unless the property sonar.openid.http.pooled is false.
+   *
+   * @return null if the default transport of openid4java is used
+   */
+  @VisibleForTesting
+  HttpTransport initTransport() {
+    if (transport == null && (!settings.hasKey(HttpTransport.PROPERTY_ENABLED) || settings.getBoolean(HttpTransport.PROPERTY_ENABLED))) {
+      transport = new HttpTransport(
+        settings.hasKey(HttpTransport.PROPERTY_MAX_CONNECTIONS) ? settings.getInt(HttpTransport.PROPERTY_MAX_CONNECTIONS) : HttpTransport.DEFAULT_MAX_CONNECTIONS,
+        settings.hasKey(HttpTransport.PROPERTY_MAX_CONNECTIONS_PER_ROUTE) ?
+          settings.getInt(HttpTransport.PROPERTY_MAX_CONNECTIONS_PER_ROUTE) : HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+        settings.getInt(HttpTransport.PROPERTY_CONNECT_TIMEOUT_MILLIS),
+        settings.getInt(HttpTransport.PROPERTY_READ_TIMEOUT_MILLIS),
+        settings.hasKey(HttpTransport.PROPERTY_CACHE_SIZE) ? settings.getInt(HttpTransport.PROPERTY_CACHE_SIZE) : HttpTransport.DEFAULT_CACHE_SIZE);
     }
+    return transport;
   }
 
   private void initManager() {
-    manager = new ConsumerManager();
-    manager.setAssociations(new InMemoryConsumerAssociationStore());
-    manager.setNonceVerifier(new InMemoryNonceVerifier(5000));
-    manager.getRealmVerifier().setEnforceRpId(false);
+    ConsumerAssociationStore associations = createAssociationStore();
+    manager = newConsumerManager(associations, settings.getBoolean(PROPERTY_FAST_SIGNATURE_VERIFICATION));
+    manager.setNonceVerifier(initNonceVerifier());
+
+    if (!settings.hasKey(PROPERTY_PRE_ASSOCIATE) || settings.getBoolean(PROPERTY_PRE_ASSOCIATE)) {
+      // associations are negotiated in background only
+      manager.setMaxAssocAttempts(0);
+      int margin = settings.hasKey(PROPERTY_ASSOCIATION_RENEWAL_MARGIN_SECONDS) ?
+        settings.getInt(PROPERTY_ASSOCIATION_RENEWAL_MARGIN_SECONDS) : DEFAULT_ASSOCIATION_RENEWAL_MARGIN_SECONDS;
+      associator = new Associator(newConsumerManager(associations, false), initDiscoveryCache(), margin, metrics);
+    }
+  }
+
+  /**
+   * The nonces already seen are kept when the configuration is reloaded, so that a response verified before the
+   * reload can not be replayed after it.
+   */
+  private BucketedNonceVerifier initNonceVerifier() {
+    String key = Strings.nullToEmpty(providerKey);
+    nonceVerifier = nonceVerifiers.get(key);
+    if (nonceVerifier == null) {
+      nonceVerifier = new BucketedNonceVerifier(nonceMaxAgeSeconds(),
+        settings.hasKey(PROPERTY_NONCE_CAPACITY) ? settings.getInt(PROPERTY_NONCE_CAPACITY) : DEFAULT_NONCE_CAPACITY);
+      BucketedNonceVerifier previous = nonceVerifiers.putIfAbsent(key, nonceVerifier);
+      if (previous != null) {
+        nonceVerifier = previous;
+      }
+    }
+    if (providerKey == null) {
+      metrics.setNonceVerifier(nonceVerifier);
+    }
+    return nonceVerifier;
+  }
+
+  private int nonceMaxAgeSeconds() {
+    return settings.hasKey(PROPERTY_NONCE_MAX_AGE_SECONDS) ? settings.getInt(PROPERTY_NONCE_MAX_AGE_SECONDS) : DEFAULT_NONCE_MAX_AGE_SECONDS;
+  }
+
+  /**
+   * @param fastVerification signatures of associated responses are verified locally by {@link SignatureVerifier}
+   */
+  private ConsumerManager newConsumerManager(ConsumerAssociationStore associations, boolean fastVerification) {
+    HttpTransport http = initTransport();
+    HttpFetcherFactory fetchers = http == null ? new HttpFetcherFactory() : http.fetcherFactory();
+    RealmVerifierFactory realmVerifiers = new RealmVerifierFactory(new YadisResolver(fetchers));
+    Discovery discovery = http == null ? new Discovery() : http.newDiscovery();
+    // the manager calls the provider to associate and to verify the responses in stateless mode. Discovery of the
+    // claimed identifiers is not monitored, as the identifiers are chosen by the users.
+    HttpFetcherFactory providerFetchers = health == null ? fetchers : health.monitor(fetchers, new Function<String, String>() {
+      public String apply(String url) {
+        return isProviderEndpoint(url) ? url : null;
+      }
+    });
+    // responses are verified by FastVerificationConsumerManager in all cases, so that nonces are recorded after signatures
+    ConsumerManager consumerManager = new FastVerificationConsumerManager(realmVerifiers, discovery, providerFetchers, fastVerification);
+    consumerManager.setAssociations(associations);
+    consumerManager.getRealmVerifier().setEnforceRpId(false);
+    return consumerManager;
+  }
+
+  @VisibleForTesting
+  ConsumerAssociationStore createAssociationStore() {
+    Preconditions.checkState(associationStores.size() <= 1, "Only one extension of type OpenIdAssociationStore can be installed");
+    if (!associationStores.isEmpty()) {
+      return associationStores.get(0);
+    }
+    String type = StringUtils.defaultIfEmpty(settings.getString(PROPERTY_ASSOCIATION_STORE), "memory");
+    if ("memory".equals(type)) {
+      return new InMemoryConsumerAssociationStore();
+    }
+    if ("file".equals(type)) {
+      String dir = settings.getString(FileAssociationStore.PROPERTY_DIRECTORY);
+      Preconditions.checkState(StringUtils.isNotBlank(dir), "Property " + FileAssociationStore.PROPERTY_DIRECTORY + " is missing");
+      return new FileAssociationStore(new File(dir));
+    }
+    if ("jdbc".equals(type)) {
+      return new JdbcAssociationStore(settings.getString(JdbcAssociationStore.PROPERTY_URL), settings.getString(JdbcAssociationStore.PROPERTY_DRIVER),
+        settings.getString(JdbcAssociationStore.PROPERTY_USER), settings.getString(JdbcAssociationStore.PROPERTY_PASSWORD));
+    }
+    throw new IllegalStateException("Unknown value of property " + PROPERTY_ASSOCIATION_STORE + ": " + type + ". Supported values are memory, file and jdbc");
   }
 
   AuthRequest createAuthenticationRequest() {
+    ensureInitialized();
+    metrics.loginStarted();
     try {
-      AuthRequest authReq = manager.authenticate(discoveryInfo, returnToUrl);
-      FetchRequest fetch = FetchRequest.createFetchRequest();
-      fetch.addAttribute(AX_ATTR_EMAIL, "http://schema.openid.net/contact/email", true);
-      fetch.addAttribute(AX_ATTR_FIRSTNAME, "http://axschema.org/namePerson/first", true);
-      fetch.addAttribute(AX_ATTR_LASTNAME, "http://axschema.org/namePerson/last", true);
-      authReq.addExtension(fetch);
-
-      SRegRequest sregReq = SRegRequest.createFetchRequest();
-      sregReq.addAttribute(SREG_ATTR_FULLNAME, true);
-      sregReq.addAttribute(SREG_ATTR_EMAIL, true);
-      authReq.addExtension(sregReq);
+      AuthRequest authReq = manager.authenticate(selectEndpoint(), returnToUrl);
+      authRequestTemplate.addAttributes(authReq);
 
       for (OpenIdExtension extension : extensions) {
-        LoggerFactory.getLogger(OpenIdClient.class).debug("Call {}#doOnRequest()", extension.getClass().getName());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Call {}#doOnRequest()", extension.getClass().getName());
+        }
         extension.doOnRequest(authReq);
       }
 
       return authReq;
 
+    } catch (ProviderUnavailableException e) {
+      throw e;
     } catch (Exception e) {
       throw new IllegalStateException("Fail to create OpenID authentication request", e);
     }
   }
 
+  /**
+   * URL of the provider login form. When no extension completes the request, the requested attributes
+   * are not rebuilt but appended from the precompiled template.
+   */
+  @VisibleForTesting
+  String createAuthenticationUrl() {
+    return createAuthenticationUrl(null);
+  }
+
+  /**
+   * @param response the response redirecting the browser. OpenID Connect adds the cookie that binds the login to the browser.
+   */
+  String createAuthenticationUrl(HttpServletResponse response) {
+    ensureInitialized();
+    if (oidc != null) {
+      return createOidcAuthenticationUrl(response);
+    }
+    if (!extensions.isEmpty()) {
+      return createAuthenticationRequest().getDestinationUrl(true);
+    }
+    metrics.loginStarted();
+    try {
+      return authRequestTemplate.destinationUrl(manager.authenticate(selectEndpoint(), returnToUrl));
+    } catch (ProviderUnavailableException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to create OpenID authentication request", e);
+    }
+  }
+
+  private String createOidcAuthenticationUrl(HttpServletResponse response) {
+    metrics.loginStarted();
+    if (health != null && !health.isAvailable(oidc.getIssuerUrl())) {
+      throw unavailable(oidc.getIssuerUrl());
+    }
+    try {
+      return oidc.authenticationUrl(response);
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to create OpenID Connect authentication request", e);
+    }
+  }
+
+  /**
+   * Structural checks of an OpenID 2.0 response, before its verification
+   *
+   * @return null if the response can be verified, else the reason of the rejection
+   */
+  String precheck(ParameterList responseParameters) {
+    return precheck == null ? null : precheck.check(responseParameters);
+  }
+
+  @VisibleForTesting
   UserDetails verify(String receivingUrl, ParameterList responseParameters) {
+    return verify(receivingUrl, responseParameters, null);
+  }
+
+  /**
+   * @param request the request of the browser. OpenID Connect responses are rejected if it does not carry the cookie
+   *                set by {@link #createAuthenticationUrl(HttpServletResponse)}.
+   */
+  UserDetails verify(String receivingUrl, ParameterList responseParameters, HttpServletRequest request) {
+    ensureInitialized();
+    if (oidc != null) {
+      return verifyOidc(responseParameters, request);
+    }
     VerificationResult verification;
     UserDetails user = null;
+    DiscoveryInformation endpoint = endpointOfResponse(responseParameters);
+    String opEndpoint = endpoint.getOPEndpoint().toString();
+    if (health != null && !isVerifiedLocally(responseParameters, opEndpoint) && !health.allowRequest(opEndpoint)) {
+      throw unavailable(opEndpoint);
+    }
+    long start = System.nanoTime();
     try {
-      verification = manager.verify(receivingUrl, responseParameters, discoveryInfo);
+      verification = manager.verify(receivingUrl, responseParameters, endpoint);
     } catch (Exception e) {
+      metrics.providerError();
       throw new IllegalStateException("Fail to verify OpenID request", e);
+    } finally {
+      metrics.record(OpenIdMetrics.PHASE_VERIFY, System.nanoTime() - start);
     }
 
     // the verified identifier is null if the verification failed
     Identifier verified = verification.getVerifiedId();
     if (verified == null) {
-      LoggerFactory.getLogger(OpenIdClient.class).warn("Fail to verify OpenId request: " + verification.getStatusMsg());
+      metrics.loginUnverified();
+      LOG.warn("Fail to verify OpenId request: " + verification.getStatusMsg());
     } else {
       AuthSuccess authSuccess = (AuthSuccess) verification.getAuthResponse();
       if (authSuccess == null) {
         throw new IllegalStateException("The OpenId response message is missing");
       }
-      boolean ok = true;
-      for (OpenIdExtension extension : extensions) {
-        ok &= extension.doVerifyResponse(authSuccess);
+      // each extension of the response is parsed at most once, then shared by the extensions and the mapping
+      OpenIdResponseExtensions extensions = new OpenIdResponseExtensions(authSuccess);
+      UserDetails cached = identityCache == null ? null : identityCache.get(verified.getIdentifier());
+      if (cached != null) {
+        // the assertion is valid, extensions already accepted the identity
+        metrics.identityCacheHit();
+        metrics.loginVerified();
+        user = cached;
+      } else if (extensionVerifier.verify(extensions)) {
+        long toUserStart = System.nanoTime();
+        user = toUser(userMapping, extensions);
+        metrics.record(OpenIdMetrics.PHASE_TO_USER, System.nanoTime() - toUserStart);
+        metrics.loginVerified();
+        if (user != null && identityCache != null) {
+          identityCache.put(verified.getIdentifier(), user);
+        }
+      } else {
+        metrics.loginRejectedByExtension();
       }
-      if (ok) {
-        user = toUser(authSuccess);
+      if (user != null) {
+        mapGroups(user, extensions);
       }
     }
     return user;
   }
 
+  /**
+   * The server reads the groups when it synchronizes the user, on the same request
+   */
+  private void mapGroups(UserDetails user, OpenIdResponseExtensions extensions) {
+    Set<String> groups;
+    try {
+      groups = userMapping.toGroups(extensions);
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to read openId response", e);
+    }
+    if (groups != null) {
+      userGroups.put(user.getName(), groups);
+    }
+  }
+
+  /**
+   * @return the groups mapped from the last response of the user, or null if unknown
+   */
+  Set<String> getGroups(String username) {
+    return username == null ? null : userGroups.get(username);
+  }
+
+  /**
+   * The authorization code is exchanged for an ID token, which is verified locally. Extensions are not called.
+   */
+  private UserDetails verifyOidc(ParameterList responseParameters, HttpServletRequest request) {
+    String issuer = oidc.getIssuerUrl();
+    if (health != null && !health.allowRequest(issuer)) {
+      throw unavailable(issuer);
+    }
+    Map<String, Object> claims;
+    long start = System.nanoTime();
+    try {
+      claims = oidc.verify(responseParameters, request);
+    } catch (Exception e) {
+      metrics.providerError();
+      throw new IllegalStateException("Fail to verify OpenID Connect response", e);
+    } finally {
+      metrics.record(OpenIdMetrics.PHASE_VERIFY, System.nanoTime() - start);
+    }
+    if (claims == null) {
+      metrics.loginUnverified();
+      return null;
+    }
+    long toUserStart = System.nanoTime();
+    UserDetails user = OidcEngine.toUser(claims);
+    metrics.record(OpenIdMetrics.PHASE_TO_USER, System.nanoTime() - toUserStart);
+    metrics.loginVerified();
+    return user;
+  }
 
   static UserDetails toUser(AuthSuccess authSuccess) {
+    return toUser(UserMapping.DEFAULT, new OpenIdResponseExtensions(authSuccess));
+  }
+
+  static UserDetails toUser(UserMapping mapping, OpenIdResponseExtensions extensions) {
     try {
-      String name = null;
-      String email = null;
-
-      SRegResponse sr = OpenIdUtils.getMessageAs(SRegResponse.class, authSuccess, SRegMessage.OPENID_NS_SREG);
-      if (sr != null) {
-        name = sr.getAttributeValue(SREG_ATTR_FULLNAME);
-        email = sr.getAttributeValue(SREG_ATTR_EMAIL);
-      }
-      FetchResponse fr = OpenIdUtils.getMessageAs(FetchResponse.class, authSuccess, AxMessage.OPENID_NS_AX);
-      if (fr != null) {
-        if (name == null) {
-          String first = fr.getAttributeValue(AX_ATTR_FIRSTNAME);
-          String last = fr.getAttributeValue(AX_ATTR_LASTNAME);
-          if (first != null && last != null) {
-            name = first + " " + last;
-          }
-        }
-        if (email == null) {
-          email = fr.getAttributeValue(AX_ATTR_EMAIL);
-        }
-      }
-      UserDetails user = null;
-      if (!Strings.isNullOrEmpty(name)) {
-        user = new UserDetails();
-        user.setName(name);
-        user.setEmail(email);
-      }
-      return user;
+      return mapping.toUser(extensions);
     } catch (Exception e) {
       throw new IllegalStateException("Fail to read openId response", e);
     }
   }
+
 }
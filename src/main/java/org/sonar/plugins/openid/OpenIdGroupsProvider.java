@@ -0,0 +1,44 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.sonar.api.security.ExternalGroupsProvider;
+
+import java.util.Collection;
+
+/**
+ * Groups mapped from the AX attribute declared by the property sonar.openid.mapping.groups
+ */
+public final class OpenIdGroupsProvider extends ExternalGroupsProvider {
+
+  private final OpenIdClient openIdClient;
+
+  public OpenIdGroupsProvider(OpenIdClient openIdClient) {
+    this.openIdClient = openIdClient;
+  }
+
+  /**
+   * @return null if groups are not mapped or if the user did not log in since the server started
+   */
+  @Override
+  public Collection<String> doGetGroups(String username) {
+    return openIdClient.getGroups(username);
+  }
+}
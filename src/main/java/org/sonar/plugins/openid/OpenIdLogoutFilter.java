@@ -36,10 +36,20 @@ public final class OpenIdLogoutFilter extends ServletFilter {
   static final String PROPERTY_PROVIDER_LOGOUT_URL = "sonar.openid.providerLogoutUrl";
   static final Logger LOG = LoggerFactory.getLogger(OpenIdLogoutFilter.class);
 
-  private final Settings settings;
+  private final String providerLogoutUrl;
+  private final OpenIdClient openIdClient;
 
   public OpenIdLogoutFilter(Settings settings) {
-    this.settings = settings;
+    this(settings, null);
+  }
+
+  /**
+   * @param openIdClient when not null, the logout URL is read from its current configuration, so that it is
+   * reloaded with the other OpenID properties
+   */
+  public OpenIdLogoutFilter(Settings settings, OpenIdClient openIdClient) {
+    this.providerLogoutUrl = openIdClient == null ? settings.getString(PROPERTY_PROVIDER_LOGOUT_URL) : null;
+    this.openIdClient = openIdClient;
   }
 
   @Override
@@ -57,9 +67,12 @@ public final class OpenIdLogoutFilter extends ServletFilter {
   }
 
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain) throws IOException, ServletException {
+    HttpSession session = ((HttpServletRequest) request).getSession(false);
+    if (session != null && openIdClient != null) {
+      openIdClient.invalidateIdentity((String) session.getAttribute(OpenIdValidationFilter.CLAIMED_ID_SESSION_ATTRIBUTE));
+    }
     String providerLogoutUrl = getLogoutUrl();
     if (!Strings.isNullOrEmpty(providerLogoutUrl)) {
-      HttpSession session = ((HttpServletRequest) request).getSession(false);
       if (session != null) {
         session.invalidate();
       }
@@ -70,7 +83,7 @@ public final class OpenIdLogoutFilter extends ServletFilter {
   }
 
   private String getLogoutUrl() {
-    return settings.getString(PROPERTY_PROVIDER_LOGOUT_URL);
+    return openIdClient == null ? providerLogoutUrl : openIdClient.getProviderLogoutUrl();
   }
 
   public void destroy() {
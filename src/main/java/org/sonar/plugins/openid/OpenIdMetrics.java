@@ -0,0 +1,276 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the login path. Recording does not lock.
+ */
+public class OpenIdMetrics implements OpenIdMetricsMXBean {
+
+  static final String OBJECT_NAME = "org.sonar.plugins.openid:type=OpenIdMetrics";
+
+  static final String PHASE_DISCOVERY = "discovery";
+  static final String PHASE_ASSOCIATION = "association";
+  static final String PHASE_VERIFY = "verify";
+  static final String PHASE_TO_USER = "toUser";
+  static final String PHASE_TOKEN = "token";
+  static final String PHASE_KEYS = "keys";
+  static final String PHASE_EXTENSION_PREFIX = "extension.";
+
+  private final AtomicLong loginsStarted = new AtomicLong();
+  private final AtomicLong loginsVerified = new AtomicLong();
+  private final AtomicLong loginsUnverified = new AtomicLong();
+  private final AtomicLong loginsRejectedByExtension = new AtomicLong();
+  private final AtomicLong providerErrors = new AtomicLong();
+  private final AtomicLong identityCacheHits = new AtomicLong();
+  private final AtomicLong providerUnavailable = new AtomicLong();
+  private final AtomicLong requestsThrottledByClientLimit = new AtomicLong();
+  private final AtomicLong requestsThrottledByGlobalLimit = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> responsesRejected = new ConcurrentHashMap<String, AtomicLong>();
+  private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+  private volatile BucketedNonceVerifier nonceVerifier;
+
+  void loginStarted() {
+    loginsStarted.incrementAndGet();
+  }
+
+  void loginVerified() {
+    loginsVerified.incrementAndGet();
+  }
+
+  void loginUnverified() {
+    loginsUnverified.incrementAndGet();
+  }
+
+  void loginRejectedByExtension() {
+    loginsRejectedByExtension.incrementAndGet();
+  }
+
+  void providerError() {
+    providerErrors.incrementAndGet();
+  }
+
+  void identityCacheHit() {
+    identityCacheHits.incrementAndGet();
+  }
+
+  void providerUnavailable() {
+    providerUnavailable.incrementAndGet();
+  }
+
+  void requestThrottledByClientLimit() {
+    requestsThrottledByClientLimit.incrementAndGet();
+  }
+
+  void requestThrottledByGlobalLimit() {
+    requestsThrottledByGlobalLimit.incrementAndGet();
+  }
+
+  void responseRejected(String reason) {
+    AtomicLong counter = responsesRejected.get(reason);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = responsesRejected.putIfAbsent(reason, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  void record(String phase, long nanos) {
+    histogram(phase).record(nanos);
+  }
+
+  LatencyHistogram histogram(String phase) {
+    LatencyHistogram histogram = latencies.get(phase);
+    if (histogram == null) {
+      LatencyHistogram created = new LatencyHistogram();
+      histogram = latencies.putIfAbsent(phase, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+
+  void setNonceVerifier(BucketedNonceVerifier nonceVerifier) {
+    this.nonceVerifier = nonceVerifier;
+  }
+
+  public long getLoginsStarted() {
+    return loginsStarted.get();
+  }
+
+  public long getLoginsVerified() {
+    return loginsVerified.get();
+  }
+
+  public long getLoginsUnverified() {
+    return loginsUnverified.get();
+  }
+
+  public long getLoginsRejectedByExtension() {
+    return loginsRejectedByExtension.get();
+  }
+
+  public long getProviderErrors() {
+    return providerErrors.get();
+  }
+
+  public long getIdentityCacheHits() {
+    return identityCacheHits.get();
+  }
+
+  public long getProviderUnavailable() {
+    return providerUnavailable.get();
+  }
+
+  public long getRequestsThrottledByClientLimit() {
+    return requestsThrottledByClientLimit.get();
+  }
+
+  public long getRequestsThrottledByGlobalLimit() {
+    return requestsThrottledByGlobalLimit.get();
+  }
+
+  public Map<String, Long> getResponsesRejected() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : responsesRejected.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+
+  public Map<String, Long> getLatencyCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getCount());
+    }
+    return result;
+  }
+
+  public Map<String, Double> getLatencyMeanMillis() {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getMeanMillis());
+    }
+    return result;
+  }
+
+  public Map<String, Double> getLatencyP99Millis() {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getPercentileMillis(0.99));
+    }
+    return result;
+  }
+
+  public Map<String, Double> getLatencyMaxMillis() {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getMaxMillis());
+    }
+    return result;
+  }
+
+  public String getText() {
+    StringBuilder sb = new StringBuilder();
+    appendLine(sb, "openid_logins_started", getLoginsStarted());
+    appendLine(sb, "openid_logins_verified", getLoginsVerified());
+    appendLine(sb, "openid_logins_unverified", getLoginsUnverified());
+    appendLine(sb, "openid_logins_rejected_by_extension", getLoginsRejectedByExtension());
+    appendLine(sb, "openid_provider_errors", getProviderErrors());
+    appendLine(sb, "openid_identity_cache_hits", getIdentityCacheHits());
+    appendLine(sb, "openid_provider_unavailable", getProviderUnavailable());
+    appendLine(sb, "openid_requests_throttled{limit=\"client\"}", getRequestsThrottledByClientLimit());
+    appendLine(sb, "openid_requests_throttled{limit=\"global\"}", getRequestsThrottledByGlobalLimit());
+    for (Map.Entry<String, Long> entry : getResponsesRejected().entrySet()) {
+      appendLine(sb, "openid_responses_rejected{reason=\"" + entry.getKey() + "\"}", entry.getValue());
+    }
+    BucketedNonceVerifier nonces = nonceVerifier;
+    if (nonces != null) {
+      appendLine(sb, "openid_nonces", nonces.size());
+      appendLine(sb, "openid_nonces_rejected{reason=\"seen\"}", nonces.getRejectedAsSeen());
+      appendLine(sb, "openid_nonces_rejected{reason=\"too_old\"}", nonces.getRejectedAsTooOld());
+      appendLine(sb, "openid_nonces_rejected{reason=\"invalid\"}", nonces.getRejectedAsInvalid());
+      appendLine(sb, "openid_nonces_rejected{reason=\"full\"}", nonces.getRejectedAsFull());
+    }
+    for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(latencies).entrySet()) {
+      String phase = "{phase=\"" + entry.getKey() + "\"}";
+      LatencyHistogram histogram = entry.getValue();
+      appendLine(sb, "openid_latency_count" + phase, histogram.getCount());
+      appendLine(sb, "openid_latency_mean_ms" + phase, histogram.getMeanMillis());
+      appendLine(sb, "openid_latency_p50_ms" + phase, histogram.getPercentileMillis(0.5));
+      appendLine(sb, "openid_latency_p99_ms" + phase, histogram.getPercentileMillis(0.99));
+      appendLine(sb, "openid_latency_max_ms" + phase, histogram.getMaxMillis());
+    }
+    return sb.toString();
+  }
+
+  private static void appendLine(StringBuilder sb, String key, long value) {
+    sb.append(key).append(' ').append(value).append('\n');
+  }
+
+  private static void appendLine(StringBuilder sb, String key, double value) {
+    sb.append(key).append(' ').append(String.format(Locale.ENGLISH, "%.3f", value)).append('\n');
+  }
+
+  /**
+   * Registers the metrics in the platform MBean server. Metrics previously registered by another
+   * instance are replaced.
+   */
+  void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+    } catch (Exception e) {
+      LoggerFactory.getLogger(OpenIdMetrics.class).warn("Fail to register OpenID metrics in JMX", e);
+    }
+  }
+
+  void unregister() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LoggerFactory.getLogger(OpenIdMetrics.class).warn("Fail to unregister OpenID metrics from JMX", e);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.net.InetAddresses;
+import org.sonar.api.config.Settings;
+import org.sonar.api.web.ServletFilter;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Text endpoint of {@link OpenIdMetrics}. Disabled by default, enabled by the property sonar.openid.metrics.endpoint.
+ * <p>The servlet filters of Sonar do not know the logged-in user, so administrators can not be recognized. The
+ * metrics are served only to the local host, other clients get the status 403. Requests forwarded by a reverse proxy
+ * are not considered as local, even if the proxy runs on the same host.</p>
+ */
+public final class OpenIdMetricsFilter extends ServletFilter {
+
+  static final String PROPERTY_ENABLED = "sonar.openid.metrics.endpoint";
+
+  private static final String[] FORWARDING_HEADERS = {"X-Forwarded-For", "X-Real-IP", "Forwarded"};
+
+  private final Settings settings;
+  private final OpenIdClient openIdClient;
+  private boolean enabled;
+
+  public OpenIdMetricsFilter(Settings settings, OpenIdClient openIdClient) {
+    this.settings = settings;
+    this.openIdClient = openIdClient;
+  }
+
+  @Override
+  public UrlPattern doGetPattern() {
+    return UrlPattern.create("/openid/metrics");
+  }
+
+  public void init(FilterConfig filterConfig) throws ServletException {
+    enabled = settings.getBoolean(PROPERTY_ENABLED);
+  }
+
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain) throws IOException, ServletException {
+    if (enabled) {
+      HttpServletResponse httpResponse = (HttpServletResponse) response;
+      if (!isLocal((HttpServletRequest) request)) {
+        httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+        return;
+      }
+      httpResponse.setContentType("text/plain; charset=UTF-8");
+      httpResponse.getWriter().write(openIdClient.getMetrics().getText());
+    } else {
+      filterChain.doFilter(request, response);
+    }
+  }
+
+  @VisibleForTesting
+  static boolean isLocal(HttpServletRequest request) {
+    for (String header : FORWARDING_HEADERS) {
+      if (request.getHeader(header) != null) {
+        return false;
+      }
+    }
+    String address = request.getRemoteAddr();
+    return address != null && InetAddresses.isInetAddress(address) && InetAddresses.forString(address).isLoopbackAddress();
+  }
+
+  public void destroy() {
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import java.util.Map;
+
+/**
+ * Metrics of the login path, exported by JMX as <code>org.sonar.plugins.openid:type=OpenIdMetrics</code>.
+ * Latencies are grouped by phase: discovery, association, verify, toUser and extension.&lt;class name&gt;.
+ */
+public interface OpenIdMetricsMXBean {
+
+  long getLoginsStarted();
+
+  long getLoginsVerified();
+
+  long getLoginsUnverified();
+
+  long getLoginsRejectedByExtension();
+
+  long getProviderErrors();
+
+  long getIdentityCacheHits();
+
+  long getProviderUnavailable();
+
+  long getRequestsThrottledByClientLimit();
+
+  long getRequestsThrottledByGlobalLimit();
+
+  /**
+   * Responses rejected by the structural checks done before verification, by reason
+   */
+  Map<String, Long> getResponsesRejected();
+
+  Map<String, Long> getLatencyCounts();
+
+  Map<String, Double> getLatencyMeanMillis();
+
+  Map<String, Double> getLatencyP99Millis();
+
+  Map<String, Double> getLatencyMaxMillis();
+
+  /**
+   * All the metrics, in the format of the text endpoint /openid/metrics
+   */
+  String getText();
+}
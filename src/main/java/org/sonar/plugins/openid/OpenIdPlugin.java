@@ -53,6 +53,8 @@ public final class OpenIdPlugin extends SonarPlugin {
         extensions.add(OpenIdValidationFilter.class);
         extensions.add(OpenIdAuthenticationFilter.class);
         extensions.add(OpenIdLogoutFilter.class);
+        extensions.add(OpenIdMetricsFilter.class);
+        extensions.add(OpenIdPropertyChangeHandler.class);
       }
       return extensions;
     }
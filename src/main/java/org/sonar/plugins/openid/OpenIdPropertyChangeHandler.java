@@ -0,0 +1,53 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.sonar.api.config.GlobalPropertyChangeHandler;
+import org.sonar.api.config.Settings;
+
+/**
+ * Reloads the OpenID configuration when a property sonar.openid.* is changed in the web console, so that the
+ * server does not need to be restarted.
+ */
+public final class OpenIdPropertyChangeHandler extends GlobalPropertyChangeHandler {
+
+  private static final String PREFIX = "sonar.openid.";
+
+  private final Settings settings;
+  private final OpenIdClient openIdClient;
+
+  public OpenIdPropertyChangeHandler(Settings settings, OpenIdClient openIdClient) {
+    this.settings = settings;
+    this.openIdClient = openIdClient;
+  }
+
+  @Override
+  public void onChange(PropertyChange change) {
+    if (change.getKey() != null && change.getKey().startsWith(PREFIX)) {
+      // the settings of the server may be updated after the handlers are notified
+      if (change.getNewValue() == null) {
+        settings.removeProperty(change.getKey());
+      } else {
+        settings.setProperty(change.getKey(), change.getNewValue());
+      }
+      openIdClient.reload();
+    }
+  }
+}
@@ -20,6 +20,7 @@
 package org.sonar.plugins.openid;
 
 import org.sonar.api.security.Authenticator;
+import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.api.security.ExternalUsersProvider;
 import org.sonar.api.security.SecurityRealm;
 
@@ -27,6 +28,16 @@ public final class OpenIdSecurityRealm extends SecurityRealm {
 
   public static final String KEY = "openid";
 
+  private final OpenIdClient openIdClient;
+
+  public OpenIdSecurityRealm() {
+    this(null);
+  }
+
+  public OpenIdSecurityRealm(OpenIdClient openIdClient) {
+    this.openIdClient = openIdClient;
+  }
+
   @Override
   public Authenticator doGetAuthenticator() {
     return new OpenIdAuthenticator();
@@ -37,6 +48,11 @@ public final class OpenIdSecurityRealm extends SecurityRealm {
     return new OpenIdUserProvider();
   }
 
+  @Override
+  public ExternalGroupsProvider getGroupsProvider() {
+    return openIdClient == null ? null : new OpenIdGroupsProvider(openIdClient);
+  }
+
   @Override
   public String getName() {
     return KEY;
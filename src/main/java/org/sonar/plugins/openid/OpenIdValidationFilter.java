@@ -20,72 +20,204 @@
 package org.sonar.plugins.openid;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import org.apache.commons.lang.StringUtils;
 import org.openid4java.message.ParameterList;
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Settings;
 import org.sonar.api.security.UserDetails;
 import org.sonar.api.web.ServletFilter;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
 
 /**
  * Validate tokens forwarded by the OpenID provider after the request initiated by {@link OpenIdAuthenticationFilter}.
  * If authentication is successful, then object of type UserDetails is added to request attributes.
+ * <p>The number of verifications in progress, which can request the provider, is bounded, so that a slow provider
+ * does not hold all the threads of the container. Further responses are rejected with the status 503.</p>
+ * <p>Requests over the rate limits of {@link LoginRateLimiter} are rejected before the response is parsed. Malformed
+ * responses are rejected by {@link ResponsePrecheck} before the verification.</p>
  */
 public final class OpenIdValidationFilter extends ServletFilter {
 
   static final String USER_ATTRIBUTE = "openid_user";
+  static final String CLAIMED_ID_SESSION_ATTRIBUTE = "openid_claimed_id";
+
+  /**
+   * Maximum number of verifications in progress, 0 for unlimited
+   */
+  static final String PROPERTY_MAX_IN_FLIGHT = "sonar.openid.validation.maxInFlight";
+  static final int DEFAULT_MAX_IN_FLIGHT = 200;
+
+  private static final Logger LOG = LoggerFactory.getLogger(OpenIdValidationFilter.class);
+
+  private final Settings settings;
   private OpenIdClient openIdClient;
+  private Semaphore inFlight;
 
   public OpenIdValidationFilter(OpenIdClient openIdClient) {
+    this(new Settings(), openIdClient);
+  }
+
+  public OpenIdValidationFilter(Settings settings, OpenIdClient openIdClient) {
+    this.settings = settings;
     this.openIdClient = openIdClient;
   }
 
   @Override
   public UrlPattern doGetPattern() {
-    return UrlPattern.create("/openid/validate");
+    // responses to the providers declared in sonar.openid.providers are sent to /openid/validate/<key>
+    return UrlPattern.create(OpenIdClient.VALIDATE_PATH + "/*");
   }
 
   public void init(FilterConfig filterConfig) throws ServletException {
+    int maxInFlight = settings.hasKey(PROPERTY_MAX_IN_FLIGHT) ? settings.getInt(PROPERTY_MAX_IN_FLIGHT) : DEFAULT_MAX_IN_FLIGHT;
+    Preconditions.checkArgument(maxInFlight >= 0, "Property " + PROPERTY_MAX_IN_FLIGHT + " must be positive");
+    inFlight = maxInFlight == 0 ? null : new Semaphore(maxInFlight);
   }
 
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain) throws IOException, ServletException {
-    ParameterList responseParameters = new ParameterList(request.getParameterMap());
     HttpServletRequest httpRequest = (HttpServletRequest) request;
     HttpServletResponse httpResponse = (HttpServletResponse) response;
 
-    String receivingURL = requestUrl(httpRequest);
+    if (!admit(openIdClient, httpRequest, httpResponse)) {
+      return;
+    }
+    OpenIdClient client = openIdClient.providerOfResponse(httpRequest);
+    if (client == null) {
+      LOG.warn("Unknown OpenID provider: " + httpRequest.getRequestURI());
+      httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    String queryString = httpRequest.getQueryString();
+    ParameterList responseParameters;
+    try {
+      responseParameters = responseParameters(client, httpRequest, queryString);
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Invalid OpenID response: " + e.getMessage());
+      httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    String rejection = client.precheck(responseParameters);
+    if (rejection != null) {
+      LOG.warn("Invalid OpenID response, rejected before verification: " + rejection);
+      httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    String receivingUrl = receivingUrl(client, queryString);
+    if (inFlight != null && !inFlight.tryAcquire()) {
+      LOG.warn("Too many OpenID verifications in progress, request is rejected");
+      httpResponse.setHeader("Retry-After", "1");
+      httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
     UserDetails user;
     try {
-      user = openIdClient.verify(receivingURL, responseParameters);
+      user = verify(client, receivingUrl, responseParameters, httpRequest);
+    } catch (ProviderUnavailableException e) {
+      sendUnavailable(httpResponse, e);
+      return;
+    } finally {
+      if (inFlight != null) {
+        inFlight.release();
+      }
+    }
+    complete(client, user, httpRequest, httpResponse, filterChain);
+  }
+
+  /**
+   * Cheap rejection of the requests over the rate limits, before any OpenID processing
+   *
+   * @return false if the request is rejected
+   */
+  static boolean admit(OpenIdClient client, HttpServletRequest request, HttpServletResponse response) throws IOException {
+    LoginRateLimiter rateLimiter = client.getRateLimiter();
+    LoginRateLimiter.Rejection rejection = rateLimiter == null ? null : rateLimiter.admit(request);
+    if (rejection == null) {
+      return true;
+    }
+    response.setHeader("Retry-After", String.valueOf(rejection.getRetryAfterSeconds()));
+    response.sendError(rejection.getStatus());
+    return false;
+  }
+
+  /**
+   * Fast failure when the circuits of the provider are open
+   */
+  static void sendUnavailable(HttpServletResponse response, ProviderUnavailableException e) throws IOException {
+    LOG.warn(e.getMessage());
+    response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
+  /**
+   * Responses redirected by the browser are parsed from the query string. Responses posted by a form use the
+   * parameters decoded by the container.
+   */
+  private static ParameterList responseParameters(OpenIdClient client, HttpServletRequest request, String queryString) {
+    if (queryString == null || "POST".equalsIgnoreCase(request.getMethod())) {
+      return new ParameterList(request.getParameterMap());
+    }
+    return client.isOidc() ? ResponseParameters.parse(queryString, OidcEngine.RESPONSE_PARAMETERS) :
+      ResponseParameters.parse(queryString, Collections.<String>emptySet(), Math.max(ResponseParameters.MAX_PARAMETERS, client.getMaxResponseParameters()));
+  }
+
+  private static UserDetails verify(OpenIdClient client, String receivingUrl, ParameterList responseParameters, HttpServletRequest request) {
+    try {
+      return client.verify(receivingUrl, responseParameters, request);
+    } catch (ProviderUnavailableException e) {
+      throw e;
     } catch (RuntimeException e) {
-      LoggerFactory.getLogger(OpenIdValidationFilter.class).error("Fail to verify OpenId request", e);
+      LOG.error("Fail to verify OpenId request", e);
       throw e;
     }
+  }
+
+  private static void complete(OpenIdClient client, UserDetails user, HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+    throws IOException, ServletException {
     if (user == null) {
-      httpResponse.sendRedirect("/openid/unauthorized");
+      response.sendRedirect("/openid/unauthorized");
     } else {
       request.setAttribute(USER_ATTRIBUTE, user);
+      if (client.isIdentityCacheEnabled()) {
+        // the verified identity is invalidated on logout
+        HttpSession session = request.getSession(true);
+        if (session != null) {
+          session.setAttribute(CLAIMED_ID_SESSION_ATTRIBUTE, request.getParameter("openid.claimed_id"));
+        }
+      }
       filterChain.doFilter(request, response);
     }
   }
 
   @VisibleForTesting
   String requestUrl(HttpServletRequest httpRequest) {
-    StringBuilder receivingURL = new StringBuilder(openIdClient.getReturnToUrl());
-    String queryString = httpRequest.getQueryString();
-    if (StringUtils.isNotEmpty(queryString)) {
-      // the return-to url does not contain ? (see OpenIdClient#initReturnToUrl()
-      receivingURL.append("?").append(queryString);
+    return receivingUrl(openIdClient.providerOfResponse(httpRequest), httpRequest.getQueryString());
+  }
+
+  private static String receivingUrl(OpenIdClient client, String queryString) {
+    String returnToUrl = client.getReturnToUrl();
+    if (StringUtils.isEmpty(queryString)) {
+      return returnToUrl;
     }
-    return receivingURL.toString();
+    // the return-to url does not contain ? (see OpenIdClient#initReturnToUrl()
+    return new StringBuilder(returnToUrl.length() + 1 + queryString.length()).append(returnToUrl).append('?').append(queryString).toString();
+  }
+
+  @VisibleForTesting
+  int getAvailableInFlight() {
+    return inFlight == null ? 0 : inFlight.availablePermits();
   }
 
   public void destroy() {
   }
 
 
-}
\ No newline at end of file
+}
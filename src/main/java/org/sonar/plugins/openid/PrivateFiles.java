@@ -0,0 +1,107 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Files and directories that only the user of the server can access, such as the snapshot of discovery or the
+ * MAC keys of associations. Permissions are set at creation, so that the files are never readable by other users.
+ * Permissions are not checked on file systems that do not support POSIX attributes.
+ */
+final class PrivateFiles {
+
+  private static final Set<PosixFilePermission> OTHERS = EnumSet.of(
+    PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE,
+    PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE);
+
+  private PrivateFiles() {
+    // only static methods
+  }
+
+  /**
+   * Creates the directory and its missing parents with the permissions rwx------. Does nothing if the directory exists.
+   */
+  static void createDirectory(File dir) throws IOException {
+    if (dir != null && !dir.isDirectory()) {
+      if (isPosix()) {
+        Files.createDirectories(dir.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      } else {
+        Files.createDirectories(dir.toPath());
+      }
+    }
+  }
+
+  /**
+   * Creates the file with the permissions rw-------
+   *
+   * @throws java.nio.file.FileAlreadyExistsException if the file exists
+   */
+  static void createFile(File file) throws IOException {
+    if (isPosix()) {
+      Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createFile(file.toPath());
+      file.setReadable(false, false);
+      file.setWritable(false, false);
+      file.setReadable(true, true);
+      file.setWritable(true, true);
+    }
+  }
+
+  /**
+   * @return true if the file is owned by the user of the server and can not be modified by other users
+   */
+  static boolean isNotWritableByOthers(File file) throws IOException {
+    if (file == null || !isPosix()) {
+      return true;
+    }
+    Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file.toPath());
+    return isOwned(file) && !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+  }
+
+  /**
+   * @return true if the file is owned by the user of the server and other users have no permissions on it
+   */
+  static boolean isNotAccessibleByOthers(File file) throws IOException {
+    if (file == null || !isPosix()) {
+      return true;
+    }
+    Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+    permissions.addAll(Files.getPosixFilePermissions(file.toPath()));
+    permissions.retainAll(OTHERS);
+    return isOwned(file) && permissions.isEmpty();
+  }
+
+  private static boolean isOwned(File file) throws IOException {
+    return System.getProperty("user.name").equals(Files.getOwner(file.toPath()).getName());
+  }
+
+  private static boolean isPosix() {
+    return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.inject.Provider;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.util.AbstractHttpFetcher;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breakers of the endpoints of the provider. After a number of consecutive failures, the circuit of the
+ * endpoint opens and its requests fail fast, without waiting for network timeouts. When the open delay is elapsed,
+ * a single request is allowed as a probe: the circuit closes if it succeeds, else it opens again. If the result
+ * of a probe is never reported, another probe is allowed after the delay.
+ * <p>Results are recorded by the HTTP fetchers of the calls to the provider, see {@link #monitor(HttpFetcherFactory, Function)}.
+ * Only the calls that can not reach the endpoint, time out or get a 5xx status are failures, so that invalid responses
+ * sent by users do not open the circuit.</p>
+ */
+class ProviderHealth {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ProviderHealth.class);
+
+  static final String PROPERTY_FAILURE_THRESHOLD = "sonar.openid.circuitBreaker.failureThreshold";
+  static final String PROPERTY_OPEN_SECONDS = "sonar.openid.circuitBreaker.openSeconds";
+  static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  static final long DEFAULT_OPEN_SECONDS = 30L;
+
+  private static final int SERVER_ERROR = 500;
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+  private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+  ProviderHealth(int failureThreshold, long openSeconds) {
+    Preconditions.checkArgument(failureThreshold > 0, "Failure threshold of circuit breaker must be positive");
+    Preconditions.checkArgument(openSeconds > 0, "Open delay of circuit breaker must be positive");
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openSeconds * 1000L;
+  }
+
+  long getOpenSeconds() {
+    return openMillis / 1000L;
+  }
+
+  /**
+   * @return false if the circuit of the endpoint is open. True if closed, or if the request is the probe of a half-open circuit.
+   */
+  boolean allowRequest(String endpoint) {
+    Circuit circuit = circuit(endpoint);
+    if (circuit.state == State.CLOSED) {
+      return true;
+    }
+    synchronized (circuit) {
+      long now = currentTimeMillis();
+      if (circuit.state == State.CLOSED) {
+        return true;
+      }
+      if (now >= circuit.retryAt) {
+        circuit.state = State.HALF_OPEN;
+        circuit.retryAt = now + openMillis;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Unlike {@link #allowRequest(String)}, does not use the probe of the circuit. The login form is sent to an endpoint
+   * which delay is elapsed, so that the verification of the response can be the probe.
+   *
+   * @return true if the circuit of the endpoint is closed or if its open delay is elapsed
+   */
+  boolean isAvailable(String endpoint) {
+    Circuit circuit = circuits.get(endpoint);
+    return circuit == null || circuit.state == State.CLOSED || currentTimeMillis() >= circuit.retryAt;
+  }
+
+  /**
+   * @return the first available endpoint, or null if the circuits of all the endpoints are open
+   */
+  DiscoveryInformation select(List<DiscoveryInformation> endpoints) {
+    for (DiscoveryInformation endpoint : endpoints) {
+      if (isAvailable(endpoint.getOPEndpoint().toString())) {
+        return endpoint;
+      }
+    }
+    return null;
+  }
+
+  void recordSuccess(String endpoint) {
+    Circuit circuit = circuit(endpoint);
+    if (circuit.state == State.CLOSED && circuit.failures == 0) {
+      return;
+    }
+    synchronized (circuit) {
+      if (circuit.state != State.CLOSED) {
+        LOG.info("OpenID endpoint " + endpoint + " is available again");
+      }
+      circuit.state = State.CLOSED;
+      circuit.failures = 0;
+    }
+  }
+
+  void recordFailure(String endpoint) {
+    Circuit circuit = circuit(endpoint);
+    synchronized (circuit) {
+      circuit.failures++;
+      if (circuit.state == State.HALF_OPEN || (circuit.state == State.CLOSED && circuit.failures >= failureThreshold)) {
+        LOG.warn("OpenID endpoint " + endpoint + " is unavailable after " + circuit.failures + " failures, requests are rejected during " + getOpenSeconds() + "s");
+        circuit.state = State.OPEN;
+        circuit.retryAt = currentTimeMillis() + openMillis;
+      }
+    }
+  }
+
+  /**
+   * @param circuits the circuit of the URL of a call, or null if the URL is not an endpoint of the provider
+   */
+  HttpFetcherFactory monitor(final HttpFetcherFactory fetchers, final Function<String, String> circuits) {
+    return new HttpFetcherFactory(new Provider<HttpFetcher>() {
+      public HttpFetcher get() {
+        return monitor(fetchers.createFetcher(new HttpRequestOptions()), circuits);
+      }
+    });
+  }
+
+  /**
+   * @param circuits the circuit of the URL of a call, or null if the URL is not an endpoint of the provider
+   */
+  HttpFetcher monitor(HttpFetcher fetcher, Function<String, String> circuits) {
+    return new MonitoredFetcher(fetcher, circuits);
+  }
+
+  State getState(String endpoint) {
+    Circuit circuit = circuits.get(endpoint);
+    return circuit == null ? State.CLOSED : circuit.state;
+  }
+
+  private Circuit circuit(String endpoint) {
+    Circuit circuit = circuits.get(endpoint);
+    if (circuit == null) {
+      Circuit created = new Circuit();
+      circuit = circuits.putIfAbsent(endpoint, created);
+      if (circuit == null) {
+        circuit = created;
+      }
+    }
+    return circuit;
+  }
+
+  @VisibleForTesting
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  private final class MonitoredFetcher extends AbstractHttpFetcher {
+    private final HttpFetcher fetcher;
+    private final Function<String, String> circuits;
+
+    private MonitoredFetcher(HttpFetcher fetcher, Function<String, String> circuits) {
+      this.fetcher = fetcher;
+      this.circuits = circuits;
+    }
+
+    @Override
+    public HttpResponse get(String url, HttpRequestOptions options) throws IOException {
+      String circuit = circuits.apply(url);
+      try {
+        return record(circuit, fetcher.get(url, options));
+      } catch (IOException e) {
+        recordIoFailure(circuit);
+        throw e;
+      }
+    }
+
+    @Override
+    public HttpResponse head(String url, HttpRequestOptions options) throws IOException {
+      String circuit = circuits.apply(url);
+      try {
+        return record(circuit, fetcher.head(url, options));
+      } catch (IOException e) {
+        recordIoFailure(circuit);
+        throw e;
+      }
+    }
+
+    @Override
+    public HttpResponse post(String url, Map<String, String> parameters, HttpRequestOptions options) throws IOException {
+      String circuit = circuits.apply(url);
+      try {
+        return record(circuit, fetcher.post(url, parameters, options));
+      } catch (IOException e) {
+        recordIoFailure(circuit);
+        throw e;
+      }
+    }
+
+    private HttpResponse record(String circuit, HttpResponse response) {
+      if (circuit != null) {
+        if (response.getStatusCode() >= SERVER_ERROR) {
+          recordFailure(circuit);
+        } else {
+          recordSuccess(circuit);
+        }
+      }
+      return response;
+    }
+
+    /**
+     * Connection refused or reset, and timeouts
+     */
+    private void recordIoFailure(String circuit) {
+      if (circuit != null) {
+        recordFailure(circuit);
+      }
+    }
+  }
+
+  private static final class Circuit {
+    private volatile State state = State.CLOSED;
+    private volatile int failures = 0;
+    private long retryAt;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Parser of the parameters of the response sent by the provider to /openid/validate. The query string is read
+ * once, without building the map of all the request parameters. Only the parameters openid.* are kept, plus the
+ * parameters of OpenID Connect responses when requested. Values that are not encoded are not copied again by a decoder.
+ */
+final class ResponseParameters {
+
+  static final int MAX_QUERY_LENGTH = 32768;
+  static final int MAX_PARAMETERS = 256;
+  /**
+   * Length of the query string allowed for each parameter when the number of parameters is raised
+   */
+  static final int MAX_LENGTH_PER_PARAMETER = MAX_QUERY_LENGTH / MAX_PARAMETERS;
+
+  private static final String PREFIX = "openid.";
+  private static final String CHARSET = "UTF-8";
+
+  private ResponseParameters() {
+    // only static methods
+  }
+
+  /**
+   * @throws IllegalArgumentException if the query string is too long, has too many parameters, has
+   * duplicated openid parameters or is badly encoded
+   */
+  static ParameterList parse(String queryString) {
+    return parse(queryString, Collections.<String>emptySet());
+  }
+
+  /**
+   * @param names the parameters to keep in addition to openid.*
+   * @throws IllegalArgumentException if the query string is too long, has too many parameters, has
+   * duplicated kept parameters or is badly encoded
+   */
+  static ParameterList parse(String queryString, Set<String> names) {
+    return parse(queryString, names, MAX_PARAMETERS);
+  }
+
+  /**
+   * @param maxParameters maximum number of parameters, at least {@link #MAX_PARAMETERS}. The maximum length of the query
+   *                      string grows with it.
+   * @throws IllegalArgumentException if the query string is too long, has too many parameters, has
+   * duplicated kept parameters or is badly encoded
+   */
+  static ParameterList parse(String queryString, Set<String> names, int maxParameters) {
+    ParameterList parameters = new ParameterList();
+    if (queryString == null) {
+      return parameters;
+    }
+    int length = queryString.length();
+    if (length > maxQueryLength(maxParameters)) {
+      throw new IllegalArgumentException("Query string of OpenID response is too long: " + length + " characters");
+    }
+    int count = 0;
+    int start = 0;
+    while (start < length) {
+      int end = queryString.indexOf('&', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start) {
+        count++;
+        if (count > maxParameters) {
+          throw new IllegalArgumentException("OpenID response has more than " + maxParameters + " parameters");
+        }
+        if (queryString.startsWith(PREFIX, start) || (!names.isEmpty() && names.contains(rawName(queryString, start, end)))) {
+          add(parameters, queryString, start, end);
+        }
+      }
+      start = end + 1;
+    }
+    return parameters;
+  }
+
+  private static int maxQueryLength(int maxParameters) {
+    return maxParameters <= MAX_PARAMETERS ? MAX_QUERY_LENGTH : maxParameters * MAX_LENGTH_PER_PARAMETER;
+  }
+
+  private static String rawName(String queryString, int start, int end) {
+    int separator = queryString.indexOf('=', start);
+    return queryString.substring(start, separator < 0 || separator > end ? end : separator);
+  }
+
+  private static void add(ParameterList parameters, String queryString, int start, int end) {
+    int separator = queryString.indexOf('=', start);
+    String key;
+    String value;
+    if (separator < 0 || separator > end) {
+      key = decode(queryString, start, end);
+      value = "";
+    } else {
+      key = decode(queryString, start, separator);
+      value = decode(queryString, separator + 1, end);
+    }
+    if (parameters.hasParameter(key)) {
+      throw new IllegalArgumentException("Parameter of OpenID response is duplicated: " + key);
+    }
+    parameters.set(new Parameter(key, value));
+  }
+
+  private static String decode(String s, int start, int end) {
+    String token = s.substring(start, end);
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '%' || c == '+') {
+        try {
+          return URLDecoder.decode(token, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+          throw new IllegalStateException(CHARSET + " is not supported", e);
+        }
+      }
+    }
+    return token;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+
+import java.util.List;
+
+/**
+ * Structural checks of the responses sent to /openid/validate, executed before the verification of the signature and
+ * before any call to the provider. The parameters are read once. Responses that can not be verified (unknown mode or
+ * namespace, foreign return-to URL, missing signed fields, nonce out of the time window, oversized values) are
+ * rejected within microseconds. Negative assertions (cancel, setup_needed, error) are left to the verification.
+ * <p>The list of signed fields is not bounded by the length of values, as it grows with the number of parameters
+ * (for example the groups of the user). Each of its fields must be a parameter of the response.</p>
+ */
+class ResponsePrecheck {
+
+  static final String REASON_SIZE = "size";
+  static final String REASON_MODE = "mode";
+  static final String REASON_NAMESPACE = "ns";
+  static final String REASON_RETURN_TO = "return_to";
+  static final String REASON_SIGNED = "signed";
+  static final String REASON_NONCE = "nonce";
+
+  static final String NS_OPENID_2 = "http://specs.openid.net/auth/2.0";
+  static final int MAX_VALUE_LENGTH = 4096;
+
+  /**
+   * Fields that must be signed by OpenID 2.0 providers, in addition to claimed_id and identity when they are sent
+   */
+  private static final String[] SIGNED_FIELDS = {"op_endpoint", "return_to", "response_nonce", "assoc_handle"};
+  private static final String PREFIX = "openid.";
+
+  private final String returnToUrl;
+  private final long nonceMaxAgeMillis;
+  private final int maxParameters;
+  private final OpenIdMetrics metrics;
+
+  /**
+   * @param returnToUrl the return-to URL of the authentication requests, without query string
+   * @param nonceMaxAgeSeconds nonces older than this age, or as much in the future, are rejected
+   */
+  ResponsePrecheck(String returnToUrl, int nonceMaxAgeSeconds, OpenIdMetrics metrics) {
+    this(returnToUrl, nonceMaxAgeSeconds, ResponseParameters.MAX_PARAMETERS, metrics);
+  }
+
+  /**
+   * @param maxParameters maximum number of parameters of the responses
+   */
+  ResponsePrecheck(String returnToUrl, int nonceMaxAgeSeconds, int maxParameters, OpenIdMetrics metrics) {
+    Preconditions.checkArgument(nonceMaxAgeSeconds > 0, "Max age of nonces must be positive");
+    this.returnToUrl = returnToUrl;
+    this.nonceMaxAgeMillis = nonceMaxAgeSeconds * 1000L;
+    this.maxParameters = maxParameters;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return null if the response can be verified, else the reason of the rejection
+   */
+  String check(ParameterList parameters) {
+    String reason = reject(parameters);
+    if (reason != null) {
+      metrics.responseRejected(reason);
+    }
+    return reason;
+  }
+
+  private String reject(ParameterList parameters) {
+    String mode = null;
+    String ns = null;
+    String returnTo = null;
+    String signed = null;
+    String nonce = null;
+    boolean signature = false;
+    List<?> list = parameters.getParameters();
+    if (list.size() > maxParameters) {
+      return REASON_SIZE;
+    }
+    for (Object o : list) {
+      Parameter parameter = (Parameter) o;
+      String value = parameter.getValue();
+      String key = parameter.getKey();
+      if (value != null && value.length() > MAX_VALUE_LENGTH && !"openid.signed".equals(key)) {
+        return REASON_SIZE;
+      }
+      if ("openid.mode".equals(key)) {
+        mode = value;
+      } else if ("openid.ns".equals(key)) {
+        ns = value;
+      } else if ("openid.return_to".equals(key)) {
+        returnTo = value;
+      } else if ("openid.signed".equals(key)) {
+        signed = value;
+      } else if ("openid.response_nonce".equals(key)) {
+        nonce = value;
+      } else if ("openid.sig".equals(key)) {
+        signature = value != null && !value.isEmpty();
+      }
+    }
+    if (ns != null && !NS_OPENID_2.equals(ns)) {
+      return REASON_NAMESPACE;
+    }
+    if ("cancel".equals(mode) || "setup_needed".equals(mode) || "error".equals(mode)) {
+      return null;
+    }
+    if (!"id_res".equals(mode)) {
+      return REASON_MODE;
+    }
+    if (returnTo == null || !returnTo.startsWith(returnToUrl)
+      || (returnTo.length() > returnToUrl.length() && returnTo.charAt(returnToUrl.length()) != '?')) {
+      return REASON_RETURN_TO;
+    }
+    if (!signature || !isSigned(parameters, signed, ns != null)) {
+      return REASON_SIGNED;
+    }
+    // OpenID 1.x providers do not send nonces
+    if (ns != null && !isInWindow(nonce)) {
+      return REASON_NONCE;
+    }
+    return null;
+  }
+
+  /**
+   * The signed fields must be sent. OpenID 2.0 requires some fields to be signed.
+   */
+  private static boolean isSigned(ParameterList parameters, String signed, boolean openId2) {
+    if (signed == null || signed.isEmpty()) {
+      return false;
+    }
+    int start = 0;
+    while (start <= signed.length()) {
+      int end = signed.indexOf(',', start);
+      if (end < 0) {
+        end = signed.length();
+      }
+      if (end == start || !parameters.hasParameter(PREFIX + signed.substring(start, end))) {
+        return false;
+      }
+      start = end + 1;
+    }
+    if (openId2) {
+      for (String field : SIGNED_FIELDS) {
+        if (!contains(signed, field)) {
+          return false;
+        }
+      }
+      if ((parameters.hasParameter("openid.claimed_id") && !contains(signed, "claimed_id"))
+        || (parameters.hasParameter("openid.identity") && !contains(signed, "identity"))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean contains(String signed, String field) {
+    int index = signed.indexOf(field);
+    while (index >= 0) {
+      int end = index + field.length();
+      if ((index == 0 || signed.charAt(index - 1) == ',') && (end == signed.length() || signed.charAt(end) == ',')) {
+        return true;
+      }
+      index = signed.indexOf(field, end);
+    }
+    return false;
+  }
+
+  private boolean isInWindow(String nonce) {
+    long timestamp = BucketedNonceVerifier.parseTimestamp(nonce);
+    return timestamp >= 0L && Math.abs(currentTimeMillis() - timestamp) <= nonceMaxAgeMillis;
+  }
+
+  @VisibleForTesting
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
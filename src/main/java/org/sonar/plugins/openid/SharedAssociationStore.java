@@ -0,0 +1,150 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Associations stored in a storage shared by all the server nodes. Associations are immutable, so they are
+ * also kept in memory and the storage is read only when an association is not known by the current node.
+ */
+abstract class SharedAssociationStore implements ConsumerAssociationStore {
+
+  private final ConcurrentMap<String, Association> byHandle = new ConcurrentHashMap<String, Association>();
+  private final ConcurrentMap<String, Association> latestByOpUrl = new ConcurrentHashMap<String, Association>();
+
+  public final void save(String opUrl, Association association) {
+    if (Association.FAILED_ASSOC_HANDLE.equals(association.getHandle())) {
+      // failures of association are not shared, each node retries on its own
+      remember(opUrl, association);
+      return;
+    }
+    try {
+      write(opUrl, association);
+    } catch (Exception e) {
+      // the association is still usable by the current node
+      LoggerFactory.getLogger(SharedAssociationStore.class).warn("Fail to store OpenID association " + association.getHandle(), e);
+    }
+    remember(opUrl, association);
+  }
+
+  public final Association load(String opUrl, String handle) {
+    Association association = byHandle.get(key(opUrl, handle));
+    if (association == null) {
+      association = readQuietly(opUrl, handle);
+      if (association != null) {
+        remember(opUrl, association);
+      }
+    }
+    if (association != null && association.hasExpired()) {
+      byHandle.remove(key(opUrl, handle), association);
+      association = null;
+    }
+    return association;
+  }
+
+  public final Association load(String opUrl) {
+    Association association = latestByOpUrl.get(opUrl);
+    if (association == null || association.hasExpired()) {
+      association = readLatestQuietly(opUrl);
+      if (association != null) {
+        remember(opUrl, association);
+      }
+    }
+    return association == null || association.hasExpired() ? null : association;
+  }
+
+  public final void remove(String opUrl, String handle) {
+    Association association = byHandle.remove(key(opUrl, handle));
+    if (association != null) {
+      latestByOpUrl.remove(opUrl, association);
+    }
+    try {
+      delete(opUrl, handle);
+    } catch (Exception e) {
+      LoggerFactory.getLogger(SharedAssociationStore.class).warn("Fail to remove OpenID association " + handle, e);
+    }
+  }
+
+  private void remember(String opUrl, Association association) {
+    byHandle.put(key(opUrl, association.getHandle()), association);
+    Association latest = latestByOpUrl.get(opUrl);
+    if (latest == null || latest.getExpiry().before(association.getExpiry())) {
+      latestByOpUrl.put(opUrl, association);
+    }
+  }
+
+  private Association readQuietly(String opUrl, String handle) {
+    try {
+      return read(opUrl, handle);
+    } catch (Exception e) {
+      LoggerFactory.getLogger(SharedAssociationStore.class).warn("Fail to read OpenID association " + handle, e);
+      return null;
+    }
+  }
+
+  private Association readLatestQuietly(String opUrl) {
+    try {
+      return readLatest(opUrl);
+    } catch (Exception e) {
+      LoggerFactory.getLogger(SharedAssociationStore.class).warn("Fail to read OpenID associations of " + opUrl, e);
+      return null;
+    }
+  }
+
+  private static String key(String opUrl, String handle) {
+    return opUrl + ' ' + handle;
+  }
+
+  abstract void write(String opUrl, Association association) throws Exception;
+
+  abstract Association read(String opUrl, String handle) throws Exception;
+
+  /**
+   * @return the association of the provider that expires last, or null
+   */
+  abstract Association readLatest(String opUrl) throws Exception;
+
+  abstract void delete(String opUrl, String handle) throws Exception;
+
+  static String encodeKey(Association association) {
+    return Base64.encodeBase64String(association.getMacKey().getEncoded()).trim();
+  }
+
+  static Association decode(String type, String handle, String macKey, long expiry) throws AssociationException {
+    byte[] key = Base64.decodeBase64(macKey);
+    Date expiryDate = new Date(expiry);
+    if (Association.TYPE_HMAC_SHA1.equals(type)) {
+      return Association.createHmacSha1(handle, key, expiryDate);
+    }
+    if (Association.TYPE_HMAC_SHA256.equals(type)) {
+      return Association.createHmacSha256(handle, key, expiryDate);
+    }
+    throw new AssociationException("Unsupported association type: " + type);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openid4java.association.Association;
+import org.openid4java.message.ParameterList;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Local verification of the signatures of positive assertions, for HMAC-SHA1 and HMAC-SHA256 associations. Unlike
+ * {@link Association#verifySignature(String, String)}, the signed text is encoded into a reusable buffer instead of
+ * being built as a string, and each thread keeps the {@link Mac} instances initialized with the keys of the last
+ * associations it used.
+ */
+class SignatureVerifier {
+
+  static final int MACS_PER_THREAD = 4;
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+
+  private final ThreadLocal<Session> sessions = new ThreadLocal<Session>() {
+    @Override
+    protected Session initialValue() {
+      return new Session();
+    }
+  };
+
+  static boolean supports(Association association) {
+    return Association.TYPE_HMAC_SHA1.equals(association.getType()) || Association.TYPE_HMAC_SHA256.equals(association.getType());
+  }
+
+  /**
+   * @return false if the signature is missing, if a signed field is missing or if the signature does not match the signed fields
+   */
+  boolean verify(Association association, ParameterList response) {
+    String signature = response.getParameterValue("openid.sig");
+    String signed = response.getParameterValue("openid.signed");
+    if (signature == null || signed == null) {
+      return false;
+    }
+    Session session = sessions.get();
+    try {
+      int start = 0;
+      while (start <= signed.length()) {
+        int end = signed.indexOf(',', start);
+        if (end < 0) {
+          end = signed.length();
+        }
+        String value = response.getParameterValue(new StringBuilder(7 + end - start).append("openid.").append(signed, start, end).toString());
+        if (value == null) {
+          return false;
+        }
+        // key:value\n, see Message#getSignedText()
+        session.append(signed, start, end);
+        session.append(':');
+        session.append(value, 0, value.length());
+        session.append('\n');
+        start = end + 1;
+      }
+      Mac mac = session.mac(association);
+      mac.update(session.buffer, 0, session.length);
+      return matches(Base64.encodeBase64(mac.doFinal()), signature);
+    } finally {
+      session.reset();
+    }
+  }
+
+  /**
+   * Comparison in constant time, as {@link Association#verifySignature(String, String)}
+   */
+  private static boolean matches(byte[] expected, String signature) {
+    if (expected.length != signature.length()) {
+      return false;
+    }
+    int diff = 0;
+    for (int i = 0; i < expected.length; i++) {
+      diff |= expected[i] ^ signature.charAt(i);
+    }
+    return diff == 0;
+  }
+
+  private static final class Session {
+    private final Map<String, KeyedMac> macs = new LinkedHashMap<String, KeyedMac>(MACS_PER_THREAD * 2, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, KeyedMac> eldest) {
+        return size() > MACS_PER_THREAD;
+      }
+    };
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int length = 0;
+
+    Mac mac(Association association) {
+      SecretKey key = association.getMacKey();
+      KeyedMac cached = macs.get(association.getHandle());
+      if (cached == null || !cached.key.equals(key)) {
+        try {
+          Mac mac = Mac.getInstance(key.getAlgorithm());
+          mac.init(key);
+          cached = new KeyedMac(key, mac);
+          macs.put(association.getHandle(), cached);
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException("Fail to initialize the MAC of OpenID association " + association.getHandle(), e);
+        }
+      }
+      return cached.mac;
+    }
+
+    /**
+     * Appends the characters encoded in UTF-8. Unpaired surrogates are replaced by '?', as {@link String#getBytes(String)}.
+     */
+    void append(String s, int start, int end) {
+      ensureCapacity(4 * (end - start));
+      for (int i = start; i < end; i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          buffer[length++] = (byte) c;
+        } else if (c < 0x800) {
+          buffer[length++] = (byte) (0xc0 | (c >> 6));
+          buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, s.charAt(++i));
+          buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+          buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+          buffer[length++] = '?';
+        } else {
+          buffer[length++] = (byte) (0xe0 | (c >> 12));
+          buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+    }
+
+    void append(char c) {
+      ensureCapacity(1);
+      buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (length + extra > buffer.length) {
+        byte[] larger = new byte[Math.max(buffer.length * 2, length + extra)];
+        System.arraycopy(buffer, 0, larger, 0, length);
+        buffer = larger;
+      }
+    }
+
+    void reset() {
+      length = 0;
+      if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+        buffer = new byte[INITIAL_BUFFER_SIZE];
+      }
+    }
+  }
+
+  private static final class KeyedMac {
+    private final SecretKey key;
+    private final Mac mac;
+
+    KeyedMac(SecretKey key, Mac mac) {
+      this.key = key;
+      this.mac = mac;
+    }
+  }
+}
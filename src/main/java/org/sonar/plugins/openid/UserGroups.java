@@ -0,0 +1,82 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups of the users, as mapped from their last verified response. They are read by {@link OpenIdGroupsProvider} when
+ * the server synchronizes the user after the login. The least recently used users are evicted when the max size is reached.
+ */
+class UserGroups {
+
+  static final int DEFAULT_MAX_SIZE = 10000;
+
+  private static final Logger LOG = LoggerFactory.getLogger(UserGroups.class);
+
+  private final Map<String, Set<String>> groupsByUser;
+
+  UserGroups(final int maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "Max number of users must be positive");
+    this.groupsByUser = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param groups immutable set of groups
+   */
+  void put(String user, Set<String> groups) {
+    Set<String> previous;
+    synchronized (groupsByUser) {
+      previous = groupsByUser.put(user, groups);
+    }
+    if (LOG.isDebugEnabled() && !groups.equals(previous)) {
+      Set<String> before = previous == null ? Collections.<String>emptySet() : previous;
+      LOG.debug("Groups of user {} changed, added: {}, removed: {}", new Object[] {user, Sets.difference(groups, before), Sets.difference(before, groups)});
+    }
+  }
+
+  /**
+   * @return null if the user is unknown
+   */
+  Set<String> get(String user) {
+    synchronized (groupsByUser) {
+      return groupsByUser.get(user);
+    }
+  }
+
+  int size() {
+    synchronized (groupsByUser) {
+      return groupsByUser.size();
+    }
+  }
+}
@@ -0,0 +1,370 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Settings;
+import org.sonar.api.security.UserDetails;
+import org.sonar.plugins.openid.api.OpenIdResponseExtensions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mapping of the SREG and AX attributes of the response to the user, declared by templates such as
+ * <code>${ax.firstName} ${ax.lastName}</code>. Alternatives are separated by <code>|</code>: the first one whose
+ * attributes are all sent by the provider is used. Templates are compiled once into a flat array of attributes,
+ * read once per login, and into alternatives whose text is built in a buffer of the exact size.
+ * <p>Groups are the values of a multi-valued AX attribute. Only the groups declared by an allowlist are kept and renamed.
+ * The attribute is ignored if it is not signed by the provider, as unsigned parameters can be added by the user.</p>
+ */
+final class UserMapping {
+
+  static final String PROPERTY_NAME = "sonar.openid.mapping.name";
+  static final String PROPERTY_EMAIL = "sonar.openid.mapping.email";
+  /**
+   * Type URIs of the AX attributes that are not known by default, as a list of alias=URI
+   */
+  static final String PROPERTY_AX_TYPES = "sonar.openid.mapping.axTypes";
+  /**
+   * Alias of the AX attribute of groups. Groups are not synchronized if missing.
+   */
+  static final String PROPERTY_GROUPS = "sonar.openid.mapping.groups";
+  /**
+   * Names of the groups, as a list of providerGroup=sonarGroup. Required when groups are mapped, other groups are ignored.
+   */
+  static final String PROPERTY_GROUP_NAMES = "sonar.openid.mapping.groupNames";
+  /**
+   * Maximum number of groups sent by the provider for a user, including the groups that are not mapped. Each group is
+   * a parameter of the response.
+   */
+  static final String PROPERTY_MAX_GROUPS = "sonar.openid.mapping.maxGroups";
+  static final int DEFAULT_MAX_GROUPS = 1000;
+
+  static final String DEFAULT_NAME = "${sreg." + OpenIdClient.SREG_ATTR_FULLNAME + "}|${ax." + OpenIdClient.AX_ATTR_FIRSTNAME + "} ${ax." + OpenIdClient.AX_ATTR_LASTNAME + "}";
+  static final String DEFAULT_EMAIL = "${sreg." + OpenIdClient.SREG_ATTR_EMAIL + "}|${ax." + OpenIdClient.AX_ATTR_EMAIL + "}";
+
+  static final UserMapping DEFAULT = new UserMapping(DEFAULT_NAME, DEFAULT_EMAIL, Collections.<String, String>emptyMap());
+
+  /**
+   * Unlimited number of values of the AX attribute of groups
+   */
+  static final int UNLIMITED_COUNT = 0;
+
+  private static final String SREG = "sreg";
+  private static final String AX = "ax";
+  private static final String OPENID_PREFIX = "openid.";
+
+  private static final Logger LOG = LoggerFactory.getLogger(UserMapping.class);
+
+  private final boolean[] fromSreg;
+  private final String[] attributes;
+  private final Alternative[] name;
+  private final Alternative[] email;
+  private final boolean readsSreg;
+  private final boolean readsAx;
+  private final List<String> sregAttributes = new ArrayList<String>();
+  private final Map<String, String> axAttributes = new LinkedHashMap<String, String>();
+  private final String groupsAttribute;
+  private final String groupsType;
+  private final Map<String, String> groupNames;
+
+  UserMapping(String nameTemplate, String emailTemplate, Map<String, String> axTypes) {
+    this(nameTemplate, emailTemplate, null, Collections.<String, String>emptyMap(), axTypes);
+  }
+
+  /**
+   * @param groupsAttribute alias of the AX attribute of groups, null if groups are not mapped
+   * @param groupNames names of groups by name of the provider, required if groups are mapped
+   * @param axTypes type URIs of AX aliases, in addition to the default ones
+   * @throws IllegalArgumentException if a template is invalid or uses an AX alias of unknown type
+   */
+  UserMapping(String nameTemplate, String emailTemplate, String groupsAttribute, Map<String, String> groupNames, Map<String, String> axTypes) {
+    Map<String, String> types = new LinkedHashMap<String, String>();
+    types.put(OpenIdClient.AX_ATTR_EMAIL, "http://schema.openid.net/contact/email");
+    types.put(OpenIdClient.AX_ATTR_FIRSTNAME, "http://axschema.org/namePerson/first");
+    types.put(OpenIdClient.AX_ATTR_LASTNAME, "http://axschema.org/namePerson/last");
+    types.putAll(axTypes);
+    List<String> references = new ArrayList<String>();
+    this.name = compile(PROPERTY_NAME, nameTemplate, references);
+    this.email = compile(PROPERTY_EMAIL, emailTemplate, references);
+    this.fromSreg = new boolean[references.size()];
+    this.attributes = new String[references.size()];
+    for (int i = 0; i < references.size(); i++) {
+      String reference = references.get(i);
+      fromSreg[i] = reference.startsWith(SREG + ".");
+      attributes[i] = StringUtils.substringAfter(reference, ".");
+      if (fromSreg[i]) {
+        sregAttributes.add(attributes[i]);
+      } else {
+        String type = types.get(attributes[i]);
+        Preconditions.checkArgument(type != null, "Type URI of AX attribute " + attributes[i] + " is unknown, it must be declared by property " + PROPERTY_AX_TYPES);
+        axAttributes.put(attributes[i], type);
+      }
+    }
+    this.groupsAttribute = groupsAttribute;
+    this.groupsType = groupsAttribute == null ? null : types.get(groupsAttribute);
+    Preconditions.checkArgument(groupsAttribute == null || groupsType != null,
+      "Type URI of AX attribute " + groupsAttribute + " is unknown, it must be declared by property " + PROPERTY_AX_TYPES);
+    Preconditions.checkArgument(!axAttributes.containsKey(groupsAttribute), "AX attribute of groups must not be used by the name nor the email: " + groupsAttribute);
+    Preconditions.checkArgument(groupsAttribute == null || !groupNames.isEmpty(), "Property " + PROPERTY_GROUP_NAMES + " is missing, it declares the groups that can be mapped");
+    this.groupNames = new HashMap<String, String>(groupNames);
+    this.readsSreg = !sregAttributes.isEmpty();
+    this.readsAx = !axAttributes.isEmpty();
+  }
+
+  static UserMapping create(Settings settings) {
+    return new UserMapping(
+      StringUtils.defaultIfBlank(settings.getString(PROPERTY_NAME), DEFAULT_NAME),
+      StringUtils.defaultIfBlank(settings.getString(PROPERTY_EMAIL), DEFAULT_EMAIL),
+      StringUtils.trimToNull(settings.getString(PROPERTY_GROUPS)),
+      pairs(settings, PROPERTY_GROUP_NAMES, "providerGroup=sonarGroup"),
+      pairs(settings, PROPERTY_AX_TYPES, "alias=URI"));
+  }
+
+  /**
+   * @return the maximum number of groups of the responses, 0 if groups are not mapped
+   */
+  static int maxGroups(Settings settings) {
+    if (StringUtils.isBlank(settings.getString(PROPERTY_GROUPS))) {
+      return 0;
+    }
+    int maxGroups = settings.hasKey(PROPERTY_MAX_GROUPS) ? settings.getInt(PROPERTY_MAX_GROUPS) : DEFAULT_MAX_GROUPS;
+    Preconditions.checkArgument(maxGroups >= 0, "Property " + PROPERTY_MAX_GROUPS + " must be positive");
+    return maxGroups;
+  }
+
+  private static Map<String, String> pairs(Settings settings, String property, String format) {
+    Map<String, String> pairs = new LinkedHashMap<String, String>();
+    for (String pair : settings.getStringArray(property)) {
+      String key = StringUtils.trimToEmpty(StringUtils.substringBefore(pair, "="));
+      String value = StringUtils.trimToEmpty(StringUtils.substringAfter(pair, "="));
+      Preconditions.checkArgument(!key.isEmpty() && !value.isEmpty(), "Invalid value of property " + property + ", expected " + format + ": " + pair);
+      pairs.put(key, value);
+    }
+    return pairs;
+  }
+
+  /**
+   * Names of the SREG attributes to request
+   */
+  List<String> getSregAttributes() {
+    return Collections.unmodifiableList(sregAttributes);
+  }
+
+  /**
+   * Type URIs of the AX attributes to request, by alias
+   */
+  Map<String, String> getAxAttributes() {
+    return Collections.unmodifiableMap(axAttributes);
+  }
+
+  /**
+   * @return the alias of the AX attribute of groups, null if groups are not mapped
+   */
+  String getGroupsAttribute() {
+    return groupsAttribute;
+  }
+
+  String getGroupsType() {
+    return groupsType;
+  }
+
+  /**
+   * @return the sorted names of groups, empty if the provider does not send groups, or null if groups are not mapped
+   */
+  Set<String> toGroups(OpenIdResponseExtensions extensions) {
+    if (groupsAttribute == null) {
+      return null;
+    }
+    FetchResponse ax = extensions.get(FetchResponse.class, AxMessage.OPENID_NS_AX);
+    if (ax == null || ax.getAttributeTypeUri(groupsAttribute) == null) {
+      return ImmutableSortedSet.of();
+    }
+    if (!isSigned(extensions.getResponse(), ax)) {
+      LOG.warn("Groups of OpenID response are ignored because the AX attribute " + groupsAttribute + " is not signed by the provider");
+      return ImmutableSortedSet.of();
+    }
+    List<?> values = ax.getAttributeValues(groupsAttribute);
+    ImmutableSortedSet.Builder<String> groups = ImmutableSortedSet.naturalOrder();
+    for (Object value : values) {
+      String group = groupNames.get(value);
+      if (!Strings.isNullOrEmpty(group)) {
+        groups.add(group);
+      }
+    }
+    return groups.build();
+  }
+
+  /**
+   * The namespace of AX and all the parameters of the attribute of groups (type, count and values) must be signed
+   */
+  private boolean isSigned(AuthSuccess response, FetchResponse ax) {
+    String extensionAlias = response.getExtensionAlias(AxMessage.OPENID_NS_AX);
+    Set<String> signed = Sets.newHashSet(Splitter.on(',').omitEmptyStrings().split(Strings.nullToEmpty(response.getSignList())));
+    if (extensionAlias == null || !signed.contains("ns." + extensionAlias) || !signed.contains(extensionAlias + ".type." + groupsAttribute)
+      || !groupsType.equals(ax.getAttributeTypeUri(groupsAttribute))) {
+      return false;
+    }
+    String prefix = extensionAlias + ".";
+    for (Object key : response.getParameterMap().keySet()) {
+      String parameter = StringUtils.removeStart((String) key, OPENID_PREFIX);
+      if (parameter.startsWith(prefix) && isGroupsParameter(parameter.substring(prefix.length())) && !signed.contains(parameter)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isGroupsParameter(String parameter) {
+    return parameter.equals("type." + groupsAttribute) || parameter.equals("count." + groupsAttribute)
+      || parameter.equals("value." + groupsAttribute) || parameter.startsWith("value." + groupsAttribute + ".");
+  }
+
+  /**
+   * @return null if the name is missing
+   */
+  UserDetails toUser(OpenIdResponseExtensions extensions) {
+    SRegResponse sreg = readsSreg ? extensions.get(SRegResponse.class, SRegMessage.OPENID_NS_SREG) : null;
+    FetchResponse ax = readsAx ? extensions.get(FetchResponse.class, AxMessage.OPENID_NS_AX) : null;
+    String[] values = new String[attributes.length];
+    for (int i = 0; i < attributes.length; i++) {
+      if (fromSreg[i]) {
+        values[i] = sreg == null ? null : sreg.getAttributeValue(attributes[i]);
+      } else {
+        values[i] = ax == null ? null : ax.getAttributeValue(attributes[i]);
+      }
+    }
+    String userName = evaluate(name, values);
+    if (Strings.isNullOrEmpty(userName)) {
+      return null;
+    }
+    UserDetails user = new UserDetails();
+    user.setName(userName);
+    user.setEmail(evaluate(email, values));
+    return user;
+  }
+
+  private static String evaluate(Alternative[] alternatives, String[] values) {
+    for (Alternative alternative : alternatives) {
+      String result = alternative.evaluate(values);
+      if (result != null) {
+        return result;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param references the references already compiled, completed by the new ones
+   */
+  private static Alternative[] compile(String property, String template, List<String> references) {
+    String[] texts = StringUtils.splitPreserveAllTokens(template, '|');
+    Alternative[] alternatives = new Alternative[texts.length];
+    for (int i = 0; i < texts.length; i++) {
+      List<String> literals = new ArrayList<String>();
+      List<Integer> slots = new ArrayList<Integer>();
+      String text = texts[i];
+      int start = 0;
+      int open = text.indexOf("${");
+      while (open >= 0) {
+        int close = text.indexOf('}', open);
+        Preconditions.checkArgument(close > open, "Invalid value of property " + property + ", missing }: " + template);
+        String reference = text.substring(open + 2, close);
+        String source = StringUtils.substringBefore(reference, ".");
+        Preconditions.checkArgument((SREG.equals(source) || AX.equals(source)) && reference.length() > source.length() + 1,
+          "Invalid value of property " + property + ", attributes are ${sreg.<name>} or ${ax.<alias>}: " + template);
+        int slot = references.indexOf(reference);
+        if (slot < 0) {
+          slot = references.size();
+          references.add(reference);
+        }
+        literals.add(text.substring(start, open));
+        slots.add(slot);
+        start = close + 1;
+        open = text.indexOf("${", start);
+      }
+      literals.add(text.substring(start));
+      alternatives[i] = new Alternative(literals, slots);
+    }
+    return alternatives;
+  }
+
+  /**
+   * Literals interleaved with attributes: literals[0] value[0] literals[1] ... value[n-1] literals[n]
+   */
+  private static final class Alternative {
+    private final String[] literals;
+    private final int[] slots;
+    private final int literalsLength;
+
+    private Alternative(List<String> literals, List<Integer> slots) {
+      this.literals = literals.toArray(new String[literals.size()]);
+      this.slots = new int[slots.size()];
+      int length = 0;
+      for (int i = 0; i < this.slots.length; i++) {
+        this.slots[i] = slots.get(i);
+      }
+      for (String literal : literals) {
+        length += literal.length();
+      }
+      this.literalsLength = length;
+    }
+
+    /**
+     * @return null if an attribute is missing
+     */
+    private String evaluate(String[] values) {
+      int length = literalsLength;
+      for (int slot : slots) {
+        String value = values[slot];
+        if (value == null) {
+          return null;
+        }
+        length += value.length();
+      }
+      if (literalsLength == 0 && slots.length == 1) {
+        return values[slots[0]];
+      }
+      StringBuilder sb = new StringBuilder(length).append(literals[0]);
+      for (int i = 0; i < slots.length; i++) {
+        sb.append(values[slots[i]]).append(literals[i + 1]);
+      }
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid.api;
+
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.sonar.api.ServerExtension;
+
+/**
+ * <p>Storage of the associations negotiated with the OpenID provider. When the server is deployed on several nodes,
+ * a shared storage allows to negotiate associations once for the whole cluster. When an extension of this type is
+ * installed, it replaces the storage defined by the property <code>sonar.openid.associationStore</code>.</p>
+ * <p>The plugin providing this extension must use the same classloader than the openid plugin, by setting the parameter <basePlugin> of sonar-packaging-maven-plugin
+ * to <code>openid</code>. See more details in the
+ * <a href="https://github.com/SonarCommunity/sonar-openid/tree/master/samples/sonar-openid-sample-extension-plugin">sample plugin</a>.
+ * </p>
+ *
+ * @since 1.3
+ */
+public abstract class OpenIdAssociationStore implements ConsumerAssociationStore, ServerExtension {
+}
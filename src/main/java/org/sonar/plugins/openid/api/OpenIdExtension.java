@@ -50,4 +50,17 @@ public abstract class OpenIdExtension implements ServerExtension {
   public boolean doVerifyResponse(AuthSuccess response) {
     return true;
   }
+
+  /**
+   * Called by the plugin instead of {@link #doVerifyResponse(AuthSuccess)}. Override this method to read the
+   * extensions of the response without parsing them again. By default it calls {@link #doVerifyResponse(AuthSuccess)}.
+   *
+   * @param extensions the extensions of the response, shared by all the OpenID extensions
+   * @return is the response verified and user allowed to connect ?
+   * @throws RuntimeException if the response can't be verified
+   * @since 1.3
+   */
+  public boolean doVerifyResponse(AuthSuccess response, OpenIdResponseExtensions extensions) {
+    return doVerifyResponse(response);
+  }
 }
@@ -0,0 +1,71 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid.api;
+
+import com.google.common.base.Preconditions;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.MessageExtension;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Message extensions (AX, SREG...) of a verified response. Each namespace is parsed once per login, then the parsed
+ * extension is shared by the plugin and all the {@link OpenIdExtension}s, including extensions verifying the response
+ * concurrently.</p>
+ *
+ * @since 1.3
+ */
+public final class OpenIdResponseExtensions {
+
+  private static final Object MISSING = new Object();
+
+  private final AuthSuccess response;
+  private final Map<String, Object> parsed = new HashMap<String, Object>();
+
+  public OpenIdResponseExtensions(AuthSuccess response) {
+    Preconditions.checkNotNull(response, "Response is missing");
+    this.response = response;
+  }
+
+  public AuthSuccess getResponse() {
+    return response;
+  }
+
+  /**
+   * Same as {@link OpenIdUtils#getMessageAs(Class, AuthSuccess, String)}, but the extension is parsed only on the first call.
+   *
+   * @return the extension, or null if the response does not contain the namespace
+   */
+  public <T> T get(Class<T> c, String typeUri) {
+    Object extension;
+    synchronized (parsed) {
+      extension = parsed.get(typeUri);
+      if (extension == null) {
+        extension = OpenIdUtils.getMessageAs(MessageExtension.class, response, typeUri);
+        if (extension == null) {
+          extension = MISSING;
+        }
+        parsed.put(typeUri, extension);
+      }
+    }
+    return extension == MISSING ? null : c.cast(extension);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.InMemoryConsumerAssociationStore;
+
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class AssociatorTest {
+
+  private static final String OP_URL = "http://localhost/openid";
+
+  private ConsumerManager manager;
+  private ConsumerAssociationStore store;
+  private DiscoveryCache discovery;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new InMemoryConsumerAssociationStore();
+    manager = mock(ConsumerManager.class);
+    when(manager.getAssociations()).thenReturn(store);
+    discovery = new DiscoveryCache(OP_URL, 0L, null);
+    discovery.set(OpenIdClientTest.newDiscoveryInfo());
+  }
+
+  @Test
+  public void renew_association_before_expiry() {
+    store.save(OP_URL, Association.generateHmacSha256("handle", 3600));
+    Associator associator = new Associator(manager, discovery, 300);
+
+    long delay = associator.associate();
+
+    verify(manager).setPreExpiryAssocLockInterval(300);
+    verify(manager).associate(any(List.class));
+    assertThat(delay).isGreaterThan(3200000L).isLessThanOrEqualTo(3300000L);
+  }
+
+  @Test
+  public void renew_association_shorter_than_margin_at_half_of_its_lifetime() {
+    store.save(OP_URL, Association.generateHmacSha256("handle", 120));
+    Associator associator = new Associator(manager, discovery, 300);
+
+    long delay = associator.associate();
+
+    assertThat(delay).isGreaterThan(55000L).isLessThanOrEqualTo(60000L);
+  }
+
+  @Test
+  public void retry_if_association_fails() {
+    store.save(OP_URL, Association.getFailedAssociation(300));
+
+    assertThat(new Associator(manager, discovery, 300).associate()).isEqualTo(Associator.RETRY_DELAY_MILLIS);
+  }
+
+  @Test
+  public void retry_if_no_association() {
+    assertThat(new Associator(manager, discovery, 300).associate()).isEqualTo(Associator.RETRY_DELAY_MILLIS);
+  }
+
+  @Test
+  public void retry_if_discovery_fails() {
+    DiscoveryCache unknownProvider = new DiscoveryCache("abc is not xyz", 0L, null);
+
+    assertThat(new Associator(manager, unknownProvider, 300).associate()).isEqualTo(Associator.RETRY_DELAY_MILLIS);
+    verify(manager, never()).associate(any(List.class));
+  }
+
+  @Test
+  public void start_and_stop() {
+    Associator associator = new Associator(manager, discovery, 300);
+    associator.start();
+    associator.stop();
+    // can be stopped twice
+    associator.stop();
+  }
+}
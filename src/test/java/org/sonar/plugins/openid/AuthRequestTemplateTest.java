@@ -0,0 +1,106 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchRequest;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.server.RealmVerifier;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AuthRequestTemplateTest {
+
+  @Test
+  public void encoded_attributes_are_parsed_as_extensions() throws Exception {
+    AuthRequest request = newAuthRequest();
+
+    String url = new AuthRequestTemplate().destinationUrl(request);
+
+    assertThat(url).startsWith("http://localhost/openid?");
+    AuthRequest parsed = parse(url);
+    FetchRequest fetch = (FetchRequest) parsed.getExtension(AxMessage.OPENID_NS_AX);
+    assertThat(fetch.getAttributes(true)).hasSize(3);
+    assertThat(fetch.getAttributes(true).get(OpenIdClient.AX_ATTR_EMAIL)).isEqualTo("http://schema.openid.net/contact/email");
+    assertThat(fetch.getAttributes(true).get(OpenIdClient.AX_ATTR_FIRSTNAME)).isEqualTo("http://axschema.org/namePerson/first");
+    assertThat(fetch.getAttributes(true).get(OpenIdClient.AX_ATTR_LASTNAME)).isEqualTo("http://axschema.org/namePerson/last");
+    ParameterList sreg = parsed.getExtension(SRegMessage.OPENID_NS_SREG).getParameters();
+    assertThat(sreg.getParameterValue("required")).isEqualTo(OpenIdClient.SREG_ATTR_FULLNAME + "," + OpenIdClient.SREG_ATTR_EMAIL);
+    assertThat(parsed.getReturnTo()).isEqualTo("http://localhost:9000/openid/validate");
+  }
+
+  @Test
+  public void same_parameters_than_extensions_added_to_request() throws Exception {
+    AuthRequest request = newAuthRequest();
+    AuthRequestTemplate template = new AuthRequestTemplate();
+    String templateUrl = template.destinationUrl(request);
+    template.addAttributes(request);
+
+    AuthRequest fromTemplate = parse(templateUrl);
+    AuthRequest fromExtensions = parse(request.getDestinationUrl(true));
+
+    assertThat(fromTemplate.getExtension(AxMessage.OPENID_NS_AX).getParameters())
+      .isEqualTo(fromExtensions.getExtension(AxMessage.OPENID_NS_AX).getParameters());
+    assertThat(fromTemplate.getExtension(SRegMessage.OPENID_NS_SREG).getParameters())
+      .isEqualTo(fromExtensions.getExtension(SRegMessage.OPENID_NS_SREG).getParameters());
+  }
+
+  @Test
+  public void request_attributes_of_mapping() throws Exception {
+    UserMapping mapping = new UserMapping("${ax.nickname}", "${sreg.email}", ImmutableMap.of("nickname", "http://axschema.org/namePerson/friendly"));
+
+    AuthRequest parsed = parse(new AuthRequestTemplate(mapping).destinationUrl(newAuthRequest()));
+
+    FetchRequest fetch = (FetchRequest) parsed.getExtension(AxMessage.OPENID_NS_AX);
+    assertThat(fetch.getAttributes(true)).hasSize(1);
+    assertThat(fetch.getAttributes(true).get("nickname")).isEqualTo("http://axschema.org/namePerson/friendly");
+    assertThat(parsed.getExtension(SRegMessage.OPENID_NS_SREG).getParameters().getParameterValue("required")).isEqualTo("email");
+  }
+
+  @Test
+  public void request_all_the_groups() throws Exception {
+    UserMapping mapping = new UserMapping(UserMapping.DEFAULT_NAME, UserMapping.DEFAULT_EMAIL, "groups", ImmutableMap.of("admins", "sonar-administrators"),
+      ImmutableMap.of("groups", "http://example.com/groups"));
+
+    AuthRequest parsed = parse(new AuthRequestTemplate(mapping).destinationUrl(newAuthRequest()));
+
+    FetchRequest fetch = (FetchRequest) parsed.getExtension(AxMessage.OPENID_NS_AX);
+    assertThat(fetch.getAttributes(true)).hasSize(4);
+    assertThat(fetch.getAttributes(true).get("groups")).isEqualTo("http://example.com/groups");
+    assertThat(fetch.getParameterValue("count.groups")).isEqualTo("unlimited");
+  }
+
+  private static AuthRequest newAuthRequest() throws Exception {
+    ConsumerManager manager = new ConsumerManager();
+    manager.setMaxAssocAttempts(0);
+    return manager.authenticate(OpenIdClientTest.newDiscoveryInfo(), "http://localhost:9000/openid/validate");
+  }
+
+  private static AuthRequest parse(String url) throws Exception {
+    RealmVerifier verifier = new ConsumerManager().getRealmVerifier();
+    verifier.setEnforceRpId(false);
+    return AuthRequest.createAuthRequest(ParameterList.createFromQueryString(url.substring(url.indexOf('?') + 1)), verifier);
+  }
+}
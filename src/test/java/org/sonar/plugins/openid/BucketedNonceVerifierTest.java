@@ -0,0 +1,167 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Test;
+import org.openid4java.consumer.NonceVerifier;
+import org.openid4java.util.InternetDateFormat;
+
+import java.util.Date;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BucketedNonceVerifierTest {
+
+  private static final String OP_URL = "https://provider/openid";
+
+  @Test
+  public void parse_timestamp() throws Exception {
+    assertThat(BucketedNonceVerifier.parseTimestamp("2005-05-15T17:11:51ZUNIQUE"))
+      .isEqualTo(new InternetDateFormat().parse("2005-05-15T17:11:51Z").getTime());
+    assertThat(BucketedNonceVerifier.parseTimestamp("2012-02-29T00:00:00Z"))
+      .isEqualTo(new InternetDateFormat().parse("2012-02-29T00:00:00Z").getTime());
+    assertThat(BucketedNonceVerifier.parseTimestamp("1970-01-01T00:00:00Z")).isEqualTo(0L);
+  }
+
+  @Test
+  public void parse_invalid_timestamp() {
+    assertThat(BucketedNonceVerifier.parseTimestamp(null)).isEqualTo(-1L);
+    assertThat(BucketedNonceVerifier.parseTimestamp("foo")).isEqualTo(-1L);
+    assertThat(BucketedNonceVerifier.parseTimestamp("2005-05-15 17:11:51ZUNIQUE")).isEqualTo(-1L);
+    assertThat(BucketedNonceVerifier.parseTimestamp("2005-13-15T17:11:51ZUNIQUE")).isEqualTo(-1L);
+    assertThat(BucketedNonceVerifier.parseTimestamp("2005-a5-15T17:11:51ZUNIQUE")).isEqualTo(-1L);
+  }
+
+  @Test
+  public void reject_replayed_nonce() {
+    FakeClockVerifier verifier = new FakeClockVerifier(60, 1000);
+    String nonce = verifier.nonce(0L, "abc");
+
+    assertThat(verifier.seen(OP_URL, nonce)).isEqualTo(NonceVerifier.OK);
+    assertThat(verifier.seen(OP_URL, nonce)).isEqualTo(NonceVerifier.SEEN);
+    assertThat(verifier.seen("https://other/openid", nonce)).isEqualTo(NonceVerifier.OK);
+    assertThat(verifier.size()).isEqualTo(2);
+    assertThat(verifier.getRejectedAsSeen()).isEqualTo(1L);
+  }
+
+  @Test
+  public void reject_too_old_nonce() {
+    FakeClockVerifier verifier = new FakeClockVerifier(60, 1000);
+
+    assertThat(verifier.seen(OP_URL, verifier.nonce(-61000L, "abc"))).isEqualTo(NonceVerifier.TOO_OLD);
+    assertThat(verifier.getRejectedAsTooOld()).isEqualTo(1L);
+  }
+
+  @Test
+  public void reject_invalid_timestamp() {
+    FakeClockVerifier verifier = new FakeClockVerifier(60, 1000);
+
+    assertThat(verifier.seen(OP_URL, "foo")).isEqualTo(NonceVerifier.INVALID_TIMESTAMP);
+    assertThat(verifier.seen(OP_URL, verifier.nonce(3600000L, "abc"))).isEqualTo(NonceVerifier.INVALID_TIMESTAMP);
+    assertThat(verifier.getRejectedAsInvalid()).isEqualTo(2L);
+  }
+
+  @Test
+  public void drop_expired_buckets() {
+    FakeClockVerifier verifier = new FakeClockVerifier(60, 1000);
+    for (int i = 0; i < 10; i++) {
+      assertThat(verifier.seen(OP_URL, verifier.nonce(0L, "n" + i))).isEqualTo(NonceVerifier.OK);
+    }
+    assertThat(verifier.size()).isEqualTo(10);
+
+    // the time slot of the first nonces is reused two max ages later
+    verifier.now += 2 * 60000L + 15000L;
+    for (int i = 0; i < 60; i++) {
+      verifier.seen(OP_URL, verifier.nonce(-i * 1000L, "m" + i));
+    }
+
+    assertThat(verifier.size()).isEqualTo(60);
+  }
+
+  @Test
+  public void bounded_capacity() {
+    FakeClockVerifier verifier = new FakeClockVerifier(80, 18);
+    for (int i = 0; i < 17; i++) {
+      assertThat(verifier.seen(OP_URL, verifier.nonce(-i * 1000L, "n" + i))).isEqualTo(NonceVerifier.OK);
+    }
+
+    assertThat(verifier.seen(OP_URL, verifier.nonce(-60000L, "a"))).isEqualTo(NonceVerifier.OK);
+    assertThat(verifier.seen(OP_URL, verifier.nonce(0L, "b"))).isEqualTo(NonceVerifier.SEEN);
+    assertThat(verifier.getRejectedAsFull()).isEqualTo(1L);
+    assertThat(verifier.size()).isEqualTo(18);
+
+    // the oldest nonce expires, its bucket is dropped when the capacity is reached
+    verifier.now += 30000L;
+    assertThat(verifier.seen(OP_URL, verifier.nonce(0L, "b"))).isEqualTo(NonceVerifier.OK);
+    assertThat(verifier.size()).isEqualTo(18);
+  }
+
+  @Test
+  public void accept_fresh_nonces_up_to_capacity() {
+    FakeClockVerifier verifier = new FakeClockVerifier(60, 1000);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(verifier.seen(OP_URL, verifier.nonce(0L, "n" + i))).isEqualTo(NonceVerifier.OK);
+    }
+
+    assertThat(verifier.seen(OP_URL, verifier.nonce(0L, "n1000"))).isEqualTo(NonceVerifier.SEEN);
+    assertThat(verifier.getRejectedAsFull()).isEqualTo(1L);
+    assertThat(verifier.getRejectedAsSeen()).isEqualTo(0L);
+  }
+
+  @Test
+  public void replayed_nonce_does_not_consume_capacity() {
+    FakeClockVerifier verifier = new FakeClockVerifier(60, 2);
+    String nonce = verifier.nonce(0L, "a");
+    verifier.seen(OP_URL, nonce);
+    verifier.seen(OP_URL, nonce);
+
+    assertThat(verifier.size()).isEqualTo(1);
+    assertThat(verifier.seen(OP_URL, verifier.nonce(0L, "b"))).isEqualTo(NonceVerifier.OK);
+  }
+
+  @Test
+  public void change_max_age() {
+    FakeClockVerifier verifier = new FakeClockVerifier(60, 1000);
+    verifier.seen(OP_URL, verifier.nonce(0L, "a"));
+
+    verifier.setMaxAge(120);
+
+    assertThat(verifier.getMaxAge()).isEqualTo(120);
+    assertThat(verifier.size()).isEqualTo(0);
+    assertThat(verifier.seen(OP_URL, verifier.nonce(-90000L, "b"))).isEqualTo(NonceVerifier.OK);
+  }
+
+  private static class FakeClockVerifier extends BucketedNonceVerifier {
+    private long now = 1330000000000L;
+
+    FakeClockVerifier(int maxAgeSeconds, int capacity) {
+      super(maxAgeSeconds, capacity);
+    }
+
+    @Override
+    long currentTimeMillis() {
+      return now;
+    }
+
+    String nonce(long offset, String unique) {
+      return new InternetDateFormat().format(new Date(now + offset)) + unique;
+    }
+  }
+}
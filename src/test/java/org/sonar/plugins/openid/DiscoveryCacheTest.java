@@ -0,0 +1,185 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryInformation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DiscoveryCacheTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void fail_to_start_if_missing_endpoint() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Property sonar.openid.providerUrl is missing");
+
+    new DiscoveryCache(null, 60L, null).start();
+  }
+
+  @Test
+  public void fail_to_refresh_if_bad_provider() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Fail to discover OpenID endpoint: abc is not xyz");
+
+    new DiscoveryCache("abc is not xyz", 60L, null).refresh();
+  }
+
+  @Test
+  public void start_from_snapshot_stored_on_disk() throws Exception {
+    File file = temp.newFile("discovery.properties");
+    writeSnapshot(file, "abc is not xyz", "http://localhost/openid", DiscoveryInformation.OPENID2_OP);
+
+    DiscoveryCache cache = new DiscoveryCache("abc is not xyz", 60L, file);
+    cache.start();
+    try {
+      // the background refresh fails, the last known information is kept
+      assertThat(cache.get().getOPEndpoint().toString()).isEqualTo("http://localhost/openid");
+    } finally {
+      cache.stop();
+    }
+  }
+
+  @Test
+  public void ignore_snapshot_of_other_endpoint() throws Exception {
+    File file = temp.newFile("discovery.properties");
+    writeSnapshot(file, "http://other", "http://localhost/openid", DiscoveryInformation.OPENID2_OP);
+
+    DiscoveryCache cache = new DiscoveryCache("abc is not xyz", 60L, file);
+
+    assertThat(cache.loadSnapshot()).isNull();
+  }
+
+  @Test
+  public void ignore_corrupted_snapshot() throws Exception {
+    File file = temp.newFile("discovery.properties");
+
+    DiscoveryCache cache = new DiscoveryCache("abc is not xyz", 60L, file);
+
+    assertThat(cache.loadSnapshot()).isNull();
+  }
+
+  @Test
+  public void ignore_snapshot_with_unknown_version() throws Exception {
+    File file = temp.newFile("discovery.properties");
+    writeSnapshot(file, "abc is not xyz", "http://localhost/openid", "http://example.com/openid/3.0");
+
+    DiscoveryCache cache = new DiscoveryCache("abc is not xyz", 60L, file);
+
+    assertThat(cache.loadSnapshot()).isNull();
+  }
+
+  @Test
+  public void ignore_snapshot_with_endpoint_other_than_http() throws Exception {
+    File file = temp.newFile("discovery.properties");
+    writeSnapshot(file, "abc is not xyz", "file:/etc/passwd", DiscoveryInformation.OPENID2_OP);
+
+    DiscoveryCache cache = new DiscoveryCache("abc is not xyz", 60L, file);
+
+    assertThat(cache.loadSnapshot()).isNull();
+  }
+
+  @Test
+  public void ignore_snapshot_writable_by_other_users() throws Exception {
+    File file = temp.newFile("discovery.properties");
+    writeSnapshot(file, "abc is not xyz", "http://localhost/openid", DiscoveryInformation.OPENID2_OP);
+    Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+
+    DiscoveryCache cache = new DiscoveryCache("abc is not xyz", 60L, file);
+
+    assertThat(cache.loadSnapshot()).isNull();
+  }
+
+  @Test
+  public void get_does_not_refresh_if_information_is_available() throws Exception {
+    DiscoveryCache cache = new DiscoveryCache("abc is not xyz", 60L, null);
+    DiscoveryInformation info = new DiscoveryInformation(new URL("http://localhost/openid"));
+    cache.set(info);
+
+    assertThat(cache.get()).isSameAs(info);
+  }
+
+  @Test
+  public void keep_all_discovered_endpoints() throws Exception {
+    DiscoveryInformation primary = new DiscoveryInformation(new URL("http://primary/openid"));
+    DiscoveryInformation secondary = new DiscoveryInformation(new URL("http://secondary/openid"));
+    Discovery discovery = mock(Discovery.class);
+    when(discovery.discover("http://provider")).thenReturn(Arrays.asList(primary, secondary));
+    File file = new File(temp.getRoot(), "discovery.properties");
+
+    DiscoveryCache cache = new DiscoveryCache("http://provider", 60L, file, new OpenIdMetrics(), discovery);
+    cache.refresh();
+
+    assertThat(cache.getAll()).containsExactly(primary, secondary);
+    assertThat(cache.get()).isSameAs(primary);
+    List<DiscoveryInformation> snapshot = new DiscoveryCache("http://provider", 60L, file).loadSnapshot();
+    assertThat(snapshot).hasSize(2);
+    assertThat(snapshot.get(1).getOPEndpoint().toString()).isEqualTo("http://secondary/openid");
+    assertThat(snapshot.get(1).getVersion()).isEqualTo(secondary.getVersion());
+  }
+
+  @Test
+  public void save_snapshot_in_private_directory() throws Exception {
+    Discovery discovery = mock(Discovery.class);
+    when(discovery.discover("http://provider")).thenReturn(Arrays.asList(new DiscoveryInformation(new URL("http://localhost/openid"))));
+    File file = new File(temp.getRoot(), "data/openid/discovery.properties");
+
+    new DiscoveryCache("http://provider", 60L, file, new OpenIdMetrics(), discovery).refresh();
+
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath()))).isEqualTo("rw-------");
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.getParentFile().toPath()))).isEqualTo("rwx------");
+    assertThat(PrivateFiles.isNotWritableByOthers(file)).isTrue();
+  }
+
+  private static void writeSnapshot(File file, String endpoint, String opEndpoint, String version) throws Exception {
+    Properties snapshot = new Properties();
+    snapshot.setProperty("endpoint", endpoint);
+    snapshot.setProperty("count", "1");
+    snapshot.setProperty("0.opEndpoint", opEndpoint);
+    snapshot.setProperty("0.version", version);
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      snapshot.store(output, null);
+    } finally {
+      output.close();
+    }
+  }
+}
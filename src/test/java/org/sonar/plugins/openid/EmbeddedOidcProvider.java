@@ -0,0 +1,340 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.openid4java.message.ParameterList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.security.*;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OpenID Connect issuer listening on a local HTTP port, so that {@link OpenIdClient} can be configured with
+ * <code>sonar.openid.protocol=oidc</code> and <code>sonar.openid.providerUrl=http://localhost:&lt;port&gt;/oidc</code>.
+ * It supports the configuration document, the key set, the authorization endpoint and the token endpoint of the
+ * authorization code flow. The response type id_token is also supported, with the response mode form_post: the
+ * authorization endpoint then returns a form that posts the ID token to the redirect URI. ID tokens are signed with RS256. Users are logged in without any form: the login is read
+ * from the parameter {@link #USER_PARAMETER} of the authentication request, with default value {@link #DEFAULT_USER}.
+ */
+public class EmbeddedOidcProvider {
+
+  public static final String USER_PARAMETER = "stub.user";
+  public static final String DEFAULT_USER = "john";
+  public static final String CLIENT_ID = "sonar";
+  public static final String CLIENT_SECRET = "s3cr3t";
+
+  private static final String PATH = "/oidc";
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private String issuer;
+  private volatile KeyPair keyPair;
+  private volatile String kid;
+  private final ConcurrentMap<String, Grant> grants = new ConcurrentHashMap<String, Grant>();
+  private final AtomicInteger keysRequests = new AtomicInteger();
+  private final AtomicInteger tokenRequests = new AtomicInteger();
+
+  public EmbeddedOidcProvider start() {
+    generateKey();
+    try {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to start embedded OpenID Connect provider", e);
+    }
+    issuer = "http://localhost:" + server.getAddress().getPort() + PATH;
+    server.createContext(PATH + "/.well-known/openid-configuration", new ConfigurationHandler());
+    server.createContext(PATH + "/jwks", new KeysHandler());
+    server.createContext(PATH + "/authorize", new AuthorizationHandler());
+    server.createContext(PATH + "/token", new TokenHandler());
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+    return this;
+  }
+
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+      executor.shutdownNow();
+      server = null;
+    }
+  }
+
+  /**
+   * Value of the property sonar.openid.providerUrl
+   */
+  public String getIssuer() {
+    return issuer;
+  }
+
+  private void generateKey() {
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(2048);
+      keyPair = generator.generateKeyPair();
+      kid = UUID.randomUUID().toString();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public int getKeysRequests() {
+    return keysRequests.get();
+  }
+
+  public int getTokenRequests() {
+    return tokenRequests.get();
+  }
+
+  /**
+   * JSON key set publishing the given key
+   */
+  public static String keySet(String kid, PublicKey key) {
+    if (key instanceof ECPublicKey) {
+      ECPublicKey ec = (ECPublicKey) key;
+      int size = fieldSize(ec);
+      return "{\"keys\":[{\"kty\":\"EC\",\"use\":\"sig\",\"crv\":\"P-" + ec.getParams().getCurve().getField().getFieldSize() + "\","
+        + "\"kid\":\"" + kid + "\","
+        + "\"x\":\"" + Base64.encodeBase64URLSafeString(fixedLength(ec.getW().getAffineX().toByteArray(), size)) + "\","
+        + "\"y\":\"" + Base64.encodeBase64URLSafeString(fixedLength(ec.getW().getAffineY().toByteArray(), size)) + "\"}]}";
+    }
+    RSAPublicKey rsa = (RSAPublicKey) key;
+    return "{\"keys\":[{\"kty\":\"RSA\",\"use\":\"sig\",\"alg\":\"RS256\",\"kid\":\"" + kid + "\","
+      + "\"n\":\"" + Base64.encodeBase64URLSafeString(unsigned(rsa.getModulus().toByteArray())) + "\","
+      + "\"e\":\"" + Base64.encodeBase64URLSafeString(unsigned(rsa.getPublicExponent().toByteArray())) + "\"}]}";
+  }
+
+  /**
+   * Compact serialization of a JWT signed with the given algorithm of java.security, for example SHA256withRSA.
+   * ECDSA signatures are converted from DER to the concatenation of R and S required by JWS.
+   */
+  public static String sign(String headerJson, String claimsJson, PrivateKey key, String algorithm) {
+    try {
+      String content = Base64.encodeBase64URLSafeString(headerJson.getBytes(Charsets.UTF_8)) + "."
+        + Base64.encodeBase64URLSafeString(claimsJson.getBytes(Charsets.UTF_8));
+      Signature signature = Signature.getInstance(algorithm);
+      signature.initSign(key);
+      signature.update(content.getBytes(Charsets.US_ASCII));
+      byte[] bytes = signature.sign();
+      if (key instanceof ECKey) {
+        bytes = toConcatenated(bytes, fieldSize((ECKey) key));
+      }
+      return content + "." + Base64.encodeBase64URLSafeString(bytes);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int fieldSize(ECKey key) {
+    return (key.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+  }
+
+  /**
+   * DER sequence of two integers, to R and S encoded on the given number of bytes
+   */
+  private static byte[] toConcatenated(byte[] der, int size) {
+    int offset = (der[1] & 0x80) == 0 ? 2 : 2 + (der[1] & 0x7f);
+    int rLength = der[offset + 1];
+    byte[] r = new byte[rLength];
+    System.arraycopy(der, offset + 2, r, 0, rLength);
+    offset += 2 + rLength;
+    byte[] s = new byte[der[offset + 1]];
+    System.arraycopy(der, offset + 2, s, 0, s.length);
+    byte[] result = new byte[2 * size];
+    System.arraycopy(fixedLength(r, size), 0, result, 0, size);
+    System.arraycopy(fixedLength(s, size), 0, result, size, size);
+    return result;
+  }
+
+  private static byte[] fixedLength(byte[] bytes, int size) {
+    byte[] unsigned = unsigned(bytes);
+    byte[] result = new byte[size];
+    System.arraycopy(unsigned, 0, result, size - unsigned.length, unsigned.length);
+    return result;
+  }
+
+  private static byte[] unsigned(byte[] bytes) {
+    if (bytes.length > 1 && bytes[0] == 0) {
+      byte[] result = new byte[bytes.length - 1];
+      System.arraycopy(bytes, 1, result, 0, result.length);
+      return result;
+    }
+    return bytes;
+  }
+
+  private String idToken(Grant grant) {
+    long now = System.currentTimeMillis() / 1000L;
+    String claims = "{\"iss\":\"" + issuer + "\",\"sub\":\"" + grant.user + "\",\"aud\":\"" + CLIENT_ID + "\","
+      + "\"iat\":" + now + ",\"exp\":" + (now + 300L) + ",\"nonce\":\"" + grant.nonce + "\","
+      + "\"name\":\"Name " + grant.user + "\",\"email\":\"" + grant.user + "@example.com\"}";
+    return sign("{\"alg\":\"RS256\",\"typ\":\"JWT\",\"kid\":\"" + kid + "\"}", claims, keyPair.getPrivate(), "SHA256withRSA");
+  }
+
+  private class ConfigurationHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        send(exchange, 200, "{\"issuer\":\"" + issuer + "\","
+          + "\"authorization_endpoint\":\"" + issuer + "/authorize\","
+          + "\"token_endpoint\":\"" + issuer + "/token\","
+          + "\"jwks_uri\":\"" + issuer + "/jwks\","
+          + "\"response_types_supported\":[\"code\",\"id_token\"],"
+          + "\"id_token_signing_alg_values_supported\":[\"RS256\"]}");
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private class KeysHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        keysRequests.incrementAndGet();
+        send(exchange, 200, keySet(kid, keyPair.getPublic()));
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private class AuthorizationHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        ParameterList params = parameters(exchange);
+        String redirectUri = params.getParameterValue("redirect_uri");
+        String responseType = params.getParameterValue("response_type");
+        boolean implicit = "id_token".equals(responseType) && "form_post".equals(params.getParameterValue("response_mode"));
+        if (!("code".equals(responseType) || implicit) || !CLIENT_ID.equals(params.getParameterValue("client_id")) || redirectUri == null) {
+          exchange.sendResponseHeaders(400, -1);
+          return;
+        }
+        String user = params.hasParameter(USER_PARAMETER) ? params.getParameterValue(USER_PARAMETER) : DEFAULT_USER;
+        Grant grant = new Grant(user, params.getParameterValue("nonce"), redirectUri);
+        String state = params.getParameterValue("state");
+        if (implicit) {
+          sendForm(exchange, redirectUri, "id_token", idToken(grant), "state", state);
+          return;
+        }
+        String code = UUID.randomUUID().toString();
+        grants.put(code, grant);
+        exchange.getResponseHeaders().set("Location", redirectUri + "?code=" + code + "&state=" + URLEncoder.encode(state, "UTF-8"));
+        exchange.sendResponseHeaders(302, -1);
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private class TokenHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        tokenRequests.incrementAndGet();
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Basic ")
+          || !(CLIENT_ID + ":" + CLIENT_SECRET).equals(new String(Base64.decodeBase64(authorization.substring(6)), Charsets.UTF_8))) {
+          send(exchange, 401, "{\"error\":\"invalid_client\"}");
+          return;
+        }
+        ParameterList params = parameters(exchange);
+        // codes are used once
+        Grant grant = grants.remove(params.getParameterValue("code"));
+        if (!"POST".equals(exchange.getRequestMethod()) || !"authorization_code".equals(params.getParameterValue("grant_type"))
+          || grant == null || !grant.redirectUri.equals(params.getParameterValue("redirect_uri"))) {
+          send(exchange, 400, "{\"error\":\"invalid_grant\"}");
+          return;
+        }
+        send(exchange, 200, "{\"access_token\":\"" + UUID.randomUUID() + "\",\"token_type\":\"Bearer\",\"expires_in\":300,"
+          + "\"id_token\":\"" + idToken(grant) + "\"}");
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private static ParameterList parameters(HttpExchange exchange) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if ("POST".equals(exchange.getRequestMethod())) {
+      query = new String(ByteStreams.toByteArray(exchange.getRequestBody()), "UTF-8");
+    }
+    try {
+      return ParameterList.createFromQueryString(query == null ? "" : query);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Invalid request: " + query, e);
+    }
+  }
+
+  /**
+   * Page that posts the given names and values to the action when loaded by the browser
+   */
+  private static void sendForm(HttpExchange exchange, String action, String... namesAndValues) throws IOException {
+    StringBuilder html = new StringBuilder("<html><body onload=\"document.forms[0].submit()\"><form method=\"post\" action=\"")
+      .append(StringEscapeUtils.escapeHtml(action)).append("\">");
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      html.append("<input type=\"hidden\" name=\"").append(namesAndValues[i])
+        .append("\" value=\"").append(StringEscapeUtils.escapeHtml(namesAndValues[i + 1])).append("\"/>");
+    }
+    send(exchange, 200, "text/html", html.append("</form></body></html>").toString());
+  }
+
+  private static void send(HttpExchange exchange, int status, String json) throws IOException {
+    send(exchange, status, "application/json", json);
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, String content) throws IOException {
+    byte[] body = content.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream output = exchange.getResponseBody();
+    try {
+      output.write(body);
+    } finally {
+      output.close();
+    }
+  }
+
+  private static final class Grant {
+    private final String user;
+    private final String nonce;
+    private final String redirectUri;
+
+    private Grant(String user, String nonce, String redirectUri) {
+      this.user = user;
+      this.nonce = nonce;
+      this.redirectUri = redirectUri;
+    }
+  }
+}
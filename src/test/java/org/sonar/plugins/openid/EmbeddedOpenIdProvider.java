@@ -0,0 +1,177 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.ParameterList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * OpenID 2.0 provider listening on a local HTTP port, so that {@link OpenIdClient} can be configured with
+ * <code>sonar.openid.providerUrl=http://localhost:&lt;port&gt;/openid/provider</code>. It supports
+ * discovery (XRDS documents of the provider and of the claimed identifiers), association, checkid_setup and
+ * check_authentication. Users are logged in without any form: the login is read from the parameter
+ * {@link #USER_PARAMETER} of the authentication request, with default value {@link #DEFAULT_USER}.
+ */
+public class EmbeddedOpenIdProvider {
+
+  public static final String USER_PARAMETER = "stub.user";
+  public static final String DEFAULT_USER = "john";
+
+  private static final String PROVIDER_PATH = "/openid/provider";
+  private static final String IDENTITY_PATH = "/openid/id/";
+  private static final String XRDS_CONTENT_TYPE = "application/xrds+xml";
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private StubOpenIdProvider stub;
+  private String baseUrl;
+
+  public EmbeddedOpenIdProvider start() {
+    try {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to start embedded OpenID provider", e);
+    }
+    baseUrl = "http://localhost:" + server.getAddress().getPort();
+    stub = new StubOpenIdProvider(baseUrl + PROVIDER_PATH);
+    server.createContext(PROVIDER_PATH, new ProviderHandler());
+    server.createContext(IDENTITY_PATH, new IdentityHandler());
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+    return this;
+  }
+
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+      executor.shutdownNow();
+      server = null;
+    }
+  }
+
+  /**
+   * Value of the property sonar.openid.providerUrl
+   */
+  public String getEndpoint() {
+    return stub.getEndpoint();
+  }
+
+  public String claimedId(String user) {
+    return baseUrl + IDENTITY_PATH + user;
+  }
+
+  public StubOpenIdProvider getStub() {
+    return stub;
+  }
+
+  private class ProviderHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        ParameterList params = parameters(exchange);
+        String mode = params.getParameterValue("openid.mode");
+        if (mode == null) {
+          sendXrds(exchange, "http://specs.openid.net/auth/2.0/server");
+        } else if ("associate".equals(mode)) {
+          sendKeyValues(exchange, stub.getServerManager().associationResponse(params));
+        } else if ("check_authentication".equals(mode)) {
+          sendKeyValues(exchange, stub.getServerManager().verify(params));
+        } else if ("checkid_setup".equals(mode)) {
+          String user = params.hasParameter(USER_PARAMETER) ? params.getParameterValue(USER_PARAMETER) : DEFAULT_USER;
+          AuthSuccess response = stub.login(params, claimedId(user), "Name " + user, user + "@example.com");
+          exchange.getResponseHeaders().set("Location", response.getDestinationUrl(true));
+          exchange.sendResponseHeaders(302, -1);
+        } else {
+          exchange.sendResponseHeaders(400, -1);
+        }
+      } catch (RuntimeException e) {
+        exchange.sendResponseHeaders(500, -1);
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private class IdentityHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        sendXrds(exchange, "http://specs.openid.net/auth/2.0/signon");
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private static ParameterList parameters(HttpExchange exchange) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if ("POST".equals(exchange.getRequestMethod())) {
+      query = new String(ByteStreams.toByteArray(exchange.getRequestBody()), "UTF-8");
+    }
+    try {
+      return ParameterList.createFromQueryString(query == null ? "" : query);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Invalid request: " + query, e);
+    }
+  }
+
+  private void sendXrds(HttpExchange exchange, String serviceType) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", XRDS_CONTENT_TYPE);
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    String xrds = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n"
+      + "  <XRD>\n"
+      + "    <Service priority=\"0\">\n"
+      + "      <Type>" + serviceType + "</Type>\n"
+      + "      <URI>" + getEndpoint() + "</URI>\n"
+      + "    </Service>\n"
+      + "  </XRD>\n"
+      + "</xrds:XRDS>\n";
+    send(exchange, xrds.getBytes("UTF-8"));
+  }
+
+  private static void sendKeyValues(HttpExchange exchange, Message message) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    send(exchange, message.keyValueFormEncoding().getBytes("UTF-8"));
+  }
+
+  private static void send(HttpExchange exchange, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(200, body.length);
+    OutputStream output = exchange.getResponseBody();
+    try {
+      output.write(body);
+    } finally {
+      output.close();
+    }
+  }
+}
@@ -0,0 +1,360 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.MessageExtension;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegResponse;
+import org.sonar.plugins.openid.api.OpenIdExtension;
+import org.sonar.plugins.openid.api.OpenIdResponseExtensions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ExtensionVerifierTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private ExtensionVerifier verifier;
+  private AuthSuccess response = mock(AuthSuccess.class);
+
+  @After
+  public void tearDown() {
+    if (verifier != null) {
+      verifier.stop();
+    }
+  }
+
+  @Test
+  public void sequential_and_semantics() {
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Result(false)), new OpenIdMetrics());
+    assertThat(verifier.isParallel()).isFalse();
+    assertThat(verifier.verify(response)).isFalse();
+
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Result(true)), new OpenIdMetrics());
+    assertThat(verifier.verify(response)).isTrue();
+  }
+
+  @Test
+  public void no_extensions() {
+    verifier = new ExtensionVerifier(Collections.<OpenIdExtension>emptyList(), new OpenIdMetrics(), 4, 1000L, false);
+
+    assertThat(verifier.isParallel()).isFalse();
+    assertThat(verifier.verify(response)).isTrue();
+  }
+
+  @Test
+  public void sequential_errors_are_propagated() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("directory is down");
+
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Failure()), new OpenIdMetrics());
+    verifier.verify(response);
+  }
+
+  @Test
+  public void parallel_and_semantics() {
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Result(false), new Result(true)), new OpenIdMetrics(), 4, 5000L, false);
+    assertThat(verifier.isParallel()).isTrue();
+    assertThat(verifier.verify(response)).isFalse();
+
+    verifier.stop();
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Result(true)), new OpenIdMetrics(), 4, 5000L, false);
+    assertThat(verifier.verify(response)).isTrue();
+  }
+
+  @Test
+  public void extensions_are_executed_concurrently() {
+    // each extension waits for the other one
+    CountDownLatch latch = new CountDownLatch(2);
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Barrier(latch), new Barrier(latch)), new OpenIdMetrics(), 2, 5000L, false);
+
+    assertThat(verifier.verify(response)).isTrue();
+  }
+
+  @Test
+  public void timeout_fail_closed() {
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Slow()), new OpenIdMetrics(), 2, 100L, false);
+
+    long start = System.currentTimeMillis();
+    assertThat(verifier.verify(response)).isFalse();
+    assertThat(System.currentTimeMillis() - start).isLessThan(5000L);
+  }
+
+  @Test
+  public void timeout_fail_open() {
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Slow()), new OpenIdMetrics(), 2, 100L, true);
+
+    assertThat(verifier.verify(response)).isTrue();
+  }
+
+  @Test
+  public void rejection_is_not_overridden_by_fail_open() {
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(false), new Slow()), new OpenIdMetrics(), 2, 1000L, true);
+
+    assertThat(verifier.verify(response)).isFalse();
+  }
+
+  @Test
+  public void saturated_pool_fail_closed() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Blocking(started, release)), new OpenIdMetrics(), 1, 5000L, false);
+    Thread busy = startVerification(verifier);
+    try {
+      assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+      // the single thread is busy, the request thread does not execute the extension itself
+      long start = System.currentTimeMillis();
+      assertThat(verifier.verify(response)).isFalse();
+      assertThat(System.currentTimeMillis() - start).isLessThan(1000L);
+    } finally {
+      release.countDown();
+      busy.join();
+    }
+  }
+
+  @Test
+  public void saturated_pool_fail_open() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Blocking(started, release)), new OpenIdMetrics(), 1, 5000L, true);
+    Thread busy = startVerification(verifier);
+    try {
+      assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+      assertThat(verifier.verify(response)).isTrue();
+    } finally {
+      release.countDown();
+      busy.join();
+    }
+  }
+
+  @Test
+  public void each_extension_has_its_own_timeout() {
+    // the slow extension times out, but the rejection of the other one is still taken into account
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Slow(), new Delayed(300L, false)), new OpenIdMetrics(), 2, 500L, true);
+
+    assertThat(verifier.verify(response)).isFalse();
+  }
+
+  @Test
+  public void error_fail_closed() {
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Failure()), new OpenIdMetrics(), 2, 1000L, false);
+
+    assertThat(verifier.verify(response)).isFalse();
+  }
+
+  @Test
+  public void error_fail_open() {
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true), new Failure()), new OpenIdMetrics(), 2, 1000L, true);
+
+    assertThat(verifier.verify(response)).isTrue();
+  }
+
+  @Test
+  public void record_latency_of_extensions() {
+    OpenIdMetrics metrics = new OpenIdMetrics();
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true)), metrics, 2, 1000L, true);
+
+    verifier.verify(response);
+
+    assertThat(metrics.getLatencyCounts().get("extension." + Result.class.getName())).isEqualTo(1L);
+  }
+
+  @Test
+  public void legacy_extensions_read_message_extensions_concurrently() throws Exception {
+    AuthSuccess response = AuthSuccess.createAuthSuccess(ParameterList.createFromQueryString(
+      "openid.ns=http://specs.openid.net/auth/2.0&openid.mode=id_res&openid.op_endpoint=http://localhost/openid/provider"
+        + "&openid.claimed_id=http://example.com/john&openid.identity=http://example.com/john&openid.return_to=http://localhost:9000"
+        + "&openid.response_nonce=2012-01-01T00:00:00Zabc&openid.assoc_handle=handle&openid.sig=c2ln"
+        + "&openid.signed=op_endpoint,claimed_id,identity,return_to,response_nonce,assoc_handle,ns.ext1,ext1.mode,ext1.type.email,ext1.value.email,ns.sreg,sreg.fullname"
+        + "&openid.ns.ext1=http://openid.net/srv/ax/1.0&openid.ext1.mode=fetch_response"
+        + "&openid.ext1.type.email=http://axschema.org/contact/email&openid.ext1.value.email=john@example.com"
+        + "&openid.ns.sreg=http://openid.net/sreg/1.0&openid.sreg.fullname=John"));
+    OpenIdResponseExtensions extensions = new OpenIdResponseExtensions(response);
+    CountDownLatch latch = new CountDownLatch(2);
+    ReadExtension ax = new ReadExtension(latch, AxMessage.OPENID_NS_AX);
+    ReadExtension sreg = new ReadExtension(latch, SRegMessage.OPENID_NS_SREG);
+    ReadExtension otherAx = new ReadExtension(latch, AxMessage.OPENID_NS_AX);
+    verifier = new ExtensionVerifier(Arrays.<OpenIdExtension>asList(ax, sreg, otherAx), new OpenIdMetrics(), 3, 5000L, false);
+
+    assertThat(verifier.verify(extensions)).isTrue();
+
+    // extensions were parsed once by the request thread, pool threads only read the cache of the message
+    assertThat(ax.extension).isInstanceOf(FetchResponse.class);
+    assertThat(ax.extension).isSameAs(otherAx.extension).isSameAs(extensions.get(FetchResponse.class, AxMessage.OPENID_NS_AX));
+    assertThat(sreg.extension).isInstanceOf(SRegResponse.class).isSameAs(extensions.get(SRegResponse.class, SRegMessage.OPENID_NS_SREG));
+  }
+
+  @Test
+  public void timeout_is_mandatory_in_parallel_mode() {
+    thrown.expect(IllegalArgumentException.class);
+
+    new ExtensionVerifier(Arrays.<OpenIdExtension>asList(new Result(true)), new OpenIdMetrics(), 2, 0L, true);
+  }
+
+  static class Result extends OpenIdExtension {
+    private final boolean result;
+
+    Result(boolean result) {
+      this.result = result;
+    }
+
+    @Override
+    public boolean doVerifyResponse(AuthSuccess response) {
+      return result;
+    }
+  }
+
+  static class Failure extends OpenIdExtension {
+    @Override
+    public boolean doVerifyResponse(AuthSuccess response) {
+      throw new IllegalStateException("directory is down");
+    }
+  }
+
+  static class Slow extends OpenIdExtension {
+    @Override
+    public boolean doVerifyResponse(AuthSuccess response) {
+      try {
+        Thread.sleep(60000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return true;
+    }
+  }
+
+  static class Delayed extends OpenIdExtension {
+    private final long delayMillis;
+    private final boolean result;
+
+    Delayed(long delayMillis, boolean result) {
+      this.delayMillis = delayMillis;
+      this.result = result;
+    }
+
+    @Override
+    public boolean doVerifyResponse(AuthSuccess response) {
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return result;
+    }
+  }
+
+  static class Blocking extends OpenIdExtension {
+    private final CountDownLatch started;
+    private final CountDownLatch release;
+
+    Blocking(CountDownLatch started, CountDownLatch release) {
+      this.started = started;
+      this.release = release;
+    }
+
+    @Override
+    public boolean doVerifyResponse(AuthSuccess response) {
+      started.countDown();
+      try {
+        return release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Legacy extension reading a message extension of the response when all the extensions are started
+   */
+  static class ReadExtension extends OpenIdExtension {
+    private final CountDownLatch latch;
+    private final String typeUri;
+    volatile MessageExtension extension;
+
+    ReadExtension(CountDownLatch latch, String typeUri) {
+      this.latch = latch;
+      this.typeUri = typeUri;
+    }
+
+    @Override
+    public boolean doVerifyResponse(AuthSuccess response) {
+      latch.countDown();
+      try {
+        latch.await(5, TimeUnit.SECONDS);
+        extension = response.getExtension(typeUri);
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (MessageException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private Thread startVerification(final ExtensionVerifier verifier) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        verifier.verify(response);
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  static class Barrier extends OpenIdExtension {
+    private final CountDownLatch latch;
+
+    Barrier(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public boolean doVerifyResponse(AuthSuccess response) {
+      latch.countDown();
+      try {
+        return latch.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.inject.Provider;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openid4java.consumer.NonceVerifier;
+import org.openid4java.consumer.VerificationResult;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class FastVerificationConsumerManagerTest {
+
+  private static final String CLAIMED_ID = "http://localhost/openid/id/john";
+  private static final String RETURN_TO = "http://localhost:9000/openid/validate";
+
+  private StubOpenIdProvider provider = new StubOpenIdProvider();
+  private FastVerificationConsumerManager manager = new FastVerificationConsumerManager();
+  private DiscoveryInformation discovered = provider.discover(CLAIMED_ID);
+
+  @Before
+  public void setUp() {
+    manager.getRealmVerifier().setEnforceRpId(false);
+    manager.setMaxAssocAttempts(0);
+  }
+
+  @Test
+  public void verify_response_signed_with_association() throws Exception {
+    provider.associate(manager.getAssociations(), 3600);
+    ParameterList response = login();
+
+    assertThat(manager.fastPathAssociation(response, discovered)).isNotNull();
+    VerificationResult result = manager.verify(receivingUrl(response), response, discovered);
+
+    assertThat(result.getVerifiedId().getIdentifier()).isEqualTo(CLAIMED_ID);
+    assertThat(result.getAuthResponse()).isInstanceOf(AuthSuccess.class);
+  }
+
+  @Test
+  public void reject_forged_response_without_consuming_nonce() throws Exception {
+    provider.associate(manager.getAssociations(), 3600);
+    NonceVerifier nonceVerifier = mock(NonceVerifier.class);
+    manager.setNonceVerifier(nonceVerifier);
+    ParameterList response = login();
+    String receivingUrl = receivingUrl(response);
+    response.set(new Parameter("openid.claimed_id", "http://localhost/openid/id/admin"));
+
+    VerificationResult result = manager.verify(receivingUrl, response, discovered);
+
+    assertThat(result.getVerifiedId()).isNull();
+    assertThat(result.getStatusMsg()).isEqualTo("Local signature verification failed");
+    verify(nonceVerifier, never()).seen(anyString(), anyString());
+  }
+
+  @Test
+  public void reject_replayed_response() throws Exception {
+    provider.associate(manager.getAssociations(), 3600);
+    ParameterList response = login();
+
+    assertThat(manager.verify(receivingUrl(response), response, discovered).getVerifiedId()).isNotNull();
+    VerificationResult replay = manager.verify(receivingUrl(response), response, discovered);
+
+    assertThat(replay.getVerifiedId()).isNull();
+    assertThat(replay.getStatusMsg()).isEqualTo("Nonce verification failed.");
+  }
+
+  @Test
+  public void verify_response_of_unknown_association_with_provider() throws Exception {
+    FastVerificationConsumerManager manager = newManagerCallingProvider();
+    BucketedNonceVerifier nonceVerifier = new BucketedNonceVerifier(60, 100);
+    manager.setNonceVerifier(nonceVerifier);
+    ParameterList response = login(manager);
+
+    VerificationResult result = manager.verify(receivingUrl(response), response, discovered);
+
+    assertThat(result.getVerifiedId().getIdentifier()).isEqualTo(CLAIMED_ID);
+    // nonce is recorded after the signature is verified by the provider
+    assertThat(nonceVerifier.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void reject_forged_response_of_unknown_association_without_consuming_nonce() throws Exception {
+    FastVerificationConsumerManager manager = newManagerCallingProvider();
+    NonceVerifier nonceVerifier = mock(NonceVerifier.class);
+    manager.setNonceVerifier(nonceVerifier);
+    ParameterList response = login(manager);
+    String receivingUrl = receivingUrl(response);
+    response.set(new Parameter("openid.response_nonce", "2030-01-01T00:00:00Zjunk"));
+
+    VerificationResult result = manager.verify(receivingUrl, response, discovered);
+
+    assertThat(result.getVerifiedId()).isNull();
+    verify(nonceVerifier, never()).seen(anyString(), anyString());
+  }
+
+  @Test
+  public void reject_bad_return_to() throws Exception {
+    provider.associate(manager.getAssociations(), 3600);
+    ParameterList response = login();
+
+    VerificationResult result = manager.verify("http://evil:9000/openid/validate", response, discovered);
+
+    assertThat(result.getVerifiedId()).isNull();
+    assertThat(result.getStatusMsg()).isEqualTo("Return_To URL verification failed.");
+  }
+
+  @Test
+  public void fall_back_to_openid4java_if_unknown_association() throws Exception {
+    ParameterList response = login();
+
+    assertThat(manager.fastPathAssociation(response, discovered)).isNull();
+  }
+
+  @Test
+  public void fall_back_to_openid4java_if_handle_is_invalidated() throws Exception {
+    provider.associate(manager.getAssociations(), 3600);
+    ParameterList response = login();
+    response.set(new Parameter("openid.invalidate_handle", "old"));
+
+    assertThat(manager.fastPathAssociation(response, discovered)).isNull();
+  }
+
+  @Test
+  public void fall_back_to_openid4java_if_local_verification_is_disabled() throws Exception {
+    FastVerificationConsumerManager manager = new FastVerificationConsumerManager(new RealmVerifierFactory(new YadisResolver(new HttpFetcherFactory())),
+      new Discovery(), new HttpFetcherFactory(), false);
+    manager.getRealmVerifier().setEnforceRpId(false);
+    manager.setMaxAssocAttempts(0);
+    provider.associate(manager.getAssociations(), 3600);
+    ParameterList response = login(manager);
+
+    assertThat(manager.fastPathAssociation(response, discovered)).isNull();
+  }
+
+  @Test
+  public void fall_back_to_openid4java_if_other_provider() throws Exception {
+    provider.associate(manager.getAssociations(), 3600);
+    ParameterList response = login();
+    response.set(new Parameter("openid.op_endpoint", "http://localhost/other/provider"));
+
+    assertThat(manager.fastPathAssociation(response, discovered)).isNull();
+  }
+
+  private ParameterList login() throws Exception {
+    return login(manager);
+  }
+
+  private ParameterList login(FastVerificationConsumerManager manager) throws Exception {
+    ParameterList request = new ParameterList(manager.authenticate(discovered, RETURN_TO).getParameterMap());
+    return new ParameterList(provider.login(request, CLAIMED_ID, "John Smith", "john@example.com").getParameterMap());
+  }
+
+  /**
+   * Manager without association, that verifies the signatures by calling the stub provider (stateless mode)
+   */
+  private FastVerificationConsumerManager newManagerCallingProvider() throws Exception {
+    final HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.post(anyString(), anyMap())).thenAnswer(new Answer<HttpResponse>() {
+      public HttpResponse answer(InvocationOnMock invocation) throws Exception {
+        String body = provider.getServerManager().verify(new ParameterList((Map) invocation.getArguments()[1])).keyValueFormEncoding();
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusCode()).thenReturn(200);
+        when(response.getBody()).thenReturn(body);
+        return response;
+      }
+    });
+    when(fetcher.post(anyString(), anyMap(), any(HttpRequestOptions.class))).thenAnswer(new Answer<HttpResponse>() {
+      public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        return fetcher.post((String) invocation.getArguments()[0], (Map<String, String>) invocation.getArguments()[1]);
+      }
+    });
+    HttpFetcherFactory fetchers = new HttpFetcherFactory(new Provider<HttpFetcher>() {
+      public HttpFetcher get() {
+        return fetcher;
+      }
+    });
+    FastVerificationConsumerManager manager = new FastVerificationConsumerManager(new RealmVerifierFactory(new YadisResolver(fetchers)),
+      new Discovery(), fetchers, true);
+    manager.getRealmVerifier().setEnforceRpId(false);
+    manager.setMaxAssocAttempts(0);
+    return manager;
+  }
+
+  private static String receivingUrl(ParameterList response) {
+    // the return-to URL of the request does not have parameters
+    return response.getParameterValue("openid.return_to");
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.openid4java.association.Association;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class FileAssociationStoreTest {
+
+  private static final String OP_URL = "https://provider/openid";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private File dir;
+
+  @Before
+  public void setUp() {
+    dir = new File(temp.getRoot(), "associations");
+  }
+
+  @Test
+  public void share_associations_between_nodes() {
+    FileAssociationStore node1 = new FileAssociationStore(dir);
+    FileAssociationStore node2 = new FileAssociationStore(dir);
+    Association association = Association.generateHmacSha256("handle1", 600);
+
+    node1.save(OP_URL, association);
+
+    Association loaded = node2.load(OP_URL, "handle1");
+    assertThat(loaded.getHandle()).isEqualTo("handle1");
+    assertThat(loaded.getType()).isEqualTo(Association.TYPE_HMAC_SHA256);
+    assertThat(loaded.getMacKey().getEncoded()).isEqualTo(association.getMacKey().getEncoded());
+    assertThat(loaded.getExpiry()).isEqualTo(association.getExpiry());
+    assertThat(node2.load(OP_URL).getHandle()).isEqualTo("handle1");
+    assertThat(node2.load("https://other/openid")).isNull();
+  }
+
+  @Test
+  public void load_latest_association() {
+    FileAssociationStore node1 = new FileAssociationStore(dir);
+    node1.save(OP_URL, Association.generateHmacSha1("old", 60));
+    node1.save(OP_URL, Association.generateHmacSha1("new", 600));
+
+    assertThat(new FileAssociationStore(dir).load(OP_URL).getHandle()).isEqualTo("new");
+  }
+
+  @Test
+  public void ignore_expired_associations() {
+    FileAssociationStore node1 = new FileAssociationStore(dir);
+    node1.save(OP_URL, Association.generateHmacSha1("expired", -10));
+
+    FileAssociationStore node2 = new FileAssociationStore(dir);
+    assertThat(node2.load(OP_URL)).isNull();
+    assertThat(node1.load(OP_URL, "expired")).isNull();
+    // expired files are purged
+    assertThat(dir.list()).isEmpty();
+  }
+
+  @Test
+  public void remove_association() {
+    FileAssociationStore node1 = new FileAssociationStore(dir);
+    node1.save(OP_URL, Association.generateHmacSha1("handle1", 600));
+
+    node1.remove(OP_URL, "handle1");
+
+    assertThat(node1.load(OP_URL, "handle1")).isNull();
+    assertThat(new FileAssociationStore(dir).load(OP_URL)).isNull();
+  }
+
+  @Test
+  public void only_the_server_can_read_the_keys() throws Exception {
+    FileAssociationStore store = new FileAssociationStore(dir);
+    store.save(OP_URL, Association.generateHmacSha256("handle1", 600));
+
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.toPath()))).isEqualTo("rwx------");
+    File[] files = dir.listFiles();
+    assertThat(files).hasSize(1);
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(files[0].toPath()))).isEqualTo("rw-------");
+  }
+
+  @Test
+  public void fail_if_directory_is_readable_by_other_users() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("must be accessible only by the user of the server");
+
+    dir.mkdir();
+    Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+    new FileAssociationStore(dir);
+  }
+
+  @Test
+  public void do_not_share_failed_associations() {
+    FileAssociationStore node1 = new FileAssociationStore(dir);
+    node1.save(OP_URL, Association.getFailedAssociation(300));
+
+    assertThat(node1.load(OP_URL).getHandle()).isEqualTo(Association.FAILED_ASSOC_HANDLE);
+    assertThat(dir.list()).isEmpty();
+  }
+}
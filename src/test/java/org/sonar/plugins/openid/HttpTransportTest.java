@@ -0,0 +1,249 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class HttpTransportTest {
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private String baseUrl;
+  private HttpTransport transport;
+
+  private final AtomicInteger fullResponses = new AtomicInteger();
+  private final AtomicInteger notModifiedResponses = new AtomicInteger();
+  private final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 50);
+    baseUrl = "http://localhost:" + server.getAddress().getPort();
+    server.createContext("/doc", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          notModifiedResponses.incrementAndGet();
+          exchange.sendResponseHeaders(304, -1);
+          exchange.close();
+          return;
+        }
+        fullResponses.incrementAndGet();
+        exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        exchange.getResponseHeaders().add("Content-Type", "application/xrds+xml");
+        respond(exchange, 200, "<xrds/>");
+      }
+    });
+    server.createContext("/redirect", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Location", baseUrl + "/doc");
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+      }
+    });
+    server.createContext("/form", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        respond(exchange, 200, new String(ByteStreams.toByteArray(exchange.getRequestBody()), Charsets.UTF_8));
+      }
+    });
+    server.createContext("/slow", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          Thread.sleep(2000L);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        respond(exchange, 200, "slow");
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+    transport = new HttpTransport(10, 5, 0, 0, 100);
+  }
+
+  @After
+  public void stopServer() {
+    transport.stop();
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(Charsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream output = exchange.getResponseBody();
+    output.write(bytes);
+    output.close();
+  }
+
+  private HttpFetcher newFetcher() {
+    return transport.fetcherFactory().createFetcher(HttpRequestOptions.getDefaultOptionsForDiscovery());
+  }
+
+  @Test
+  public void get_document() throws Exception {
+    HttpResponse response = newFetcher().get(baseUrl + "/doc");
+
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(response.getBody()).isEqualTo("<xrds/>");
+    assertThat(response.getFinalUri()).isEqualTo(baseUrl + "/doc");
+    assertThat(response.getResponseHeader("content-type").getValue()).isEqualTo("application/xrds+xml");
+    assertThat(response.isBodySizeExceeded()).isFalse();
+  }
+
+  @Test
+  public void final_uri_is_the_uri_after_redirects() throws Exception {
+    HttpResponse response = newFetcher().get(baseUrl + "/redirect");
+
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(response.getFinalUri()).isEqualTo(baseUrl + "/doc");
+  }
+
+  @Test
+  public void revalidate_cached_document_with_etag() throws Exception {
+    HttpFetcher fetcher = newFetcher();
+    fetcher.get(baseUrl + "/doc");
+    HttpResponse response = fetcher.get(baseUrl + "/doc");
+
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(response.getBody()).isEqualTo("<xrds/>");
+    assertThat(fullResponses.get()).isEqualTo(1);
+    assertThat(notModifiedResponses.get()).isEqualTo(1);
+    assertThat(transport.getCacheRevalidations()).isEqualTo(1);
+  }
+
+  @Test
+  public void serve_cached_document_during_ttl() throws Exception {
+    HttpRequestOptions options = HttpRequestOptions.getDefaultOptionsForDiscovery();
+    options.setCacheTTLSeconds(60L);
+    HttpFetcher fetcher = newFetcher();
+    fetcher.get(baseUrl + "/doc", options);
+    HttpResponse response = fetcher.get(baseUrl + "/doc", options);
+
+    assertThat(response.getBody()).isEqualTo("<xrds/>");
+    assertThat(fullResponses.get() + notModifiedResponses.get()).isEqualTo(1);
+    assertThat(transport.getCacheHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void do_not_use_cache_if_disabled_by_options() throws Exception {
+    HttpRequestOptions options = HttpRequestOptions.getDefaultOptionsForDiscovery();
+    options.setUseCache(false);
+    HttpFetcher fetcher = newFetcher();
+    fetcher.get(baseUrl + "/doc", options);
+    fetcher.get(baseUrl + "/doc", options);
+
+    assertThat(fullResponses.get()).isEqualTo(2);
+    assertThat(notModifiedResponses.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void cache_depends_on_accepted_content_type() throws Exception {
+    HttpRequestOptions xrds = HttpRequestOptions.getDefaultOptionsForDiscovery();
+    xrds.addRequestHeader("Accept", "application/xrds+xml");
+    HttpFetcher fetcher = newFetcher();
+    fetcher.get(baseUrl + "/doc", xrds);
+    fetcher.get(baseUrl + "/doc");
+
+    assertThat(fullResponses.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void post_form() throws Exception {
+    HttpResponse response = transport.fetcherFactory().createFetcher(HttpRequestOptions.getDefaultOptionsForOpCalls())
+      .post(baseUrl + "/form", Collections.singletonMap("openid.mode", "check_authentication"));
+
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(response.getBody()).isEqualTo("openid.mode=check_authentication");
+  }
+
+  @Test
+  public void reuse_connections() throws Exception {
+    // the JDK server closes the connection after a 304 response, so the cache is disabled
+    HttpRequestOptions options = HttpRequestOptions.getDefaultOptionsForDiscovery();
+    options.setUseCache(false);
+    HttpFetcher discovery = transport.fetcherFactory().createFetcher(options);
+    HttpFetcher opCalls = transport.fetcherFactory().createFetcher(HttpRequestOptions.getDefaultOptionsForOpCalls());
+    for (int i = 0; i < 5; i++) {
+      discovery.get(baseUrl + "/doc");
+      opCalls.post(baseUrl + "/form", Collections.singletonMap("i", String.valueOf(i)));
+    }
+
+    assertThat(clientPorts).hasSize(1);
+    assertThat(transport.getConnectionsInPool()).isEqualTo(1);
+  }
+
+  @Test
+  public void body_size_is_limited() throws Exception {
+    HttpRequestOptions options = HttpRequestOptions.getDefaultOptionsForDiscovery();
+    options.setMaxBodySize(3);
+    HttpResponse response = newFetcher().get(baseUrl + "/doc", options);
+
+    assertThat(response.isBodySizeExceeded()).isTrue();
+    assertThat(response.getBody()).isEqualTo("<xr");
+
+    // not cached
+    newFetcher().get(baseUrl + "/doc");
+    assertThat(fullResponses.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void configured_read_timeout_replaces_timeout_of_openid4java() throws Exception {
+    transport.stop();
+    transport = new HttpTransport(10, 5, 0, 100, 100);
+    try {
+      newFetcher().get(baseUrl + "/slow");
+      fail();
+    } catch (SocketTimeoutException e) {
+      // ok
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void max_connections_must_be_positive() {
+    new HttpTransport(0, 5, 0, 0, 100);
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IdTokenVerifierTest {
+
+  private static final String ISSUER = "http://localhost/oidc";
+  private static final String JWKS_URI = ISSUER + "/jwks";
+  private static final String NONCE = "n0nc3";
+  private static final long NOW_SECONDS = 1400000000L;
+  private static final String HEADER = "{\"alg\":\"RS256\",\"kid\":\"k1\"}";
+
+  private static KeyPair keyPair;
+  private static KeyPair otherKeyPair;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private JsonWebKeys keys = mock(JsonWebKeys.class);
+  private IdTokenVerifier verifier = new IdTokenVerifier("sonar", 60L, keys) {
+    @Override
+    long currentTimeMillis() {
+      return NOW_SECONDS * 1000L;
+    }
+  };
+
+  @BeforeClass
+  public static void generateKeys() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    keyPair = generator.generateKeyPair();
+    otherKeyPair = generator.generateKeyPair();
+  }
+
+  @Test
+  public void verify_valid_token() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+
+    Map<String, Object> claims = verifier.verify(token(HEADER, claims("sonar", NOW_SECONDS + 300L, NONCE)), ISSUER, JWKS_URI, NONCE);
+
+    assertThat(claims.get("sub")).isEqualTo("john");
+    assertThat(claims.get("name")).isEqualTo("John Doe");
+  }
+
+  @Test
+  public void verify_other_rsa_algorithms() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+    String token = EmbeddedOidcProvider.sign("{\"alg\":\"RS512\",\"kid\":\"k1\"}", claims("sonar", NOW_SECONDS + 300L, NONCE), keyPair.getPrivate(), "SHA512withRSA");
+
+    assertThat(verifier.verify(token, ISSUER, JWKS_URI, NONCE)).isNotNull();
+  }
+
+  @Test
+  public void verify_ecdsa_signatures() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair ec = generator.generateKeyPair();
+    when(keys.get(JWKS_URI, "ec")).thenReturn(ec.getPublic());
+    String token = EmbeddedOidcProvider.sign("{\"alg\":\"ES256\",\"kid\":\"ec\"}", claims("sonar", NOW_SECONDS + 300L, NONCE), ec.getPrivate(), "SHA256withECDSA");
+
+    assertThat(verifier.verify(token, ISSUER, JWKS_URI, NONCE)).isNotNull();
+    // signature of JWS is 64 bytes long for P-256
+    assertThat(Base64.decodeBase64(token.substring(token.lastIndexOf('.') + 1))).hasSize(64);
+  }
+
+  @Test
+  public void fail_if_ecdsa_signature_is_truncated() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair ec = generator.generateKeyPair();
+    when(keys.get(JWKS_URI, "ec")).thenReturn(ec.getPublic());
+    String token = EmbeddedOidcProvider.sign("{\"alg\":\"ES256\",\"kid\":\"ec\"}", claims("sonar", NOW_SECONDS + 300L, NONCE), ec.getPrivate(), "SHA256withECDSA");
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid signature");
+    verifier.verify(token.substring(0, token.length() - 4), ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void convert_ecdsa_signature_to_der() {
+    byte[] jws = new byte[64];
+    jws[31] = 1;
+    jws[32] = (byte) 0x80;
+
+    byte[] der = IdTokenVerifier.toDer(jws);
+
+    // leading zeros of R are removed, a zero is added before S because its high bit is set
+    assertThat(der).hasSize(40);
+    assertThat(Arrays.copyOf(der, 9)).isEqualTo(new byte[] {0x30, 38, 0x02, 1, 1, 0x02, 33, 0, (byte) 0x80});
+  }
+
+  @Test
+  public void accept_audiences_with_authorized_party() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+    String claims = claims("sonar", NOW_SECONDS + 300L, NONCE).replace("\"aud\":\"sonar\"", "\"aud\":[\"sonar\",\"other\"],\"azp\":\"sonar\"");
+
+    assertThat(verifier.verify(token(HEADER, claims), ISSUER, JWKS_URI, NONCE)).isNotNull();
+  }
+
+  @Test
+  public void fail_if_several_audiences_without_authorized_party() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+    String claims = claims("sonar", NOW_SECONDS + 300L, NONCE).replace("\"aud\":\"sonar\"", "\"aud\":[\"sonar\",\"other\"]");
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("not issued for client sonar");
+    verifier.verify(token(HEADER, claims), ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_signed_by_other_key() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+    String token = EmbeddedOidcProvider.sign(HEADER, claims("sonar", NOW_SECONDS + 300L, NONCE), otherKeyPair.getPrivate(), "SHA256withRSA");
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid signature");
+    verifier.verify(token, ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_claims_are_modified() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+    String token = token(HEADER, claims("sonar", NOW_SECONDS + 300L, NONCE));
+    String[] parts = token.split("\\.");
+    String forged = EmbeddedOidcProvider.sign(HEADER, claims("sonar", NOW_SECONDS + 300L, NONCE).replace("john", "admin"), otherKeyPair.getPrivate(), "SHA256withRSA");
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid signature");
+    verifier.verify(parts[0] + "." + forged.split("\\.")[1] + "." + parts[2], ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_unknown_key() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Unknown signing key");
+    verifier.verify(token(HEADER, claims("sonar", NOW_SECONDS + 300L, NONCE)), ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_unsigned() {
+    String token = EmbeddedOidcProvider.sign("{\"alg\":\"none\"}", claims("sonar", NOW_SECONDS + 300L, NONCE), keyPair.getPrivate(), "SHA256withRSA");
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Unsupported signature algorithm");
+    verifier.verify(token.substring(0, token.lastIndexOf('.') + 1), ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_other_issuer() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid issuer");
+    verifier.verify(token(HEADER, claims("sonar", NOW_SECONDS + 300L, NONCE)), "http://evil/oidc", JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_other_audience() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("not issued for client sonar");
+    verifier.verify(token(HEADER, claims("other", NOW_SECONDS + 300L, NONCE)), ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_expired() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("expired");
+    verifier.verify(token(HEADER, claims("sonar", NOW_SECONDS - 61L, NONCE)), ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void accept_expiry_within_clock_skew() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+
+    assertThat(verifier.verify(token(HEADER, claims("sonar", NOW_SECONDS - 59L, NONCE)), ISSUER, JWKS_URI, NONCE)).isNotNull();
+  }
+
+  @Test
+  public void fail_if_other_nonce() {
+    when(keys.get(JWKS_URI, "k1")).thenReturn(keyPair.getPublic());
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid nonce");
+    verifier.verify(token(HEADER, claims("sonar", NOW_SECONDS + 300L, "replayed")), ISSUER, JWKS_URI, NONCE);
+  }
+
+  @Test
+  public void fail_if_not_a_jwt() {
+    thrown.expect(IllegalArgumentException.class);
+    verifier.verify("abc", ISSUER, JWKS_URI, NONCE);
+  }
+
+  private static String claims(String audience, long expiry, String nonce) {
+    return "{\"iss\":\"" + ISSUER + "\",\"sub\":\"john\",\"aud\":\"" + audience + "\",\"iat\":" + (NOW_SECONDS - 10L) + ",\"exp\":" + expiry
+      + ",\"nonce\":\"" + nonce + "\",\"name\":\"John Doe\"}";
+  }
+
+  private static String token(String header, String claims) {
+    return EmbeddedOidcProvider.sign(header, claims, keyPair.getPrivate(), "SHA256withRSA");
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Test;
+import org.sonar.api.security.UserDetails;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class IdentityCacheTest {
+
+  private long now = 1000000L;
+
+  private IdentityCache newCache(long ttlSeconds, int maxSize) {
+    return new IdentityCache(ttlSeconds, maxSize) {
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  private static UserDetails newUser(String name) {
+    UserDetails user = new UserDetails();
+    user.setName(name);
+    user.setEmail(name + "@example.com");
+    return user;
+  }
+
+  @Test
+  public void get_copy_of_cached_user() {
+    IdentityCache cache = newCache(60L, 10);
+    UserDetails user = newUser("john");
+    cache.put("http://example.com/john", user);
+
+    UserDetails cached = cache.get("http://example.com/john");
+    assertThat(cached).isNotSameAs(user);
+    assertThat(cached.getName()).isEqualTo("john");
+    assertThat(cached.getEmail()).isEqualTo("john@example.com");
+
+    // cached instance is not altered by callers
+    cached.setName("other");
+    assertThat(cache.get("http://example.com/john").getName()).isEqualTo("john");
+    assertThat(cache.get("http://example.com/unknown")).isNull();
+  }
+
+  @Test
+  public void expire_after_ttl() {
+    IdentityCache cache = newCache(60L, 10);
+    cache.put("http://example.com/john", newUser("john"));
+
+    now += 59999L;
+    assertThat(cache.get("http://example.com/john")).isNotNull();
+
+    now += 1L;
+    assertThat(cache.get("http://example.com/john")).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void evict_least_recently_used() {
+    IdentityCache cache = newCache(60L, 2);
+    cache.put("a", newUser("a"));
+    cache.put("b", newUser("b"));
+    cache.get("a");
+    cache.put("c", newUser("c"));
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("a")).isNotNull();
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.get("c")).isNotNull();
+  }
+
+  @Test
+  public void invalidate() {
+    IdentityCache cache = newCache(60L, 10);
+    cache.put("a", newUser("a"));
+    cache.invalidate("a");
+    cache.invalidate("unknown");
+
+    assertThat(cache.get("a")).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ttl_must_be_positive() {
+    new IdentityCache(0L, 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void max_size_must_be_positive() {
+    new IdentityCache(60L, 0);
+  }
+}
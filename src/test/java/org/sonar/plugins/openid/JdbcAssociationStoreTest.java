@@ -0,0 +1,113 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.openid4java.association.Association;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class JdbcAssociationStoreTest {
+
+  private static final String OP_URL = "https://provider/openid";
+  private static final String JDBC_URL = "jdbc:h2:mem:openid";
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // keeps the in-memory database alive during the test
+  private Connection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    Class.forName("org.h2.Driver");
+    connection = DriverManager.getConnection(JDBC_URL, "sa", "");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connection.createStatement().execute("DROP ALL OBJECTS");
+    connection.close();
+  }
+
+  @Test
+  public void share_associations_between_nodes() {
+    JdbcAssociationStore node1 = newStore();
+    JdbcAssociationStore node2 = newStore();
+    Association association = Association.generateHmacSha1("handle1", 600);
+
+    node1.save(OP_URL, association);
+
+    Association loaded = node2.load(OP_URL, "handle1");
+    assertThat(loaded.getType()).isEqualTo(Association.TYPE_HMAC_SHA1);
+    assertThat(loaded.getMacKey().getEncoded()).isEqualTo(association.getMacKey().getEncoded());
+    assertThat(newStore().load(OP_URL).getHandle()).isEqualTo("handle1");
+    assertThat(node2.load("https://other/openid")).isNull();
+  }
+
+  @Test
+  public void load_latest_association() {
+    JdbcAssociationStore node1 = newStore();
+    node1.save(OP_URL, Association.generateHmacSha256("old", 60));
+    node1.save(OP_URL, Association.generateHmacSha256("new", 600));
+    node1.save(OP_URL, Association.generateHmacSha256("expired", -10));
+
+    assertThat(newStore().load(OP_URL).getHandle()).isEqualTo("new");
+    assertThat(newStore().load(OP_URL, "expired")).isNull();
+  }
+
+  @Test
+  public void remove_association() {
+    JdbcAssociationStore node1 = newStore();
+    node1.save(OP_URL, Association.generateHmacSha1("handle1", 600));
+
+    node1.remove(OP_URL, "handle1");
+
+    assertThat(node1.load(OP_URL, "handle1")).isNull();
+    assertThat(newStore().load(OP_URL)).isNull();
+  }
+
+  @Test
+  public void fail_if_missing_url() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Property sonar.openid.associationStore.jdbc.url is missing");
+
+    new JdbcAssociationStore(null, null, null, null);
+  }
+
+  @Test
+  public void fail_if_bad_database() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Fail to initialize the database of OpenID associations");
+
+    new JdbcAssociationStore("jdbc:unknown:foo", null, null, null);
+  }
+
+  private JdbcAssociationStore newStore() {
+    return new JdbcAssociationStore(JDBC_URL, "org.h2.Driver", "sa", "");
+  }
+}
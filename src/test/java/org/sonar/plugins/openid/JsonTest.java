@@ -0,0 +1,98 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.MapAssert.entry;
+
+public class JsonTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void parse_object() {
+    Map<String, Object> object = Json.parseObject(" {\"s\": \"value\", \"i\": -42, \"d\": 1.5e2, \"t\": true, \"f\": false, \"n\": null, "
+      + "\"a\": [1, \"two\", []], \"o\": {}} ");
+
+    assertThat(object).includes(entry("s", "value"), entry("i", -42L), entry("d", 150.0), entry("t", true), entry("f", false));
+    assertThat(object.containsKey("n")).isTrue();
+    assertThat(object.get("n")).isNull();
+    assertThat((List) object.get("a")).isEqualTo(Arrays.asList(1L, "two", Arrays.asList()));
+    assertThat((Map) object.get("o")).isEmpty();
+    assertThat(Json.getString(object, "s")).isEqualTo("value");
+    assertThat(Json.getString(object, "i")).isNull();
+    assertThat(Json.getLong(object, "i")).isEqualTo(-42L);
+    assertThat(Json.getLong(object, "s")).isNull();
+  }
+
+  @Test
+  public void parse_escaped_characters() {
+    assertThat(Json.parse("\"a\\\"b\\\\c\\/d\\n\\u00e9\"")).isEqualTo("a\"b\\c/d\n\u00e9");
+  }
+
+  @Test
+  public void parse_large_integer_as_decimal() {
+    assertThat(Json.parse("12345678901234567890")).isEqualTo(12345678901234567890.0);
+  }
+
+  @Test
+  public void fail_if_trailing_characters() {
+    thrown.expect(IllegalArgumentException.class);
+    Json.parse("{} x");
+  }
+
+  @Test
+  public void fail_if_unterminated_string() {
+    thrown.expect(IllegalArgumentException.class);
+    Json.parse("\"abc");
+  }
+
+  @Test
+  public void fail_if_duplicated_member() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Duplicated member a");
+    Json.parse("{\"a\":1,\"a\":2}");
+  }
+
+  @Test
+  public void fail_if_too_deep() {
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      json.append('[');
+    }
+    thrown.expect(IllegalArgumentException.class);
+    Json.parse(json.toString());
+  }
+
+  @Test
+  public void fail_if_not_an_object() {
+    thrown.expect(IllegalArgumentException.class);
+    Json.parseObject("[1]");
+  }
+}
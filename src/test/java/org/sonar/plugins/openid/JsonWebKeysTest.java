@@ -0,0 +1,169 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpResponse;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class JsonWebKeysTest {
+
+  private static final String JWKS_URI = "http://localhost/oidc/jwks";
+
+  private HttpFetcher fetcher = mock(HttpFetcher.class);
+  private OpenIdMetrics metrics = new OpenIdMetrics();
+  private long now = 1000000L;
+  private JsonWebKeys keys = new JsonWebKeys(fetcher, 3600L, metrics) {
+    @Override
+    long currentTimeMillis() {
+      return now;
+    }
+  };
+  private KeyPair first;
+  private KeyPair second;
+
+  @Before
+  public void generateKeys() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    first = generator.generateKeyPair();
+    second = generator.generateKeyPair();
+  }
+
+  @Test
+  public void download_keys_once() throws Exception {
+    publish("k1", first);
+
+    assertThat(keys.get(JWKS_URI, "k1")).isEqualTo(first.getPublic());
+    assertThat(keys.get(JWKS_URI, "k1")).isEqualTo(first.getPublic());
+    // single key of the set is used when the token does not declare its key
+    assertThat(keys.get(JWKS_URI, null)).isEqualTo(first.getPublic());
+
+    verify(fetcher, times(1)).get(JWKS_URI);
+    assertThat(metrics.getLatencyCounts().get(OpenIdMetrics.PHASE_KEYS)).isEqualTo(1L);
+  }
+
+  @Test
+  public void download_keys_again_when_unknown_key_after_rotation() throws Exception {
+    publish("k1", first);
+    keys.get(JWKS_URI, "k1");
+
+    publish("k2", second);
+    now += JsonWebKeys.MIN_REFRESH_INTERVAL_MILLIS;
+    assertThat(keys.get(JWKS_URI, "k2")).isEqualTo(second.getPublic());
+    assertThat(keys.get(JWKS_URI, "k1")).isNull();
+  }
+
+  @Test
+  public void throttle_downloads_triggered_by_unknown_keys() throws Exception {
+    publish("k1", first);
+    keys.get(JWKS_URI, "k1");
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(keys.get(JWKS_URI, "forged")).isNull();
+    }
+    verify(fetcher, times(1)).get(JWKS_URI);
+
+    now += JsonWebKeys.MIN_REFRESH_INTERVAL_MILLIS;
+    assertThat(keys.get(JWKS_URI, "forged")).isNull();
+    verify(fetcher, times(2)).get(JWKS_URI);
+  }
+
+  @Test
+  public void refresh_keys_after_delay() throws Exception {
+    publish("k1", first);
+    keys.get(JWKS_URI, "k1");
+
+    publish("k2", second);
+    now += 3601000L;
+    assertThat(keys.get(JWKS_URI, "k1")).isNull();
+    assertThat(keys.get(JWKS_URI, "k2")).isEqualTo(second.getPublic());
+    verify(fetcher, times(2)).get(JWKS_URI);
+  }
+
+  @Test
+  public void keep_keys_if_refresh_fails() throws Exception {
+    publish("k1", first);
+    keys.get(JWKS_URI, "k1");
+
+    when(fetcher.get(JWKS_URI)).thenThrow(new IOException("timeout"));
+    now += 3601000L;
+
+    assertThat(keys.get(JWKS_URI, "k1")).isEqualTo(first.getPublic());
+    assertThat(metrics.getProviderErrors()).isEqualTo(1L);
+  }
+
+  @Test
+  public void fail_if_keys_are_never_downloaded() throws Exception {
+    HttpResponse response = response(500, "");
+    when(fetcher.get(JWKS_URI)).thenReturn(response);
+
+    try {
+      keys.get(JWKS_URI, "k1");
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains(JWKS_URI);
+    }
+  }
+
+  @Test
+  public void parse_ec_keys() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp384r1"));
+    KeyPair ec = generator.generateKeyPair();
+
+    PublicKey key = JsonWebKeys.parse(EmbeddedOidcProvider.keySet("ec", ec.getPublic())).get("ec");
+
+    assertThat(key).isEqualTo(ec.getPublic());
+  }
+
+  @Test
+  public void ignore_other_keys_than_signing_keys() throws Exception {
+    String rsa = EmbeddedOidcProvider.keySet("k1", first.getPublic());
+    String json = "{\"keys\":[{\"kty\":\"EC\",\"kid\":\"ec\",\"crv\":\"P-256\",\"x\":\"a\",\"y\":\"b\"},"
+      + "{\"kty\":\"RSA\",\"kid\":\"enc\",\"use\":\"enc\",\"n\":\"AQAB\",\"e\":\"AQAB\"},"
+      + rsa.substring("{\"keys\":[".length());
+
+    assertThat(JsonWebKeys.parse(json).keySet()).containsOnly("k1");
+  }
+
+  private void publish(String kid, KeyPair pair) throws IOException {
+    HttpResponse response = response(200, EmbeddedOidcProvider.keySet(kid, pair.getPublic()));
+    doReturn(response).when(fetcher).get(JWKS_URI);
+  }
+
+  private static HttpResponse response(int status, String body) {
+    HttpResponse response = mock(HttpResponse.class);
+    when(response.getStatusCode()).thenReturn(status);
+    when(response.getBody()).thenReturn(body);
+    return response;
+  }
+}
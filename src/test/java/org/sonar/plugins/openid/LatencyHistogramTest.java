@@ -0,0 +1,69 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Delta.delta;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void empty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertThat(histogram.getCount()).isEqualTo(0L);
+    assertThat(histogram.getMeanMillis()).isEqualTo(0.0);
+    assertThat(histogram.getPercentileMillis(0.99)).isEqualTo(0.0);
+  }
+
+  @Test
+  public void percentiles_are_upper_bounds_of_buckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      // 1ms
+      histogram.record(1000000L);
+    }
+    // 100ms
+    histogram.record(100000000L);
+
+    assertThat(histogram.getCount()).isEqualTo(100L);
+    assertThat(histogram.getMeanMillis()).isEqualTo(1.99, delta(0.001));
+    assertThat(histogram.getMaxMillis()).isEqualTo(100.0, delta(0.001));
+    // 1000us are in the bucket [512us, 1024us[
+    assertThat(histogram.getPercentileMillis(0.5)).isEqualTo(1.024, delta(0.001));
+    assertThat(histogram.getPercentileMillis(0.99)).isEqualTo(1.024, delta(0.001));
+    // bounded by max
+    assertThat(histogram.getPercentileMillis(1.0)).isEqualTo(100.0, delta(0.001));
+  }
+
+  @Test
+  public void negative_and_huge_durations() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5L);
+    // 10 days
+    histogram.record(864000000000000L);
+
+    assertThat(histogram.getCount()).isEqualTo(2L);
+    assertThat(histogram.getPercentileMillis(0.5)).isEqualTo(0.001);
+    assertThat(histogram.getPercentileMillis(1.0)).isEqualTo((1L << (LatencyHistogram.BUCKETS - 1)) / 1000.0);
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.io.Files;
+import org.openid4java.message.ParameterList;
+import org.sonar.api.config.Settings;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates concurrent logins through {@link OpenIdAuthenticationFilter} and {@link OpenIdValidationFilter},
+ * the browser being replaced by HTTP requests to {@link EmbeddedOpenIdProvider}. Can be executed from command-line
+ * with arguments &lt;threads&gt; &lt;logins&gt;.
+ */
+public class LoginLoadDriver {
+
+  private final OpenIdAuthenticationFilter authenticationFilter;
+  private final OpenIdValidationFilter validationFilter;
+
+  public LoginLoadDriver(OpenIdClient client) {
+    this.authenticationFilter = new OpenIdAuthenticationFilter(client);
+    this.validationFilter = new OpenIdValidationFilter(client);
+  }
+
+  public Result run(int threads, final int logins) throws InterruptedException {
+    final long[] latencies = new long[logins];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            for (int i = next.getAndIncrement(); i < logins; i = next.getAndIncrement()) {
+              long loginStart = System.nanoTime();
+              if (!loginQuietly("user" + i)) {
+                failures.incrementAndGet();
+              }
+              latencies[i] = System.nanoTime() - loginStart;
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    done.await();
+    long duration = System.nanoTime() - start;
+    executor.shutdown();
+    return new Result(logins, failures.get(), duration, latencies);
+  }
+
+  private boolean loginQuietly(String user) {
+    try {
+      return login(user);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the user is authenticated
+   */
+  public boolean login(String user) throws Exception {
+    final String[] redirect = new String[1];
+    HttpServletResponse response = proxy(HttpServletResponse.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("sendRedirect".equals(method.getName())) {
+          redirect[0] = (String) args[0];
+        }
+        return null;
+      }
+    });
+    authenticationFilter.doFilter(proxy(HttpServletRequest.class, null), response, null);
+
+    // the browser is redirected to the provider, which redirects to /openid/validate
+    HttpURLConnection connection = (HttpURLConnection) new URL(redirect[0] + "&" + EmbeddedOpenIdProvider.USER_PARAMETER + "=" + user).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    String location;
+    try {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_MOVED_TEMP) {
+        return false;
+      }
+      location = connection.getHeaderField("Location");
+    } finally {
+      connection.getInputStream().close();
+    }
+
+    final String queryString = location.substring(location.indexOf('?') + 1);
+    final Map<String, String[]> parameters = new HashMap<String, String[]>();
+    for (Object o : ParameterList.createFromQueryString(queryString).getParameters()) {
+      org.openid4java.message.Parameter parameter = (org.openid4java.message.Parameter) o;
+      parameters.put(parameter.getKey(), new String[] {parameter.getValue()});
+    }
+    final Object[] authenticated = new Object[1];
+    HttpServletRequest request = proxy(HttpServletRequest.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("getQueryString".equals(method.getName())) {
+          return queryString;
+        }
+        if ("getParameterMap".equals(method.getName())) {
+          return parameters;
+        }
+        if ("setAttribute".equals(method.getName())) {
+          authenticated[0] = args[1];
+        }
+        return null;
+      }
+    });
+    final boolean[] chained = new boolean[1];
+    validationFilter.doFilter(request, proxy(HttpServletResponse.class, null), new FilterChain() {
+      public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) {
+        chained[0] = true;
+      }
+    });
+    return chained[0] && authenticated[0] != null;
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    InvocationHandler h = handler;
+    if (h == null) {
+      h = new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          return null;
+        }
+      };
+    }
+    return type.cast(Proxy.newProxyInstance(LoginLoadDriver.class.getClassLoader(), new Class[] {type}, h));
+  }
+
+  public static class Result {
+    private final int logins;
+    private final int failures;
+    private final long durationNanos;
+    private final long[] sortedLatencies;
+
+    Result(int logins, int failures, long durationNanos, long[] latencies) {
+      this.logins = logins;
+      this.failures = failures;
+      this.durationNanos = durationNanos;
+      this.sortedLatencies = latencies.clone();
+      Arrays.sort(sortedLatencies);
+    }
+
+    public int getLogins() {
+      return logins;
+    }
+
+    public int getFailures() {
+      return failures;
+    }
+
+    public double getThroughput() {
+      return logins * 1000000000.0 / durationNanos;
+    }
+
+    /**
+     * @param percentile for example 0.99
+     */
+    public long getLatencyMillis(double percentile) {
+      int index = Math.min(sortedLatencies.length - 1, (int) Math.ceil(percentile * sortedLatencies.length) - 1);
+      return TimeUnit.NANOSECONDS.toMillis(sortedLatencies[Math.max(0, index)]);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d logins, %d failures, %.1f logins/s, latency p50=%dms p99=%dms max=%dms", logins, failures, getThroughput(),
+        getLatencyMillis(0.5), getLatencyMillis(0.99), getLatencyMillis(1.0));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int logins = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    File discoveryDir = Files.createTempDir();
+    File discoveryFile = new File(discoveryDir, "discovery.properties");
+    OpenIdClient client = new OpenIdClient(new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, discoveryFile.getAbsolutePath()));
+    try {
+      client.start();
+      LoginLoadDriver driver = new LoginLoadDriver(client);
+      // warm-up
+      driver.run(threads, Math.min(logins, 500));
+      System.out.println(driver.run(threads, logins));
+    } finally {
+      client.stop();
+      provider.stop();
+      discoveryFile.delete();
+      discoveryDir.delete();
+    }
+  }
+}
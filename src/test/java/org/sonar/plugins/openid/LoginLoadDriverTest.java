@@ -0,0 +1,103 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openid4java.consumer.ConsumerManager;
+import org.sonar.api.config.Settings;
+
+import java.io.File;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LoginLoadDriverTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private EmbeddedOpenIdProvider provider;
+  private OpenIdClient client;
+
+  @Before
+  public void setUp() {
+    provider = new EmbeddedOpenIdProvider().start();
+  }
+
+  @After
+  public void tearDown() {
+    if (client != null) {
+      client.stop();
+    }
+    provider.stop();
+  }
+
+  @Test
+  public void concurrent_logins() throws Exception {
+    client = startClient(true);
+
+    LoginLoadDriver.Result result = new LoginLoadDriver(client).run(8, 200);
+
+    assertThat(result.getLogins()).isEqualTo(200);
+    assertThat(result.getFailures()).isEqualTo(0);
+    assertThat(result.getThroughput()).isGreaterThan(0.0);
+    assertThat(result.getLatencyMillis(0.99)).isLessThanOrEqualTo(result.getLatencyMillis(1.0));
+  }
+
+  @Test
+  public void concurrent_logins_with_fast_signature_verification() throws Exception {
+    client = startClient(true, true);
+
+    LoginLoadDriver.Result result = new LoginLoadDriver(client).run(8, 200);
+
+    assertThat(result.getLogins()).isEqualTo(200);
+    assertThat(result.getFailures()).isEqualTo(0);
+  }
+
+  @Test
+  public void stateless_login() throws Exception {
+    // no association, the response is verified by the provider (check_authentication)
+    client = startClient(false);
+    ConsumerManager manager = new ConsumerManager();
+    manager.getRealmVerifier().setEnforceRpId(false);
+    manager.setMaxAssocAttempts(0);
+    client.setConsumerManager(manager);
+
+    assertThat(new LoginLoadDriver(client).login("john")).isTrue();
+  }
+
+  private OpenIdClient startClient(boolean preAssociate) throws Exception {
+    return startClient(preAssociate, false);
+  }
+
+  private OpenIdClient startClient(boolean preAssociate, boolean fastSignatureVerification) throws Exception {
+    OpenIdClient openIdClient = new OpenIdClient(new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_PRE_ASSOCIATE, String.valueOf(preAssociate))
+      .setProperty(OpenIdClient.PROPERTY_FAST_SIGNATURE_VERIFICATION, String.valueOf(fastSignatureVerification))
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath()));
+    openIdClient.start();
+    return openIdClient;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LoginRateLimiterTest {
+
+  private OpenIdMetrics metrics = new OpenIdMetrics();
+  private AtomicLong now = new AtomicLong(System.nanoTime() + TimeUnit.HOURS.toNanos(1L));
+
+  @Test
+  public void limit_requests_of_client() {
+    LoginRateLimiter limiter = newLimiter(1, 2, 0, 1, null);
+
+    assertThat(limiter.admit(request("10.0.0.1"))).isNull();
+    assertThat(limiter.admit(request("10.0.0.1"))).isNull();
+    LoginRateLimiter.Rejection rejection = limiter.admit(request("10.0.0.1"));
+    assertThat(rejection.getStatus()).isEqualTo(429);
+    assertThat(rejection.getRetryAfterSeconds()).isEqualTo(1L);
+    assertThat(limiter.admit(request("10.0.0.2"))).isNull();
+    assertThat(metrics.getRequestsThrottledByClientLimit()).isEqualTo(1L);
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+    assertThat(limiter.admit(request("10.0.0.1"))).isNull();
+    assertThat(limiter.admit(request("10.0.0.1"))).isNotNull();
+  }
+
+  @Test
+  public void limit_requests_of_all_clients() {
+    LoginRateLimiter limiter = newLimiter(0, 1, 10, 2, null);
+
+    assertThat(limiter.admit(request("10.0.0.1"))).isNull();
+    assertThat(limiter.admit(request("10.0.0.2"))).isNull();
+    assertThat(limiter.admit(request("10.0.0.3")).getStatus()).isEqualTo(503);
+    assertThat(metrics.getRequestsThrottledByGlobalLimit()).isEqualTo(1L);
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100L));
+    assertThat(limiter.admit(request("10.0.0.3"))).isNull();
+  }
+
+  @Test
+  public void requests_rejected_by_client_limit_do_not_consume_global_limit() {
+    LoginRateLimiter limiter = newLimiter(1, 1, 1, 2, null);
+
+    assertThat(limiter.admit(request("10.0.0.1"))).isNull();
+    for (int i = 0; i < 10; i++) {
+      assertThat(limiter.admit(request("10.0.0.1")).getStatus()).isEqualTo(429);
+    }
+    assertThat(limiter.admit(request("10.0.0.2"))).isNull();
+  }
+
+  @Test
+  public void concurrent_requests_do_not_exceed_burst() throws Exception {
+    final LoginRateLimiter limiter = newLimiter(1, 50, 0, 1, null);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 8; i++) {
+      results.add(executor.submit(new Callable<Integer>() {
+        public Integer call() {
+          int accepted = 0;
+          for (int j = 0; j < 100; j++) {
+            if (limiter.admit(request("10.0.0.1")) == null) {
+              accepted++;
+            }
+          }
+          return accepted;
+        }
+      }));
+    }
+    int accepted = 0;
+    for (Future<Integer> result : results) {
+      accepted += result.get();
+    }
+    executor.shutdown();
+
+    assertThat(accepted).isEqualTo(50);
+  }
+
+  @Test
+  public void client_address_from_header_of_reverse_proxy() {
+    LoginRateLimiter limiter = newLimiter(1, 1, 0, 1, "X-Forwarded-For");
+    HttpServletRequest request = request("10.0.0.1");
+    when(request.getHeader("X-Forwarded-For")).thenReturn("1.2.3.4, 192.168.1.1");
+
+    assertThat(limiter.clientAddress(request)).isEqualTo("192.168.1.1");
+    assertThat(limiter.clientAddress(request("10.0.0.2"))).isEqualTo("10.0.0.2");
+  }
+
+  @Test
+  public void no_limiter_by_default() {
+    assertThat(LoginRateLimiter.create(new Settings(), metrics)).isNull();
+
+    Settings settings = new Settings().setProperty(LoginRateLimiter.PROPERTY_GLOBAL_PER_SECOND, 100);
+    assertThat(LoginRateLimiter.create(settings, metrics)).isNotNull();
+  }
+
+  private LoginRateLimiter newLimiter(int clientPerSecond, int clientBurst, int globalPerSecond, int globalBurst, String clientHeader) {
+    return new LoginRateLimiter(clientPerSecond, clientBurst, globalPerSecond, globalBurst, clientHeader, metrics) {
+      @Override
+      long nanoTime() {
+        return now.get();
+      }
+    };
+  }
+
+  private static HttpServletRequest request(String remoteAddr) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn(remoteAddr);
+    return request;
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+import org.sonar.api.config.Settings;
+import org.sonar.api.security.UserDetails;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class OidcEngineTest {
+
+  private static final String REDIRECT_URI = "http://localhost:9000/openid/validate";
+
+  private static EmbeddedOidcProvider provider;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private OpenIdMetrics metrics = new OpenIdMetrics();
+  private BucketedNonceVerifier nonceVerifier = new BucketedNonceVerifier(300, 1000);
+  private Browser browser = new Browser();
+
+  @BeforeClass
+  public static void startProvider() {
+    provider = new EmbeddedOidcProvider().start();
+  }
+
+  @AfterClass
+  public static void stopProvider() {
+    provider.stop();
+  }
+
+  @Test
+  public void login_with_authorization_code() throws Exception {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+
+    String url = engine.authenticationUrl(browser.response());
+    assertThat(url).startsWith(provider.getIssuer() + "/authorize?response_type=code&client_id=sonar&redirect_uri=http%3A%2F%2Flocalhost%3A9000%2Fopenid%2Fvalidate"
+      + "&scope=openid+email+profile&state=");
+    Map<String, Object> claims = engine.verify(login(url + "&" + EmbeddedOidcProvider.USER_PARAMETER + "=jane"), browser.request());
+
+    assertThat(claims.get("sub")).isEqualTo("jane");
+    UserDetails user = OidcEngine.toUser(claims);
+    assertThat(user.getName()).isEqualTo("Name jane");
+    assertThat(user.getEmail()).isEqualTo("jane@example.com");
+    assertThat(metrics.getLatencyCounts()).includes(org.fest.assertions.MapAssert.entry(OpenIdMetrics.PHASE_TOKEN, 1L));
+  }
+
+  @Test
+  public void signatures_are_verified_with_cached_keys() throws Exception {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    int keysRequests = provider.getKeysRequests();
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(engine.verify(login(engine.authenticationUrl(browser.response())), browser.request())).isNotNull();
+    }
+    assertThat(provider.getKeysRequests()).isEqualTo(keysRequests + 1);
+  }
+
+  @Test
+  public void keys_are_downloaded_in_background() throws Exception {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    int keysRequests = provider.getKeysRequests();
+
+    engine.refreshKeys();
+    assertThat(provider.getKeysRequests()).isEqualTo(keysRequests + 1);
+
+    assertThat(engine.verify(login(engine.authenticationUrl(browser.response())), browser.request())).isNotNull();
+    assertThat(provider.getKeysRequests()).isEqualTo(keysRequests + 1);
+  }
+
+  @Test
+  public void login_with_id_token_posted_by_browser() throws Exception {
+    Settings settings = settings(provider.getIssuer(), EmbeddedOidcProvider.CLIENT_SECRET)
+      .setProperty(OidcEngine.PROPERTY_RESPONSE_TYPE, "id_token");
+    OidcEngine engine = newEngine(settings);
+    int tokenRequests = provider.getTokenRequests();
+
+    String url = engine.authenticationUrl(browser.response());
+    assertThat(url).contains("?response_type=id_token&response_mode=form_post&client_id=sonar");
+    Map<String, Object> claims = engine.verify(postedForm(url + "&" + EmbeddedOidcProvider.USER_PARAMETER + "=jane"), browser.request());
+
+    assertThat(claims.get("sub")).isEqualTo("jane");
+    // the issuer is not called by the server
+    assertThat(provider.getTokenRequests()).isEqualTo(tokenRequests);
+    assertThat(metrics.getLatencyCounts()).excludes(org.fest.assertions.MapAssert.entry(OpenIdMetrics.PHASE_TOKEN, 1L));
+  }
+
+  @Test
+  public void reject_replayed_id_token() throws Exception {
+    Settings settings = settings(provider.getIssuer(), EmbeddedOidcProvider.CLIENT_SECRET)
+      .setProperty(OidcEngine.PROPERTY_RESPONSE_TYPE, "id_token");
+    OidcEngine engine = newEngine(settings);
+    ParameterList response = postedForm(engine.authenticationUrl(browser.response()));
+
+    assertThat(engine.verify(response, browser.request())).isNotNull();
+    assertThat(engine.verify(response, browser.request())).isNull();
+  }
+
+  @Test
+  public void fail_if_unknown_response_type() {
+    Settings settings = settings(provider.getIssuer(), EmbeddedOidcProvider.CLIENT_SECRET)
+      .setProperty(OidcEngine.PROPERTY_RESPONSE_TYPE, "token");
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage(OidcEngine.PROPERTY_RESPONSE_TYPE);
+    newEngine(settings);
+  }
+
+  @Test
+  public void reject_code_used_twice() throws Exception {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    ParameterList response = login(engine.authenticationUrl(browser.response()));
+
+    assertThat(engine.verify(response, browser.request())).isNotNull();
+    assertThat(engine.verify(response, browser.request())).isNull();
+  }
+
+  @Test
+  public void reject_state_not_signed_by_server() throws Exception {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    ParameterList response = login(engine.authenticationUrl(browser.response()));
+    int tokenRequests = provider.getTokenRequests();
+    response.set(new Parameter("state", "forged" + response.getParameterValue("state")));
+
+    assertThat(engine.verify(response, browser.request())).isNull();
+    // the code is not sent to the issuer
+    assertThat(provider.getTokenRequests()).isEqualTo(tokenRequests);
+  }
+
+  @Test
+  public void reject_response_without_state_cookie() throws Exception {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    ParameterList response = login(engine.authenticationUrl(browser.response()));
+    int tokenRequests = provider.getTokenRequests();
+
+    // the response of the attacker is injected in the browser of the victim (login CSRF)
+    assertThat(engine.verify(response, new Browser().request())).isNull();
+    // the code is not sent to the issuer
+    assertThat(provider.getTokenRequests()).isEqualTo(tokenRequests);
+  }
+
+  @Test
+  public void reject_response_with_state_cookie_of_other_login() throws Exception {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    ParameterList response = login(engine.authenticationUrl(new Browser().response()));
+    engine.authenticationUrl(browser.response());
+
+    assertThat(engine.verify(response, browser.request())).isNull();
+  }
+
+  @Test
+  public void state_cookie_is_http_only_and_short_lived() {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+
+    assertThat(engine.stateCookie("abc")).startsWith(OidcEngine.STATE_COOKIE + "=")
+      .endsWith("; Max-Age=600; Path=/openid/validate; HttpOnly");
+  }
+
+  @Test
+  public void state_cookie_is_sent_on_cross_site_post_over_https() {
+    Settings settings = settings(provider.getIssuer(), EmbeddedOidcProvider.CLIENT_SECRET)
+      .setProperty(OidcEngine.PROPERTY_RESPONSE_TYPE, "id_token");
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    OidcEngine engine = new OidcEngine(settings, "https://sonar.example.com/openid/validate", 3600L, fetcher, nonceVerifier, metrics);
+
+    assertThat(engine.stateCookie("abc")).endsWith("; Path=/openid/validate; HttpOnly; Secure; SameSite=None");
+  }
+
+  @Test
+  public void reject_expired_state() {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    long now = System.currentTimeMillis();
+
+    assertThat(engine.nonceOfState(engine.state("abc", now + 1000L))).isEqualTo("abc");
+    assertThat(engine.nonceOfState(engine.state("abc", now - 1000L))).isNull();
+    assertThat(engine.nonceOfState("abc")).isNull();
+    assertThat(engine.nonceOfState(null)).isNull();
+  }
+
+  @Test
+  public void reject_error_response() {
+    OidcEngine engine = newEngine(EmbeddedOidcProvider.CLIENT_SECRET);
+    ParameterList response = new ParameterList();
+    response.set(new Parameter("error", "access_denied"));
+
+    assertThat(engine.verify(response, browser.request())).isNull();
+  }
+
+  @Test
+  public void code_is_refused_if_bad_client_secret() throws Exception {
+    OidcEngine engine = newEngine("other");
+
+    assertThat(engine.verify(login(engine.authenticationUrl(browser.response())), browser.request())).isNull();
+  }
+
+  @Test
+  public void fail_if_issuer_does_not_match_configuration() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    HttpResponse response = response(200, "{\"issuer\":\"http://evil/oidc\",\"authorization_endpoint\":\"http://evil/oidc/authorize\","
+      + "\"token_endpoint\":\"http://evil/oidc/token\",\"jwks_uri\":\"http://evil/oidc/jwks\"}");
+    when(fetcher.get("http://localhost/oidc/.well-known/openid-configuration")).thenReturn(response);
+    OidcEngine engine = new OidcEngine(settings("http://localhost/oidc/", EmbeddedOidcProvider.CLIENT_SECRET), REDIRECT_URI, 3600L, fetcher, nonceVerifier, metrics);
+
+    thrown.expect(IllegalStateException.class);
+    engine.authenticationUrl(browser.response());
+  }
+
+  @Test
+  public void keep_configuration_if_issuer_is_unreachable() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    HttpResponse response = response(200, "{\"issuer\":\"http://localhost/oidc\",\"authorization_endpoint\":\"http://localhost/oidc/authorize?realm=x\","
+      + "\"token_endpoint\":\"http://localhost/oidc/token\",\"jwks_uri\":\"http://localhost/oidc/jwks\"}");
+    when(fetcher.get("http://localhost/oidc/.well-known/openid-configuration")).thenReturn(response);
+    final long[] now = {1000000L};
+    OidcEngine engine = new OidcEngine(settings("http://localhost/oidc", EmbeddedOidcProvider.CLIENT_SECRET), REDIRECT_URI, 60L, fetcher, nonceVerifier, metrics) {
+      @Override
+      long currentTimeMillis() {
+        return now[0];
+      }
+    };
+    assertThat(engine.authenticationUrl(browser.response())).startsWith("http://localhost/oidc/authorize?realm=x&response_type=code");
+
+    when(fetcher.get("http://localhost/oidc/.well-known/openid-configuration")).thenThrow(new IOException("timeout"));
+    now[0] += 61000L;
+    assertThat(engine.configuration().tokenEndpoint).isEqualTo("http://localhost/oidc/token");
+    assertThat(engine.configuration().tokenEndpoint).isEqualTo("http://localhost/oidc/token");
+
+    // not downloaded again before the refresh delay
+    verify(fetcher, times(2)).get("http://localhost/oidc/.well-known/openid-configuration");
+    assertThat(metrics.getProviderErrors()).isEqualTo(1L);
+  }
+
+  @Test
+  public void fail_if_missing_client_id() {
+    Settings settings = settings(provider.getIssuer(), EmbeddedOidcProvider.CLIENT_SECRET);
+    settings.removeProperty(OidcEngine.PROPERTY_CLIENT_ID);
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage(OidcEngine.PROPERTY_CLIENT_ID);
+    new OidcEngine(settings, REDIRECT_URI, 3600L, mock(HttpFetcher.class), nonceVerifier, metrics);
+  }
+
+  @Test
+  public void user_name_from_given_and_family_names() {
+    Map<String, Object> claims = new HashMap<String, Object>();
+    claims.put("given_name", "John");
+    claims.put("family_name", "Doe");
+
+    assertThat(OidcEngine.toUser(claims).getName()).isEqualTo("John Doe");
+    assertThat(OidcEngine.toUser(claims).getEmail()).isNull();
+    assertThat(OidcEngine.toUser(new HashMap<String, Object>())).isNull();
+  }
+
+  private OidcEngine newEngine(String clientSecret) {
+    return newEngine(settings(provider.getIssuer(), clientSecret));
+  }
+
+  private OidcEngine newEngine(Settings settings) {
+    HttpFetcher fetcher = new HttpFetcherFactory().createFetcher(HttpRequestOptions.getDefaultOptionsForOpCalls());
+    return new OidcEngine(settings, REDIRECT_URI, 3600L, fetcher, nonceVerifier, metrics);
+  }
+
+  private static Settings settings(String issuer, String clientSecret) {
+    return new Settings()
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, issuer)
+      .setProperty(OidcEngine.PROPERTY_CLIENT_ID, EmbeddedOidcProvider.CLIENT_ID)
+      .setProperty(OidcEngine.PROPERTY_CLIENT_SECRET, clientSecret);
+  }
+
+  /**
+   * Follows the authentication URL as a browser, and returns the parameters sent back to the redirect URI
+   */
+  static ParameterList login(String authenticationUrl) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(authenticationUrl).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    try {
+      assertThat(connection.getResponseCode()).isEqualTo(302);
+      String location = connection.getHeaderField("Location");
+      return ResponseParameters.parse(location.substring(location.indexOf('?') + 1), OidcEngine.RESPONSE_PARAMETERS);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Loads the authentication URL as a browser when the response mode is form_post, and returns the parameters
+   * of the form posted to the redirect URI
+   */
+  static ParameterList postedForm(String authenticationUrl) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(authenticationUrl).openConnection();
+    try {
+      assertThat(connection.getResponseCode()).isEqualTo(200);
+      String html = new String(ByteStreams.toByteArray(connection.getInputStream()), Charsets.UTF_8);
+      assertThat(html).contains("action=\"" + REDIRECT_URI + "\"");
+      ParameterList params = new ParameterList();
+      Matcher input = Pattern.compile("name=\"([^\"]+)\" value=\"([^\"]*)\"").matcher(html);
+      while (input.find()) {
+        params.set(new Parameter(input.group(1), StringEscapeUtils.unescapeHtml(input.group(2))));
+      }
+      return params;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Stores the cookies set by the server, and sends them back with its requests
+   */
+  static class Browser {
+    private final Map<String, String> cookies = new HashMap<String, String>();
+
+    HttpServletResponse response() {
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      doAnswer(new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) {
+          Object[] args = invocation.getArguments();
+          if ("Set-Cookie".equals(args[0])) {
+            String cookie = StringUtils.substringBefore((String) args[1], ";");
+            cookies.put(StringUtils.substringBefore(cookie, "="), StringUtils.substringAfter(cookie, "="));
+          }
+          return null;
+        }
+      }).when(response).addHeader(anyString(), anyString());
+      return response;
+    }
+
+    HttpServletRequest request() {
+      HttpServletRequest request = mock(HttpServletRequest.class);
+      List<Cookie> list = new ArrayList<Cookie>();
+      for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+        list.add(new Cookie(cookie.getKey(), cookie.getValue()));
+      }
+      when(request.getCookies()).thenReturn(list.isEmpty() ? null : list.toArray(new Cookie[list.size()]));
+      return request;
+    }
+  }
+
+  private static HttpResponse response(int status, String body) {
+    HttpResponse response = mock(HttpResponse.class);
+    when(response.getStatusCode()).thenReturn(status);
+    when(response.getBody()).thenReturn(body);
+    return response;
+  }
+}
@@ -20,7 +20,6 @@
 package org.sonar.plugins.openid;
 
 import org.junit.Test;
-import org.openid4java.message.AuthRequest;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -28,27 +27,76 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import static org.fest.assertions.Assertions.assertThat;
-import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
 public class OpenIdAuthenticationFilterTest {
   @Test
   public void should_redirect_and_stop_chaining() throws Exception {
     OpenIdClient openIdClient = mock(OpenIdClient.class);
-    when(openIdClient.createAuthenticationRequest()).thenReturn(mock(AuthRequest.class));
+    when(openIdClient.createAuthenticationUrl(any(HttpServletResponse.class))).thenReturn("http://localhost/openid?openid.mode=checkid_setup");
     OpenIdAuthenticationFilter filter = new OpenIdAuthenticationFilter(openIdClient);
     filter.init(mock(FilterConfig.class));
     HttpServletRequest request = mock(HttpServletRequest.class);
+    when(openIdClient.selectProvider(request)).thenReturn(openIdClient);
     HttpServletResponse response = mock(HttpServletResponse.class);
     FilterChain chain = mock(FilterChain.class);
 
     filter.doFilter(request, response, chain);
 
     verifyZeroInteractions(chain);
-    verify(response).sendRedirect(anyString());
+    verify(response).sendRedirect("http://localhost/openid?openid.mode=checkid_setup");
     filter.destroy();
   }
 
+  @Test
+  public void should_redirect_to_selected_provider() throws Exception {
+    OpenIdClient openIdClient = mock(OpenIdClient.class);
+    OpenIdClient provider = mock(OpenIdClient.class);
+    when(provider.createAuthenticationUrl(any(HttpServletResponse.class))).thenReturn("http://corp/openid?openid.mode=checkid_setup");
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(openIdClient.selectProvider(request)).thenReturn(provider);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    new OpenIdAuthenticationFilter(openIdClient).doFilter(request, response, mock(FilterChain.class));
+
+    verify(response).sendRedirect("http://corp/openid?openid.mode=checkid_setup");
+    verify(openIdClient, never()).createAuthenticationUrl(any(HttpServletResponse.class));
+  }
+
+  @Test
+  public void reject_requests_over_rate_limit() throws Exception {
+    OpenIdClient openIdClient = mock(OpenIdClient.class);
+    when(openIdClient.getRateLimiter()).thenReturn(new LoginRateLimiter(1, 1, 0, 1, null, new OpenIdMetrics()));
+    when(openIdClient.selectProvider(any(HttpServletRequest.class))).thenReturn(openIdClient);
+    when(openIdClient.createAuthenticationUrl(any(HttpServletResponse.class))).thenReturn("http://localhost/openid?openid.mode=checkid_setup");
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+    OpenIdAuthenticationFilter filter = new OpenIdAuthenticationFilter(openIdClient);
+
+    filter.doFilter(request, mock(HttpServletResponse.class), mock(FilterChain.class));
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    filter.doFilter(request, response, mock(FilterChain.class));
+
+    verify(response).setHeader("Retry-After", "1");
+    verify(response).sendError(429);
+    verify(openIdClient, times(1)).createAuthenticationUrl(any(HttpServletResponse.class));
+  }
+
+  @Test
+  public void service_unavailable_if_provider_is_down() throws Exception {
+    OpenIdClient openIdClient = mock(OpenIdClient.class);
+    when(openIdClient.createAuthenticationUrl(any(HttpServletResponse.class))).thenThrow(new ProviderUnavailableException("down", 30L));
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(openIdClient.selectProvider(request)).thenReturn(openIdClient);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    new OpenIdAuthenticationFilter(openIdClient).doFilter(request, response, mock(FilterChain.class));
+
+    verify(response).setHeader("Retry-After", "30");
+    verify(response).sendError(503);
+    verify(response, never()).sendRedirect(anyString());
+  }
+
   @Test
   public void url_pattern() {
     OpenIdAuthenticationFilter filter = new OpenIdAuthenticationFilter(mock(OpenIdClient.class));
@@ -23,8 +23,12 @@ import com.google.common.collect.Lists;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
 import org.openid4java.consumer.ConsumerException;
 import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.InMemoryConsumerAssociationStore;
 import org.openid4java.consumer.VerificationResult;
 import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.discovery.DiscoveryInformation;
@@ -35,10 +39,27 @@ import org.openid4java.message.ax.FetchResponse;
 import org.openid4java.message.sreg.SRegMessage;
 import org.openid4java.message.sreg.SRegResponse;
 import org.sonar.api.config.Settings;
+import org.sonar.api.platform.ServerFileSystem;
 import org.sonar.api.security.UserDetails;
+import org.sonar.plugins.openid.api.OpenIdAssociationStore;
 import org.sonar.plugins.openid.api.OpenIdExtension;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.MapAssert.entry;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -47,6 +68,9 @@ public class OpenIdClientTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Test
   public void initReturnUrl() {
     Settings settings = new Settings().setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000");
@@ -74,30 +98,305 @@ public class OpenIdClientTest {
     client.start();
   }
 
-  /**
-   * TODO Currently requires an internet connection. An OpenId server should be embedded.
-   * Meanwhile the test connects to Google, and if it's down (yes it's possible !), the test fallbacks on Yahoo.
-   */
   @Test
-  public void initDiscoveryInfo_test_google() {
+  public void initDiscoveryInfo_embedded_provider() {
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath());
+    OpenIdClient client = new OpenIdClient(settings);
+    try {
+      client.start();
+
+      assertThat(client.getDiscoveryInfo().getOPEndpoint().toString()).isEqualTo(provider.getEndpoint());
+      assertThat(client.getDiscoveryInfo().getVersion()).isEqualTo(DiscoveryInformation.OPENID2_OP);
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void store_discovery_info_in_data_directory_by_default() {
+    ServerFileSystem fileSystem = mock(ServerFileSystem.class);
+    when(fileSystem.getHomeDir()).thenReturn(temp.getRoot());
+    OpenIdClient client = new OpenIdClient(new Settings(), Collections.<OpenIdExtension>emptyList(), Collections.<OpenIdAssociationStore>emptyList(), fileSystem);
+
+    assertThat(client.discoveryCacheFile()).isEqualTo(new File(temp.getRoot(), "data/openid/discovery.properties"));
+    assertThat(new OpenIdClient(new Settings()).discoveryCacheFile()).isNull();
+  }
+
+  @Test
+  public void initDiscoveryInfo_embedded_provider_without_pooled_transport() {
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath())
+      .setProperty(HttpTransport.PROPERTY_ENABLED, "false");
+    OpenIdClient client = new OpenIdClient(settings);
+    try {
+      client.start();
+
+      assertThat(client.initTransport()).isNull();
+      assertThat(client.getDiscoveryInfo().getOPEndpoint().toString()).isEqualTo(provider.getEndpoint());
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void pooled_transport_by_default() {
+    OpenIdClient client = new OpenIdClient(new Settings());
+    HttpTransport transport = client.initTransport();
+
+    assertThat(transport).isNotNull();
+    assertThat(client.initTransport()).isSameAs(transport);
+    client.stop();
+  }
+
+  @Test
+  public void route_requests_to_providers() {
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false")
+      .setProperty(OpenIdClient.PROPERTY_PROVIDERS, "corp,eu")
+      .setProperty("sonar.openid.providers.corp.providerUrl", provider.getEndpoint())
+      .setProperty("sonar.openid.providers.corp.hosts", "corp.example.com,sonar.corp.example.com")
+      .setProperty("sonar.openid.providers.eu.providerUrl", provider.getEndpoint());
+    OpenIdClient client = new OpenIdClient(settings);
+    try {
+      client.start();
+
+      OpenIdClient corp = client.selectProvider(newRequest(null, "CORP.example.com", null));
+      OpenIdClient eu = client.selectProvider(newRequest("eu", "corp.example.com", null));
+      assertThat(corp).isNotSameAs(client);
+      assertThat(eu).isNotSameAs(client).isNotSameAs(corp);
+      assertThat(corp.getReturnToUrl()).isEqualTo("http://localhost:9000/openid/validate/corp");
+      assertThat(eu.getReturnToUrl()).isEqualTo("http://localhost:9000/openid/validate/eu");
+      assertThat(client.getReturnToUrl()).isEqualTo("http://localhost:9000/openid/validate");
+      assertThat(client.selectProvider(newRequest("unknown", "localhost", null))).isSameAs(client);
+      assertThat(corp.getDiscoveryInfo().getOPEndpoint().toString()).isEqualTo(provider.getEndpoint());
+
+      assertThat(client.providerOfResponse(newRequest(null, null, "/openid/validate/corp"))).isSameAs(corp);
+      assertThat(client.providerOfResponse(newRequest(null, null, "/sonar/openid/validate/eu"))).isSameAs(eu);
+      assertThat(client.providerOfResponse(newRequest(null, null, "/openid/validate"))).isSameAs(client);
+      assertThat(client.providerOfResponse(newRequest(null, null, "/openid/validate/unknown"))).isNull();
+
+      // logins of all the providers are exported by the metrics of the default provider
+      assertThat(corp.getMetrics()).isSameAs(client.getMetrics());
+      corp.createAuthenticationUrl();
+      eu.createAuthenticationUrl();
+      assertThat(client.getMetrics().getLoginsStarted()).isEqualTo(2L);
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void login_with_openid_connect() throws Exception {
+    EmbeddedOidcProvider provider = new EmbeddedOidcProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_PROTOCOL, "oidc")
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getIssuer())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false")
+      .setProperty(OidcEngine.PROPERTY_CLIENT_ID, EmbeddedOidcProvider.CLIENT_ID)
+      .setProperty(OidcEngine.PROPERTY_CLIENT_SECRET, EmbeddedOidcProvider.CLIENT_SECRET);
+    OpenIdClient client = new OpenIdClient(settings);
+    try {
+      client.start();
+      assertThat(client.isOidc()).isTrue();
+
+      OidcEngineTest.Browser browser = new OidcEngineTest.Browser();
+      String url = client.createAuthenticationUrl(browser.response());
+      assertThat(url).contains("redirect_uri=http%3A%2F%2Flocalhost%3A9000%2Fopenid%2Fvalidate&");
+      UserDetails user = client.verify(client.getReturnToUrl(), OidcEngineTest.login(url), browser.request());
+
+      assertThat(user.getName()).isEqualTo("Name john");
+      assertThat(user.getEmail()).isEqualTo("john@example.com");
+      assertThat(client.getMetrics().getLoginsStarted()).isEqualTo(1L);
+      assertThat(client.getMetrics().getLoginsVerified()).isEqualTo(1L);
+
+      ParameterList refused = new ParameterList();
+      refused.set(new Parameter("error", "access_denied"));
+      assertThat(client.verify(client.getReturnToUrl(), refused)).isNull();
+      assertThat(client.getMetrics().getLoginsUnverified()).isEqualTo(1L);
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void openid_connect_issuer_is_protected_by_circuit_breaker() throws Exception {
+    EmbeddedOidcProvider provider = new EmbeddedOidcProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_PROTOCOL, "oidc")
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getIssuer())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false")
+      .setProperty(ProviderHealth.PROPERTY_FAILURE_THRESHOLD, 1)
+      // the keys are not downloaded in background, so that the only call to the issuer that fails is the request of the token
+      .setProperty(OidcEngine.PROPERTY_KEYS_REFRESH_SECONDS, 0)
+      .setProperty(OidcEngine.PROPERTY_CLIENT_ID, EmbeddedOidcProvider.CLIENT_ID)
+      .setProperty(OidcEngine.PROPERTY_CLIENT_SECRET, EmbeddedOidcProvider.CLIENT_SECRET);
+    OpenIdClient client = new OpenIdClient(settings);
+    try {
+      client.start();
+      OidcEngineTest.Browser browser = new OidcEngineTest.Browser();
+      ParameterList response = OidcEngineTest.login(client.createAuthenticationUrl(browser.response()));
+      provider.stop();
+
+      try {
+        client.verify(client.getReturnToUrl(), response, browser.request());
+        fail();
+      } catch (IllegalStateException e) {
+        assertThat(e.getMessage()).isEqualTo("Fail to verify OpenID Connect response");
+        assertThat(client.getMetrics().getProviderErrors()).isEqualTo(1L);
+      }
+      try {
+        client.createAuthenticationUrl();
+        fail();
+      } catch (ProviderUnavailableException e) {
+        assertThat(client.getHealth().getState(provider.getIssuer())).isEqualTo(ProviderHealth.State.OPEN);
+      }
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void reload_configuration() {
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false");
+    OpenIdClient client = new OpenIdClient(settings);
+    try {
+      client.start();
+      assertThat(client.getProviderLogoutUrl()).isNull();
+      assertThat(client.selectProvider(newRequest("corp", "corp.example.com", null))).isSameAs(client);
+
+      settings
+        .setProperty(OpenIdLogoutFilter.PROPERTY_PROVIDER_LOGOUT_URL, "http://localhost/logout")
+        .setProperty(OpenIdClient.PROPERTY_PROVIDERS, "corp")
+        .setProperty("sonar.openid.providers.corp.providerUrl", provider.getEndpoint());
+      client.reloadNow();
+
+      assertThat(client.getProviderLogoutUrl()).isEqualTo("http://localhost/logout");
+      OpenIdClient reloaded = client.selectProvider(newRequest(null, "localhost", null));
+      assertThat(reloaded).isNotSameAs(client);
+      assertThat(client.providerOfResponse(newRequest(null, null, "/openid/validate"))).isSameAs(reloaded);
+      assertThat(client.selectProvider(newRequest("corp", "localhost", null)).getReturnToUrl()).isEqualTo("http://localhost:9000/openid/validate/corp");
+      assertThat(reloaded.createAuthenticationUrl()).startsWith(provider.getEndpoint());
+      // nonces already seen are kept, metrics are shared
+      assertThat(reloaded.getNonceVerifier()).isSameAs(client.getNonceVerifier());
+      assertThat(reloaded.getMetrics()).isSameAs(client.getMetrics());
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void keep_configuration_if_reloaded_configuration_is_invalid() {
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false");
+    OpenIdClient client = new OpenIdClient(settings);
     try {
-      testRemoteOpenIdProvider("https://www.google.com/o8/id");
-    } catch (Exception e) {
-      System.out.println("Failed to connect to Google OpenId Provider");
-      e.printStackTrace();
-      testRemoteOpenIdProvider("http://open.login.yahoo.com");
+      client.start();
+
+      settings.setProperty(OpenIdClient.PROPERTY_PROTOCOL, "saml");
+      client.reloadNow();
+
+      assertThat(client.selectProvider(newRequest(null, "localhost", null))).isSameAs(client);
+      assertThat(client.createAuthenticationUrl()).startsWith(provider.getEndpoint());
+    } finally {
+      client.stop();
+      provider.stop();
     }
   }
 
-  private void testRemoteOpenIdProvider(String endpoint) {
+  @Test
+  public void login_in_progress_is_verified_after_reload() throws Exception {
+    EmbeddedOidcProvider provider = new EmbeddedOidcProvider().start();
     Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_PROTOCOL, "oidc")
       .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
-      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, endpoint);
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getIssuer())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false")
+      .setProperty(OidcEngine.PROPERTY_CLIENT_ID, EmbeddedOidcProvider.CLIENT_ID)
+      .setProperty(OidcEngine.PROPERTY_CLIENT_SECRET, EmbeddedOidcProvider.CLIENT_SECRET);
     OpenIdClient client = new OpenIdClient(settings);
+    try {
+      client.start();
+      OidcEngineTest.Browser browser = new OidcEngineTest.Browser();
+      ParameterList response = OidcEngineTest.login(client.selectProvider(newRequest(null, "localhost", null)).createAuthenticationUrl(browser.response()));
+
+      settings.setProperty(OidcEngine.PROPERTY_SCOPE, "openid email");
+      client.reloadNow();
+
+      OpenIdClient reloaded = client.providerOfResponse(newRequest(null, null, "/openid/validate"));
+      assertThat(reloaded).isNotSameAs(client);
+      assertThat(reloaded.verify(reloaded.getReturnToUrl(), response, browser.request()).getName()).isEqualTo("Name john");
+      assertThat(reloaded.createAuthenticationUrl(browser.response())).contains("&scope=openid+email&");
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void fail_if_unknown_protocol() {
+    OpenIdClient client = new OpenIdClient(new Settings().setProperty(OpenIdClient.PROPERTY_PROTOCOL, "saml"));
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Supported values are openid and oidc");
     client.start();
+  }
+
+  @Test
+  public void single_provider_by_default() {
+    OpenIdClient client = new OpenIdClient(new Settings());
+    client.initProviders();
+
+    assertThat(client.selectProvider(newRequest("corp", "corp.example.com", null))).isSameAs(client);
+    assertThat(client.providerOfResponse(newRequest(null, null, "/openid/validate"))).isSameAs(client);
+    assertThat(client.providerOfResponse(newRequest(null, null, "/openid/validate/corp"))).isNull();
+  }
+
+  @Test
+  public void fail_if_invalid_provider_key() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Invalid key of OpenID provider: c/orp");
 
-    assertThat(client.getDiscoveryInfo().getOPEndpoint().toString()).isEqualTo(endpoint);
-    assertThat(client.getDiscoveryInfo().getVersion()).startsWith("http://");
+    new OpenIdClient(new Settings().setProperty(OpenIdClient.PROPERTY_PROVIDERS, "c/orp")).initProviders();
+  }
+
+  @Test
+  public void select_extensions_by_class_name() {
+    OpenIdExtension corp = new AuthorizeExtension();
+    OpenIdExtension other = mock(OpenIdExtension.class);
+    List<OpenIdExtension> extensions = Arrays.asList(corp, other);
+
+    assertThat(OpenIdClient.selectExtensions(new String[0], extensions)).containsExactly(corp, other);
+    assertThat(OpenIdClient.selectExtensions(new String[] {"AuthorizeExtension"}, extensions)).containsExactly(corp);
+    assertThat(OpenIdClient.selectExtensions(new String[] {AuthorizeExtension.class.getName()}, extensions)).containsExactly(corp);
+    assertThat(OpenIdClient.selectExtensions(new String[] {"Unknown"}, extensions)).isEmpty();
   }
 
   @Test
@@ -110,6 +409,127 @@ public class OpenIdClientTest {
       .setProperty(OpenIdClient.PROPERTY_OPENID_URL, "abc is not xyz");
     OpenIdClient client = new OpenIdClient(settings);
     client.start();
+    client.getDiscoveryInfo();
+  }
+
+  @Test
+  public void start_does_not_wait_for_discovery() {
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, "abc is not xyz")
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath());
+    OpenIdClient client = new OpenIdClient(settings);
+    client.start();
+    client.stop();
+
+    assertThat(client.getReturnToUrl()).isEqualTo("http://localhost:9000/openid/validate");
+  }
+
+  @Test
+  public void lazy_start_initializes_on_first_login() {
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false")
+      .setProperty(OpenIdClient.PROPERTY_LAZY_START, "true")
+      .setProperty(OpenIdClient.PROPERTY_ASSOCIATION_STORE, "jdbc")
+      .setProperty(JdbcAssociationStore.PROPERTY_URL, "jdbc:unknown:openid");
+    OpenIdClient client = new OpenIdClient(settings);
+    try {
+      // the association store is unreachable, but the server starts
+      client.start();
+      assertThat(client.getNonceVerifier()).isNull();
+
+      try {
+        client.createAuthenticationUrl();
+        fail();
+      } catch (IllegalStateException e) {
+        assertThat(e.getMessage()).isEqualTo("Fail to initialize OpenID client");
+      }
+
+      // next login tries again
+      settings.setProperty(OpenIdClient.PROPERTY_ASSOCIATION_STORE, "memory");
+      assertThat(client.createAuthenticationUrl()).startsWith(provider.getEndpoint());
+      assertThat(client.getNonceVerifier()).isNotNull();
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void lazy_start_initializes_once() throws Exception {
+    EmbeddedOpenIdProvider provider = new EmbeddedOpenIdProvider().start();
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(OpenIdClient.PROPERTY_OPENID_URL, provider.getEndpoint())
+      .setProperty(OpenIdClient.PROPERTY_DISCOVERY_CACHE_FILE, new File(temp.getRoot(), "discovery.properties").getAbsolutePath())
+      .setProperty(OpenIdClient.PROPERTY_METRICS_JMX, "false")
+      .setProperty(OpenIdClient.PROPERTY_LAZY_START, "true");
+    final AtomicInteger stores = new AtomicInteger();
+    final OpenIdClient client = new OpenIdClient(settings) {
+      @Override
+      ConsumerAssociationStore createAssociationStore() {
+        stores.incrementAndGet();
+        return super.createAssociationStore();
+      }
+    };
+    try {
+      client.start();
+      assertThat(stores.get()).isEqualTo(0);
+
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      List<Future<String>> logins = Lists.newArrayList();
+      for (int i = 0; i < 8; i++) {
+        logins.add(executor.submit(new Callable<String>() {
+          public String call() {
+            return client.createAuthenticationUrl();
+          }
+        }));
+      }
+      for (Future<String> login : logins) {
+        assertThat(login.get()).startsWith(provider.getEndpoint());
+      }
+      executor.shutdown();
+      assertThat(stores.get()).isEqualTo(1);
+    } finally {
+      client.stop();
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void in_memory_association_store_by_default() {
+    assertThat(new OpenIdClient(new Settings()).createAssociationStore()).isInstanceOf(InMemoryConsumerAssociationStore.class);
+  }
+
+  @Test
+  public void file_association_store() {
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_ASSOCIATION_STORE, "file")
+      .setProperty(FileAssociationStore.PROPERTY_DIRECTORY, new File(temp.getRoot(), "associations").getAbsolutePath());
+
+    FileAssociationStore store = (FileAssociationStore) new OpenIdClient(settings).createAssociationStore();
+
+    assertThat(store.getDir()).isEqualTo(new File(temp.getRoot(), "associations"));
+  }
+
+  @Test
+  public void association_store_provided_by_extension() {
+    OpenIdAssociationStore store = mock(OpenIdAssociationStore.class);
+    OpenIdClient client = new OpenIdClient(new Settings(), Collections.<OpenIdExtension>emptyList(), Arrays.asList(store));
+
+    assertThat(client.createAssociationStore()).isSameAs(store);
+  }
+
+  @Test
+  public void fail_if_unknown_association_store() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Unknown value of property sonar.openid.associationStore: foo");
+
+    new OpenIdClient(new Settings().setProperty(OpenIdClient.PROPERTY_ASSOCIATION_STORE, "foo")).createAssociationStore();
   }
 
   @Test
@@ -171,7 +591,7 @@ public class OpenIdClientTest {
     verification.setVerifiedId(null);
 
     when(consumerManager.verify(anyString(), any(ParameterList.class), any(DiscoveryInformation.class))).thenReturn(verification);
-    OpenIdClient client = new OpenIdClient(new Settings()).setConsumerManager(consumerManager);
+    OpenIdClient client = new OpenIdClient(new Settings()).setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
 
     UserDetails user = client.verify("http://localhost:9000", new ParameterList());
     assertThat(user).isNull();
@@ -183,7 +603,7 @@ public class OpenIdClientTest {
     AuthRequest request = mock(AuthRequest.class);
     when(consumerManager.authenticate(any(DiscoveryInformation.class), anyString())).thenReturn(request);
 
-    AuthRequest result = new OpenIdClient(new Settings()).setConsumerManager(consumerManager).createAuthenticationRequest();
+    AuthRequest result = new OpenIdClient(new Settings()).setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo()).createAuthenticationRequest();
 
     assertThat(result).isSameAs(request);
     verify(request, times(2)).addExtension(any(MessageExtension.class));
@@ -196,7 +616,47 @@ public class OpenIdClientTest {
     ConsumerManager consumerManager = mock(ConsumerManager.class);
     when(consumerManager.authenticate(any(DiscoveryInformation.class), anyString())).thenThrow(new ConsumerException(""));
 
-    new OpenIdClient(new Settings()).setConsumerManager(consumerManager).createAuthenticationRequest();
+    new OpenIdClient(new Settings()).setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo()).createAuthenticationRequest();
+  }
+
+  @Test
+  public void createAuthenticationUrl_appends_precompiled_attributes() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    AuthRequest request = mock(AuthRequest.class);
+    when(request.getDestinationUrl(true)).thenReturn("http://localhost/openid?openid.mode=checkid_setup");
+    when(consumerManager.authenticate(any(DiscoveryInformation.class), anyString())).thenReturn(request);
+
+    String url = new OpenIdClient(new Settings()).setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo()).createAuthenticationUrl();
+
+    assertThat(url).isEqualTo("http://localhost/openid?openid.mode=checkid_setup" + new AuthRequestTemplate().getEncodedAttributes());
+    verify(request, never()).addExtension(any(MessageExtension.class));
+  }
+
+  @Test
+  public void createAuthenticationUrl_builds_request_if_extensions() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    AuthRequest request = mock(AuthRequest.class);
+    when(request.getDestinationUrl(true)).thenReturn("http://localhost/openid?openid.mode=checkid_setup");
+    when(consumerManager.authenticate(any(DiscoveryInformation.class), anyString())).thenReturn(request);
+    OpenIdExtension extension = mock(OpenIdExtension.class);
+
+    String url = new OpenIdClient(new Settings(), Arrays.asList(extension)).setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo())
+      .createAuthenticationUrl();
+
+    assertThat(url).isEqualTo("http://localhost/openid?openid.mode=checkid_setup");
+    verify(request, times(2)).addExtension(any(MessageExtension.class));
+    verify(extension).doOnRequest(request);
+  }
+
+  @Test
+  public void createAuthenticationUrl_fail() throws Exception {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Fail to create OpenID authentication request");
+
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    when(consumerManager.authenticate(any(DiscoveryInformation.class), anyString())).thenThrow(new ConsumerException(""));
+
+    new OpenIdClient(new Settings()).setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo()).createAuthenticationUrl();
   }
 
   @Test
@@ -208,9 +668,154 @@ public class OpenIdClientTest {
       .thenReturn(result);
 
     OpenIdClient client = new OpenIdClient(new Settings(), Lists.<OpenIdExtension>newArrayList(new UnauthorizeExtension(), new AuthorizeExtension()));
-    client.setConsumerManager(consumerManager);
+    client.setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
 
     assertThat(client.verify("http://localhost:9000", new ParameterList())).isNull();
+    assertThat(client.getMetrics().getLoginsRejectedByExtension()).isEqualTo(1L);
+    assertThat(client.getMetrics().getLatencyCounts()).includes(
+      entry("verify", 1L),
+      entry("extension." + UnauthorizeExtension.class.getName(), 1L),
+      entry("extension." + AuthorizeExtension.class.getName(), 1L));
+  }
+
+  @Test
+  public void provider_error_is_counted() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    when(consumerManager.verify(anyString(), any(ParameterList.class), any(DiscoveryInformation.class))).thenThrow(new DiscoveryException("timeout"));
+    OpenIdClient client = new OpenIdClient(new Settings()).setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+
+    try {
+      client.verify("http://localhost:9000", new ParameterList());
+    } catch (IllegalStateException e) {
+      assertThat(client.getMetrics().getProviderErrors()).isEqualTo(1L);
+      assertThat(client.getMetrics().getLatencyCounts()).includes(entry("verify", 1L));
+      return;
+    }
+    fail();
+  }
+
+  @Test
+  public void fail_over_to_next_endpoint_when_circuit_is_open() throws Exception {
+    DiscoveryInformation primary = newDiscoveryInfo();
+    DiscoveryInformation secondary = new DiscoveryInformation(new URL("http://backup/openid"));
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    when(consumerManager.authenticate(eq(secondary), anyString())).thenReturn(mock(AuthRequest.class));
+    OpenIdClient client = new OpenIdClient(new Settings().setProperty(ProviderHealth.PROPERTY_FAILURE_THRESHOLD, 2))
+      .setConsumerManager(consumerManager).setDiscoveryInfo(Arrays.asList(primary, secondary));
+    client.initHealth();
+
+    // calls to the primary endpoint time out
+    client.getHealth().recordFailure("http://localhost/openid");
+    client.getHealth().recordFailure("http://localhost/openid");
+    assertThat(client.getHealth().getState("http://localhost/openid")).isEqualTo(ProviderHealth.State.OPEN);
+
+    client.createAuthenticationRequest();
+    verify(consumerManager).authenticate(eq(secondary), anyString());
+  }
+
+  @Test
+  public void invalid_responses_do_not_open_circuit() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    when(consumerManager.verify(anyString(), any(ParameterList.class), any(DiscoveryInformation.class)))
+      .thenThrow(new MessageException("claimed_id without identity"))
+      .thenThrow(new DiscoveryException("unknown claimed_id"))
+      .thenThrow(new IllegalArgumentException("bad response"));
+    OpenIdClient client = new OpenIdClient(new Settings().setProperty(ProviderHealth.PROPERTY_FAILURE_THRESHOLD, 1))
+      .setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+    client.initHealth();
+
+    for (int i = 0; i < 5; i++) {
+      try {
+        client.verify("http://localhost:9000", new ParameterList());
+        fail();
+      } catch (IllegalStateException e) {
+        assertThat(e instanceof ProviderUnavailableException).isFalse();
+      }
+    }
+    assertThat(client.getHealth().getState("http://localhost/openid")).isEqualTo(ProviderHealth.State.CLOSED);
+    verify(consumerManager, times(5)).verify(anyString(), any(ParameterList.class), any(DiscoveryInformation.class));
+  }
+
+  @Test
+  public void verify_associated_responses_when_circuit_is_open() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    VerificationResult result = newAuthenticatedResult();
+    when(consumerManager.verify(anyString(), any(ParameterList.class), any(DiscoveryInformation.class))).thenReturn(result);
+    ConsumerAssociationStore associations = new InMemoryConsumerAssociationStore();
+    associations.save("http://localhost/openid", Association.generateHmacSha1("handle", 3600));
+    when(consumerManager.getAssociations()).thenReturn(associations);
+    OpenIdClient client = new OpenIdClient(new Settings().setProperty(ProviderHealth.PROPERTY_FAILURE_THRESHOLD, 1))
+      .setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+    client.initHealth();
+    client.getHealth().recordFailure("http://localhost/openid");
+
+    ParameterList associated = new ParameterList();
+    associated.set(new Parameter("openid.assoc_handle", "handle"));
+    assertThat(client.verify("http://localhost:9000", associated).getName()).isEqualTo("marius");
+
+    // verified in stateless mode by the provider
+    ParameterList unknownHandle = new ParameterList();
+    unknownHandle.set(new Parameter("openid.assoc_handle", "other"));
+    try {
+      client.verify("http://localhost:9000", unknownHandle);
+      fail();
+    } catch (ProviderUnavailableException e) {
+      verify(consumerManager, times(1)).verify(anyString(), any(ParameterList.class), any(DiscoveryInformation.class));
+    }
+  }
+
+  @Test
+  public void fail_fast_when_all_circuits_are_open() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    OpenIdClient client = new OpenIdClient(new Settings().setProperty(ProviderHealth.PROPERTY_FAILURE_THRESHOLD, 1)
+      .setProperty(ProviderHealth.PROPERTY_OPEN_SECONDS, 45))
+      .setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+    client.initHealth();
+    client.getHealth().recordFailure("http://localhost/openid");
+
+    try {
+      client.verify("http://localhost:9000", new ParameterList());
+      fail();
+    } catch (ProviderUnavailableException e) {
+      assertThat(e.getRetryAfterSeconds()).isEqualTo(45L);
+    }
+    try {
+      client.createAuthenticationUrl();
+      fail();
+    } catch (ProviderUnavailableException e) {
+      assertThat(client.getMetrics().getProviderUnavailable()).isEqualTo(2L);
+    }
+    verifyZeroInteractions(consumerManager);
+  }
+
+  @Test
+  public void circuit_breaker_can_be_disabled() throws Exception {
+    OpenIdClient client = new OpenIdClient(new Settings().setProperty(ProviderHealth.PROPERTY_FAILURE_THRESHOLD, 0));
+    client.initHealth();
+
+    assertThat(client.getHealth()).isNull();
+  }
+
+  @Test
+  public void verify_extensions_concurrently() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    VerificationResult result = newAuthenticatedResult();
+    when(consumerManager.verify(eq("http://localhost:9000"), any(ParameterList.class), any(DiscoveryInformation.class)))
+      .thenReturn(result);
+    Settings settings = new Settings()
+      .setProperty(OpenIdClient.PROPERTY_EXTENSIONS_THREADS, "4")
+      .setProperty(OpenIdClient.PROPERTY_EXTENSIONS_TIMEOUT_MILLIS, "1000");
+
+    OpenIdClient client = new OpenIdClient(settings, Lists.<OpenIdExtension>newArrayList(new AuthorizeExtension(), new UnauthorizeExtension()));
+    client.setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+    client.initExtensionVerifier();
+
+    try {
+      assertThat(client.verify("http://localhost:9000", new ParameterList())).isNull();
+      assertThat(client.getMetrics().getLoginsRejectedByExtension()).isEqualTo(1L);
+    } finally {
+      client.stop();
+    }
   }
 
   @Test
@@ -222,11 +827,82 @@ public class OpenIdClientTest {
       .thenReturn(result);
 
     OpenIdClient client = new OpenIdClient(new Settings(), Lists.<OpenIdExtension>newArrayList(new AuthorizeExtension()));
-    client.setConsumerManager(consumerManager);
+    client.setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
 
     assertThat(client.verify("http://localhost:9000", new ParameterList())).isNotNull();
   }
 
+  @Test
+  public void skip_extensions_if_identity_recently_verified() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    VerificationResult result = newAuthenticatedResult();
+    when(consumerManager.verify(eq("http://localhost:9000"), any(ParameterList.class), any(DiscoveryInformation.class)))
+      .thenReturn(result);
+    OpenIdExtension extension = mock(OpenIdExtension.class, CALLS_REAL_METHODS);
+    when(extension.doVerifyResponse(any(AuthSuccess.class))).thenReturn(true);
+    Settings settings = new Settings().setProperty(IdentityCache.PROPERTY_TTL_SECONDS, "60");
+    OpenIdClient client = new OpenIdClient(settings, Lists.newArrayList(extension));
+    client.setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+    client.initIdentityCache();
+
+    UserDetails first = client.verify("http://localhost:9000", new ParameterList());
+    UserDetails second = client.verify("http://localhost:9000", new ParameterList());
+
+    assertThat(first.getName()).isEqualTo("marius");
+    assertThat(second.getName()).isEqualTo("marius");
+    assertThat(second).isNotSameAs(first);
+    verify(extension, times(1)).doVerifyResponse(any(AuthSuccess.class));
+    verify(consumerManager, times(2)).verify(anyString(), any(ParameterList.class), any(DiscoveryInformation.class));
+    assertThat(client.getMetrics().getIdentityCacheHits()).isEqualTo(1L);
+    assertThat(client.getMetrics().getLoginsVerified()).isEqualTo(2L);
+
+    // logout
+    client.invalidateIdentity("http://example.com");
+    client.verify("http://localhost:9000", new ParameterList());
+    verify(extension, times(2)).doVerifyResponse(any(AuthSuccess.class));
+  }
+
+  @Test
+  public void identity_cache_is_disabled_by_default() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    VerificationResult result = newAuthenticatedResult();
+    when(consumerManager.verify(eq("http://localhost:9000"), any(ParameterList.class), any(DiscoveryInformation.class)))
+      .thenReturn(result);
+    OpenIdExtension extension = mock(OpenIdExtension.class, CALLS_REAL_METHODS);
+    when(extension.doVerifyResponse(any(AuthSuccess.class))).thenReturn(true);
+    OpenIdClient client = new OpenIdClient(new Settings(), Lists.newArrayList(extension));
+    client.setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+    client.initIdentityCache();
+
+    client.verify("http://localhost:9000", new ParameterList());
+    client.verify("http://localhost:9000", new ParameterList());
+
+    assertThat(client.isIdentityCacheEnabled()).isFalse();
+    verify(extension, times(2)).doVerifyResponse(any(AuthSuccess.class));
+  }
+
+  @Test
+  public void rejected_identity_is_not_cached() throws Exception {
+    ConsumerManager consumerManager = mock(ConsumerManager.class);
+    VerificationResult result = newAuthenticatedResult();
+    when(consumerManager.verify(eq("http://localhost:9000"), any(ParameterList.class), any(DiscoveryInformation.class)))
+      .thenReturn(result);
+    OpenIdExtension extension = mock(OpenIdExtension.class, CALLS_REAL_METHODS);
+    when(extension.doVerifyResponse(any(AuthSuccess.class))).thenReturn(false);
+    Settings settings = new Settings().setProperty(IdentityCache.PROPERTY_TTL_SECONDS, "60");
+    OpenIdClient client = new OpenIdClient(settings, Lists.newArrayList(extension));
+    client.setConsumerManager(consumerManager).setDiscoveryInfo(newDiscoveryInfo());
+    client.initIdentityCache();
+
+    assertThat(client.verify("http://localhost:9000", new ParameterList())).isNull();
+    assertThat(client.verify("http://localhost:9000", new ParameterList())).isNull();
+    verify(extension, times(2)).doVerifyResponse(any(AuthSuccess.class));
+  }
+
+  static DiscoveryInformation newDiscoveryInfo() throws DiscoveryException, MalformedURLException {
+    return new DiscoveryInformation(new URL("http://localhost/openid"));
+  }
+
   private VerificationResult newAuthenticatedResult() throws DiscoveryException, MessageException {
     VerificationResult verification = new VerificationResult();
     verification.setVerifiedId(new UrlIdentifier("http://example.com"));
@@ -252,4 +928,12 @@ public class OpenIdClientTest {
       return false;
     }
   }
+
+  private static HttpServletRequest newRequest(String providerParameter, String host, String uri) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter(OpenIdClient.PROVIDER_PARAMETER)).thenReturn(providerParameter);
+    when(request.getServerName()).thenReturn(host);
+    when(request.getRequestURI()).thenReturn(uri);
+    return request;
+  }
 }
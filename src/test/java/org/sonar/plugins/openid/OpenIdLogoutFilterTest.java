@@ -85,4 +85,22 @@ public class OpenIdLogoutFilterTest {
     verify(session).invalidate();
     verify(response).sendRedirect("https://www.google.com/accounts/Logout");
   }
+
+  @Test
+  public void should_invalidate_verified_identity() throws Exception {
+    OpenIdClient client = mock(OpenIdClient.class);
+    OpenIdLogoutFilter filter = new OpenIdLogoutFilter(new Settings(), client);
+
+    HttpSession session = mock(HttpSession.class);
+    when(session.getAttribute(OpenIdValidationFilter.CLAIMED_ID_SESSION_ATTRIBUTE)).thenReturn("http://example.com/john");
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getSession(false)).thenReturn(session);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+
+    filter.doFilter(request, response, chain);
+
+    verify(client).invalidateIdentity("http://example.com/john");
+    verify(chain).doFilter(request, response);
+  }
 }
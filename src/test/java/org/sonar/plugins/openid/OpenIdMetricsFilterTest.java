@@ -0,0 +1,110 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class OpenIdMetricsFilterTest {
+
+  @Test
+  public void write_metrics() throws Exception {
+    OpenIdClient client = new OpenIdClient(new Settings());
+    client.getMetrics().loginStarted();
+    OpenIdMetricsFilter filter = new OpenIdMetricsFilter(new Settings().setProperty("sonar.openid.metrics.endpoint", "true"), client);
+    filter.init(mock(FilterConfig.class));
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    StringWriter output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+    FilterChain chain = mock(FilterChain.class);
+
+    filter.doFilter(requestFrom("127.0.0.1"), response, chain);
+
+    verify(response).setContentType("text/plain; charset=UTF-8");
+    assertThat(output.toString()).contains("openid_logins_started 1");
+    verifyZeroInteractions(chain);
+  }
+
+  @Test
+  public void forbidden_to_remote_clients() throws Exception {
+    OpenIdMetricsFilter filter = new OpenIdMetricsFilter(new Settings().setProperty("sonar.openid.metrics.endpoint", "true"), new OpenIdClient(new Settings()));
+    filter.init(mock(FilterConfig.class));
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+
+    filter.doFilter(requestFrom("10.0.0.1"), response, chain);
+
+    verify(response).sendError(403);
+    verify(response, never()).getWriter();
+    verifyZeroInteractions(chain);
+  }
+
+  @Test
+  public void only_loopback_requests_are_local() {
+    assertThat(OpenIdMetricsFilter.isLocal(requestFrom("127.0.0.1"))).isTrue();
+    assertThat(OpenIdMetricsFilter.isLocal(requestFrom("::1"))).isTrue();
+    assertThat(OpenIdMetricsFilter.isLocal(requestFrom("192.168.1.10"))).isFalse();
+    assertThat(OpenIdMetricsFilter.isLocal(requestFrom("localhost.evil.com"))).isFalse();
+    assertThat(OpenIdMetricsFilter.isLocal(requestFrom(null))).isFalse();
+
+    // reverse proxy on the same host
+    HttpServletRequest forwarded = requestFrom("127.0.0.1");
+    when(forwarded.getHeader("X-Forwarded-For")).thenReturn("10.0.0.1");
+    assertThat(OpenIdMetricsFilter.isLocal(forwarded)).isFalse();
+  }
+
+  @Test
+  public void disabled_by_default() throws Exception {
+    OpenIdMetricsFilter filter = new OpenIdMetricsFilter(new Settings(), new OpenIdClient(new Settings()));
+    filter.init(mock(FilterConfig.class));
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+
+    filter.doFilter(request, response, chain);
+
+    verify(chain).doFilter(request, response);
+    verifyZeroInteractions(response);
+    filter.destroy();
+  }
+
+  @Test
+  public void url_pattern() {
+    OpenIdMetricsFilter filter = new OpenIdMetricsFilter(new Settings(), mock(OpenIdClient.class));
+
+    assertThat(filter.doGetPattern().toString()).isEqualTo("/openid/metrics");
+  }
+
+  private static HttpServletRequest requestFrom(String remoteAddress) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn(remoteAddress);
+    return request;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class OpenIdMetricsTest {
+
+  private OpenIdMetrics metrics = new OpenIdMetrics();
+
+  @After
+  public void tearDown() {
+    metrics.unregister();
+  }
+
+  @Test
+  public void counters() {
+    metrics.loginStarted();
+    metrics.loginStarted();
+    metrics.loginVerified();
+    metrics.loginUnverified();
+    metrics.loginRejectedByExtension();
+    metrics.providerError();
+
+    assertThat(metrics.getLoginsStarted()).isEqualTo(2L);
+    assertThat(metrics.getLoginsVerified()).isEqualTo(1L);
+    assertThat(metrics.getLoginsUnverified()).isEqualTo(1L);
+    assertThat(metrics.getLoginsRejectedByExtension()).isEqualTo(1L);
+    assertThat(metrics.getProviderErrors()).isEqualTo(1L);
+  }
+
+  @Test
+  public void latencies_by_phase() {
+    metrics.record(OpenIdMetrics.PHASE_VERIFY, 2000000L);
+    metrics.record(OpenIdMetrics.PHASE_VERIFY, 4000000L);
+    metrics.record(OpenIdMetrics.PHASE_TO_USER, 1000L);
+
+    assertThat(metrics.getLatencyCounts()).hasSize(2);
+    assertThat(metrics.getLatencyCounts().get("verify")).isEqualTo(2L);
+    assertThat(metrics.getLatencyMeanMillis().get("verify")).isEqualTo(3.0);
+    assertThat(metrics.getLatencyMaxMillis().get("verify")).isEqualTo(4.0);
+    assertThat(metrics.getLatencyP99Millis().get("toUser")).isEqualTo(0.001);
+  }
+
+  @Test
+  public void text() {
+    metrics.loginStarted();
+    metrics.record(OpenIdMetrics.PHASE_VERIFY, 2000000L);
+    metrics.setNonceVerifier(new BucketedNonceVerifier(60, 100));
+    metrics.responseRejected(ResponsePrecheck.REASON_NONCE);
+
+    String text = metrics.getText();
+
+    assertThat(text).contains("openid_logins_started 1\n");
+    assertThat(text).contains("openid_responses_rejected{reason=\"nonce\"} 1\n");
+    assertThat(text).contains("openid_nonces_rejected{reason=\"seen\"} 0\n");
+    assertThat(text).contains("openid_latency_count{phase=\"verify\"} 1\n");
+    assertThat(text).contains("openid_latency_max_ms{phase=\"verify\"} 2.000\n");
+  }
+
+  @Test
+  public void register_in_jmx() throws Exception {
+    metrics.register();
+    metrics.loginStarted();
+    // replaces the metrics of previous instance
+    OpenIdMetrics other = new OpenIdMetrics();
+    other.register();
+    other.loginStarted();
+    other.loginStarted();
+
+    Object started = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(OpenIdMetrics.OBJECT_NAME), "LoginsStarted");
+    assertThat(started).isEqualTo(2L);
+
+    other.unregister();
+    assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(OpenIdMetrics.OBJECT_NAME))).isFalse();
+  }
+}
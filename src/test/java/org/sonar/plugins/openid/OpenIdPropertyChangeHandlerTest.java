@@ -0,0 +1,60 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Test;
+import org.sonar.api.config.GlobalPropertyChangeHandler.PropertyChange;
+import org.sonar.api.config.Settings;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class OpenIdPropertyChangeHandlerTest {
+
+  private Settings settings = new Settings();
+  private OpenIdClient client = mock(OpenIdClient.class);
+  private OpenIdPropertyChangeHandler handler = new OpenIdPropertyChangeHandler(settings, client);
+
+  @Test
+  public void reload_when_openid_property_changes() {
+    handler.onChange(PropertyChange.create(OpenIdLogoutFilter.PROPERTY_PROVIDER_LOGOUT_URL, "http://localhost/logout"));
+
+    assertThat(settings.getString(OpenIdLogoutFilter.PROPERTY_PROVIDER_LOGOUT_URL)).isEqualTo("http://localhost/logout");
+    verify(client).reload();
+  }
+
+  @Test
+  public void reload_when_openid_property_is_removed() {
+    settings.setProperty(OpenIdLogoutFilter.PROPERTY_PROVIDER_LOGOUT_URL, "http://localhost/logout");
+
+    handler.onChange(PropertyChange.create(OpenIdLogoutFilter.PROPERTY_PROVIDER_LOGOUT_URL, null));
+
+    assertThat(settings.hasKey(OpenIdLogoutFilter.PROPERTY_PROVIDER_LOGOUT_URL)).isFalse();
+    verify(client).reload();
+  }
+
+  @Test
+  public void ignore_other_properties() {
+    handler.onChange(PropertyChange.create("sonar.core.serverBaseURL", "http://localhost:9000"));
+
+    assertThat(settings.hasKey("sonar.core.serverBaseURL")).isFalse();
+    verifyZeroInteractions(client);
+  }
+}
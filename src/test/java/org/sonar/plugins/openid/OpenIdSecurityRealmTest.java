@@ -22,6 +22,7 @@ package org.sonar.plugins.openid;
 import org.junit.Test;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 
 public class OpenIdSecurityRealmTest {
   @Test
@@ -34,6 +35,12 @@ public class OpenIdSecurityRealmTest {
     assertThat(new OpenIdSecurityRealm().getUsersProvider()).isInstanceOf(OpenIdUserProvider.class);
   }
 
+  @Test
+  public void hasGroupsProvider() {
+    assertThat(new OpenIdSecurityRealm(mock(OpenIdClient.class)).getGroupsProvider()).isInstanceOf(OpenIdGroupsProvider.class);
+    assertThat(new OpenIdSecurityRealm().getGroupsProvider()).isNull();
+  }
+
   @Test
   public void justForCoverage() {
     assertThat(new OpenIdSecurityRealm().getName()).isEqualTo("openid");
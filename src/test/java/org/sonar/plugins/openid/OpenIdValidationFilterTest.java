@@ -19,27 +19,39 @@
  */
 package org.sonar.plugins.openid;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openid4java.message.ParameterList;
+import org.sonar.api.config.Settings;
 import org.sonar.api.security.UserDetails;
 
-import javax.servlet.FilterChain;
-import javax.servlet.FilterConfig;
-import javax.servlet.ServletException;
+import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 public class OpenIdValidationFilterTest {
 
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
   @Test
   public void add_user_to_session_on_successful_authentication() throws Exception {
-    OpenIdClient openIdClient = mock(OpenIdClient.class);
+    OpenIdClient openIdClient = mockClient();
     when(openIdClient.getReturnToUrl()).thenReturn("https://localhost:9000");
     UserDetails user = new UserDetails();
-    when(openIdClient.verify(anyString(), any(ParameterList.class))).thenReturn(user);
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(user);
 
     OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
     HttpServletRequest request = mock(HttpServletRequest.class);
@@ -56,12 +68,33 @@ public class OpenIdValidationFilterTest {
     verify(chain).doFilter(request, response);
   }
 
+  @Test
+  public void reject_responses_over_rate_limit() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.getRateLimiter()).thenReturn(new LoginRateLimiter(0, 1, 1, 1, null, new OpenIdMetrics()));
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost:9000?foo=bar"));
+    when(request.getQueryString()).thenReturn("foo=bar");
+
+    filter.doFilter(request, mock(HttpServletResponse.class), mock(FilterChain.class));
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+    filter.doFilter(request, response, chain);
+
+    verify(response).setHeader("Retry-After", "1");
+    verify(response).sendError(503);
+    verify(openIdClient, times(1)).verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class));
+    verify(chain, never()).doFilter(request, response);
+  }
+
   @Test
   public void should_support_ssl() throws Exception {
     UserDetails user = new UserDetails();
-    OpenIdClient openIdClient = mock(OpenIdClient.class);
+    OpenIdClient openIdClient = mockClient();
     when(openIdClient.getReturnToUrl()).thenReturn("https://localhost:9000");
-    when(openIdClient.verify(eq("https://localhost:9000?foo=bar"), any(ParameterList.class))).thenReturn(user);
+    when(openIdClient.verify(eq("https://localhost:9000?foo=bar"), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(user);
 
     OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
     HttpServletRequest request = mock(HttpServletRequest.class);
@@ -83,9 +116,9 @@ public class OpenIdValidationFilterTest {
   @Test
   public void should_support_reverse_proxy() throws Exception {
     UserDetails user = new UserDetails();
-    OpenIdClient openIdClient = mock(OpenIdClient.class);
+    OpenIdClient openIdClient = mockClient();
     when(openIdClient.getReturnToUrl()).thenReturn("http://integration.silverpeas.org/sonar");
-    when(openIdClient.verify(eq("http://integration.silverpeas.org/sonar?foo=bar"), any(ParameterList.class))).thenReturn(user);
+    when(openIdClient.verify(eq("http://integration.silverpeas.org/sonar?foo=bar"), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(user);
 
     OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
     HttpServletRequest request = mock(HttpServletRequest.class);
@@ -107,9 +140,9 @@ public class OpenIdValidationFilterTest {
 
   @Test
   public void should_redirect_to_unauthorized_page() throws Exception {
-    OpenIdClient openIdClient = mock(OpenIdClient.class);
+    OpenIdClient openIdClient = mockClient();
     when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
-    when(openIdClient.verify(eq("http://localhost:9000?foo=bar"), any(ParameterList.class))).thenReturn(null); // not authenticated
+    when(openIdClient.verify(eq("http://localhost:9000?foo=bar"), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(null); // not authenticated
 
     OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
     FilterChain chain = mock(FilterChain.class);
@@ -126,16 +159,169 @@ public class OpenIdValidationFilterTest {
     verify(response).sendRedirect("/openid/unauthorized");
   }
 
+  @Test
+  public void parse_openid_connect_response() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.isOidc()).thenReturn(true);
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    UserDetails user = new UserDetails();
+    when(openIdClient.verify(eq("http://localhost:9000?code=abc&state=xyz&session_state=foo"), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(user);
+
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getQueryString()).thenReturn("code=abc&state=xyz&session_state=foo");
+    FilterChain chain = mock(FilterChain.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    filter.doFilter(request, response, chain);
+
+    ArgumentCaptor<ParameterList> parameters = ArgumentCaptor.forClass(ParameterList.class);
+    verify(openIdClient).verify(anyString(), parameters.capture(), any(HttpServletRequest.class));
+    assertThat(parameters.getValue().getParameters()).hasSize(2);
+    assertThat(parameters.getValue().getParameterValue("code")).isEqualTo("abc");
+    verify(request).setAttribute(OpenIdValidationFilter.USER_ATTRIBUTE, user);
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test
+  public void service_unavailable_if_provider_is_down() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenThrow(new ProviderUnavailableException("down", 30L));
+
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    FilterChain chain = mock(FilterChain.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getQueryString()).thenReturn("foo=bar");
+
+    filter.doFilter(request, response, chain);
+
+    verify(response).setHeader("Retry-After", "30");
+    verify(response).sendError(503);
+    verifyZeroInteractions(chain);
+  }
+
+  @Test
+  public void verify_only_openid_parameters_of_query_string() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    UserDetails user = new UserDetails();
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(user);
+
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getQueryString()).thenReturn("openid.mode=id_res&foo=bar&openid.identity=http%3A%2F%2Fid");
+    filter.doFilter(request, mock(HttpServletResponse.class), mock(FilterChain.class));
+
+    ArgumentCaptor<ParameterList> parameters = ArgumentCaptor.forClass(ParameterList.class);
+    verify(openIdClient).verify(eq("http://localhost:9000?openid.mode=id_res&foo=bar&openid.identity=http%3A%2F%2Fid"), parameters.capture(), any(HttpServletRequest.class));
+    assertThat(parameters.getValue().getParameters()).hasSize(2);
+    assertThat(parameters.getValue().getParameterValue("openid.identity")).isEqualTo("http://id");
+    verify(request, never()).getParameterMap();
+  }
+
+  @Test
+  public void read_parameters_of_posted_response() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(new UserDetails());
+
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getQueryString()).thenReturn("foo=bar");
+    when(request.getParameterMap()).thenReturn(Collections.singletonMap("openid.mode", new String[] {"id_res"}));
+    filter.doFilter(request, mock(HttpServletResponse.class), mock(FilterChain.class));
+
+    ArgumentCaptor<ParameterList> parameters = ArgumentCaptor.forClass(ParameterList.class);
+    verify(openIdClient).verify(eq("http://localhost:9000?foo=bar"), parameters.capture(), any(HttpServletRequest.class));
+    assertThat(parameters.getValue().getParameterValue("openid.mode")).isEqualTo("id_res");
+  }
+
+  @Test
+  public void reject_invalid_response_with_400() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getQueryString()).thenReturn("openid.mode=id_res&openid.mode=cancel");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+    filter.doFilter(request, response, chain);
+
+    verify(response).sendError(400);
+    verify(openIdClient, never()).verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class));
+    verifyZeroInteractions(chain);
+  }
+
+  @Test
+  public void reject_malformed_response_before_verification() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.precheck(any(ParameterList.class))).thenReturn(ResponsePrecheck.REASON_MODE);
+
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getQueryString()).thenReturn("openid.mode=foo");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+    filter.doFilter(request, response, chain);
+
+    verify(response).sendError(400);
+    verify(openIdClient, never()).verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class));
+    verifyZeroInteractions(chain);
+  }
+
   @Test
   public void doGetPattern() {
-    OpenIdValidationFilter filter = new OpenIdValidationFilter(mock(OpenIdClient.class));
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(mockClient());
+
+    assertThat(filter.doGetPattern().matches("/openid/validate")).isTrue();
+    assertThat(filter.doGetPattern().matches("/openid/validate/corp")).isTrue();
+    assertThat(filter.doGetPattern().matches("/openid/metrics")).isFalse();
+  }
+
+  @Test
+  public void verify_with_provider_of_response() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    OpenIdClient provider = mockClient();
+    when(provider.getReturnToUrl()).thenReturn("http://localhost:9000/openid/validate/corp");
+    UserDetails user = new UserDetails();
+    when(provider.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(user);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getQueryString()).thenReturn("openid.mode=id_res");
+    when(openIdClient.providerOfResponse(request)).thenReturn(provider);
+    FilterChain chain = mock(FilterChain.class);
+
+    new OpenIdValidationFilter(openIdClient).doFilter(request, mock(HttpServletResponse.class), chain);
 
-    assertThat(filter.doGetPattern().toString()).isEqualTo("/openid/validate");
+    verify(provider).verify(eq("http://localhost:9000/openid/validate/corp?openid.mode=id_res"), any(ParameterList.class), any(HttpServletRequest.class));
+    verify(openIdClient, never()).verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class));
+    verify(request).setAttribute(OpenIdValidationFilter.USER_ATTRIBUTE, user);
+  }
+
+  @Test
+  public void reject_response_of_unknown_provider_with_404() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(openIdClient.providerOfResponse(request)).thenReturn(null);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+
+    new OpenIdValidationFilter(openIdClient).doFilter(request, response, chain);
+
+    verify(response).sendError(404);
+    verifyZeroInteractions(chain);
   }
 
   @Test
   public void init_and_destroy_do_nothing() throws ServletException {
-    OpenIdValidationFilter filter = new OpenIdValidationFilter(mock(OpenIdClient.class));
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(mockClient());
 
     filter.init(mock(FilterConfig.class));
     filter.destroy();
@@ -144,4 +330,135 @@ public class OpenIdValidationFilterTest {
   }
 
 
+  @Test
+  public void keep_claimed_identifier_in_session_if_identity_cache() throws Exception {
+    UserDetails user = new UserDetails();
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(user);
+    when(openIdClient.isIdentityCacheEnabled()).thenReturn(true);
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(openIdClient);
+    HttpSession session = mock(HttpSession.class);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("openid.claimed_id")).thenReturn("http://example.com/john");
+    when(request.getSession(true)).thenReturn(session);
+
+    filter.doFilter(request, mock(HttpServletResponse.class), mock(FilterChain.class));
+
+    verify(session).setAttribute(OpenIdValidationFilter.CLAIMED_ID_SESSION_ATTRIBUTE, "http://example.com/john");
+  }
+
+  @Test
+  public void reject_with_503_when_too_many_verifications_in_progress() throws Exception {
+    final CountDownLatch verifying = new CountDownLatch(1);
+    final CountDownLatch providerIsSlow = new CountDownLatch(1);
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenAnswer(new Answer<UserDetails>() {
+      public UserDetails answer(InvocationOnMock invocation) throws InterruptedException {
+        verifying.countDown();
+        providerIsSlow.await(5, TimeUnit.SECONDS);
+        return new UserDetails();
+      }
+    });
+    final OpenIdValidationFilter filter = newFilter(openIdClient, 1);
+    final HttpServletRequest request1 = mock(HttpServletRequest.class);
+    final FilterChain chain1 = mock(FilterChain.class);
+    Thread first = new Thread() {
+      @Override
+      public void run() {
+        try {
+          filter.doFilter(request1, mock(HttpServletResponse.class), chain1);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    first.start();
+    assertThat(verifying.await(5, TimeUnit.SECONDS)).isTrue();
+
+    HttpServletResponse response2 = mock(HttpServletResponse.class);
+    FilterChain chain2 = mock(FilterChain.class);
+    filter.doFilter(mock(HttpServletRequest.class), response2, chain2);
+
+    verify(response2).setHeader("Retry-After", "1");
+    verify(response2).sendError(503);
+    verifyZeroInteractions(chain2);
+    verify(openIdClient, times(1)).verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class));
+
+    providerIsSlow.countDown();
+    first.join(5000);
+    verify(chain1).doFilter(eq(request1), any(HttpServletResponse.class));
+    assertThat(filter.getAvailableInFlight()).isEqualTo(1);
+  }
+
+  @Test
+  public void release_permit_after_verification() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(new UserDetails());
+    OpenIdValidationFilter filter = newFilter(openIdClient, 1);
+
+    filter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class), mock(FilterChain.class));
+    FilterChain chain = mock(FilterChain.class);
+    filter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class), chain);
+
+    verify(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    assertThat(filter.getAvailableInFlight()).isEqualTo(1);
+  }
+
+  @Test
+  public void release_permit_if_verification_fails() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenThrow(new IllegalStateException("provider is down"));
+    OpenIdValidationFilter filter = newFilter(openIdClient, 1);
+
+    try {
+      filter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class), mock(FilterChain.class));
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("provider is down");
+    }
+
+    assertThat(filter.getAvailableInFlight()).isEqualTo(1);
+  }
+
+  @Test
+  public void fail_if_negative_max_in_flight() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage(OpenIdValidationFilter.PROPERTY_MAX_IN_FLIGHT);
+
+    newFilter(mockClient(), -1);
+  }
+
+  @Test
+  public void no_limit_of_verifications_in_progress_if_max_is_zero() throws Exception {
+    OpenIdClient openIdClient = mockClient();
+    when(openIdClient.getReturnToUrl()).thenReturn("http://localhost:9000");
+    when(openIdClient.verify(anyString(), any(ParameterList.class), any(HttpServletRequest.class))).thenReturn(new UserDetails());
+    OpenIdValidationFilter filter = newFilter(openIdClient, 0);
+    FilterChain chain = mock(FilterChain.class);
+
+    filter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class), chain);
+
+    verify(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    assertThat(filter.getAvailableInFlight()).isEqualTo(0);
+  }
+
+  private static OpenIdValidationFilter newFilter(OpenIdClient openIdClient, int maxInFlight) throws ServletException {
+    Settings settings = new Settings().setProperty(OpenIdValidationFilter.PROPERTY_MAX_IN_FLIGHT, String.valueOf(maxInFlight));
+    OpenIdValidationFilter filter = new OpenIdValidationFilter(settings, openIdClient);
+    filter.init(mock(FilterConfig.class));
+    return filter;
+  }
+
+  /**
+   * Client of the default provider, that receives all the responses
+   */
+  private static OpenIdClient mockClient() {
+    OpenIdClient client = mock(OpenIdClient.class);
+    when(client.providerOfResponse(any(HttpServletRequest.class))).thenReturn(client);
+    return client;
+  }
 }
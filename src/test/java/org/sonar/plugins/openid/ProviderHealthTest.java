@@ -0,0 +1,211 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Functions;
+import org.junit.Test;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProviderHealthTest {
+
+  private static final String PRIMARY = "http://primary/openid";
+  private static final String SECONDARY = "http://secondary/openid";
+
+  private long now = 1000000L;
+  private ProviderHealth health = new ProviderHealth(3, 30L) {
+    @Override
+    long currentTimeMillis() {
+      return now;
+    }
+  };
+
+  @Test
+  public void closed_by_default() {
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.CLOSED);
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+  }
+
+  @Test
+  public void open_after_consecutive_failures() {
+    health.recordFailure(PRIMARY);
+    health.recordFailure(PRIMARY);
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+
+    health.recordFailure(PRIMARY);
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.OPEN);
+    assertThat(health.allowRequest(PRIMARY)).isFalse();
+    assertThat(health.allowRequest(SECONDARY)).isTrue();
+  }
+
+  @Test
+  public void success_resets_failures() {
+    health.recordFailure(PRIMARY);
+    health.recordFailure(PRIMARY);
+    health.recordSuccess(PRIMARY);
+    health.recordFailure(PRIMARY);
+    health.recordFailure(PRIMARY);
+
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.CLOSED);
+  }
+
+  @Test
+  public void allow_single_probe_after_open_delay() {
+    open(PRIMARY);
+
+    now += 30000L;
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.HALF_OPEN);
+    assertThat(health.allowRequest(PRIMARY)).isFalse();
+
+    // result of probe is never reported
+    now += 30000L;
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+  }
+
+  @Test
+  public void close_if_probe_succeeds() {
+    open(PRIMARY);
+    now += 30000L;
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+
+    health.recordSuccess(PRIMARY);
+
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.CLOSED);
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+  }
+
+  @Test
+  public void open_again_if_probe_fails() {
+    open(PRIMARY);
+    now += 30000L;
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+
+    health.recordFailure(PRIMARY);
+
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.OPEN);
+    assertThat(health.allowRequest(PRIMARY)).isFalse();
+  }
+
+  @Test
+  public void select_first_available_endpoint() throws Exception {
+    List<DiscoveryInformation> endpoints = Arrays.asList(new DiscoveryInformation(new URL(PRIMARY)), new DiscoveryInformation(new URL(SECONDARY)));
+    assertThat(health.select(endpoints)).isSameAs(endpoints.get(0));
+
+    open(PRIMARY);
+    assertThat(health.select(endpoints)).isSameAs(endpoints.get(1));
+
+    open(SECONDARY);
+    assertThat(health.select(endpoints)).isNull();
+
+    now += 30000L;
+    assertThat(health.select(endpoints)).isSameAs(endpoints.get(0));
+  }
+
+  @Test
+  public void selection_of_login_form_does_not_use_the_probe() throws Exception {
+    List<DiscoveryInformation> endpoints = Arrays.asList(new DiscoveryInformation(new URL(PRIMARY)));
+    open(PRIMARY);
+    now += 30000L;
+
+    assertThat(health.select(endpoints)).isSameAs(endpoints.get(0));
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.OPEN);
+
+    // verification of the response is the probe
+    assertThat(health.allowRequest(PRIMARY)).isTrue();
+    assertThat(health.select(endpoints)).isNull();
+    health.recordSuccess(PRIMARY);
+    assertThat(health.select(endpoints)).isSameAs(endpoints.get(0));
+  }
+
+  @Test
+  public void record_results_of_calls_to_provider() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    HttpFetcher monitored = health.monitor(fetcher, Functions.<String>identity());
+
+    when(fetcher.post(eq(PRIMARY), anyMap(), any(HttpRequestOptions.class))).thenThrow(new SocketTimeoutException());
+    for (int i = 0; i < 3; i++) {
+      try {
+        monitored.post(PRIMARY, Collections.<String, String>emptyMap());
+        fail();
+      } catch (SocketTimeoutException e) {
+        // expected
+      }
+    }
+    assertThat(health.getState(PRIMARY)).isEqualTo(ProviderHealth.State.OPEN);
+
+    HttpResponse unavailable = response(503);
+    HttpResponse badRequest = response(400);
+    when(fetcher.get(eq(SECONDARY), any(HttpRequestOptions.class))).thenReturn(unavailable, unavailable, badRequest, unavailable);
+    monitored.get(SECONDARY);
+    monitored.get(SECONDARY);
+    monitored.get(SECONDARY);
+    monitored.get(SECONDARY);
+    // the bad request is a success of the provider
+    assertThat(health.getState(SECONDARY)).isEqualTo(ProviderHealth.State.CLOSED);
+  }
+
+  @Test
+  public void ignore_calls_to_other_hosts() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.get(anyString(), any(HttpRequestOptions.class))).thenThrow(new ConnectException());
+    HttpFetcher monitored = health.monitor(fetcher, Functions.forMap(Collections.<String, String>emptyMap(), null));
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        monitored.get("http://attacker/id");
+        fail();
+      } catch (ConnectException e) {
+        // expected
+      }
+    }
+    assertThat(health.getState("http://attacker/id")).isEqualTo(ProviderHealth.State.CLOSED);
+  }
+
+  private static HttpResponse response(int status) {
+    HttpResponse response = mock(HttpResponse.class);
+    when(response.getStatusCode()).thenReturn(status);
+    return response;
+  }
+
+  private void open(String endpoint) {
+    for (int i = 0; i < 3; i++) {
+      health.recordFailure(endpoint);
+    }
+  }
+}
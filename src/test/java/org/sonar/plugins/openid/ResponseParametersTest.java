@@ -0,0 +1,122 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Strings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.openid4java.message.ParameterList;
+
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ResponseParametersTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void parse_openid_parameters() {
+    ParameterList parameters = ResponseParameters.parse("openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0&openid.mode=id_res&openid.ax.value.fullname=John+Doe");
+
+    assertThat(parameters.getParameters()).hasSize(3);
+    assertThat(parameters.getParameterValue("openid.ns")).isEqualTo("http://specs.openid.net/auth/2.0");
+    assertThat(parameters.getParameterValue("openid.mode")).isEqualTo("id_res");
+    assertThat(parameters.getParameterValue("openid.ax.value.fullname")).isEqualTo("John Doe");
+  }
+
+  @Test
+  public void decode_utf8_values() {
+    ParameterList parameters = ResponseParameters.parse("openid.ax.value.fullname=J%C3%A9r%C3%B4me");
+
+    assertThat(parameters.getParameterValue("openid.ax.value.fullname")).isEqualTo("Jérôme");
+  }
+
+  @Test
+  public void ignore_other_parameters() {
+    ParameterList parameters = ResponseParameters.parse("foo=bar&&openid.mode=cancel&openidfoo=bar&openid.empty");
+
+    assertThat(parameters.getParameters()).hasSize(2);
+    assertThat(parameters.getParameterValue("openid.mode")).isEqualTo("cancel");
+    assertThat(parameters.getParameterValue("openid.empty")).isEqualTo("");
+    assertThat(parameters.hasParameter("foo")).isFalse();
+  }
+
+  @Test
+  public void keep_requested_parameters() {
+    ParameterList parameters = ResponseParameters.parse("code=abc&state=x.1.y&session_state=foo&openid.mode=id_res&stateful=1", OidcEngine.RESPONSE_PARAMETERS);
+
+    assertThat(parameters.getParameters()).hasSize(3);
+    assertThat(parameters.getParameterValue("code")).isEqualTo("abc");
+    assertThat(parameters.getParameterValue("state")).isEqualTo("x.1.y");
+    assertThat(parameters.getParameterValue("openid.mode")).isEqualTo("id_res");
+  }
+
+  @Test
+  public void parse_null_query_string() {
+    assertThat(ResponseParameters.parse(null).getParameters()).isEmpty();
+  }
+
+  @Test
+  public void fail_if_duplicated_parameter() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("openid.mode");
+
+    ResponseParameters.parse("openid.mode=id_res&openid.mode=cancel");
+  }
+
+  @Test
+  public void fail_if_query_string_is_too_long() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("too long");
+
+    ResponseParameters.parse("openid.mode=" + Strings.repeat("a", ResponseParameters.MAX_QUERY_LENGTH));
+  }
+
+  @Test
+  public void fail_if_too_many_parameters() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("more than " + ResponseParameters.MAX_PARAMETERS);
+
+    ResponseParameters.parse(Strings.repeat("foo=bar&", ResponseParameters.MAX_PARAMETERS + 1));
+  }
+
+  @Test
+  public void raise_limits_with_max_number_of_parameters() {
+    StringBuilder queryString = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      queryString.append("openid.ax.value.groups.").append(i).append("=corp-department-").append(i).append('&');
+    }
+
+    ParameterList parameters = ResponseParameters.parse(queryString.toString(), Collections.<String>emptySet(), ResponseParameters.MAX_PARAMETERS + 1000);
+
+    assertThat(queryString.length()).isGreaterThan(ResponseParameters.MAX_QUERY_LENGTH);
+    assertThat(parameters.getParameters()).hasSize(1000);
+  }
+
+  @Test
+  public void fail_if_bad_encoding() {
+    thrown.expect(IllegalArgumentException.class);
+
+    ResponseParameters.parse("openid.mode=%zz");
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+import org.openid4java.util.InternetDateFormat;
+
+import java.util.Date;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ResponsePrecheckTest {
+
+  private static final String RETURN_TO = "http://localhost:9000/openid/validate";
+  private static final long NOW = 1400000000000L;
+
+  private OpenIdMetrics metrics = new OpenIdMetrics();
+  private ResponsePrecheck precheck = new ResponsePrecheck(RETURN_TO, 60, metrics) {
+    @Override
+    long currentTimeMillis() {
+      return NOW;
+    }
+  };
+
+  @Test
+  public void accept_valid_response() {
+    assertThat(precheck.check(positiveAssertion())).isNull();
+    assertThat(metrics.getResponsesRejected()).isEmpty();
+  }
+
+  @Test
+  public void accept_negative_assertions() {
+    ParameterList parameters = new ParameterList();
+    parameters.set(new Parameter("openid.ns", ResponsePrecheck.NS_OPENID_2));
+    parameters.set(new Parameter("openid.mode", "cancel"));
+
+    assertThat(precheck.check(parameters)).isNull();
+  }
+
+  @Test
+  public void reject_unknown_mode() {
+    ParameterList parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.mode", "foo"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_MODE);
+
+    assertThat(precheck.check(new ParameterList())).isEqualTo(ResponsePrecheck.REASON_MODE);
+    assertThat(metrics.getResponsesRejected().get(ResponsePrecheck.REASON_MODE)).isEqualTo(2L);
+  }
+
+  @Test
+  public void reject_unknown_namespace() {
+    ParameterList parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.ns", "http://openid.net/signon/1.0"));
+
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_NAMESPACE);
+  }
+
+  @Test
+  public void reject_other_return_to_url() {
+    ParameterList parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.return_to", "http://evil/openid/validate"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_RETURN_TO);
+
+    parameters.set(new Parameter("openid.return_to", RETURN_TO + "/other"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_RETURN_TO);
+
+    parameters.set(new Parameter("openid.return_to", RETURN_TO + "?openid.rpnonce=abc"));
+    assertThat(precheck.check(parameters)).isNull();
+  }
+
+  @Test
+  public void reject_missing_signed_fields() {
+    ParameterList parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.signed", "op_endpoint,return_to,response_nonce,assoc_handle,claimed_id,identity,ax.value.email"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIGNED);
+
+    parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.signed", "op_endpoint,return_to,assoc_handle,claimed_id,identity"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIGNED);
+
+    parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.signed", "op_endpoint,return_to,response_nonce,assoc_handle,identity"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIGNED);
+
+    parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.signed", "op_endpoint,return_to,response_nonce,,assoc_handle,claimed_id,identity"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIGNED);
+
+    parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.sig", ""));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIGNED);
+  }
+
+  @Test
+  public void reject_nonce_out_of_time_window() {
+    ParameterList parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.response_nonce", nonce(NOW - 61000L)));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_NONCE);
+
+    parameters.set(new Parameter("openid.response_nonce", nonce(NOW + 61000L)));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_NONCE);
+
+    parameters.set(new Parameter("openid.response_nonce", "foo"));
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_NONCE);
+
+    parameters.set(new Parameter("openid.response_nonce", nonce(NOW - 59000L)));
+    assertThat(precheck.check(parameters)).isNull();
+  }
+
+  @Test
+  public void do_not_check_nonce_of_openid1_responses() {
+    ParameterList parameters = positiveAssertion();
+    parameters.removeParameters("openid.ns");
+    parameters.removeParameters("openid.response_nonce");
+    parameters.set(new Parameter("openid.signed", "return_to,assoc_handle,identity"));
+
+    assertThat(precheck.check(parameters)).isNull();
+  }
+
+  @Test
+  public void reject_oversized_values() {
+    ParameterList parameters = positiveAssertion();
+    parameters.set(new Parameter("openid.ax.value.fullname", Strings.repeat("a", ResponsePrecheck.MAX_VALUE_LENGTH + 1)));
+
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIZE);
+  }
+
+  @Test
+  public void reject_too_many_parameters() {
+    ParameterList parameters = positiveAssertion();
+    for (int i = 0; i < ResponseParameters.MAX_PARAMETERS; i++) {
+      parameters.set(new Parameter("openid.ax.value.p" + i, "v"));
+    }
+
+    assertThat(precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIZE);
+  }
+
+  @Test
+  public void accept_parameters_of_hundreds_of_groups() {
+    ResponsePrecheck precheck = new ResponsePrecheck(RETURN_TO, 60, ResponseParameters.MAX_PARAMETERS + 1000, metrics) {
+      @Override
+      long currentTimeMillis() {
+        return NOW;
+      }
+    };
+    ParameterList parameters = positiveAssertion();
+    StringBuilder signed = new StringBuilder(parameters.getParameterValue("openid.signed"));
+    for (int i = 0; i < 500; i++) {
+      parameters.set(new Parameter("openid.ax.value.groups." + i, "group" + i));
+      signed.append(",ax.value.groups.").append(i);
+    }
+    parameters.set(new Parameter("openid.signed", signed.toString()));
+
+    // the list of signed fields is longer than the maximum length of values
+    assertThat(signed.length()).isGreaterThan(ResponsePrecheck.MAX_VALUE_LENGTH);
+    assertThat(precheck.check(parameters)).isNull();
+    assertThat(this.precheck.check(parameters)).isEqualTo(ResponsePrecheck.REASON_SIZE);
+  }
+
+  private static ParameterList positiveAssertion() {
+    ParameterList parameters = new ParameterList();
+    parameters.set(new Parameter("openid.ns", ResponsePrecheck.NS_OPENID_2));
+    parameters.set(new Parameter("openid.mode", "id_res"));
+    parameters.set(new Parameter("openid.op_endpoint", "https://provider/openid"));
+    parameters.set(new Parameter("openid.claimed_id", "https://provider/id/john"));
+    parameters.set(new Parameter("openid.identity", "https://provider/id/john"));
+    parameters.set(new Parameter("openid.return_to", RETURN_TO));
+    parameters.set(new Parameter("openid.response_nonce", nonce(NOW)));
+    parameters.set(new Parameter("openid.assoc_handle", "handle"));
+    parameters.set(new Parameter("openid.signed", "op_endpoint,claimed_id,identity,return_to,response_nonce,assoc_handle"));
+    parameters.set(new Parameter("openid.sig", "c2lnbmF0dXJl"));
+    return parameters;
+  }
+
+  private static String nonce(long timestamp) {
+    return new InternetDateFormat().format(new Date(timestamp)) + "abc";
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SignatureVerifierTest {
+
+  private final SignatureVerifier verifier = new SignatureVerifier();
+
+  @Test
+  public void verify_hmac_sha1_signature() throws Exception {
+    Association association = Association.generateHmacSha1("handle", 60);
+
+    assertThat(verifier.verify(association, sign(association, "john"))).isTrue();
+  }
+
+  @Test
+  public void verify_hmac_sha256_signature() throws Exception {
+    Association association = Association.generateHmacSha256("handle", 60);
+
+    assertThat(verifier.verify(association, sign(association, "john"))).isTrue();
+  }
+
+  @Test
+  public void verify_signature_of_non_ascii_values() throws Exception {
+    Association association = Association.generateHmacSha256("handle", 60);
+
+    // 2, 3 and 4 bytes in UTF-8, then an unpaired surrogate
+    assertThat(verifier.verify(association, sign(association, "Jérôme € 😀 \ud83d"))).isTrue();
+  }
+
+  @Test
+  public void reject_modified_value() throws Exception {
+    Association association = Association.generateHmacSha256("handle", 60);
+    ParameterList response = sign(association, "john");
+    response.set(new Parameter("openid.identity", "http://localhost/id/admin"));
+
+    assertThat(verifier.verify(association, response)).isFalse();
+  }
+
+  @Test
+  public void reject_signature_of_other_key() throws Exception {
+    ParameterList response = sign(Association.generateHmacSha256("handle", 60), "john");
+
+    assertThat(verifier.verify(Association.generateHmacSha256("handle", 60), response)).isFalse();
+  }
+
+  @Test
+  public void reject_if_missing_signed_field() throws Exception {
+    Association association = Association.generateHmacSha256("handle", 60);
+    ParameterList response = sign(association, "john");
+    response.removeParameters("openid.identity");
+
+    assertThat(verifier.verify(association, response)).isFalse();
+  }
+
+  @Test
+  public void reject_if_missing_signature() throws Exception {
+    Association association = Association.generateHmacSha256("handle", 60);
+    ParameterList response = sign(association, "john");
+    response.removeParameters("openid.sig");
+
+    assertThat(verifier.verify(association, response)).isFalse();
+  }
+
+  @Test
+  public void reuse_macs_of_associations() throws Exception {
+    Association[] associations = new Association[SignatureVerifier.MACS_PER_THREAD + 1];
+    for (int i = 0; i < associations.length; i++) {
+      associations[i] = Association.generateHmacSha256("handle" + i, 60);
+    }
+    for (int round = 0; round < 2; round++) {
+      for (Association association : associations) {
+        assertThat(verifier.verify(association, sign(association, "john" + round))).isTrue();
+      }
+    }
+  }
+
+  @Test
+  public void supports_hmac_associations_only() {
+    assertThat(SignatureVerifier.supports(Association.generateHmacSha1("handle", 60))).isTrue();
+    assertThat(SignatureVerifier.supports(Association.generateHmacSha256("handle", 60))).isTrue();
+    assertThat(SignatureVerifier.supports(Association.getFailedAssociation(60))).isFalse();
+  }
+
+  /**
+   * Response signed by openid4java
+   */
+  private static ParameterList sign(Association association, String name) throws Exception {
+    ParameterList response = new ParameterList();
+    response.set(new Parameter("openid.mode", "id_res"));
+    response.set(new Parameter("openid.identity", "http://localhost/id/" + name));
+    response.set(new Parameter("openid.unsigned", "foo"));
+    response.set(new Parameter("openid.signed", "mode,identity"));
+    response.set(new Parameter("openid.sig", association.sign("mode:id_res\nidentity:http://localhost/id/" + name + "\n")));
+    return response;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.UrlIdentifier;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchRequest;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegRequest;
+import org.openid4java.message.sreg.SRegResponse;
+import org.openid4java.server.ServerAssociationStore;
+import org.openid4java.server.ServerManager;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OpenID 2.0 provider running in the same JVM than the consumer, without HTTP. It answers to authentication
+ * requests with signed positive assertions, including AX and SREG attributes. Used by tests and benchmarks.
+ */
+public class StubOpenIdProvider {
+
+  public static final String ENDPOINT = "http://localhost/openid/provider";
+
+  private final String endpoint;
+  private final ServerManager server = new ServerManager();
+
+  public StubOpenIdProvider() {
+    this(ENDPOINT);
+  }
+
+  public StubOpenIdProvider(String endpoint) {
+    this.endpoint = endpoint;
+    server.setOPEndpointUrl(endpoint);
+    server.getRealmVerifier().setEnforceRpId(false);
+    // the default stores are created in the same millisecond and generate the same handles. A response signed by a
+    // private association would then be verified by the consumer with the shared association of same handle.
+    server.setPrivateAssociations(new PrivateAssociationStore());
+  }
+
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  public ServerManager getServerManager() {
+    return server;
+  }
+
+  /**
+   * Generates a new association and saves it in the consumer storage, as if it had been negotiated.
+   */
+  public Association associate(ConsumerAssociationStore consumerAssociations, int expirySeconds) {
+    try {
+      Association association = server.getSharedAssociations().generate(Association.TYPE_HMAC_SHA256, expirySeconds);
+      consumerAssociations.save(endpoint, association);
+      return association;
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to generate association", e);
+    }
+  }
+
+  /**
+   * Discovery information of a claimed identifier hosted by this provider. Assertions about this identifier are
+   * verified by the consumer without discovery.
+   */
+  public DiscoveryInformation discover(String claimedId) {
+    try {
+      return new DiscoveryInformation(new URL(endpoint), new UrlIdentifier(claimedId), null, DiscoveryInformation.OPENID2);
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to create discovery information", e);
+    }
+  }
+
+  /**
+   * Authenticates the user and answers to the request of the consumer.
+   *
+   * @param groups values of the AX attributes requested in addition to email, firstName and lastName
+   * @return the signed positive assertion
+   */
+  public AuthSuccess login(ParameterList request, String claimedId, String fullName, String email, String... groups) {
+    try {
+      AuthRequest authRequest = AuthRequest.createAuthRequest(request, server.getRealmVerifier());
+      Message response = server.authResponse(authRequest, claimedId, claimedId, true, false);
+      if (!(response instanceof AuthSuccess)) {
+        throw new IllegalStateException("Fail to authenticate: " + response.getParameterValue("openid.error"));
+      }
+      AuthSuccess success = (AuthSuccess) response;
+      if (authRequest.hasExtension(AxMessage.OPENID_NS_AX)) {
+        FetchRequest fetch = FetchRequest.createFetchRequest(authRequest.getExtension(AxMessage.OPENID_NS_AX).getParameters());
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(OpenIdClient.AX_ATTR_EMAIL, email);
+        values.put(OpenIdClient.AX_ATTR_FIRSTNAME, fullName.substring(0, fullName.indexOf(' ')));
+        values.put(OpenIdClient.AX_ATTR_LASTNAME, fullName.substring(fullName.indexOf(' ') + 1));
+        FetchResponse fetchResponse = FetchResponse.createFetchResponse(fetch, values);
+        for (Object attribute : fetch.getAttributes().entrySet()) {
+          Map.Entry<?, ?> entry = (Map.Entry<?, ?>) attribute;
+          if (!values.containsKey(entry.getKey())) {
+            for (String group : groups) {
+              fetchResponse.addAttribute((String) entry.getKey(), (String) entry.getValue(), group);
+            }
+          }
+        }
+        success.addExtension(fetchResponse);
+      }
+      if (authRequest.hasExtension(SRegMessage.OPENID_NS_SREG)) {
+        SRegRequest sreg = SRegRequest.createSRegRequest(authRequest.getExtension(SRegMessage.OPENID_NS_SREG).getParameters());
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(OpenIdClient.SREG_ATTR_FULLNAME, fullName);
+        values.put(OpenIdClient.SREG_ATTR_EMAIL, email);
+        success.addExtension(SRegResponse.createSRegResponse(sreg, values));
+      }
+      server.sign(success);
+      return success;
+
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to answer OpenID request", e);
+    }
+  }
+
+  /**
+   * Parameters of the URL the consumer redirects to.
+   */
+  public static ParameterList parseRedirection(String url) {
+    int query = url.indexOf('?');
+    try {
+      return ParameterList.createFromQueryString(query < 0 ? "" : url.substring(query + 1));
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Invalid URL: " + url, e);
+    }
+  }
+
+  private static class PrivateAssociationStore implements ServerAssociationStore {
+    private final AtomicInteger counter = new AtomicInteger();
+    private final ConcurrentMap<String, Association> associations = new ConcurrentHashMap<String, Association>();
+
+    public Association generate(String type, int expiryIn) throws AssociationException {
+      Association association = Association.generate(type, "private-" + counter.incrementAndGet(), expiryIn);
+      associations.put(association.getHandle(), association);
+      return association;
+    }
+
+    public Association load(String handle) {
+      return associations.get(handle);
+    }
+
+    public void remove(String handle) {
+      associations.remove(handle);
+    }
+  }
+}
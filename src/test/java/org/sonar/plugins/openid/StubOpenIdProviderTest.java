@@ -0,0 +1,156 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.ax.AxMessage;
+import org.sonar.api.config.Settings;
+import org.sonar.api.security.UserDetails;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class StubOpenIdProviderTest {
+
+  private static final String CLAIMED_ID = "http://localhost/openid/id/john";
+
+  private StubOpenIdProvider provider;
+  private OpenIdClient client;
+  private Association association;
+  private ConsumerManager manager;
+
+  @Before
+  public void setUp() {
+    provider = new StubOpenIdProvider();
+    manager = new ConsumerManager();
+    manager.getRealmVerifier().setEnforceRpId(false);
+    manager.setMaxAssocAttempts(0);
+    association = provider.associate(manager.getAssociations(), 3600);
+
+    client = new OpenIdClient(new Settings().setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000"))
+      .setConsumerManager(manager)
+      .setDiscoveryInfo(provider.discover(CLAIMED_ID));
+    client.initReturnToUrl();
+  }
+
+  @Test
+  public void login() {
+    AuthSuccess response = provider.login(StubOpenIdProvider.parseRedirection(client.createAuthenticationUrl()), CLAIMED_ID, "John Smith", "john@example.com");
+
+    UserDetails user = client.verify(client.getReturnToUrl() + "?" + response.wwwFormEncoding(), new ParameterList(response.getParameterMap()));
+
+    assertThat(user.getName()).isEqualTo("John Smith");
+    assertThat(user.getEmail()).isEqualTo("john@example.com");
+  }
+
+  @Test
+  public void login_with_groups() {
+    client = newClientWithGroups();
+    AuthSuccess response = provider.login(StubOpenIdProvider.parseRedirection(client.createAuthenticationUrl()), CLAIMED_ID, "John Smith", "john@example.com",
+      "developers", "admins", "hr");
+
+    UserDetails user = client.verify(client.getReturnToUrl() + "?" + response.wwwFormEncoding(), new ParameterList(response.getParameterMap()));
+
+    assertThat(user.getName()).isEqualTo("John Smith");
+    assertThat(new ArrayList<String>(client.getGroups("John Smith"))).containsExactly("admins", "developers");
+    assertThat(new OpenIdGroupsProvider(client).doGetGroups("John Smith")).containsOnly("admins", "developers");
+    assertThat(client.getGroups("Jane Doe")).isNull();
+  }
+
+  @Test
+  public void never_grant_groups_added_by_user() {
+    client = newClientWithGroups();
+    AuthSuccess response = provider.login(StubOpenIdProvider.parseRedirection(client.createAuthenticationUrl()), CLAIMED_ID, "John Smith", "john@example.com");
+    String alias = response.getExtensionAlias(AxMessage.OPENID_NS_AX);
+    ParameterList parameters = new ParameterList(response.getParameterMap());
+    parameters.set(new Parameter("openid." + alias + ".type.groups", "http://example.com/groups"));
+    parameters.set(new Parameter("openid." + alias + ".value.groups", "admins"));
+
+    try {
+      client.verify(client.getReturnToUrl() + "?" + response.wwwFormEncoding(), parameters);
+      fail();
+    } catch (IllegalStateException e) {
+      // openid4java refuses the unsigned fields of AX, the mapping of groups checks the signature too
+      assertThat(client.getGroups("John Smith")).isNull();
+    }
+  }
+
+  @Test
+  public void login_with_hundreds_of_groups() {
+    client = newClientWithGroups();
+    client.initPrecheck();
+    String[] groups = new String[500];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = "corp-department-" + i;
+    }
+    groups[0] = "developers";
+    AuthSuccess response = provider.login(StubOpenIdProvider.parseRedirection(client.createAuthenticationUrl()), CLAIMED_ID, "John Smith", "john@example.com",
+      groups);
+    String queryString = response.wwwFormEncoding();
+
+    // same parsing and structural checks than OpenIdValidationFilter
+    ParameterList parameters = ResponseParameters.parse(queryString, Collections.<String>emptySet(), client.getMaxResponseParameters());
+    assertThat(client.precheck(parameters)).isNull();
+    UserDetails user = client.verify(client.getReturnToUrl() + "?" + queryString, parameters);
+
+    assertThat(user.getName()).isEqualTo("John Smith");
+    assertThat(new ArrayList<String>(client.getGroups("John Smith"))).containsExactly("developers");
+  }
+
+  private OpenIdClient newClientWithGroups() {
+    OpenIdClient client = new OpenIdClient(new Settings()
+      .setProperty(OpenIdClient.PROPERTY_SONAR_URL, "http://localhost:9000")
+      .setProperty(UserMapping.PROPERTY_GROUPS, "groups")
+      .setProperty(UserMapping.PROPERTY_GROUP_NAMES, "developers=developers,admins=admins")
+      .setProperty(UserMapping.PROPERTY_AX_TYPES, "groups=http://example.com/groups"))
+      .setConsumerManager(manager)
+      .setDiscoveryInfo(provider.discover(CLAIMED_ID));
+    client.initReturnToUrl();
+    client.initUserMapping();
+    return client;
+  }
+
+  @Test
+  public void response_is_signed_with_shared_association() {
+    AuthSuccess response = provider.login(StubOpenIdProvider.parseRedirection(client.createAuthenticationUrl()), CLAIMED_ID, "John Smith", "john@example.com");
+
+    assertThat(response.getHandle()).isEqualTo(association.getHandle());
+    assertThat(response.getInvalidateHandle()).isNull();
+    assertThat(response.getSignList()).contains("ns.sreg").contains("sreg.fullname").contains("value.email");
+  }
+
+  @Test
+  public void replayed_response_is_rejected() {
+    AuthSuccess response = provider.login(StubOpenIdProvider.parseRedirection(client.createAuthenticationUrl()), CLAIMED_ID, "John Smith", "john@example.com");
+    String receivingUrl = client.getReturnToUrl() + "?" + response.wwwFormEncoding();
+
+    assertThat(client.verify(receivingUrl, new ParameterList(response.getParameterMap()))).isNotNull();
+    assertThat(client.verify(receivingUrl, new ParameterList(response.getParameterMap()))).isNull();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class UserGroupsTest {
+
+  @Test
+  public void replace_groups_of_user() {
+    UserGroups groups = new UserGroups(10);
+    groups.put("john", ImmutableSet.of("developers"));
+    groups.put("john", ImmutableSet.of("developers", "admins"));
+
+    assertThat(groups.get("john")).containsOnly("developers", "admins");
+    assertThat(groups.get("jane")).isNull();
+    assertThat(groups.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void evict_least_recently_used() {
+    UserGroups groups = new UserGroups(2);
+    groups.put("a", ImmutableSet.of("developers"));
+    groups.put("b", ImmutableSet.of("developers"));
+    groups.get("a");
+    groups.put("c", ImmutableSet.of("developers"));
+
+    assertThat(groups.get("a")).isNotNull();
+    assertThat(groups.get("b")).isNull();
+    assertThat(groups.get("c")).isNotNull();
+  }
+}
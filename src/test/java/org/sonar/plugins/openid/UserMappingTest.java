@@ -0,0 +1,260 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegResponse;
+import org.sonar.api.config.Settings;
+import org.sonar.api.security.UserDetails;
+import org.sonar.plugins.openid.api.OpenIdResponseExtensions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.MapAssert.entry;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UserMappingTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void default_mapping() {
+    UserMapping mapping = new UserMapping(UserMapping.DEFAULT_NAME, UserMapping.DEFAULT_EMAIL, Collections.<String, String>emptyMap());
+
+    assertThat(mapping.getSregAttributes()).containsExactly("fullname", "email");
+    assertThat(mapping.getAxAttributes()).hasSize(3);
+    assertThat(mapping.getAxAttributes()).includes(entry("email", "http://schema.openid.net/contact/email"));
+  }
+
+  @Test
+  public void template_with_literals() throws Exception {
+    UserMapping mapping = new UserMapping("${ax.lastName}, ${ax.firstName} (${sreg.nickname})", "${ax.email}", Collections.<String, String>emptyMap());
+    AuthSuccess authSuccess = response(sreg("nickname", "rick"), ax("firstName", "Rick", "lastName", "Hunter", "email", "rick@hunter.com"));
+
+    UserDetails user = mapping.toUser(new OpenIdResponseExtensions(authSuccess));
+
+    assertThat(user.getName()).isEqualTo("Hunter, Rick (rick)");
+    assertThat(user.getEmail()).isEqualTo("rick@hunter.com");
+  }
+
+  @Test
+  public void first_alternative_with_all_attributes() throws Exception {
+    UserMapping mapping = new UserMapping("${sreg.fullname}|${ax.firstName} ${ax.lastName}|${ax.email}|anonymous", "${sreg.email}", Collections.<String, String>emptyMap());
+
+    assertThat(mapping.toUser(extensions(null, ax("firstName", "Rick", "lastName", "Hunter"))).getName()).isEqualTo("Rick Hunter");
+    assertThat(mapping.toUser(extensions(null, ax("firstName", "Rick", "email", "rick@hunter.com"))).getName()).isEqualTo("rick@hunter.com");
+    assertThat(mapping.toUser(extensions(null, null)).getName()).isEqualTo("anonymous");
+    assertThat(mapping.toUser(extensions(null, null)).getEmail()).isNull();
+  }
+
+  @Test
+  public void no_user_if_missing_name() throws Exception {
+    UserMapping mapping = new UserMapping("${ax.firstName} ${ax.lastName}", "${ax.email}", Collections.<String, String>emptyMap());
+
+    assertThat(mapping.toUser(extensions(null, ax("firstName", "Rick", "email", "rick@hunter.com")))).isNull();
+  }
+
+  @Test
+  public void read_only_extensions_of_mapping() throws Exception {
+    UserMapping mapping = new UserMapping("${ax.firstName}", "${ax.email}", Collections.<String, String>emptyMap());
+    AuthSuccess authSuccess = response(sreg("fullname", "Rick Hunter"), ax("firstName", "Rick"));
+
+    assertThat(mapping.toUser(new OpenIdResponseExtensions(authSuccess)).getName()).isEqualTo("Rick");
+    assertThat(mapping.getSregAttributes()).isEmpty();
+    verify(authSuccess, never()).getExtension(SRegMessage.OPENID_NS_SREG);
+  }
+
+  @Test
+  public void map_groups() throws Exception {
+    UserMapping mapping = new UserMapping(UserMapping.DEFAULT_NAME, UserMapping.DEFAULT_EMAIL, "groups", ImmutableMap.of("developers", "developers", "admins", "admins"),
+      ImmutableMap.of("groups", "http://example.com/groups"));
+
+    assertThat(new ArrayList<String>(mapping.toGroups(extensions(null, ax("groups", "developers", "groups", "admins"))))).containsExactly("admins", "developers");
+    assertThat(mapping.toGroups(extensions(null, ax("firstName", "Rick")))).isEmpty();
+    assertThat(mapping.toGroups(extensions(null, null))).isEmpty();
+  }
+
+  @Test
+  public void ignore_unsigned_groups() throws Exception {
+    UserMapping mapping = new UserMapping(UserMapping.DEFAULT_NAME, UserMapping.DEFAULT_EMAIL, "groups", ImmutableMap.of("admins", "sonar-administrators"),
+      ImmutableMap.of("groups", "http://example.com/groups"));
+
+    AuthSuccess unsigned = response(null, ax("groups", "admins"), false);
+    assertThat(mapping.toGroups(new OpenIdResponseExtensions(unsigned))).isEmpty();
+
+    // a value is added to the signed values
+    AuthSuccess injected = response(null, ax("groups", "developers"));
+    injected.getParameterMap().put("openid.ext1.value.groups.2", "admins");
+    injected.getParameterMap().put("openid.ext1.count.groups", "2");
+    assertThat(mapping.toGroups(new OpenIdResponseExtensions(injected))).isEmpty();
+  }
+
+  @Test
+  public void ignore_groups_of_other_type() throws Exception {
+    UserMapping mapping = new UserMapping(UserMapping.DEFAULT_NAME, UserMapping.DEFAULT_EMAIL, "groups", ImmutableMap.of("admins", "sonar-administrators"),
+      ImmutableMap.of("groups", "http://other.com/groups"));
+
+    assertThat(mapping.toGroups(extensions(null, ax("groups", "admins")))).isEmpty();
+  }
+
+  @Test
+  public void fail_if_missing_names_of_groups() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Property sonar.openid.mapping.groupNames is missing");
+
+    UserMapping.create(new Settings()
+      .setProperty(UserMapping.PROPERTY_GROUPS, "groups")
+      .setProperty(UserMapping.PROPERTY_AX_TYPES, "groups=http://example.com/groups"));
+  }
+
+  @Test
+  public void rename_declared_groups_only() throws Exception {
+    Settings settings = new Settings()
+      .setProperty(UserMapping.PROPERTY_GROUPS, "groups")
+      .setProperty(UserMapping.PROPERTY_GROUP_NAMES, "corp-dev=sonar-developers,corp-admin=sonar-administrators")
+      .setProperty(UserMapping.PROPERTY_AX_TYPES, "groups=http://example.com/groups");
+    UserMapping mapping = UserMapping.create(settings);
+
+    assertThat(mapping.toGroups(extensions(null, ax("groups", "corp-dev", "groups", "corp-hr")))).containsOnly("sonar-developers");
+    assertThat(mapping.getGroupsAttribute()).isEqualTo("groups");
+    assertThat(mapping.getGroupsType()).isEqualTo("http://example.com/groups");
+  }
+
+  @Test
+  public void groups_are_not_mapped_by_default() throws Exception {
+    assertThat(UserMapping.DEFAULT.toGroups(extensions(null, ax("groups", "developers")))).isNull();
+    assertThat(UserMapping.DEFAULT.getGroupsAttribute()).isNull();
+  }
+
+  @Test
+  public void fail_if_unknown_type_of_groups() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Type URI of AX attribute groups is unknown");
+
+    UserMapping.create(new Settings().setProperty(UserMapping.PROPERTY_GROUPS, "groups"));
+  }
+
+  @Test
+  public void declared_ax_types() {
+    Settings settings = new Settings()
+      .setProperty(UserMapping.PROPERTY_NAME, "${ax.nickname}")
+      .setProperty(UserMapping.PROPERTY_AX_TYPES, "nickname=http://axschema.org/namePerson/friendly");
+
+    UserMapping mapping = UserMapping.create(settings);
+
+    assertThat(mapping.getAxAttributes()).includes(entry("nickname", "http://axschema.org/namePerson/friendly"), entry("email", "http://schema.openid.net/contact/email"));
+    assertThat(mapping.getSregAttributes()).containsExactly("email");
+  }
+
+  @Test
+  public void fail_if_unknown_ax_type() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Type URI of AX attribute nickname is unknown");
+
+    UserMapping.create(new Settings().setProperty(UserMapping.PROPERTY_NAME, "${ax.nickname}"));
+  }
+
+  @Test
+  public void fail_if_unknown_source() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid value of property sonar.openid.mapping.email");
+
+    UserMapping.create(new Settings().setProperty(UserMapping.PROPERTY_EMAIL, "${foo.email}"));
+  }
+
+  @Test
+  public void fail_if_unclosed_attribute() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("missing }");
+
+    UserMapping.create(new Settings().setProperty(UserMapping.PROPERTY_NAME, "${sreg.fullname"));
+  }
+
+  private static OpenIdResponseExtensions extensions(SRegResponse sreg, FetchResponse ax) throws Exception {
+    return new OpenIdResponseExtensions(response(sreg, ax));
+  }
+
+  private static AuthSuccess response(SRegResponse sreg, FetchResponse ax) throws Exception {
+    return response(sreg, ax, true);
+  }
+
+  /**
+   * @param signed are the AX parameters signed by the provider
+   */
+  private static AuthSuccess response(SRegResponse sreg, FetchResponse ax, boolean signed) throws Exception {
+    AuthSuccess authSuccess = mock(AuthSuccess.class);
+    if (sreg != null) {
+      when(authSuccess.hasExtension(SRegMessage.OPENID_NS_SREG)).thenReturn(true);
+      when(authSuccess.getExtension(SRegMessage.OPENID_NS_SREG)).thenReturn(sreg);
+    }
+    if (ax != null) {
+      when(authSuccess.hasExtension(AxMessage.OPENID_NS_AX)).thenReturn(true);
+      when(authSuccess.getExtension(AxMessage.OPENID_NS_AX)).thenReturn(ax);
+      when(authSuccess.getExtensionAlias(AxMessage.OPENID_NS_AX)).thenReturn("ext1");
+      Map<String, String> parameters = new HashMap<String, String>();
+      List<String> signList = Lists.newArrayList("ns.ext1");
+      for (Object o : ax.getParameters().getParameters()) {
+        Parameter parameter = (Parameter) o;
+        parameters.put("openid.ext1." + parameter.getKey(), parameter.getValue());
+        if (signed) {
+          signList.add("ext1." + parameter.getKey());
+        }
+      }
+      when(authSuccess.getParameterMap()).thenReturn(parameters);
+      when(authSuccess.getSignList()).thenReturn(Joiner.on(',').join(signList));
+    }
+    return authSuccess;
+  }
+
+  private static SRegResponse sreg(String... attributes) throws Exception {
+    SRegResponse sreg = SRegResponse.createFetchResponse();
+    for (int i = 0; i < attributes.length; i += 2) {
+      sreg.addAttribute(attributes[i], attributes[i + 1]);
+    }
+    return sreg;
+  }
+
+  private static FetchResponse ax(String... attributes) throws Exception {
+    FetchResponse ax = FetchResponse.createFetchResponse();
+    for (int i = 0; i < attributes.length; i += 2) {
+      ax.addAttribute(attributes[i], "http://example.com/" + attributes[i], attributes[i + 1]);
+    }
+    return ax;
+  }
+}
@@ -44,4 +44,18 @@ public class OpenIdExtensionTest {
     verifyZeroInteractions(response);
     assertThat(ok).isTrue();
   }
+
+  @Test
+  public void verify_response_with_parsed_extensions_by_default() {
+    AuthSuccess response = mock(AuthSuccess.class);
+    OpenIdExtension extension = new OpenIdExtension() {
+      @Override
+      public boolean doVerifyResponse(AuthSuccess response) {
+        return false;
+      }
+    };
+
+    assertThat(extension.doVerifyResponse(response, new OpenIdResponseExtensions(response))).isFalse();
+    verifyZeroInteractions(response);
+  }
 }
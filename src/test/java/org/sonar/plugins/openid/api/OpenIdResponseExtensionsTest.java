@@ -0,0 +1,67 @@
+/*
+ * Sonar OpenID Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.openid.api;
+
+import org.junit.Test;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegResponse;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OpenIdResponseExtensionsTest {
+
+  @Test
+  public void parse_each_extension_once() throws MessageException {
+    AuthSuccess response = mock(AuthSuccess.class);
+    SRegResponse sreg = new SRegResponse() {
+    };
+    when(response.hasExtension(SRegMessage.OPENID_NS_SREG)).thenReturn(true);
+    when(response.getExtension(SRegMessage.OPENID_NS_SREG)).thenReturn(sreg);
+    OpenIdResponseExtensions extensions = new OpenIdResponseExtensions(response);
+
+    assertThat(extensions.get(SRegResponse.class, SRegMessage.OPENID_NS_SREG)).isSameAs(sreg);
+    assertThat(extensions.get(SRegResponse.class, SRegMessage.OPENID_NS_SREG)).isSameAs(sreg);
+    assertThat(extensions.getResponse()).isSameAs(response);
+    verify(response, times(1)).getExtension(SRegMessage.OPENID_NS_SREG);
+  }
+
+  @Test
+  public void missing_extension_is_looked_up_once() {
+    AuthSuccess response = mock(AuthSuccess.class);
+    OpenIdResponseExtensions extensions = new OpenIdResponseExtensions(response);
+
+    assertThat(extensions.get(FetchResponse.class, AxMessage.OPENID_NS_AX)).isNull();
+    assertThat(extensions.get(FetchResponse.class, AxMessage.OPENID_NS_AX)).isNull();
+    verify(response, times(1)).hasExtension(AxMessage.OPENID_NS_AX);
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void fail_if_missing_response() {
+    new OpenIdResponseExtensions(null);
+  }
+}